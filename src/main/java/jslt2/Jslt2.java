@@ -11,8 +11,12 @@ import java.io.InputStreamReader;
 import java.io.Reader;
 import java.io.StringReader;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
@@ -21,18 +25,22 @@ import java.util.concurrent.atomic.AtomicInteger;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.IntNode;
 import com.fasterxml.jackson.databind.node.NullNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
-import jslt2.Jslt2StdLibrary.Jslt2FunctionValidation;
+import jslt2.ast.Expr.ProgramExpr;
+import jslt2.closure.ClosureCode;
+import jslt2.closure.ClosureCompiler;
 import jslt2.parser.ParseException;
 import jslt2.parser.Parser;
 import jslt2.parser.Scanner;
 import jslt2.parser.Source;
-import jslt2.util.Jslt2Util;
 import jslt2.vm.Bytecode;
 import jslt2.vm.VM;
+import jslt2.vm.VMPool;
 import jslt2.vm.compiler.Compiler;
+import jslt2.vm.jit.JitCompiler;
 
 /**
  * The main API to JSLT2.
@@ -40,11 +48,15 @@ import jslt2.vm.compiler.Compiler;
  * <p>
  * In general, you only need one instance of <code>Jslt2</code>, but they are lightweight enough to create multiple.  
  * The method {@link Jslt2#addFunction(String, Jslt2Function)} are not thread-safe, you should add your functions on startup 
- * of your application.  The rest of the functions (such as {@link Jslt2#eval(Bytecode, JsonNode)}, {@link Jslt2#compile(File)}) are 
- * thread-safe.  
+ * of your application and then call {@link Jslt2#freezeFunctions()}.  The rest of the functions (such as {@link Jslt2#eval(Bytecode, JsonNode)}, 
+ * {@link Jslt2#compile(File)}) are thread-safe.  
  * 
  * <p>
- * The {@link Template} class it <b>not</b> thread-safe, please see {@link Template} for more information. 
+ * The functions a template invokes are bound when the template is compiled, functions registered afterwards are not seen
+ * by already compiled templates.
+ * 
+ * <p>
+ * The {@link Template} class is thread-safe, a single instance may be shared between threads; please see {@link Template} for more information. 
  * 
  * @see Template
  * 
@@ -189,6 +201,13 @@ public class Jslt2 {
         private int minStackSize = 128;
         private int maxStackSize = Integer.MAX_VALUE;
         
+        private int vmPoolSize = VMPool.DEFAULT_POOL_SIZE;
+        private int jitThreshold = -1;
+        private boolean quickening = false;
+        private boolean closureCompilation = false;
+        private boolean registerInstructions = false;
+        private int memoCacheSize = 0;
+        
         private ObjectMapper objectMapper;
         private ResourceResolver resolver = ResourceResolvers.newClassPathResolver();       
         private ExecutorService executorService;
@@ -218,6 +237,84 @@ public class Jslt2 {
             return this;
         }
         
+        /**
+         * The maximum number of idle {@link VM}s retained for reuse between evaluations
+         * 
+         * @param vmPoolSize
+         * @return this builder
+         */
+        public Builder vmPoolSize(int vmPoolSize) {
+            this.vmPoolSize = vmPoolSize;
+            return this;
+        }
+        
+        /**
+         * The number of evaluations of a {@link Template} in the {@link VM} interpreter before it is 
+         * compiled into JVM classes by the {@link JitCompiler}.  A negative value (the default) disables
+         * the compilation, zero compiles the {@link Template} on its first evaluation.
+         * 
+         * @param jitThreshold
+         * @return this builder
+         */
+        public Builder jitThreshold(int jitThreshold) {
+            this.jitThreshold = jitThreshold;
+            return this;
+        }
+        
+        /**
+         * Enables the {@link VM} interpreter to specialize the arithmetic and comparison instructions of a 
+         * {@link Template} to the operand types it observes, i.e., an <code>ADD</code> of two integers becomes
+         * an <code>ADD_LONG</code>.  The specialized instruction falls back to the generic one if the types change.
+         * Each {@link VM} specializes its own copy of the instructions, the compiled {@link Template} is left untouched.
+         * 
+         * @param quickening
+         * @return this builder
+         */
+        public Builder quickening(boolean quickening) {
+            this.quickening = quickening;
+            return this;
+        }
+        
+        /**
+         * Evaluates the {@link Template}s with a tree of Java lambdas compiled from the template by the 
+         * {@link ClosureCompiler}, rather than with the {@link VM} interpreter.  A template which can't be compiled 
+         * by the {@link ClosureCompiler} is evaluated by the {@link VM}.
+         * 
+         * @param closureCompilation
+         * @return this builder
+         */
+        public Builder closureCompilation(boolean closureCompilation) {
+            this.closureCompilation = closureCompilation;
+            return this;
+        }
+        
+        /**
+         * Compiles the {@link Template}s with register instructions, which read their operands directly from the 
+         * local variables and constants, in place of the sequences of stack instructions loading the operands 
+         * and operating on them, i.e., <code>$a + 1</code> becomes a single <code>ADD_RK</code>.
+         * 
+         * @param registerInstructions
+         * @return this builder
+         */
+        public Builder registerInstructions(boolean registerInstructions) {
+            this.registerInstructions = registerInstructions;
+            return this;
+        }
+        
+        /**
+         * Caches the results of the template functions which are pure and don't read their input, by the values of 
+         * their arguments, for the duration of an evaluation.  This helps lookup functions, which are called many times 
+         * with a handful of distinct arguments.  Only calls with strings, numbers, booleans or nulls as arguments are 
+         * cached.  A size of zero (the default) disables the cache.
+         * 
+         * @param memoCacheSize the maximum number of results cached per function
+         * @return this builder
+         */
+        public Builder memoCacheSize(int memoCacheSize) {
+            this.memoCacheSize = memoCacheSize;
+            return this;
+        }
+        
         public Builder objectMapper(ObjectMapper mapper) {
             this.objectMapper = mapper;
             return this;
@@ -239,11 +336,7 @@ public class Jslt2 {
                              this.resolver,
                              this.executorService != null 
                                  ? this.executorService : Executors.newCachedThreadPool(new DaemonThreadFactory()),
-                             this.isDebugMode, 
-                             this.includeNulls,
-                             this.printBytecode,
-                             this.minStackSize, 
-                             this.maxStackSize);
+                             this);
         }
     }
     
@@ -264,15 +357,31 @@ public class Jslt2 {
     
     private int minStackSize;
     private int maxStackSize;
+    private int jitThreshold;
+    private boolean quickening;
+    private boolean closureCompilation;
+    private boolean registerInstructions;
+    private int memoCacheSize;
     
     private ObjectMapper objectMapper;
     private ExecutorService executorService;
     private ResourceResolver resolver;
     
     private Compiler compiler;        
+    private VMPool vmPool;
     private Map<String, Jslt2Function> userFunctions;
+    private Map<String, Integer> userFunctionMinArgs;
+    private Set<String> pureFunctions;
+    private boolean functionsFrozen;
     private Map<String, Jslt2MacroFunction> macroFunctions;
     
+    /**
+     * The largest for loop index that is cached by {@link #indexNode(int)}
+     */
+    private static final int MAX_CACHED_INDEX = 1 << 16;
+    
+    private volatile IntNode[] indexNodes = new IntNode[0];
+    
     /**
      * @param objectMapper
      */
@@ -284,20 +393,48 @@ public class Jslt2 {
                  boolean printBytecode,
                  int minStackSize, 
                  int maxStackSize) {
+        this(objectMapper, resolver, executorService, new Builder()
+                .enableDebugMode(debugMode)
+                .includeNulls(includeNulls)
+                .printBytecode(printBytecode)
+                .minStackSize(minStackSize)
+                .maxStackSize(maxStackSize));
+    }
+    
+    /**
+     * The remaining options are taken from the {@link Builder}
+     * 
+     * @param objectMapper
+     * @param resolver
+     * @param executorService
+     * @param options
+     */
+    private Jslt2(ObjectMapper objectMapper, 
+                  ResourceResolver resolver,
+                  ExecutorService executorService,
+                  Builder options) {
         
         this.objectMapper = objectMapper;
         this.resolver = resolver;
         this.executorService = executorService;
         
-        this.isDebugMode = debugMode;
-        this.includeNulls = includeNulls;
-        this.printBytecode = printBytecode;
+        this.isDebugMode = options.isDebugMode;
+        this.includeNulls = options.includeNulls;
+        this.printBytecode = options.printBytecode;
         
-        this.minStackSize = minStackSize;
-        this.maxStackSize = maxStackSize;
+        this.minStackSize = options.minStackSize;
+        this.maxStackSize = options.maxStackSize;
+        this.jitThreshold = options.jitThreshold;
+        this.quickening = options.quickening;
+        this.closureCompilation = options.closureCompilation;
+        this.registerInstructions = options.registerInstructions;
+        this.memoCacheSize = options.memoCacheSize;
         
         this.compiler = new Compiler(this);        
+        this.vmPool = new VMPool(this, options.vmPoolSize);
         this.userFunctions = new HashMap<>();
+        this.userFunctionMinArgs = new HashMap<>();
+        this.pureFunctions = new HashSet<>();
         this.macroFunctions = new HashMap<>();
         
         new Jslt2StdLibrary(this);
@@ -328,30 +465,93 @@ public class Jslt2 {
     }
     
     /**
-     * Register a user defined {@link Jslt2Function}
+     * Register a user defined {@link Jslt2Function}.  A function with a fixed {@link Jslt2Function#arity()} 
+     * requires all of its arguments.
      * 
      * @param name
      * @param function
      */
     public Jslt2 addFunction(String name, Jslt2Function function) {        
-        this.userFunctions.put(name, function);
-        
-        return this;
+        return addFunction(name, Math.max(function.arity(), 0), function);
     }
     
     /**
-     * Register a user defined {@link Jslt2Function}
+     * Register a user defined {@link Jslt2Function}.  The number of arguments is validated when a template 
+     * calling the function is compiled; for a function with a fixed {@link Jslt2Function#arity()} the arguments 
+     * between <code>minArgs</code> and the arity are optional, and are passed as null when omitted.
      * 
      * @param name
      * @param minArgs minimum number of arguments 
      * @param function
      */
     public Jslt2 addFunction(String name, int minArgs, Jslt2Function function) {        
-        this.userFunctions.put(name, new Jslt2FunctionValidation(minArgs, function));
+        checkFunctionsNotFrozen(name);
+        this.userFunctions.put(name, function);
+        this.userFunctionMinArgs.put(name, Math.max(minArgs, 0));
+        this.pureFunctions.remove(name);
+        
+        return this;
+    }
+    
+    /**
+     * Marks registered {@link Jslt2Function}s as pure, that is the result only depends on the arguments, the input 
+     * is not read and the function has no side effects.  The compiler may evaluate a call to a pure function once when 
+     * its arguments don't change, such as hoisting it out of a for loop.  Registering the function again clears the mark.
+     * 
+     * @param names the names of the registered functions
+     * @return this runtime
+     */
+    public Jslt2 markPureFunctions(String... names) {
+        for(String name : names) {
+            checkFunctionsNotFrozen(name);
+            if(!this.userFunctions.containsKey(name)) {
+                throw new Jslt2Exception("'" + name + "' is not a registered function");
+            }
+            
+            this.pureFunctions.add(name);
+        }
         
         return this;
     }
     
+    /**
+     * @param name
+     * @return true if the registered {@link Jslt2Function} is marked as pure
+     * @see Jslt2#markPureFunctions(String...)
+     */
+    public boolean isPureFunction(String name) {
+        return this.pureFunctions.contains(name);
+    }
+    
+    private void checkFunctionsNotFrozen(String name) {
+        if(this.functionsFrozen) {
+            throw new Jslt2Exception("The functions are frozen, '" + name + "' can not be added");
+        }
+    }
+    
+    /**
+     * Freezes the registered {@link Jslt2Function}s into an immutable snapshot, after which no more functions 
+     * can be added.  This makes it safe to compile templates concurrently, as the functions can no longer change.
+     * 
+     * @return this runtime
+     */
+    public Jslt2 freezeFunctions() {
+        this.userFunctions = Collections.unmodifiableMap(new HashMap<>(this.userFunctions));
+        this.userFunctionMinArgs = Collections.unmodifiableMap(new HashMap<>(this.userFunctionMinArgs));
+        this.pureFunctions = Collections.unmodifiableSet(new HashSet<>(this.pureFunctions));
+        this.functionsFrozen = true;
+        
+        return this;
+    }
+    
+    /**
+     * @return true if the {@link Jslt2Function}s are frozen
+     * @see Jslt2#freezeFunctions()
+     */
+    public boolean isFunctionsFrozen() {
+        return this.functionsFrozen;
+    }
+    
     /**
      * Get a {@link Jslt2Function} by name
      * 
@@ -372,6 +572,38 @@ public class Jslt2 {
         return this.userFunctions.containsKey(name);
     }
     
+    /**
+     * Validates the number of arguments supplied to a registered {@link Jslt2Function}
+     * 
+     * @param name
+     * @param numberOfArgs
+     * @return an error message if the number of arguments is invalid, otherwise null
+     */
+    public String checkFunctionArguments(String name, int numberOfArgs) {
+        Jslt2Function function = this.userFunctions.get(name);
+        if(function == null) {
+            return null;
+        }
+        
+        Integer min = this.userFunctionMinArgs.get(name);
+        int minArgs = (min != null) ? min : 0;
+        int maxArgs = function.arity() < 0 ? Integer.MAX_VALUE : function.arity();
+        
+        if(numberOfArgs < minArgs || numberOfArgs > maxArgs) {
+            if(maxArgs == Integer.MAX_VALUE) {
+                return "'" + name + "' requires at least " + minArgs + " arguments";
+            }
+            
+            if(minArgs == maxArgs) {
+                return "'" + name + "' requires " + minArgs + " arguments";
+            }
+            
+            return "'" + name + "' requires " + minArgs + " to " + maxArgs + " arguments";
+        }
+        
+        return null;
+    }
+    
     public void addMacro(Jslt2MacroFunction macro) {
         this.macroFunctions.put(macro.name(), macro);
     }
@@ -393,10 +625,49 @@ public class Jslt2 {
         return new ObjectNode(this.objectMapper.getNodeFactory());
     }
     
+    /**
+     * Creates an {@link ObjectNode} whose backing map is sized to hold the expected number of
+     * fields without being rehashed
+     * 
+     * @param expectedSize the expected number of fields
+     * @return the new {@link ObjectNode}
+     */
+    public ObjectNode newObjectNode(int expectedSize) {
+        int capacity = expectedSize < 3 ? expectedSize + 1 : (int)(expectedSize / 0.75f + 1.0f);
+        return new ObjectNode(this.objectMapper.getNodeFactory(), new LinkedHashMap<String, JsonNode>(capacity));
+    }
+    
     public ArrayNode newArrayNode(int capacity) {
         return new ArrayNode(this.objectMapper.getNodeFactory(), capacity);
     }
     
+    /**
+     * Retrieves the value of the automatic <code>$index__</code> for loop variable.  The nodes are
+     * cached per runtime, the cache grows as larger indexes are requested.
+     * 
+     * @param index
+     * @return the {@link IntNode} of the index
+     */
+    public IntNode indexNode(int index) {
+        if(index >= MAX_CACHED_INDEX) {
+            return IntNode.valueOf(index);
+        }
+        
+        IntNode[] nodes = this.indexNodes;
+        if(index >= nodes.length) {
+            int size = Math.min(Math.max(index + 1, nodes.length * 2), MAX_CACHED_INDEX);
+            IntNode[] newNodes = new IntNode[size];
+            System.arraycopy(nodes, 0, newNodes, 0, nodes.length);
+            for(int i = nodes.length; i < size; i++) {
+                newNodes[i] = IntNode.valueOf(i);
+            }
+            
+            this.indexNodes = nodes = newNodes;
+        }
+        
+        return nodes[index];
+    }
+    
     /**
      * @return the executorService
      */
@@ -411,6 +682,49 @@ public class Jslt2 {
         return resolver;
     }
     
+    /**
+     * @return the pool of {@link VM}s used for evaluating {@link Bytecode}
+     */
+    public VMPool getVMPool() {
+        return vmPool;
+    }
+    
+    /**
+     * @return the number of evaluations before a {@link Template} is compiled by the {@link JitCompiler}, 
+     * a negative value if disabled
+     */
+    public int getJitThreshold() {
+        return jitThreshold;
+    }
+    
+    /**
+     * @return true if the {@link VM} specializes instructions to the operand types it observes
+     */
+    public boolean isQuickening() {
+        return quickening;
+    }
+    
+    /**
+     * @return true if the {@link Template}s are evaluated by the code compiled by the {@link ClosureCompiler}
+     */
+    public boolean isClosureCompilation() {
+        return closureCompilation;
+    }
+    
+    /**
+     * @return true if the {@link Template}s are compiled with register instructions
+     */
+    public boolean isRegisterInstructions() {
+        return registerInstructions;
+    }
+    
+    /**
+     * @return the maximum number of results cached per memoized template function, zero if disabled
+     */
+    public int getMemoCacheSize() {
+        return memoCacheSize;
+    }
+    
     public JsonNode eval(File file, JsonNode input) {
         try {
             return eval(new BufferedReader(new FileReader(file)), input);
@@ -442,7 +756,9 @@ public class Jslt2 {
         
     /**
      * Evaluates the supplied {@link Bytecode} with the supplied {@link JsonNode}
-     * input.
+     * input.  The {@link Bytecode} is always evaluated by the {@link VM} interpreter, the 
+     * {@link Builder#jitThreshold(int)} and {@link Builder#closureCompilation(boolean)} only 
+     * apply to the {@link Template}s returned by {@link #compile(String)}.
      * 
      * @param bytecode
      * @param input
@@ -457,12 +773,13 @@ public class Jslt2 {
             input = NullNode.instance;
         }
                 
-        JsonNode result = new VM(this).execute(bytecode, input);
-        if(!this.includeNulls) {
-            result = Jslt2Util.removeNullNodes(result);
+        VM vm = this.vmPool.acquire();
+        try {
+            return vm.execute(bytecode, input);
+        }
+        finally {
+            this.vmPool.release(vm);
         }
-        
-        return result;
     }
     
 
@@ -505,8 +822,12 @@ public class Jslt2 {
         Scanner scanner = new Scanner(source);
         Parser parser = new Parser(this, scanner);
         
-        Bytecode code = this.compiler.compile(parser.parseProgram());
-        return new Template(this, code);
+        ProgramExpr program = parser.parseProgram();
+        
+        ClosureCode closure = this.closureCompilation ? new ClosureCompiler(this).compile(program) : null;
+        
+        Bytecode code = this.compiler.compile(program);
+        return new Template(this, code, closure);
     }
     
     /**
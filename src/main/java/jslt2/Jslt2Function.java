@@ -17,6 +17,17 @@ public interface Jslt2Function {
         return "<unknown>";
     }
     
+    /**
+     * The number of arguments this function accepts, or -1 if it accepts a variable number
+     * of arguments.  Functions with a fixed arity (see {@link Jslt2Function0} through {@link Jslt2Function3})
+     * are invoked without allocating an argument array.
+     * 
+     * @return the arity of this function
+     */
+    default public int arity() {
+        return -1;
+    }
+    
     /**
      * Executes the user defined function
      * 
@@ -27,4 +38,15 @@ public interface Jslt2Function {
      */
     public JsonNode execute(JsonNode input, JsonNode ... args) 
             throws Jslt2Exception;
+    
+    /**
+     * Gets the argument at the supplied index, or null if it was not supplied
+     * 
+     * @param args
+     * @param index
+     * @return the argument or null
+     */
+    public static JsonNode arg(JsonNode[] args, int index) {
+        return (args != null && index < args.length) ? args[index] : null;
+    }
 }
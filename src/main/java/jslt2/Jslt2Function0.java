@@ -0,0 +1,38 @@
+/*
+ * see license.txt 
+ */
+package jslt2;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * A user defined function which takes no arguments.  The {@link jslt2.vm.VM} invokes it directly with the
+ * argument values, without allocating an argument array.
+ * 
+ * @author Tony
+ *
+ */
+@FunctionalInterface
+public interface Jslt2Function0 extends Jslt2Function {
+
+    /**
+     * Executes the user defined function
+     * 
+     * @param input the input
+     * @return the resulting {@link JsonNode} expression
+     * @throws Jslt2Exception
+     */
+    public JsonNode execute(JsonNode input) 
+            throws Jslt2Exception;
+    
+    @Override
+    default public JsonNode execute(JsonNode input, JsonNode ... args) 
+            throws Jslt2Exception {
+        return execute(input);
+    }
+    
+    @Override
+    default public int arity() {
+        return 0;
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * see license.txt 
+ */
+package jslt2;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * A user defined function which takes one argument.  The {@link jslt2.vm.VM} invokes it directly with the
+ * argument values, without allocating an argument array.
+ * 
+ * <p>
+ * Arguments may be optional, see {@link Jslt2#addFunction(String, int, Jslt2Function)}, a missing argument is passed as null.
+ * 
+ * @author Tony
+ *
+ */
+@FunctionalInterface
+public interface Jslt2Function1 extends Jslt2Function {
+
+    /**
+     * Executes the user defined function
+     * 
+     * @param input the input
+     * @param arg0 the first argument, or null if it was not supplied
+     * @return the resulting {@link JsonNode} expression
+     * @throws Jslt2Exception
+     */
+    public JsonNode execute(JsonNode input, JsonNode arg0) 
+            throws Jslt2Exception;
+    
+    @Override
+    default public JsonNode execute(JsonNode input, JsonNode ... args) 
+            throws Jslt2Exception {
+        return execute(input, Jslt2Function.arg(args, 0));
+    }
+    
+    @Override
+    default public int arity() {
+        return 1;
+    }
+}
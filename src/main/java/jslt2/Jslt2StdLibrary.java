@@ -35,28 +35,6 @@ public class Jslt2StdLibrary {
       zonenames.addAll(Arrays.asList(TimeZone.getAvailableIDs()));
     }
     
-    static class Jslt2FunctionValidation implements Jslt2Function {
-        
-        int minArgs;
-        Jslt2Function func;
-        
-        public Jslt2FunctionValidation(int minArgs, Jslt2Function func) {
-            this.minArgs = minArgs;
-            this.func = func;
-        }
-        
-        @Override
-        public JsonNode execute(JsonNode input, JsonNode... args) throws Jslt2Exception {
-            if(this.minArgs > -1) {
-                if(args == null || args.length < this.minArgs) {
-                    throw new Jslt2Exception(this.func.name() + " requires at least " + this.minArgs + " arguments");
-                }
-            }
-                
-            return this.func.execute(input, args);
-        }
-    }
-    
     private Map<String, Pattern> regexCache;
     
     public Jslt2StdLibrary(final Jslt2 runtime) {
@@ -68,74 +46,74 @@ public class Jslt2StdLibrary {
         
         // General
         
-        runtime.addFunction("contains", 2, (input, arguments) -> {
-            if (arguments[1].isNull())
+        runtime.addFunction("contains", 2, (Jslt2Function2)(input, arg0, arg1) -> {
+            if (arg1.isNull())
                 return BooleanNode.FALSE; // nothing is contained in null
 
-            else if (arguments[1].isArray()) {
-                for (int ix = 0; ix < arguments[1].size(); ix++)
-                    if (arguments[1].get(ix).equals(arguments[0]))
+            else if (arg1.isArray()) {
+                for (int ix = 0; ix < arg1.size(); ix++)
+                    if (arg1.get(ix).equals(arg0))
                         return BooleanNode.TRUE;
 
-            } else if (arguments[1].isObject()) {
-                String key = Jslt2Util.toString(arguments[0], true);
+            } else if (arg1.isObject()) {
+                String key = Jslt2Util.toString(arg0, true);
                 if (key == null)
                     return BooleanNode.FALSE;
 
-                return Jslt2Util.toJson(arguments[1].has(key));
+                return Jslt2Util.toJson(arg1.has(key));
 
-            } else if (arguments[1].isTextual()) {
-                String sub = Jslt2Util.toString(arguments[0], true);
+            } else if (arg1.isTextual()) {
+                String sub = Jslt2Util.toString(arg0, true);
                 if (sub == null)
                     return BooleanNode.FALSE;
 
-                String str = arguments[1].asText();
+                String str = arg1.asText();
                 return Jslt2Util.toJson(str.indexOf(sub) != -1);
 
             } else
-                throw new Jslt2Exception("Contains cannot operate on " + arguments[1]);
+                throw new Jslt2Exception("Contains cannot operate on " + arg1);
 
             return BooleanNode.FALSE;
         });
-        runtime.addFunction("size", 1, (input, arguments) -> {
-            if (arguments[0].isArray() || arguments[0].isObject()) {
-                return IntNode.valueOf(arguments[0].size());
+        runtime.addFunction("size", 1, (Jslt2Function1)(input, arg0) -> {
+            if (arg0.isArray() || arg0.isObject()) {
+                return IntNode.valueOf(arg0.size());
             }
 
-            else if (arguments[0].isTextual()) {
-                return IntNode.valueOf(arguments[0].asText().length());
+            else if (arg0.isTextual()) {
+                return IntNode.valueOf(arg0.asText().length());
             }
-            else if (arguments[0].isNull()) {
-                return arguments[0];
+            else if (arg0.isNull()) {
+                return arg0;
             }
             
-            throw new Jslt2Exception("Function size() cannot work on " + arguments[0]);
+            throw new Jslt2Exception("Function size() cannot work on " + arg0);
         });
         
-        runtime.addFunction("error", 1, (input, arguments) -> {
-            String msg = Jslt2Util.toString(arguments[0], false);
+        runtime.addFunction("error", 1, (Jslt2Function1)(input, arg0) -> {
+            String msg = Jslt2Util.toString(arg0, false);
             throw new Jslt2Exception("error: " + msg);
         });
         
-        runtime.addFunction("min", 2, (input, arguments) -> {
+        runtime.addFunction("min", 2, (Jslt2Function2)(input, arg0, arg1) -> {
             // this works because null is the smallest of all values
-            if (Jslt2Util.compare(arguments[0], arguments[1]) < 0) {
-                return arguments[0];
+            if (Jslt2Util.compare(arg0, arg1) < 0) {
+                return arg0;
             }
             else {
-              return arguments[1];
+              return arg1;
             }
         });
         
-        runtime.addFunction("max", 2, (input, arguments) -> {
-            if (arguments[0].isNull() || arguments[1].isNull()) {
+        runtime.addFunction("max", 2, (Jslt2Function2)(input, arg0, arg1) -> {
+            if (arg0.isNull() || arg1.isNull()) {
                 return NullNode.instance;
             }
-            else if (Jslt2Util.compare(arguments[0], arguments[1]) > 0) {
-                return arguments[0];
+            else if (Jslt2Util.compare(arg0, arg1) > 0) {
+                return arg0;
             }
             else {
-                return arguments[1];
+                return arg1;
             }
         });
         
@@ -143,19 +121,14 @@ public class Jslt2StdLibrary {
         
         // Numeric
         
-        runtime.addFunction("is-number", 1, (input, arguments) -> {
-            return Jslt2Util.toJson(arguments[0].isNumber());
+        runtime.addFunction("is-number", 1, (Jslt2Function1)(input, arg0) -> {
+            return Jslt2Util.toJson(arg0.isNumber());
         });
-        runtime.addFunction("number", 1, (input, arguments) -> {
-            if (arguments.length == 1) {
-                return Jslt2Util.number(arguments[0], true, null);
-            }
-            
-            return Jslt2Util.number(arguments[0], true, arguments[1]);
-            
+        runtime.addFunction("number", 1, (Jslt2Function2)(input, arg0, arg1) -> {
+            return Jslt2Util.number(arg0, true, arg1);
         });
-        runtime.addFunction("round", 1, (input, arguments) -> {
-            JsonNode number = arguments[0];
+        runtime.addFunction("round", 1, (Jslt2Function1)(input, arg0) -> {
+            JsonNode number = arg0;
             if (number.isNull()) {
                 return NullNode.instance;
             }
@@ -165,8 +138,8 @@ public class Jslt2StdLibrary {
 
             return LongNode.valueOf(Math.round(number.doubleValue()));
         });
-        runtime.addFunction("floor", 1, (input, arguments) -> {
-            JsonNode number = arguments[0];
+        runtime.addFunction("floor", 1, (Jslt2Function1)(input, arg0) -> {
+            JsonNode number = arg0;
             if (number.isNull())
               return NullNode.instance;
             else if (!number.isNumber())
@@ -174,8 +147,8 @@ public class Jslt2StdLibrary {
 
             return LongNode.valueOf((long) Math.floor(number.doubleValue()));
         });
-        runtime.addFunction("ceiling", 1, (input, arguments) -> {
-            JsonNode number = arguments[0];
+        runtime.addFunction("ceiling", 1, (Jslt2Function1)(input, arg0) -> {
+            JsonNode number = arg0;
             if (number.isNull())
               return NullNode.instance;
             else if (!number.isNumber())
@@ -184,7 +157,7 @@ public class Jslt2StdLibrary {
             return LongNode.valueOf((long) Math.ceil(number.doubleValue()));
         });
         final Random random = new Random();
-        runtime.addFunction("random", (input, arguments) -> {            
+        runtime.addFunction("random", (Jslt2Function0)(input) -> {            
             return DoubleNode.valueOf(random.nextDouble());
         });
         
@@ -192,24 +165,24 @@ public class Jslt2StdLibrary {
         
         // String
         
-        runtime.addFunction("is-string", 1, (input, arguments) -> {            
-            return Jslt2Util.toJson(arguments[0].isTextual());
+        runtime.addFunction("is-string", 1, (Jslt2Function1)(input, arg0) -> {            
+            return Jslt2Util.toJson(arg0.isTextual());
         });
-        runtime.addFunction("string", 1, (input, arguments) -> {            
-            if (arguments[0].isTextual()) {
-                return arguments[0];
+        runtime.addFunction("string", 1, (Jslt2Function1)(input, arg0) -> {            
+            if (arg0.isTextual()) {
+                return arg0;
             }
             
-            return TextNode.valueOf(arguments[0].toString());
+            return TextNode.valueOf(arg0.toString());
         });
-        runtime.addFunction("test", 2, (input, arguments) -> {
+        runtime.addFunction("test", 2, (Jslt2Function2)(input, arg0, arg1) -> {
             // if data is missing then it doesn't match, end of story
-            if (arguments[0].isNull()) {
+            if (arg0.isNull()) {
                 return BooleanNode.FALSE;
             }
 
-            String string = Jslt2Util.toString(arguments[0], false);
-            String regexp = Jslt2Util.toString(arguments[1], true);
+            String string = Jslt2Util.toString(arg0, false);
+            String regexp = Jslt2Util.toString(arg1, true);
             if (regexp == null)
                 throw new Jslt2Exception("test() can't test null regexp");
 
@@ -218,14 +191,14 @@ public class Jslt2StdLibrary {
             java.util.regex.Matcher m = p.matcher(string);
             return Jslt2Util.toJson(m.find(0));
         });
-        runtime.addFunction("capture", 2, (input, arguments) -> {
+        runtime.addFunction("capture", 2, (Jslt2Function2)(input, arg0, arg1) -> {
             // if data is missing then it doesn't match, end of story
-            if (arguments[0].isNull()) {
-                return arguments[0]; // null
+            if (arg0.isNull()) {
+                return arg0; // null
             }
             
-            String string = Jslt2Util.toString(arguments[0], false);
-            String regexps = Jslt2Util.toString(arguments[1], true);
+            String string = Jslt2Util.toString(arg0, false);
+            String regexps = Jslt2Util.toString(arg1, true);
             if (regexps == null) {
                 throw new Jslt2Exception("capture() can't match against null regexp");
             }
@@ -247,27 +220,27 @@ public class Jslt2StdLibrary {
 
             return node;
         });
-        runtime.addFunction("split", 2, (input, arguments) -> {
+        runtime.addFunction("split", 2, (Jslt2Function2)(input, arg0, arg1) -> {
             // if input string is missing then we're doing nothing
-            if (arguments[0].isNull()) {
-                return arguments[0]; // null
+            if (arg0.isNull()) {
+                return arg0; // null
             }
             
-            String string = Jslt2Util.toString(arguments[0], false);
-            String split = Jslt2Util.toString(arguments[1], true);
+            String string = Jslt2Util.toString(arg0, false);
+            String split = Jslt2Util.toString(arg1, true);
             if (split == null) {
                 throw new Jslt2Exception("split() can't split on null");
             }
             
             return Jslt2Util.toJson(runtime, string.split(split));
         });
-        runtime.addFunction("join", 2, (input, arguments) -> {
-            ArrayNode array = Jslt2Util.toArray(arguments[0], true);
+        runtime.addFunction("join", 2, (Jslt2Function2)(input, arg0, arg1) -> {
+            ArrayNode array = Jslt2Util.toArray(arg0, true);
             if (array == null) {
                 return NullNode.instance;
             }
             
-            String sep = Jslt2Util.toString(arguments[1], false);
+            String sep = Jslt2Util.toString(arg1, false);
 
             StringBuilder buf = new StringBuilder();
             for (int ix = 0; ix < array.size(); ix++) {
@@ -279,36 +252,36 @@ public class Jslt2StdLibrary {
             }
             return TextNode.valueOf(buf.toString());
         });
-        runtime.addFunction("lowercase", 1, (input, arguments) -> {
+        runtime.addFunction("lowercase", 1, (Jslt2Function1)(input, arg0) -> {
             // if input string is missing then we're doing nothing
-            if (arguments[0].isNull()) {
-                return arguments[0]; // null
+            if (arg0.isNull()) {
+                return arg0; // null
             }
             
-            String string = Jslt2Util.toString(arguments[0], false);
+            String string = Jslt2Util.toString(arg0, false);
             return TextNode.valueOf(string.toLowerCase());
         });
-        runtime.addFunction("uppercase", 1, (input, arguments) -> {
+        runtime.addFunction("uppercase", 1, (Jslt2Function1)(input, arg0) -> {
             // if input string is missing then we're doing nothing
-            if (arguments[0].isNull()) {
-                return arguments[0]; // null
+            if (arg0.isNull()) {
+                return arg0; // null
             }
             
-            String string = Jslt2Util.toString(arguments[0], false);
+            String string = Jslt2Util.toString(arg0, false);
             return TextNode.valueOf(string.toUpperCase());
         });
-        runtime.addFunction("starts-with", 2, (input, arguments) -> {
-            String string = Jslt2Util.toString(arguments[0], false);
-            String suffix = Jslt2Util.toString(arguments[1], false);
+        runtime.addFunction("starts-with", 2, (Jslt2Function2)(input, arg0, arg1) -> {
+            String string = Jslt2Util.toString(arg0, false);
+            String suffix = Jslt2Util.toString(arg1, false);
             return Jslt2Util.toJson(string.startsWith(suffix));
         });
-        runtime.addFunction("ends-with", 2, (input, arguments) -> {
-            String string = Jslt2Util.toString(arguments[0], false);
-            String suffix = Jslt2Util.toString(arguments[1], false);
+        runtime.addFunction("ends-with", 2, (Jslt2Function2)(input, arg0, arg1) -> {
+            String string = Jslt2Util.toString(arg0, false);
+            String suffix = Jslt2Util.toString(arg1, false);
             return Jslt2Util.toJson(string.endsWith(suffix));
         });
-        runtime.addFunction("from-json", 1, (input, arguments) -> {
-            String json = Jslt2Util.toString(arguments[0], true);
+        runtime.addFunction("from-json", 1, (Jslt2Function2)(input, arg0, arg1) -> {
+            String json = Jslt2Util.toString(arg0, true);
             if (json == null) {
                 return NullNode.instance;
             }
@@ -323,43 +296,43 @@ public class Jslt2StdLibrary {
                 return parsed;
             } 
             catch (Exception e) {
-                if (arguments.length == 2) {
-                    return arguments[1]; // return fallback on parse fail
+                if (arg1 != null) {
+                    return arg1; // return fallback on parse fail
                 }
                 else {
                     throw new Jslt2Exception("from-json can't parse " + json + ": " + e);
                 }
             }
         });
-        runtime.addFunction("to-json", 1, (input, arguments) -> {
+        runtime.addFunction("to-json", 1, (Jslt2Function1)(input, arg0) -> {
             try {
-                String json = runtime.getObjectMapper().writeValueAsString(arguments[0]);
+                String json = runtime.getObjectMapper().writeValueAsString(arg0);
                 return new TextNode(json);
             } 
             catch (Exception e) {
-                throw new Jslt2Exception("to-json can't serialize " + arguments[0] + ": " + e);
+                throw new Jslt2Exception("to-json can't serialize " + arg0 + ": " + e);
             }
         });
         
-        runtime.addFunction("substr", 2, (input, arguments) -> {
-            String str = arguments[0].asText();
-            int startIndex = arguments[1].asInt();
+        runtime.addFunction("substr", 2, (Jslt2Function3)(input, arg0, arg1, arg2) -> {
+            String str = arg0.asText();
+            int startIndex = arg1.asInt();
             
-            if(arguments.length > 2) {
-                int endIndex = arguments[2].asInt();
+            if(arg2 != null) {
+                int endIndex = arg2.asInt();
                 return new TextNode(str.substring(startIndex, endIndex));
             }
             
             return new TextNode(str.substring(startIndex));
         });
 
-        runtime.addFunction("replace", 3, (input, arguments) -> {
-            String string = Jslt2Util.toString(arguments[0], true);
+        runtime.addFunction("replace", 3, (Jslt2Function3)(input, arg0, arg1, arg2) -> {
+            String string = Jslt2Util.toString(arg0, true);
             if (string == null)
               return NullNode.instance;
 
-            String regexp = Jslt2Util.toString(arguments[1], false);
-            String sep = Jslt2Util.toString(arguments[2], false);
+            String regexp = Jslt2Util.toString(arg1, false);
+            String sep = Jslt2Util.toString(arg2, false);
 
             Pattern p = getRegexp(regexp);
             Matcher m = p.matcher(string);
@@ -370,7 +343,7 @@ public class Jslt2StdLibrary {
             while (m.find(pos)) {
               // we found another match, and now matcher state has been updated
               if (m.start() == m.end())
-                throw new Jslt2Exception("Regexp " + regexp + " in replace() matched empty string in '" + arguments[0] + "'");
+                throw new Jslt2Exception("Regexp " + regexp + " in replace() matched empty string in '" + arg0 + "'");
 
               // if there was text between pos and start of match, copy to output
               if (pos < m.start())
@@ -383,9 +356,9 @@ public class Jslt2StdLibrary {
               pos = m.end();
             }
 
-            if (pos == 0 && arguments[0].isTextual())
+            if (pos == 0 && arg0.isTextual())
               // there were matches, so the string hasn't changed
-              return arguments[0];
+              return arg0;
             else if (pos < string.length())
               // there was text remaining after the end of the last match. must copy
               bufix = copy(string, buf, bufix, pos, string.length());
@@ -393,8 +366,8 @@ public class Jslt2StdLibrary {
             return new TextNode(new String(buf, 0, bufix));
         });
         
-        runtime.addFunction("trim", 1, (input, arguments) -> {
-            String string = Jslt2Util.toString(arguments[0], true);
+        runtime.addFunction("trim", 1, (Jslt2Function1)(input, arg0) -> {
+            String string = Jslt2Util.toString(arg0, true);
             if (string == null)
               return NullNode.instance;
 
@@ -422,8 +395,8 @@ public class Jslt2StdLibrary {
 
             // if there are no leading or trailing spaces: keep input
             if (prefix == 0 && suffix == string.length() - 1 &&
-                arguments[0].isTextual())
-              return arguments[0];
+                arg0.isTextual())
+              return arg0;
 
             // copy out middle section and we're done
             return new TextNode(string.substring(prefix, suffix + 1));
@@ -431,39 +404,38 @@ public class Jslt2StdLibrary {
         
         // Boolean
         
-        runtime.addFunction("not", (input, args) -> {
-            if(args == null || args.length < 1) return BooleanNode.TRUE;
-            JsonNode node = args[0];
+        runtime.addFunction("not", 0, (Jslt2Function1)(input, arg0) -> {
+            if(arg0 == null) return BooleanNode.TRUE;
             
-            return BooleanNode.valueOf(!Jslt2Util.isTrue(node));
+            return BooleanNode.valueOf(!Jslt2Util.isTrue(arg0));
         });
-        runtime.addFunction("boolean", 1, (input, arguments) -> {            
-            return Jslt2Util.toJson(Jslt2Util.isTrue(arguments[0]));
+        runtime.addFunction("boolean", 1, (Jslt2Function1)(input, arg0) -> {            
+            return Jslt2Util.toJson(Jslt2Util.isTrue(arg0));
         });
-        runtime.addFunction("is-boolean", 1, (input, arguments) -> {            
-            return Jslt2Util.toJson(arguments[0].isBoolean());
+        runtime.addFunction("is-boolean", 1, (Jslt2Function1)(input, arg0) -> {            
+            return Jslt2Util.toJson(arg0.isBoolean());
         });
         
         // Object
         
-        runtime.addFunction("is-object", 1, (input, arguments) -> {            
-            return Jslt2Util.toJson(arguments[0].isObject());
+        runtime.addFunction("is-object", 1, (Jslt2Function1)(input, arg0) -> {            
+            return Jslt2Util.toJson(arg0.isObject());
         });
-        runtime.addFunction("get-key", 2, (input, arguments) -> {
-            String key = Jslt2Util.toString(arguments[1], true);
+        runtime.addFunction("get-key", 2, (Jslt2Function3)(input, arg0, arg1, arg2) -> {
+            String key = Jslt2Util.toString(arg1, true);
             if (key == null) {
                 return NullNode.instance;
             }
             
-            JsonNode obj = arguments[0];
+            JsonNode obj = arg0;
             if (obj.isObject()) {
                 JsonNode value = obj.get(key);
                 if (value == null) {
-                    if (arguments.length == 2) {
+                    if (arg2 == null) {
                         return NullNode.instance;
                     }
                     else {
-                        return arguments[2]; // fallback argument
+                        return arg2; // fallback argument
                     }
                 }
                 
@@ -477,8 +449,8 @@ public class Jslt2StdLibrary {
         });
         
         // Array
-        runtime.addFunction("array", 1, (input, arguments) -> {            
-            JsonNode value = arguments[0];
+        runtime.addFunction("array", 1, (Jslt2Function1)(input, arg0) -> {            
+            JsonNode value = arg0;
             if (value.isNull() || value.isArray()) {
                 return value;
             } 
@@ -488,11 +460,11 @@ public class Jslt2StdLibrary {
 
             throw new Jslt2Exception("array() cannot convert " + value);
         });
-        runtime.addFunction("is-array", 1, (input, arguments) -> {            
-            return Jslt2Util.toJson(arguments[0].isArray());
+        runtime.addFunction("is-array", 1, (Jslt2Function1)(input, arg0) -> {            
+            return Jslt2Util.toJson(arg0.isArray());
         });
-        runtime.addFunction("flatten", 1, (input, arguments) -> {            
-            JsonNode value = arguments[0];
+        runtime.addFunction("flatten", 1, (Jslt2Function1)(input, arg0) -> {            
+            JsonNode value = arg0;
             if (value.isNull()) {
                 return value;
             } 
@@ -506,21 +478,18 @@ public class Jslt2StdLibrary {
         });
         
         // Time
-        runtime.addFunction("now", (input, arguments) -> {            
+        runtime.addFunction("now", (Jslt2Function0)(input) -> {            
             long ms = System.currentTimeMillis();
             return Jslt2Util.toJson(ms / 1000.0);
         });
-        runtime.addFunction("parse-time", 2, (input, arguments) -> {            
-            String text = Jslt2Util.toString(arguments[0], true);
+        runtime.addFunction("parse-time", 2, (Jslt2Function3)(input, arg0, arg1, arg2) -> {            
+            String text = Jslt2Util.toString(arg0, true);
             if (text == null) {
                 return NullNode.instance;
             }
             
-            String formatstr = Jslt2Util.toString(arguments[1], false);
-            JsonNode fallback = null;
-            if (arguments.length > 2) {
-                fallback = arguments[2];
-            }
+            String formatstr = Jslt2Util.toString(arg1, false);
+            JsonNode fallback = arg2;
             
             // the performance of this could be better, but it's not so easy
             // to fix that when SimpleDateFormat isn't thread-safe, so we
@@ -544,19 +513,19 @@ public class Jslt2StdLibrary {
                 return fallback;
             }
         });
-        runtime.addFunction("format-time", 2, (input, arguments) -> {            
-            JsonNode number = Jslt2Util.number(arguments[0], false, null);
+        runtime.addFunction("format-time", 2, (Jslt2Function3)(input, arg0, arg1, arg2) -> {            
+            JsonNode number = Jslt2Util.number(arg0, false, null);
             if (number == null || number.isNull()) {
                 return NullNode.instance;
             }
 
             double timestamp = number.asDouble();
 
-            String formatstr = Jslt2Util.toString(arguments[1], false);
+            String formatstr = Jslt2Util.toString(arg1, false);
 
             TimeZone zone = new SimpleTimeZone(SimpleTimeZone.UTC_TIME, "UTC");
-            if (arguments.length == 3) {
-                String zonename = Jslt2Util.toString(arguments[2], false);
+            if (arg2 != null) {
+                String zonename = Jslt2Util.toString(arg2, false);
                 if (!zonenames.contains(zonename)) {
                     throw new Jslt2Exception("format-time: Unknown timezone " + zonename);
                 }
@@ -599,6 +568,13 @@ public class Jslt2StdLibrary {
         });
         
         
+        // all but the functions with side effects, or whose results vary between calls
+        runtime.markPureFunctions("contains", "size", "min", "max", "is-number", "number", "round", "floor", "ceiling",
+                                  "is-string", "string", "test", "capture", "split", "join", "lowercase", "uppercase", 
+                                  "starts-with", "ends-with", "from-json", "to-json", "substr", "replace", "trim", 
+                                  "not", "boolean", "is-boolean", "is-object", "get-key", "array", "is-array", "flatten", 
+                                  "parse-time", "format-time");
+        
         // Macro
         
         runtime.addMacro("fallback", (vm, input, args) -> {
@@ -1,58 +1,128 @@
 /*
- * see license.txt 
+ * see license.txt
  */
 package jslt2;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 import com.fasterxml.jackson.databind.JsonNode;
 
-import jslt2.util.Jslt2Util;
+import jslt2.closure.ClosureCode;
+import jslt2.closure.ClosureCompiler;
 import jslt2.vm.Bytecode;
 import jslt2.vm.VM;
+import jslt2.vm.VMPool;
+import jslt2.vm.jit.JitCode;
+import jslt2.vm.jit.JitCompiler;
 
 /**
- * The {@link Template#eval(JsonNode)} method is not thread-safe.  If you want to run multiple concurrent template transforms, each thread
- * must have its own {@link Template} instance.  You can easily do this by {@link Template#clone()}. 
- * 
+ * A compiled template expression.  The {@link Template#eval(JsonNode)} method is thread-safe, a single {@link Template}
+ * can be shared between threads.  The compiled {@link Bytecode} is never modified by an evaluation; all of the
+ * execution state lives in a {@link VM} which is borrowed from the runtime's {@link VMPool} for the duration of
+ * the evaluation.
+ *
+ * <p>
+ * If enabled by {@link Jslt2.Builder#jitThreshold(int)}, the {@link Template} is evaluated by the {@link VM} interpreter
+ * until it reaches the threshold, after which it is compiled by the {@link JitCompiler} and the compiled code is
+ * used from then on.
+ *
+ * <p>
+ * If enabled by {@link Jslt2.Builder#closureCompilation(boolean)}, the {@link Template} is instead evaluated by the
+ * {@link ClosureCode} the {@link ClosureCompiler} compiled it into, which requires no {@link VM}.
+ *
  * @author Tony
  *
  */
 public class Template {
 
     private Jslt2 runtime;
-    private VM vm;
     private Bytecode bytecode;
-    
+    private ClosureCode closure;
+
+    private AtomicInteger evaluations;
+    private volatile JitCode compiled;
+    private volatile boolean jitDisabled;
+
     /**
      * @param runtime
      * @param bytecode
      */
     public Template(Jslt2 runtime, Bytecode bytecode) {
+        this(runtime, bytecode, null);
+    }
+
+    /**
+     * @param runtime
+     * @param bytecode
+     * @param closure the code compiled by the {@link ClosureCompiler}, or null if evaluated by the {@link VM}
+     */
+    public Template(Jslt2 runtime, Bytecode bytecode, ClosureCode closure) {
         this.runtime = runtime;
         this.bytecode = bytecode;
-        
-        this.vm = new VM(runtime);
+        this.closure = closure;
+
+        this.evaluations = new AtomicInteger();
+        this.jitDisabled = runtime.getJitThreshold() < 0;
     }
-    
+
     /**
      * Evaluates the template with the supplied input
-     * 
+     *
      * @param input
      * @return the {@link JsonNode} result
      */
     public JsonNode eval(JsonNode input) {
-        JsonNode result = this.vm.execute(this.bytecode, input);
-        if(!this.runtime.includeNulls()) {
-            result = Jslt2Util.removeNullNodes(result);
+        if(this.closure != null) {
+            return this.closure.execute(input);
         }
-        
-        return result;
+
+        VMPool pool = this.runtime.getVMPool();
+
+        VM vm = pool.acquire();
+        try {
+            JitCode code = this.compiled;
+            if(code != null) {
+                return code.execute(vm, input);
+            }
+
+            if(!this.jitDisabled) {
+                code = promote();
+            }
+
+            return (code != null) ? code.execute(vm, input)
+                                  : vm.execute(this.bytecode, input);
+        }
+        finally {
+            pool.release(vm);
+        }
+    }
+
+    /**
+     * Compiles the {@link Bytecode} once the number of evaluations reaches the threshold
+     *
+     * @return the compiled code, or null if not yet compiled
+     */
+    private JitCode promote() {
+        if(this.evaluations.getAndIncrement() != this.runtime.getJitThreshold()) {
+            return null;
+        }
+
+        JitCode code = new JitCompiler().compile(this.bytecode);
+        if(code == null) {
+            // not supported by the JIT, remain in the interpreter
+            this.jitDisabled = true;
+        }
+
+        this.compiled = code;
+        return code;
     }
 
     /**
-     * Creates a clone of this {@link Template}
+     * Creates a clone of this {@link Template}.  As {@link Template}s are thread-safe, this
+     * is no longer required in order to evaluate concurrently.
      */
     @Override
     public Template clone() {
-        return new Template(this.runtime, this.bytecode);
+        return new Template(this.runtime, this.bytecode, this.closure);
     }
 }
@@ -7,8 +7,14 @@ import java.util.ArrayList;
 import java.util.List;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.BooleanNode;
 import com.fasterxml.jackson.databind.node.DoubleNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.LongNode;
+import com.fasterxml.jackson.databind.node.NullNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.TextNode;
 
 import jslt2.parser.tokens.Token;
 import jslt2.parser.tokens.TokenType;
@@ -20,7 +26,7 @@ import static jslt2.ast.Decl.*;
  * @author Tony
  *
  */
-public abstract class Expr  {
+public abstract class Expr implements Cloneable {
     
     public Expr parentNode;
     public Token token;
@@ -39,6 +45,19 @@ public abstract class Expr  {
         return (T)this;
     }
     
+    /**
+     * @return a shallow copy of this node, its children and parent are shared with this node
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Expr> T copy() {
+        try {
+            return (T)super.clone();
+        }
+        catch(CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
     protected <T extends Expr> T becomeParentOf(T node) {
         if(node != null) {
             node.parentNode = this;
@@ -93,6 +112,19 @@ public abstract class Expr  {
         return false;
     }
     
+    /**
+     * @return the value of the literal, or null if the expression isn't a literal
+     */
+    private static JsonNode constantValue(Expr expr) {
+        if(expr instanceof NumberExpr)   return ((NumberExpr)expr).number;
+        if(expr instanceof StringExpr)   return TextNode.valueOf(((StringExpr)expr).string);
+        if(expr instanceof BooleanExpr)  return BooleanNode.valueOf(((BooleanExpr)expr).bool);
+        if(expr instanceof NullExpr)     return NullNode.instance;
+        if(expr instanceof ConstantExpr) return ((ConstantExpr)expr).value;
+        
+        return null;
+    }
+    
     
     /*~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
                                   Expressions 
@@ -125,9 +157,22 @@ public abstract class Expr  {
                 }
             }
             
+            ArrayNode array = forExpr == null ? JsonNodeFactory.instance.arrayNode(elements.size()) : null;
             for(int i = 0; i < elements.size(); i++) {
-                Expr e = elements.get(i);
-                elements.set(i, e.optimize());
+                Expr e = elements.get(i).optimize();
+                elements.set(i, e);
+                
+                JsonNode value = constantValue(e);
+                if(array != null && value != null) {
+                    array.add(value);
+                }
+                else {
+                    array = null;
+                }
+            }
+            
+            if(array != null) {
+                return new ConstantExpr(array);
             }
             
             return this;
@@ -295,6 +340,34 @@ public abstract class Expr  {
     
 
     
+    /**
+     * An object or array literal made up entirely of constant values, which is built once 
+     * when the template is compiled.  Each evaluation of it yields a copy, so the results
+     * of the evaluations can be modified independently
+     */
+    public static class ConstantExpr extends Expr {
+        public final JsonNode value;
+        
+        public ConstantExpr(JsonNode value) {
+            this.value = value;
+        }
+        
+        @Override
+        public void visit(ExprVisitor v) {
+            v.visit(this);
+        }
+        
+        @Override
+        public Expr optimize() {
+            return this;
+        }
+        
+        @Override
+        public String toString() {
+            return value.toString();
+        }
+    }
+    
     public static class DotExpr extends Expr {
         public Expr field;
         
@@ -506,7 +579,7 @@ public abstract class Expr  {
         @Override
         public Expr optimize() {
             expr = expr.optimize();
-            if(expr.isPrimitive()) {
+            if(expr.isPrimitive() || expr instanceof ConstantExpr) {
                 return expr;
             }
             
@@ -755,10 +828,23 @@ public abstract class Expr  {
                 }
             }
             
+            ObjectNode obj = lets.isEmpty() && forObjectExpr == null ? JsonNodeFactory.instance.objectNode() : null;
             for(int i = 0; i < fields.size(); i++) {
                 Expr key = fields.get(i).getFirst().optimize();
                 Expr value = fields.get(i).getSecond().optimize();
                 fields.set(i, new Tuple<>(key, value));
+                
+                JsonNode constant = constantValue(value);
+                if(obj != null && constant != null && (key instanceof IdentifierExpr || key instanceof StringExpr)) {
+                    obj.set(key instanceof IdentifierExpr ? ((IdentifierExpr)key).identifier : ((StringExpr)key).string, constant);
+                }
+                else {
+                    obj = null;
+                }
+            }
+            
+            if(obj != null) {
+                return new ConstantExpr(obj);
             }
             
             return this;
@@ -20,6 +20,7 @@ public interface ExprVisitor {
     void visit(StringExpr expr);
     void visit(ObjectExpr expr);
     void visit(ArrayExpr expr);
+    void visit(ConstantExpr expr);
     
     void visit(IfExpr expr);
     void visit(ElseExpr expr);
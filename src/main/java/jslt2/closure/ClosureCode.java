@@ -0,0 +1,145 @@
+/*
+ * see license.txt
+ */
+package jslt2.closure;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+
+import jslt2.Jslt2Exception;
+import jslt2.vm.MemoCache;
+import jslt2.vm.VM;
+
+/**
+ * A template compiled by the {@link ClosureCompiler} into a tree of {@link Node}s.  Each {@link Node} is a Java lambda
+ * specialized for one expression of the template, which calls its child nodes directly.  There is no instruction
+ * dispatch, operand stack or {@link jslt2.vm.VM} involved; the JVM inlines the nodes of a hot template much like it
+ * would hand written code.
+ *
+ * <p>
+ * The {@link ClosureCode} holds no evaluation state, each evaluation allocates its own {@link Frame}, so it may be
+ * shared between threads.
+ *
+ * @author Tony
+ *
+ */
+public class ClosureCode {
+
+    /**
+     * A compiled expression
+     */
+    @FunctionalInterface
+    public interface Node {
+        JsonNode eval(Frame frame, JsonNode input);
+    }
+
+    /**
+     * A compiled condition, evaluated without creating a boolean value
+     */
+    @FunctionalInterface
+    public interface Test {
+        boolean test(Frame frame, JsonNode input);
+    }
+
+    /**
+     * The result of a function call in tail position, the caller evaluates the {@link Frame#tailBody} of the
+     * returning {@link Frame} in place of the returning function
+     */
+    public static final JsonNode TAIL_CALL = new TextNode("<tail call>");
+
+    /**
+     * Carries the failure of an expression out to {@link ClosureCode#execute(JsonNode)}, along with the line of the
+     * innermost expression it failed in
+     */
+    @SuppressWarnings("serial")
+    static final class LineException extends RuntimeException {
+        final int lineNumber;
+        final RuntimeException error;
+
+        LineException(int lineNumber, RuntimeException error) {
+            super(null, null, false, false);
+            this.lineNumber = lineNumber;
+            this.error = error;
+        }
+    }
+
+    /**
+     * The variables of a template function call, or of the template itself.  The slot of each variable is assigned
+     * by the {@link ClosureCompiler}.
+     */
+    public static final class Frame {
+        public final JsonNode[] locals;
+
+        /**
+         * The variables declared at the top of the template, which are visible to its functions
+         */
+        public final JsonNode[] globals;
+
+        /**
+         * The body and the locals of the function called in tail position, if the frame returned {@link #TAIL_CALL}
+         */
+        public Node tailBody;
+        public JsonNode[] tailLocals;
+
+        /**
+         * The key to cache the result of the function called in tail position by, if it is memoized
+         */
+        public JsonNode[] tailMemoKey;
+
+        /**
+         * The results of the memoized functions during the evaluation, or null if disabled
+         */
+        public final MemoCache memoCache;
+
+        public Frame(JsonNode[] locals, JsonNode[] globals, MemoCache memoCache) {
+            this.locals = locals;
+            this.globals = globals;
+            this.memoCache = memoCache;
+        }
+    }
+
+    private final Node body;
+    private final int numLocals;
+    private final int memoCacheSize;
+
+    /**
+     * @param body
+     * @param numLocals
+     */
+    public ClosureCode(Node body, int numLocals) {
+        this(body, numLocals, 0);
+    }
+
+    /**
+     * @param body
+     * @param numLocals
+     * @param memoCacheSize the maximum number of results cached per memoized function, zero if none are memoized
+     */
+    public ClosureCode(Node body, int numLocals, int memoCacheSize) {
+        this.body = body;
+        this.numLocals = numLocals;
+        this.memoCacheSize = memoCacheSize;
+    }
+
+    /**
+     * Evaluates the template with the supplied input
+     *
+     * @param input
+     * @return the {@link JsonNode} result
+     * @throws Jslt2Exception
+     */
+    public JsonNode execute(JsonNode input) throws Jslt2Exception {
+        JsonNode[] globals = new JsonNode[this.numLocals];
+        try {
+            MemoCache memoCache = this.memoCacheSize > 0 ? new MemoCache(this.memoCacheSize) : null;
+            return this.body.eval(new Frame(globals, globals, memoCache), input);
+        }
+        // the template is compiled from its text, so like its Bytecode it has no source file
+        catch(LineException e) {
+            throw VM.runtimeError("", e.lineNumber, e.error);
+        }
+        catch(Exception e) {
+            throw VM.runtimeError("", -1, e);
+        }
+    }
+}
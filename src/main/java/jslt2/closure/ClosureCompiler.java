@@ -0,0 +1,1200 @@
+/*
+ * see license.txt
+ */
+package jslt2.closure;
+
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.BooleanNode;
+import com.fasterxml.jackson.databind.node.DoubleNode;
+import com.fasterxml.jackson.databind.node.LongNode;
+import com.fasterxml.jackson.databind.node.NullNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+
+import jslt2.Jslt2;
+import jslt2.Jslt2Exception;
+import jslt2.Jslt2Function;
+import jslt2.ast.Decl;
+import jslt2.ast.Decl.*;
+import jslt2.ast.Expr;
+import jslt2.ast.Expr.*;
+import jslt2.closure.ClosureCode.Frame;
+import jslt2.closure.ClosureCode.LineException;
+import jslt2.closure.ClosureCode.Node;
+import jslt2.closure.ClosureCode.Test;
+import jslt2.parser.tokens.TokenType;
+import jslt2.util.Jslt2Util;
+import jslt2.util.Tuple;
+import jslt2.vm.FieldMatcher;
+import jslt2.vm.MemoCache;
+import jslt2.vm.compiler.FieldMatchers;
+import jslt2.vm.compiler.MemoizedFunctions;
+import jslt2.vm.compiler.TailCalls;
+import jslt2.vm.compiler.UnusedDeclarations;
+import jslt2.vm.jit.JitRuntime;
+
+/**
+ * Compiles the optimized {@link Expr} tree of a template into {@link ClosureCode}, a tree of Java lambdas with one
+ * {@link Node} per expression.  Where the {@link jslt2.vm.compiler.Compiler} resolves an expression to a sequence of
+ * instructions, this resolves it to a lambda specialized for its form: a field access of the input, a path, a
+ * comparison used as a condition (which is compiled into a {@link Test}, so no boolean value is created) and so on.
+ * The variables are resolved to slots of a {@link Frame} at compile time.
+ *
+ * <p>
+ * The arithmetic and comparisons share the implementation of the {@link JitRuntime}, so the semantics match the
+ * opcodes of the {@link jslt2.vm.VM}.
+ *
+ * <p>
+ * Not every template can be compiled (imports, async blocks and macros); in which case
+ * {@link ClosureCompiler#compile(ProgramExpr)} returns null and the template is evaluated by the {@link jslt2.vm.VM}.
+ * Neither is a template with a function which may call itself other than in tail position: each such call nests a
+ * Java call, so a deep recursion would overflow the Java stack where the {@link jslt2.vm.VM} keeps its frames on
+ * the heap.
+ * The template is also compiled into {@link jslt2.vm.Bytecode}, which reports the errors of the template.
+ *
+ * @author Tony
+ *
+ */
+public class ClosureCompiler {
+
+    /**
+     * Thrown when the template uses a construct which isn't supported
+     */
+    @SuppressWarnings("serial")
+    private static class UnsupportedException extends RuntimeException {
+        UnsupportedException() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * A lexical scope of variables, mapped to their slot in the {@link Frame}
+     */
+    private static class Scope {
+        final Scope parent;
+        final Map<String, Integer> variables;
+
+        Scope(Scope parent) {
+            this.parent = parent;
+            this.variables = new HashMap<>();
+        }
+    }
+
+    /**
+     * A template function, the body is bound once the function is compiled so that it may
+     * be called before it is defined
+     */
+    private static class Function {
+        int numParameters = -1;
+        int numLocals;
+        Node body;
+        boolean memoized;
+
+        /**
+         * The template functions this function calls, other than in tail position, and in tail position
+         */
+        final Set<Function> calls = new HashSet<>();
+        final Set<Function> tailCalls = new HashSet<>();
+    }
+
+    private static final String INDEX_VARIABLE = "$index__";
+
+    private final Jslt2 runtime;
+    private final boolean omitNulls;
+
+    private Map<String, Function> functions;
+
+    /**
+     * The scope of the variables declared at the top of the template
+     */
+    private Scope globals;
+    private Scope scope;
+
+    /**
+     * The number of slots of the {@link Frame} being compiled
+     */
+    private int numLocals;
+    private boolean inFunction;
+
+    /**
+     * The line of the expression being compiled, only tracked in debug mode as by the {@link jslt2.vm.VM}
+     */
+    private int lineNumber;
+
+    /**
+     * The function being compiled, or null if compiling the body of the template
+     */
+    private Function caller;
+
+    /**
+     * The calls in tail position of the function being compiled
+     */
+    private Set<FuncCallExpr> tailCalls;
+
+    /**
+     * The functions whose results may be cached by their arguments
+     */
+    private Set<DefDecl> memoized;
+
+    public ClosureCompiler(Jslt2 runtime) {
+        this.runtime = runtime;
+        this.omitNulls = !runtime.includeNulls();
+    }
+
+    /**
+     * Compiles the program
+     *
+     * @param program
+     * @return the compiled code, or null if the program isn't supported by the {@link ClosureCompiler}
+     */
+    public ClosureCode compile(ProgramExpr program) {
+        for(Decl decl : program.declarations) {
+            if(decl instanceof ImportDecl || decl instanceof AsyncBlockDecl) {
+                return null;
+            }
+        }
+
+        this.functions = new HashMap<>();
+        this.globals = new Scope(null);
+        this.scope = this.globals;
+        this.numLocals = 0;
+        this.inFunction = false;
+        this.caller = null;
+        this.lineNumber = -1;
+        this.tailCalls = Collections.emptySet();
+
+        try {
+            new UnusedDeclarations(Collections.emptyMap()).remove(program);
+            this.memoized = this.runtime.getMemoCacheSize() > 0
+                    ? new MemoizedFunctions(this.runtime, Collections.emptyMap()).find(program)
+                    : Collections.emptySet();
+
+            List<Node> lets = new ArrayList<>();
+            for(Decl decl : program.declarations) {
+                if(decl instanceof LetDecl) {
+                    lets.add(let((LetDecl)decl));
+                }
+                else if(decl instanceof DefDecl) {
+                    def((DefDecl)decl);
+                }
+                else {
+                    return null;
+                }
+            }
+
+            Node body = withLets(lets, value(program.expr));
+            for(Function function : this.functions.values()) {
+                if(function.body == null) {
+                    // called but never defined
+                    return null;
+                }
+            }
+
+            if(hasNestedRecursion()) {
+                return null;
+            }
+
+            return new ClosureCode(body, this.numLocals, this.memoized.isEmpty() ? 0 : this.runtime.getMemoCacheSize());
+        }
+        catch(UnsupportedException | Jslt2Exception e) {
+            // not supported, or an error reported when compiled into bytecode
+            return null;
+        }
+    }
+
+    private static UnsupportedException unsupported() {
+        return new UnsupportedException();
+    }
+
+    /* variables */
+
+    private int declare(String variable) {
+        int slot = this.numLocals++;
+        this.scope.variables.put(variable, slot);
+        return slot;
+    }
+
+    private Node variable(String variable) {
+        for(Scope s = this.scope; s != null; s = s.parent) {
+            Integer slot = s.variables.get(variable);
+            if(slot != null) {
+                final int index = slot;
+                return (frame, input) -> frame.locals[index];
+            }
+        }
+
+        if(this.inFunction) {
+            Integer slot = this.globals.variables.get(variable);
+            if(slot != null) {
+                final int index = slot;
+                return (frame, input) -> frame.globals[index];
+            }
+        }
+
+        throw unsupported();
+    }
+
+    private Node let(LetDecl let) {
+        Node value = compile(let.value);
+        int slot = declare("$" + let.identifier);
+
+        return (frame, input) -> {
+            frame.locals[slot] = value.eval(frame, input);
+            return null;
+        };
+    }
+
+    private List<Node> lets(List<LetDecl> lets) {
+        List<Node> result = new ArrayList<>(lets.size());
+        for(LetDecl let : lets) {
+            result.add(let(let));
+        }
+        return result;
+    }
+
+    /**
+     * @return the node evaluating the lets before the body
+     */
+    private static Node withLets(List<Node> lets, Node body) {
+        if(lets.isEmpty()) {
+            return body;
+        }
+
+        Node[] letNodes = lets.toArray(new Node[lets.size()]);
+        return (frame, input) -> {
+            for(int i = 0; i < letNodes.length; i++) {
+                letNodes[i].eval(frame, input);
+            }
+            return body.eval(frame, input);
+        };
+    }
+
+    private void pushScope() {
+        this.scope = new Scope(this.scope);
+    }
+
+    private void popScope() {
+        this.scope = this.scope.parent;
+    }
+
+    /* functions */
+
+    private Function function(String name) {
+        return this.functions.computeIfAbsent(name, k -> new Function());
+    }
+
+    private void def(DefDecl expr) {
+        Function function = function(expr.identifier);
+        if(function.numParameters >= 0) {
+            throw unsupported();
+        }
+
+        Scope outerScope = this.scope;
+        int outerLocals = this.numLocals;
+        int outerLine = this.lineNumber;
+
+        this.scope = new Scope(null);
+        this.numLocals = 0;
+        this.lineNumber = -1;
+        this.inFunction = true;
+        this.caller = function;
+        this.tailCalls = TailCalls.find(expr);
+
+        // defined before its body is compiled, so that it may call itself
+        function.numParameters = expr.parameters.size();
+        function.memoized = this.memoized.contains(expr);
+        for(String param : expr.parameters) {
+            declare("$" + param);
+        }
+
+        function.body = withLets(lets(expr.lets), compile(expr.expr));
+        function.numLocals = this.numLocals;
+
+        this.scope = outerScope;
+        this.numLocals = outerLocals;
+        this.lineNumber = outerLine;
+        this.inFunction = false;
+        this.caller = null;
+        this.tailCalls = Collections.emptySet();
+    }
+
+    /**
+     * @return true if a function may call itself through a call which isn't in tail position
+     */
+    private boolean hasNestedRecursion() {
+        for(Function function : this.functions.values()) {
+            for(Function callee : function.calls) {
+                if(calls(callee, function)) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return true if the caller may call the callee, directly or through other functions
+     */
+    private static boolean calls(Function caller, Function callee) {
+        Set<Function> visited = new HashSet<>();
+        Deque<Function> pending = new ArrayDeque<>();
+        pending.push(caller);
+
+        while(!pending.isEmpty()) {
+            Function function = pending.pop();
+            if(function == callee) {
+                return true;
+            }
+
+            if(visited.add(function)) {
+                pending.addAll(function.calls);
+                pending.addAll(function.tailCalls);
+            }
+        }
+
+        return false;
+    }
+
+    private Node call(FuncCallExpr expr) {
+        if(!(expr.object instanceof IdentifierExpr)) {
+            throw unsupported();
+        }
+
+        String name = ((IdentifierExpr)expr.object).identifier;
+        int nargs = expr.arguments.size();
+
+        Node[] args = new Node[nargs];
+        for(int i = 0; i < nargs; i++) {
+            args[i] = compile(expr.arguments.get(i));
+        }
+
+        // a template function defined before the call takes precedence over a runtime function
+        Function function = this.functions.get(name);
+        if((function == null || function.numParameters < 0) && this.runtime.hasFunction(name)) {
+            if(this.runtime.checkFunctionArguments(name, nargs) != null) {
+                throw unsupported();
+            }
+            return userCall(this.runtime.getFunction(name), args);
+        }
+
+        Function callee = function(name);
+        if(this.caller != null) {
+            if(this.tailCalls.contains(expr)) {
+                this.caller.tailCalls.add(callee);
+            }
+            else {
+                this.caller.calls.add(callee);
+            }
+        }
+
+        if(this.tailCalls.contains(expr)) {
+            // the caller of this function evaluates the callee, so the frames don't nest
+            return (frame, input) -> {
+                JsonNode[] locals = arguments(callee, args, frame, input);
+                JsonNode[] memoKey = memoKey(callee, locals, frame);
+                if(memoKey != null) {
+                    JsonNode cached = frame.memoCache.get(callee.body, memoKey);
+                    if(cached != null) {
+                        return cached;
+                    }
+                }
+
+                frame.tailBody = callee.body;
+                frame.tailLocals = locals;
+                frame.tailMemoKey = memoKey;
+                return ClosureCode.TAIL_CALL;
+            };
+        }
+
+        return (frame, input) -> {
+            JsonNode[] locals = arguments(callee, args, frame, input);
+            Node body = callee.body;
+
+            // the results are cached by the body of the function
+            JsonNode[] memoKey = memoKey(callee, locals, frame);
+            Node memoBody = body;
+            if(memoKey != null) {
+                JsonNode cached = frame.memoCache.get(body, memoKey);
+                if(cached != null) {
+                    return cached;
+                }
+            }
+
+            Frame calleeFrame = new Frame(locals, frame.globals, frame.memoCache);
+
+            JsonNode result;
+            while((result = body.eval(calleeFrame, input)) == ClosureCode.TAIL_CALL) {
+                body = calleeFrame.tailBody;
+
+                // the result is cached by the first memoized function called
+                if(memoKey == null && calleeFrame.tailMemoKey != null) {
+                    memoBody = body;
+                    memoKey = calleeFrame.tailMemoKey;
+                }
+
+                calleeFrame = new Frame(calleeFrame.tailLocals, frame.globals, frame.memoCache);
+            }
+
+            if(memoKey != null) {
+                frame.memoCache.put(memoBody, memoKey, result);
+            }
+
+            return result;
+        };
+    }
+
+    /**
+     * @return the key to cache the call of the function by its arguments, or null if it isn't cached
+     */
+    private static JsonNode[] memoKey(Function callee, JsonNode[] locals, Frame frame) {
+        return callee.memoized && frame.memoCache != null ? MemoCache.key(locals, 0, callee.numParameters) : null;
+    }
+
+    /**
+     * Binds the arguments to the parameters as the {@link jslt2.vm.VM} does, the extra arguments are evaluated but
+     * dropped, and a missing argument is left unbound
+     */
+    private static JsonNode[] arguments(Function callee, Node[] args, Frame frame, JsonNode input) {
+        JsonNode[] locals = new JsonNode[callee.numLocals];
+        for(int i = 0; i < args.length; i++) {
+            JsonNode value = args[i].eval(frame, input);
+            if(i < callee.numParameters) {
+                locals[i] = value;
+            }
+        }
+
+        return locals;
+    }
+
+    private static Node userCall(Jslt2Function function, Node[] args) {
+        switch(args.length) {
+            case 0: return (frame, input) -> Jslt2Util.invoke(function, input, 0, null, null, null);
+            case 1: {
+                Node arg0 = args[0];
+                return (frame, input) -> Jslt2Util.invoke(function, input, 1, arg0.eval(frame, input), null, null);
+            }
+            case 2: {
+                Node arg0 = args[0];
+                Node arg1 = args[1];
+                return (frame, input) -> Jslt2Util.invoke(function, input, 2, arg0.eval(frame, input),
+                                                          arg1.eval(frame, input), null);
+            }
+            case 3: {
+                Node arg0 = args[0];
+                Node arg1 = args[1];
+                Node arg2 = args[2];
+                return (frame, input) -> Jslt2Util.invoke(function, input, 3, arg0.eval(frame, input),
+                                                          arg1.eval(frame, input), arg2.eval(frame, input));
+            }
+            default: {
+                return (frame, input) -> {
+                    JsonNode[] values = new JsonNode[args.length];
+                    for(int i = 0; i < values.length; i++) {
+                        values[i] = args[i].eval(frame, input);
+                    }
+                    return function.execute(input, values);
+                };
+            }
+        }
+    }
+
+    /* expressions */
+
+    /**
+     * Compiles an expression whose value is placed in the output.  If nulls are omitted, any null or empty values
+     * nested within the value are stripped out, unless the value is known to be free of them.
+     */
+    private Node value(Expr expr) {
+        Node node = compile(expr);
+        if(this.omitNulls && !isNullFree(expr)) {
+            return (frame, input) -> Jslt2Util.stripNullNodes(node.eval(frame, input));
+        }
+        return node;
+    }
+
+    /**
+     * @return true if the value must be checked for null or empty before it is added to the output
+     */
+    private boolean omitsEmpty(Expr expr) {
+        return this.omitNulls && !isNeverEmpty(expr);
+    }
+
+    private static boolean isNeverEmpty(Expr expr) {
+        if(expr instanceof NumberExpr || expr instanceof StringExpr || expr instanceof BooleanExpr) {
+            return true;
+        }
+
+        if(expr instanceof GroupExpr) {
+            return isNeverEmpty(((GroupExpr)expr).expr);
+        }
+
+        if(expr instanceof UnaryExpr) {
+            return ((UnaryExpr)expr).operator == TokenType.NOT;
+        }
+
+        return expr instanceof BinaryExpr && isCondition(((BinaryExpr)expr).operator);
+    }
+
+    private static boolean isNullFree(Expr expr) {
+        if(isNeverEmpty(expr) || expr instanceof NullExpr || expr instanceof ObjectExpr || expr instanceof ArrayExpr ||
+           expr instanceof ConstantExpr) {
+            return true;
+        }
+
+        if(expr instanceof GroupExpr) {
+            return isNullFree(((GroupExpr)expr).expr);
+        }
+
+        if(expr instanceof IfExpr) {
+            IfExpr ifExpr = (IfExpr)expr;
+            return isNullFree(ifExpr.thenExpr) && (ifExpr.elseExpr == null || isNullFree(ifExpr.elseExpr.expr));
+        }
+
+        if(expr instanceof ElseExpr) {
+            return isNullFree(((ElseExpr)expr).expr);
+        }
+
+        if(expr instanceof BinaryExpr && ((BinaryExpr)expr).operator == TokenType.PIPE) {
+            return isNullFree(((BinaryExpr)expr).right);
+        }
+
+        return false;
+    }
+
+    private static boolean isCondition(TokenType operator) {
+        switch(operator) {
+            case AND:
+            case OR:
+            case NOT_EQUALS:
+            case GREATER_THAN:
+            case GREATER_EQUALS:
+            case LESS_THAN:
+            case LESS_EQUALS:
+            case EQUALS_EQUALS:
+            case EQUALS: return true;
+            default: return false;
+        }
+    }
+
+    /**
+     * Compiles the expression, in debug mode an expression on a new line reports the line of its failures
+     */
+    private Node compile(Expr expr) {
+        int line = expr.lineNumber;
+        if(!this.runtime.isDebugMode() || line <= 0 || line == this.lineNumber) {
+            return expression(expr);
+        }
+
+        int outerLine = this.lineNumber;
+        this.lineNumber = line;
+        Node node = expression(expr);
+        this.lineNumber = outerLine;
+
+        return (frame, input) -> {
+            try {
+                return node.eval(frame, input);
+            }
+            catch(LineException e) {
+                throw e;
+            }
+            catch(RuntimeException e) {
+                throw new LineException(line, e);
+            }
+        };
+    }
+
+    private Node expression(Expr expr) {
+        if(expr instanceof NullExpr) {
+            return (frame, input) -> NullNode.instance;
+        }
+        if(expr instanceof BooleanExpr) {
+            return constant(BooleanNode.valueOf(((BooleanExpr)expr).bool));
+        }
+        if(expr instanceof NumberExpr) {
+            return constant(((NumberExpr)expr).number);
+        }
+        if(expr instanceof StringExpr) {
+            return constant(TextNode.valueOf(((StringExpr)expr).string));
+        }
+        if(expr instanceof ConstantExpr) {
+            JsonNode value = ((ConstantExpr)expr).value;
+            JsonNode constant = this.omitNulls ? Jslt2Util.stripNullNodes(value) : value;
+            
+            // each evaluation gets its own copy, which it may modify
+            return (frame, input) -> constant.deepCopy();
+        }
+        if(expr instanceof GroupExpr) {
+            return compile(((GroupExpr)expr).expr);
+        }
+        if(expr instanceof VariableExpr) {
+            return variable(((VariableExpr)expr).variable);
+        }
+        if(expr instanceof DotExpr) {
+            return dot((DotExpr)expr);
+        }
+        if(expr instanceof GetExpr) {
+            return get((GetExpr)expr);
+        }
+        if(expr instanceof ArrayIndexExpr) {
+            ArrayIndexExpr indexExpr = (ArrayIndexExpr)expr;
+            Node array = compile(indexExpr.array);
+            Node index = compile(indexExpr.index);
+            return (frame, input) -> JitRuntime.getArrayElement(array.eval(frame, input), index.eval(frame, input));
+        }
+        if(expr instanceof ArraySliceExpr) {
+            ArraySliceExpr sliceExpr = (ArraySliceExpr)expr;
+            Node array = compile(sliceExpr.array);
+            Node start = compile(sliceExpr.startExpr);
+            Node end = compile(sliceExpr.endExpr);
+            return (frame, input) -> arraySlice(array.eval(frame, input), start.eval(frame, input), end.eval(frame, input));
+        }
+        if(expr instanceof FuncCallExpr) {
+            return call((FuncCallExpr)expr);
+        }
+        if(expr instanceof ObjectExpr) {
+            return object((ObjectExpr)expr);
+        }
+        if(expr instanceof ArrayExpr) {
+            return array((ArrayExpr)expr);
+        }
+        if(expr instanceof IfExpr) {
+            return ifExpr((IfExpr)expr);
+        }
+        if(expr instanceof ElseExpr) {
+            // the else branch of an if whose condition is always false
+            ElseExpr elseExpr = (ElseExpr)expr;
+            pushScope();
+            Node node = withLets(lets(elseExpr.lets), compile(elseExpr.expr));
+            popScope();
+            return node;
+        }
+        if(expr instanceof UnaryExpr) {
+            return unary((UnaryExpr)expr);
+        }
+        if(expr instanceof BinaryExpr) {
+            return binary((BinaryExpr)expr);
+        }
+
+        // macros
+        throw unsupported();
+    }
+
+    private static Node constant(JsonNode value) {
+        return (frame, input) -> value;
+    }
+
+    /**
+     * @return the name of the input field the {@link DotExpr} accesses, or null if it
+     * is the input itself
+     */
+    private static String inputFieldName(DotExpr expr) {
+        Expr field = expr.field;
+        if(field instanceof StringExpr) {
+            String fieldName = ((StringExpr)field).string;
+            if(fieldName.startsWith("\"") && fieldName.endsWith("\"") && fieldName.length() > 2) {
+                fieldName = fieldName.substring(1, fieldName.length() - 1);
+            }
+            return fieldName;
+        }
+
+        if(field instanceof IdentifierExpr) {
+            return ((IdentifierExpr)field).identifier;
+        }
+
+        if(field != null) {
+            throw unsupported();
+        }
+
+        return null;
+    }
+
+    private Node dot(DotExpr expr) {
+        String fieldName = inputFieldName(expr);
+        if(fieldName == null) {
+            return (frame, input) -> input;
+        }
+
+        return (frame, input) -> Jslt2Util.getField(input, fieldName);
+    }
+
+    private Node get(GetExpr expr) {
+        // a chain of field accesses, i.e., .a.b.c, is a single path access
+        List<String> path = new ArrayList<>();
+
+        Expr object = expr;
+        while(object instanceof GetExpr) {
+            GetExpr get = (GetExpr)object;
+            path.add(0, get.identifier);
+            object = get.object;
+        }
+
+        if(object instanceof DotExpr) {
+            String fieldName = inputFieldName((DotExpr)object);
+            if(fieldName != null) {
+                path.add(0, fieldName);
+            }
+
+            String[] inputPath = path.toArray(new String[path.size()]);
+            return (frame, input) -> Jslt2Util.getPath(input, inputPath);
+        }
+
+        Node node = compile(object);
+        if(path.size() == 1) {
+            String fieldName = path.get(0);
+            return (frame, input) -> Jslt2Util.getField(node.eval(frame, input), fieldName);
+        }
+
+        String[] objectPath = path.toArray(new String[path.size()]);
+        return (frame, input) -> Jslt2Util.getPath(node.eval(frame, input), objectPath);
+    }
+
+    private Node object(ObjectExpr expr) {
+        List<Node> lets = lets(expr.lets);
+        if(expr.forObjectExpr != null) {
+            return withLets(lets, forObject(expr.forObjectExpr));
+        }
+
+        int size = expr.fields.size();
+        String[] names = new String[size];
+        Node[] keys = new Node[size];
+        Node[] values = new Node[size];
+        boolean[] omitsEmpty = new boolean[size];
+        FieldMatcher[] matchers = new FieldMatcher[size];
+
+        // the matcher must see the fields the template defines, even if they are null,
+        // so they are only omitted once the object is built
+        boolean hasMatcher = this.omitNulls &&
+                expr.fields.stream().anyMatch(field -> field.getFirst() instanceof MatchExpr);
+
+        for(int i = 0; i < size; i++) {
+            Tuple<Expr, Expr> field = expr.fields.get(i);
+            Expr fieldName = field.getFirst();
+            if(fieldName instanceof MatchExpr) {
+                matchers[i] = FieldMatchers.fieldMatcher((MatchExpr)fieldName);
+                if(matchers[i] == null) {
+                    throw unsupported();
+                }
+
+                // * : . copies the remaining fields as they are
+                values[i] = isIdentity(field.getSecond()) ? null : value(field.getSecond());
+                continue;
+            }
+
+            if(fieldName instanceof IdentifierExpr) {
+                names[i] = ((IdentifierExpr)fieldName).identifier;
+            }
+            else if(fieldName instanceof StringExpr) {
+                names[i] = ((StringExpr)fieldName).string;
+            }
+            else {
+                keys[i] = compile(fieldName);
+            }
+
+            values[i] = value(field.getSecond());
+            omitsEmpty[i] = !hasMatcher && omitsEmpty(field.getSecond());
+        }
+
+        return withLets(lets, (frame, input) -> {
+            ObjectNode obj = this.runtime.newObjectNode(size);
+            for(int i = 0; i < size; i++) {
+                if(matchers[i] != null) {
+                    match(obj, matchers[i], values[i], frame, input);
+                    continue;
+                }
+
+                String name = names[i] != null ? names[i] : keys[i].eval(frame, input).asText();
+                JsonNode value = values[i].eval(frame, input);
+                if(!omitsEmpty[i] || Jslt2Util.isValue(value)) {
+                    obj.set(name, value);
+                }
+            }
+            return hasMatcher ? Jslt2Util.removeEmptyFields(obj) : obj;
+        });
+    }
+
+    /**
+     * @return true if the expression evaluates to the input itself, i.e., <code>.</code>
+     */
+    private static boolean isIdentity(Expr expr) {
+        if(expr instanceof GroupExpr) {
+            return isIdentity(((GroupExpr)expr).expr);
+        }
+
+        return expr instanceof DotExpr && ((DotExpr)expr).field == null;
+    }
+
+    /**
+     * Adds the fields of the input matched by the matcher, which aren't already in the object
+     *
+     * @param value the value of a matched field, evaluated with the field value as its input, or null
+     * to copy the field value as it is
+     */
+    private void match(ObjectNode obj, FieldMatcher matcher, Node value, Frame frame, JsonNode input) {
+        if(value == null) {
+            matcher.copyFields(obj, input, this.omitNulls);
+            return;
+        }
+
+        JsonNode context = matcher.resolveContext(input);
+        if(!context.isObject()) {
+            return;
+        }
+
+        Iterator<Map.Entry<String, JsonNode>> it = context.fields();
+        while(it.hasNext()) {
+            Map.Entry<String, JsonNode> field = it.next();
+            String key = field.getKey();
+            if(!obj.has(key) && !matcher.isOmittedField(key)) {
+                obj.set(key, value.eval(frame, field.getValue()));
+            }
+        }
+    }
+
+    private Node array(ArrayExpr expr) {
+        if(expr.forExpr != null) {
+            return forArray(expr.forExpr);
+        }
+
+        int size = expr.elements.size();
+        Node[] elements = new Node[size];
+        boolean[] omitsEmpty = new boolean[size];
+        for(int i = 0; i < size; i++) {
+            Expr element = expr.elements.get(i);
+            elements[i] = value(element);
+            omitsEmpty[i] = omitsEmpty(element);
+        }
+
+        return (frame, input) -> {
+            ArrayNode array = this.runtime.newArrayNode(size);
+            for(int i = 0; i < size; i++) {
+                JsonNode value = elements[i].eval(frame, input);
+                if(!omitsEmpty[i] || Jslt2Util.isValue(value)) {
+                    array.add(value);
+                }
+            }
+            return array;
+        };
+    }
+
+    private Node ifExpr(IfExpr expr) {
+        Test condition = condition(expr.condition);
+
+        pushScope();
+        Node then = withLets(lets(expr.lets), compile(expr.thenExpr));
+        popScope();
+
+        Node otherwise;
+        if(expr.elseExpr != null) {
+            pushScope();
+            otherwise = withLets(lets(expr.elseExpr.lets), compile(expr.elseExpr.expr));
+            popScope();
+        }
+        else {
+            otherwise = (frame, input) -> NullNode.instance;
+        }
+
+        return (frame, input) -> condition.test(frame, input) ? then.eval(frame, input)
+                                                              : otherwise.eval(frame, input);
+    }
+
+    /**
+     * The body of a for loop, evaluated per element.  The lets of the body and its automatic index variable are
+     * slots of the enclosing {@link Frame}.
+     */
+    private class ForBody {
+        final Node iterated;
+        final int indexSlot;
+        final Node[] lets;
+        final Test filter;
+
+        ForBody(Expr condition, List<LetDecl> lets, Expr ifExpr) {
+            this.iterated = compile(condition);
+
+            pushScope();
+            this.indexSlot = declare(INDEX_VARIABLE);
+            List<Node> letNodes = lets(lets);
+            this.lets = letNodes.toArray(new Node[letNodes.size()]);
+            this.filter = ifExpr != null ? condition(ifExpr) : null;
+        }
+
+        /**
+         * @return the input of the body, or null if it is filtered out
+         */
+        JsonNode enter(Frame frame, JsonNode current, int index) {
+            frame.locals[this.indexSlot] = runtime.indexNode(index);
+            for(int i = 0; i < this.lets.length; i++) {
+                this.lets[i].eval(frame, current);
+            }
+
+            if(this.filter != null && !this.filter.test(frame, current)) {
+                return null;
+            }
+
+            return current;
+        }
+
+        /**
+         * @return the elements iterated over, or null if the loop evaluates to null
+         */
+        Iterator<JsonNode> elements(Frame frame, JsonNode input) {
+            JsonNode object = this.iterated.eval(frame, input);
+            if(object.isNull()) {
+                return null;
+            }
+
+            if(object.isObject()) {
+                Iterator<Map.Entry<String, JsonNode>> it = object.fields();
+                return new Iterator<JsonNode>() {
+                    @Override
+                    public boolean hasNext() {
+                        return it.hasNext();
+                    }
+
+                    @Override
+                    public JsonNode next() {
+                        Map.Entry<String, JsonNode> entry = it.next();
+                        ObjectNode current = runtime.newObjectNode();
+                        current.set("key", new TextNode(entry.getKey()));
+                        current.set("value", entry.getValue());
+                        return current;
+                    }
+                };
+            }
+
+            if(object.isArray()) {
+                return object.elements();
+            }
+
+            throw new Jslt2Exception("ForIterationError: For loop can't iterate over '" + object + "'");
+        }
+    }
+
+    private Node forArray(ForArrayExpr expr) {
+        ForBody body = new ForBody(expr.condition, expr.lets, expr.ifExpr);
+        Node value = value(expr.valueExpr);
+        popScope();
+
+        boolean includeNulls = this.runtime.includeNulls();
+        return (frame, input) -> {
+            Iterator<JsonNode> it = body.elements(frame, input);
+            if(it == null) {
+                return NullNode.instance;
+            }
+
+            ArrayNode array = this.runtime.newArrayNode(16);
+            for(int index = 0; it.hasNext(); index++) {
+                JsonNode current = body.enter(frame, it.next(), index);
+                if(current != null) {
+                    JsonNode n = value.eval(frame, current);
+                    if(includeNulls || Jslt2Util.isValue(n)) {
+                        array.add(n);
+                    }
+                }
+            }
+            return array;
+        };
+    }
+
+    private Node forObject(ForObjectExpr expr) {
+        ForBody body = new ForBody(expr.condition, expr.lets, expr.ifExpr);
+
+        Node key;
+        if(expr.keyExpr instanceof IdentifierExpr) {
+            key = constant(TextNode.valueOf(((IdentifierExpr)expr.keyExpr).identifier));
+        }
+        else {
+            key = compile(expr.keyExpr);
+        }
+        Node value = value(expr.valueExpr);
+        popScope();
+
+        boolean includeNulls = this.runtime.includeNulls();
+        return (frame, input) -> {
+            Iterator<JsonNode> it = body.elements(frame, input);
+            if(it == null) {
+                return NullNode.instance;
+            }
+
+            ObjectNode obj = this.runtime.newObjectNode();
+            for(int index = 0; it.hasNext(); index++) {
+                JsonNode current = body.enter(frame, it.next(), index);
+                if(current != null) {
+                    JsonNode k = key.eval(frame, current);
+                    JsonNode v = value.eval(frame, current);
+                    if(includeNulls || Jslt2Util.isValue(v)) {
+                        obj.set(k.asText(), v);
+                    }
+                }
+            }
+            return obj;
+        };
+    }
+
+    private Node unary(UnaryExpr expr) {
+        switch(expr.operator) {
+            case NOT: {
+                Test test = condition(expr.expr);
+                return (frame, input) -> BooleanNode.valueOf(!test.test(frame, input));
+            }
+            case MINUS: {
+                Node node = compile(expr.expr);
+                return (frame, input) -> JitRuntime.neg(node.eval(frame, input));
+            }
+            default:
+                throw unsupported();
+        }
+    }
+
+    private Node binary(BinaryExpr expr) {
+        if(isCondition(expr.operator)) {
+            Test test = condition(expr);
+            return (frame, input) -> BooleanNode.valueOf(test.test(frame, input));
+        }
+
+        Node left = compile(expr.left);
+        Node right = compile(expr.right);
+
+        switch(expr.operator) {
+            case PIPE:  return (frame, input) -> right.eval(frame, left.eval(frame, input));
+            case PLUS:  return (frame, input) -> add(left.eval(frame, input), right.eval(frame, input));
+            case MINUS: return (frame, input) -> JitRuntime.sub(left.eval(frame, input), right.eval(frame, input));
+            case STAR:  return (frame, input) -> JitRuntime.mul(left.eval(frame, input), right.eval(frame, input));
+            case SLASH: return (frame, input) -> JitRuntime.div(left.eval(frame, input), right.eval(frame, input));
+            case MOD:   return (frame, input) -> JitRuntime.mod(left.eval(frame, input), right.eval(frame, input));
+            default:
+                throw unsupported();
+        }
+    }
+
+    /**
+     * Compiles the expression as a condition, comparisons, <code>not</code>, <code>and</code> and <code>or</code>
+     * are evaluated without creating a boolean value for them.
+     */
+    private Test condition(Expr expr) {
+        if(expr instanceof GroupExpr) {
+            return condition(((GroupExpr)expr).expr);
+        }
+
+        if(expr instanceof UnaryExpr && ((UnaryExpr)expr).operator == TokenType.NOT) {
+            Test test = condition(((UnaryExpr)expr).expr);
+            return (frame, input) -> !test.test(frame, input);
+        }
+
+        if(expr instanceof BinaryExpr && isCondition(((BinaryExpr)expr).operator)) {
+            BinaryExpr binExpr = (BinaryExpr)expr;
+            if(binExpr.operator == TokenType.AND || binExpr.operator == TokenType.OR) {
+                Test left = condition(binExpr.left);
+                Test right = condition(binExpr.right);
+                return binExpr.operator == TokenType.AND
+                        ? (frame, input) -> left.test(frame, input) && right.test(frame, input)
+                        : (frame, input) -> left.test(frame, input) || right.test(frame, input);
+            }
+
+            Node left = compile(binExpr.left);
+            if(binExpr.right instanceof NullExpr) {
+                switch(binExpr.operator) {
+                    case EQUALS:
+                    case EQUALS_EQUALS: return (frame, input) -> left.eval(frame, input).isNull();
+                    case NOT_EQUALS:    return (frame, input) -> !left.eval(frame, input).isNull();
+                    default:
+                }
+            }
+
+            Node right = compile(binExpr.right);
+            switch(binExpr.operator) {
+                case NOT_EQUALS:     return (frame, input) -> !Jslt2Util.equals(left.eval(frame, input), right.eval(frame, input));
+                case GREATER_THAN:   return (frame, input) -> Jslt2Util.compare(left.eval(frame, input), right.eval(frame, input)) > 0;
+                case GREATER_EQUALS: return (frame, input) -> Jslt2Util.compare(left.eval(frame, input), right.eval(frame, input)) >= 0;
+                case LESS_THAN:      return (frame, input) -> Jslt2Util.compare(left.eval(frame, input), right.eval(frame, input)) < 0;
+                case LESS_EQUALS:    return (frame, input) -> Jslt2Util.compare(left.eval(frame, input), right.eval(frame, input)) <= 0;
+                default:             return (frame, input) -> Jslt2Util.equals(left.eval(frame, input), right.eval(frame, input));
+            }
+        }
+
+        Node node = compile(expr);
+        return (frame, input) -> Jslt2Util.isTrue(node.eval(frame, input));
+    }
+
+    /* runtime support */
+
+    private JsonNode add(JsonNode l, JsonNode r) {
+        if(l.isTextual() || r.isTextual()) {
+            return new TextNode(Jslt2Util.toString(l, false) + Jslt2Util.toString(r, false));
+        }
+        else if(l.isArray() && r.isArray()) {
+            ArrayNode union = this.runtime.newArrayNode(l.size() + r.size());
+            union.addAll((ArrayNode)l);
+            union.addAll((ArrayNode)r);
+            return union;
+        }
+        else if(l.isObject() && r.isObject()) {
+            ObjectNode union = this.runtime.newObjectNode();
+            union.setAll((ObjectNode)r);
+            union.setAll((ObjectNode)l);
+            return union;
+        }
+
+        l = Jslt2Util.number(l, true, null);
+        r = Jslt2Util.number(r, true, null);
+
+        if(l.isNull() || r.isNull()) {
+            return NullNode.instance;
+        }
+        else if(l.isIntegralNumber() && r.isIntegralNumber()) {
+            return new LongNode(l.asLong() + r.asLong());
+        }
+
+        return new DoubleNode(l.asDouble() + r.asDouble());
+    }
+
+    private JsonNode arraySlice(JsonNode array, JsonNode start, JsonNode end) {
+        int startIndex = start.intValue();
+
+        if(array.isArray()) {
+            int size = array.size();
+            int endIndex = sliceEnd(end, size, startIndex);
+
+            ArrayNode slice = this.runtime.newArrayNode(endIndex - startIndex);
+            for(int j = startIndex; j < endIndex; j++) {
+                slice.add(array.get(j));
+            }
+            return slice;
+        }
+        else if(array.isTextual()) {
+            String text = array.asText();
+            int endIndex = sliceEnd(end, text.length(), startIndex);
+            return new TextNode(text.substring(startIndex, endIndex));
+        }
+
+        return NullNode.instance;
+    }
+
+    private static int sliceEnd(JsonNode end, int size, int startIndex) {
+        int endIndex = end.isNull() ? size : end.intValue();
+        if(endIndex < 0) {
+            endIndex = size + endIndex;
+        }
+        else if(endIndex > size) {
+            endIndex = size;
+        }
+
+        if(endIndex < startIndex) {
+            throw new Jslt2Exception("The end range (" + endIndex + ") is smaller than the start range (" + startIndex + ")");
+        }
+
+        return endIndex;
+    }
+}
@@ -3,6 +3,7 @@
  */
 package jslt2.util;
 
+import jslt2.vm.FieldMatcher;
 import jslt2.vm.compiler.OuterDesc;
 
 import com.fasterxml.jackson.databind.JsonNode;
@@ -14,6 +15,9 @@ import com.fasterxml.jackson.databind.JsonNode;
 public final class ArrayUtil {
 
     public static final JsonNode[] EMPTY_NODES = {};
+    public static final String[] EMPTY_STRINGS = {};
+    public static final String[][] EMPTY_PATHS = {};
+    public static final FieldMatcher[] EMPTY_MATCHERS = {};
     
     public static String[] resize(String[] array, int len) {
         if ( array.length > len) {
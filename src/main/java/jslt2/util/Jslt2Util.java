@@ -17,6 +17,11 @@ import com.fasterxml.jackson.databind.node.TextNode;
 
 import jslt2.Jslt2;
 import jslt2.Jslt2Exception;
+import jslt2.Jslt2Function;
+import jslt2.Jslt2Function0;
+import jslt2.Jslt2Function1;
+import jslt2.Jslt2Function2;
+import jslt2.Jslt2Function3;
 
 /**
  * @author Tony
@@ -63,6 +68,30 @@ public class Jslt2Util {
         return value.toString();
     }
     
+    /**
+     * Concatenates the string form of the values, which is the result of adding them together
+     * once one of the first two is a string.
+     * 
+     * @param values
+     * @param offset the index of the first value
+     * @param length the number of values
+     * @return the concatenated values
+     */
+    public static TextNode concat(JsonNode[] values, int offset, int length) {
+        int capacity = 0;
+        for(int i = offset; i < offset + length; i++) {
+            JsonNode value = values[i];
+            capacity += value.isTextual() ? value.textValue().length() : 16;
+        }
+        
+        StringBuilder sb = new StringBuilder(capacity);
+        for(int i = offset; i < offset + length; i++) {
+            sb.append(toString(values[i], false));
+        }
+        
+        return new TextNode(sb.toString());
+    }
+    
     public static ArrayNode toArray(JsonNode value, boolean nullok) {
         // check what type this is
         if (value.isArray()) {
@@ -196,6 +225,157 @@ public class Jslt2Util {
     }
     
     
+    /**
+     * Gets the field of the node
+     * 
+     * @param node
+     * @param fieldName
+     * @return the value of the field, or {@link NullNode} if the field is missing
+     */
+    public static JsonNode getField(JsonNode node, String fieldName) {
+        JsonNode value = node.get(fieldName);
+        if(value == null) {
+            value = NullNode.instance;
+        }
+        
+        return value;
+    }
+    
+    /**
+     * Walks the field path, i.e., <code>.a.b.c</code>, starting from the supplied node.  Stops as soon
+     * as a field is missing.
+     * 
+     * @param node
+     * @param path
+     * @return the value at the end of the path, or {@link NullNode} if any field along the path is missing
+     */
+    public static JsonNode getPath(JsonNode node, String[] path) {
+        for(int i = 0; i < path.length; i++) {
+            node = node.get(path[i]);
+            if(node == null) {
+                return NullNode.instance;
+            }
+        }
+        
+        return node;
+    }
+    
+    /**
+     * Invokes the {@link Jslt2Function} with up to three arguments.  Functions with a fixed {@link Jslt2Function#arity()} 
+     * are called directly, without allocating an argument array; the arguments beyond <code>nargs</code> must be null.
+     * 
+     * @param function
+     * @param input
+     * @param nargs the number of arguments supplied
+     * @param arg0
+     * @param arg1
+     * @param arg2
+     * @return the result of the function
+     */
+    public static JsonNode invoke(Jslt2Function function, JsonNode input, int nargs, JsonNode arg0, JsonNode arg1, JsonNode arg2) {
+        switch(function.arity()) {
+            case 0: return ((Jslt2Function0)function).execute(input);
+            case 1: return ((Jslt2Function1)function).execute(input, arg0);
+            case 2: return ((Jslt2Function2)function).execute(input, arg0, arg1);
+            case 3: return ((Jslt2Function3)function).execute(input, arg0, arg1, arg2);
+            default: {
+                switch(nargs) {
+                    case 0: return function.execute(input);
+                    case 1: return function.execute(input, arg0);
+                    case 2: return function.execute(input, arg0, arg1);
+                    default: return function.execute(input, arg0, arg1, arg2);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Strips the null, empty object and empty array values out of the node and all of its children.  Unlike
+     * {@link #removeNullNodes(JsonNode)} the node is not modified, if there is anything to strip a copy is returned,
+     * otherwise the node itself is returned.
+     * 
+     * @param node
+     * @return the node without any null or empty values
+     */
+    public static JsonNode stripNullNodes(JsonNode node) {
+        if(node.isObject()) {
+            ObjectNode obj = (ObjectNode)node;
+            ObjectNode copy = null;
+            
+            int index = 0;
+            Iterator<Map.Entry<String, JsonNode>> it = obj.fields();
+            while(it.hasNext()) {
+                Map.Entry<String, JsonNode> field = it.next();
+                JsonNode value = field.getValue();
+                JsonNode stripped = stripNullNodes(value);
+                boolean keep = isValue(stripped);
+                
+                if(copy == null && (!keep || stripped != value)) {
+                    copy = obj.objectNode();
+                    
+                    Iterator<Map.Entry<String, JsonNode>> previous = obj.fields();
+                    for(int i = 0; i < index; i++) {
+                        Map.Entry<String, JsonNode> p = previous.next();
+                        copy.set(p.getKey(), p.getValue());
+                    }
+                }
+                
+                if(copy != null && keep) {
+                    copy.set(field.getKey(), stripped);
+                }
+                
+                index++;
+            }
+            
+            return copy != null ? copy : node;
+        }
+        
+        if(node.isArray()) {
+            ArrayNode array = (ArrayNode)node;
+            ArrayNode copy = null;
+            
+            int size = array.size();
+            for(int index = 0; index < size; index++) {
+                JsonNode value = array.get(index);
+                JsonNode stripped = stripNullNodes(value);
+                boolean keep = isValue(stripped);
+                
+                if(copy == null && (!keep || stripped != value)) {
+                    copy = array.arrayNode();
+                    for(int i = 0; i < index; i++) {
+                        copy.add(array.get(i));
+                    }
+                }
+                
+                if(copy != null && keep) {
+                    copy.add(stripped);
+                }
+            }
+            
+            return copy != null ? copy : node;
+        }
+        
+        return node;
+    }
+    
+    /**
+     * Removes the null, empty object and empty array fields of the object, the children of
+     * the fields are not visited.
+     * 
+     * @param obj
+     * @return the obj
+     */
+    public static ObjectNode removeEmptyFields(ObjectNode obj) {
+        Iterator<JsonNode> it = obj.elements();
+        while(it.hasNext()) {
+            if(!isValue(it.next())) {
+                it.remove();
+            }
+        }
+        
+        return obj;
+    }
+    
     /**
      * Removes null nodes
      * 
@@ -99,5 +99,15 @@ public class Stack<T> {
         T result = (T)elements[count - 1]; 
         return result; 
     }
+    
+    /**
+     * Removes all of the elements
+     */
+    public void clear() {
+        for(int i = 0; i < count; i++) {
+            elements[i] = null;
+        }
+        count = 0;
+    }
 
 }
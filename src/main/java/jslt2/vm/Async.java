@@ -3,6 +3,8 @@
  */
 package jslt2.vm;
 
+import java.util.IdentityHashMap;
+import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentLinkedQueue;
@@ -23,6 +25,7 @@ import jslt2.Jslt2Exception;
 public class Async {
 
     private Jslt2 runtime;
+    private Map<Bytecode, JsonNode[]> functionOuters;
     
     static class Task {
         Future<JsonNode> future;
@@ -54,25 +57,29 @@ public class Async {
     private Queue<Task> pendingTasks;
     
     /**
-     * @param executorService
+     * @param runtime
+     * @param functionOuters the captured outers of the functions defined by the parent {@link VM}
      */
-    public Async(Jslt2 runtime) {
+    public Async(Jslt2 runtime, Map<Bytecode, JsonNode[]> functionOuters) {
         this.runtime = runtime;
+        this.functionOuters = functionOuters;
         
         this.pendingTasks = new ConcurrentLinkedQueue<>();
     }
     
-    private Future<JsonNode> submitTask(JsonNode input, Bytecode code) {
+    private Future<JsonNode> submitTask(JsonNode input, Bytecode code, JsonNode[] outers) {
+        // each task gets its own copy, as the task may define functions (i.e., macro arguments) 
+        final Map<Bytecode, JsonNode[]> taskOuters = new IdentityHashMap<>(this.functionOuters);
         return this.runtime.getExecutorService().submit( () -> {
-            VM vm = new VM(runtime);
-            JsonNode value = vm.execute(code, input);
+            VM vm = new VM(runtime, taskOuters);
+            JsonNode value = vm.execute(code, outers, input);
             return value;
         });
     }
     
 
-    public void submit(JsonNode[] stack, int index, JsonNode input, Bytecode code) {
-        Future<JsonNode> future = submitTask(input, code);
+    public void submit(JsonNode[] stack, int index, JsonNode input, Bytecode code, JsonNode[] outers) {
+        Future<JsonNode> future = submitTask(input, code, outers);
         
         this.pendingTasks.add(new Task(future, stack, index));
     }
@@ -11,10 +11,16 @@ import java.util.ArrayList;
 import java.util.List;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.DoubleNode;
+import com.fasterxml.jackson.databind.node.IntNode;
+import com.fasterxml.jackson.databind.node.LongNode;
 import com.fasterxml.jackson.databind.node.TextNode;
 
+import jslt2.Jslt2;
 import jslt2.Jslt2Exception;
+import jslt2.Jslt2Function;
+import jslt2.util.ArrayUtil;
 import jslt2.vm.compiler.DebugSymbols;
 
 
@@ -31,13 +37,21 @@ public class Bytecode {
     private static final String Indent = "  ";
     
     public static final int MAGIC_NUMBER = 0x1E01A;
-    public static final int VERSION = 1;
+    public static final int VERSION = 4;
+    
+    /**
+     * Writes and reads the constant objects and arrays
+     */
+    private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
     
     public static final int FL_DEBUG       = (1<<0);
     public static final int FL_BLOCKS      = (1<<1);
     public static final int FL_VARARGS     = (1<<2);
     public static final int FL_PARAMS_IDX  = (1<<3);
     public static final int FL_ASYNC       = (1<<4);
+    public static final int FL_ENTRY       = (1<<5);
+    public static final int FL_INDEX       = (1<<6);
+    public static final int FL_MEMOIZED    = (1<<7);
     
 
     /**
@@ -54,6 +68,26 @@ public class Bytecode {
     
     public JsonNode[] constants;
     public int numConstants;
+    
+    /**
+     * The interned text of the textual {@link #constants}, used by the field
+     * and invocation instructions; null for non-textual constants
+     */
+    public String[] stringConstants;
+    
+    public String[][] paths;
+    
+    /**
+     * The object matchers, indexed by the MATCHER instruction
+     */
+    public FieldMatcher[] matchers;
+    
+    /**
+     * The {@link Jslt2Function}s bound to the USER_INVOKE call sites, indexed
+     * by the constant index of the function name.  These are only written by {@link #bindFunctions(Jslt2)}, 
+     * a call site left unbound is looked up on each invocation.
+     */
+    public Jslt2Function[] functions;
         
     public DebugSymbols debugSymbols;        
     
@@ -67,11 +101,9 @@ public class Bytecode {
             
     public int maxstacksize;
     
-    public JsonNode[] outers;
-    
     public Bytecode[] inner;    
     public Bytecode global;
-        
+    
     /**
      * @param instructions
      */
@@ -99,6 +131,33 @@ public class Bytecode {
         }
     }
     
+    /**
+     * Binds the USER_INVOKE call sites of this and the inner {@link Bytecode}s to the
+     * {@link Jslt2Function}s registered in the runtime, so that they are not looked up by
+     * name on each invocation.  Functions registered after binding are not seen by this {@link Bytecode}.
+     * This must be done before the {@link Bytecode} is shared between threads, the {@link jslt2.vm.compiler.Compiler} does so
+     * when compiling.
+     * 
+     * @param runtime
+     */
+    public void bindFunctions(Jslt2 runtime) {
+        if(this.functions == null || this.functions.length < this.numConstants) {
+            this.functions = new Jslt2Function[this.numConstants];
+        }
+        
+        for(int i = this.pc; i < this.len; i++) {
+            int code = this.instr[i];
+            if(Opcodes.OPCODE(code) == Opcodes.USER_INVOKE) {
+                int constIndex = Opcodes.ARG2(code);
+                this.functions[constIndex] = runtime.getFunction(this.stringConstants[constIndex]);
+            }
+        }
+        
+        for(int i = 0; i < this.numInners; i++) {
+            this.inner[i].bindFunctions(runtime);
+        }
+    }
+    
     /**
      * denotes that this byte code contains debug information
      */
@@ -128,6 +187,51 @@ public class Bytecode {
         return (this.flags & FL_ASYNC) != 0;
     }
     
+    /**
+     * denotes that this for body reads the key and value of the object entry being
+     * iterated from its locals, rather than from an entry object passed as the input
+     */
+    public void setEntryLocals() {
+        this.flags |= FL_ENTRY;
+    }
+    
+    /**
+     * @return true if this for body reads the entry key and value from locals 1 and 2
+     */
+    public boolean hasEntryLocals() {
+        return (this.flags & FL_ENTRY) != 0;
+    }
+    
+    /**
+     * denotes that this for body reads the automatic <code>$index__</code> local, either
+     * directly or from one of its closures
+     */
+    public void setIndexLocal() {
+        this.flags |= FL_INDEX;
+    }
+    
+    /**
+     * @return true if the for body requires the current index to be stored in local 0
+     */
+    public boolean hasIndexLocal() {
+        return (this.flags & FL_INDEX) != 0;
+    }
+    
+    /**
+     * denotes that this function's results may be cached by its arguments, as it is pure
+     * and doesn't read its input
+     */
+    public void setMemoized() {
+        this.flags |= FL_MEMOIZED;
+    }
+    
+    /**
+     * @return true if the results of this function may be cached by its arguments
+     */
+    public boolean isMemoized() {
+        return (this.flags & FL_MEMOIZED) != 0;
+    }
+    
     /**
      * Sets the filename in which generated this {@link Bytecode}.  Only
      * stores this information in DEBUG mode.
@@ -167,12 +271,17 @@ public class Bytecode {
     }
     
     /**
-     * Clones this {@link Bytecode}
+     * Clones this {@link Bytecode}.  A {@link Bytecode} is immutable once compiled, the captured
+     * outer values of an activation are owned by the {@link VM}, so this is not required for execution.
      */
     public Bytecode clone() {
         Bytecode clone = new Bytecode(instr);
         clone.flags = this.flags;
         clone.constants = this.constants;        
+        clone.stringConstants = this.stringConstants;
+        clone.paths = this.paths;
+        clone.matchers = this.matchers;
+        clone.functions = this.functions;
         clone.debugSymbols = this.debugSymbols;
         clone.inner = new Bytecode[this.numInners];
         for(int i = 0; i<this.numInners;i++) {
@@ -188,10 +297,6 @@ public class Bytecode {
         clone.paramNames = this.paramNames;
         
         clone.global = this.global;
-        if(this.numOuters > 0) {
-            clone.outers = new JsonNode[this.numOuters];
-            clone.numOuters = this.numOuters;
-        }
         
         return clone;
     }
@@ -241,6 +346,20 @@ public class Bytecode {
                 sb.append(String.format(lineFormat3, ".const", this.constants[i].toString(), "[ index: " + i + "]") );
         }
         
+        if(this.paths != null) {
+            for(int i = 0; i < this.paths.length; i++) {
+                for(int t = 0; t < numTabs; t++) sb.append(Indent);
+                sb.append(String.format(lineFormat3, ".path", quote(String.join(".", this.paths[i])), "[ index: " + i + "]") );
+            }
+        }
+        
+        if(this.matchers != null) {
+            for(int i = 0; i < this.matchers.length; i++) {
+                for(int t = 0; t < numTabs; t++) sb.append(Indent);
+                sb.append(String.format(lineFormat3, ".matcher", quote(this.matchers[i].toString()), "[ index: " + i + "]") );
+            }
+        }
+        
         dumpRaw(this, sb, numTabs, this.instr, pc, len);        
         return sb.toString();
     }
@@ -265,9 +384,11 @@ public class Bytecode {
             for(int t = 0; t < numTabs; t++) sb.append(Indent);
             switch(iopcode) {                
                 case Opcodes.MATCHER:
+                case Opcodes.COPY_MATCHER:
                 case Opcodes.USER_INVOKE:
                 case Opcodes.MACRO_INVOKE:
-                case Opcodes.INVOKE: {
+                case Opcodes.INVOKE:
+                case Opcodes.TAIL_INVOKE: {
                     String arg1 = Integer.toString(Opcodes.ARG1(code));
                     String arg2 = Integer.toString(Opcodes.ARG2(code));
                     if( "0".equals(arg2)) {
@@ -278,6 +399,20 @@ public class Bytecode {
                     }
                     break;
                 }
+                case Opcodes.ADD_RK:
+                case Opcodes.SUB_RK:
+                case Opcodes.MUL_RK:
+                case Opcodes.DIV_RK:
+                case Opcodes.MOD_RK:
+                case Opcodes.GET_LOCAL_FIELDK:
+                case Opcodes.GET_LOCAL_PATH:
+                case Opcodes.COPY_INPUT_FIELDK:
+                case Opcodes.COPY_INPUT_VALUE_FIELDK: {
+                    String arg1 = Integer.toString(Opcodes.ARG1(code));
+                    String arg2 = Integer.toString(Opcodes.ARG2(code));
+                    sb.append(String.format(lineFormat4Ex, opcode, arg1, arg2, i));
+                    break;
+                }
                 case Opcodes.FUNC_DEF: {                                
                     int inner = Opcodes.ARGx(code);
                     Bytecode bc = bytecode.inner[inner];
@@ -308,6 +443,20 @@ public class Bytecode {
                     break;
                 }
                 case Opcodes.IFEQ:
+                case Opcodes.IFNE:
+                case Opcodes.IF_CMPEQ:
+                case Opcodes.IF_CMPNE:
+                case Opcodes.IF_CMPGT:
+                case Opcodes.IF_CMPGE:
+                case Opcodes.IF_CMPLT:
+                case Opcodes.IF_CMPLE:
+                case Opcodes.IFNULL:
+                case Opcodes.IFNONNULL:
+                case Opcodes.IFEMPTY:
+                case Opcodes.IF_CMPGT_NUM:
+                case Opcodes.IF_CMPGE_NUM:
+                case Opcodes.IF_CMPLT_NUM:
+                case Opcodes.IF_CMPLE_NUM:
                 case Opcodes.JMP: {
                     String argsx = Integer.toString(Opcodes.ARGsx(code));                                                     
                     sb.append(String.format(lineFormat3, opcode, argsx, i));
@@ -320,10 +469,12 @@ public class Bytecode {
                 
                 case Opcodes.ADD_ELEMENT:
                 case Opcodes.ADD_FIELD:
+                case Opcodes.ADD_VALUE_ELEMENT:
+                case Opcodes.ADD_VALUE_FIELD:
+                case Opcodes.STRIP_NULLS:
                 
-                case Opcodes.NEW_OBJ: 
                 case Opcodes.SEAL_OBJ: 
-                case Opcodes.NEW_ARRAY:
+                case Opcodes.SEAL_VALUE_OBJ: 
                 case Opcodes.SEAL_ARRAY: 
                 
                 case Opcodes.LOAD_NULL:
@@ -361,13 +512,21 @@ public class Bytecode {
                     break;                
                 }
                 case Opcodes.ADD_FIELDK:
+                case Opcodes.ADD_VALUE_FIELDK:
                 case Opcodes.GET_FIELDK:
                 case Opcodes.GET_INPUT_FIELDK:
-                case Opcodes.LOAD_CONST: {
+                case Opcodes.LOAD_CONST:
+                case Opcodes.COPY_CONST: {
                     String argx = Integer.toString(Opcodes.ARGx(code));                                                         
                     sb.append(String.format(lineFormat4, opcode, argx, i, bytecode.constants[Opcodes.ARGx(code)]));
                     break;
                 }
+                case Opcodes.GET_PATH:
+                case Opcodes.GET_INPUT_PATH: {
+                    String argx = Integer.toString(Opcodes.ARGx(code));                                                         
+                    sb.append(String.format(lineFormat4, opcode, argx, i, String.join(".", bytecode.paths[Opcodes.ARGx(code)])));
+                    break;
+                }
                 
                 default: {
                     String argx = Integer.toString(Opcodes.ARGx(code));                                                         
@@ -408,8 +567,8 @@ public class Bytecode {
         out.writeInt(VERSION); /* the version */
         
         switch(VERSION) {
-            case 1: {
-                writeVersion1(out); /* notice the 2 */
+            case 4: {
+                writeVersion4(out); /* notice the 4 */
                 break;    
             }
             
@@ -420,11 +579,11 @@ public class Bytecode {
     }
 
     /**
-     * Writes out Version 2
+     * Writes out Version 4
      * @param out
      * @throws IOException
      */
-    private void writeVersion1(DataOutput out) throws IOException {                
+    private void writeVersion4(DataOutput out) throws IOException {                
         out.writeInt(this.len); /* length */
         for(int i = this.pc; i < this.len; i++) {
             out.writeInt(this.instr[i]);
@@ -435,7 +594,15 @@ public class Bytecode {
         if ( constants != null ) {
             out.writeInt(this.numConstants);
             for(int i = 0; i < this.numConstants; i++) {
-                if(constants[i].isNumber()) {
+                if(constants[i].isInt()) {
+                    out.writeByte(2); // 2 = Integer
+                    out.writeInt(constants[i].asInt());
+                }
+                else if(constants[i].isIntegralNumber()) {
+                    out.writeByte(3); // 3 = Long
+                    out.writeLong(constants[i].asLong());
+                }
+                else if(constants[i].isNumber()) {
                     out.writeByte(0); // 0 = Number
                     out.writeDouble(constants[i].asDouble());
                 }
@@ -444,7 +611,10 @@ public class Bytecode {
                     out.writeUTF(constants[i].asText());          
                 }
                 else {
-                    throw new Jslt2Exception("Illegal constant type: " + constants[i]);
+                    out.writeByte(4); // 4 = JSON, the constant objects and arrays
+                    byte[] json = JSON_MAPPER.writeValueAsBytes(constants[i]);
+                    out.writeInt(json.length);
+                    out.write(json);
                 }
             }
         }
@@ -452,6 +622,27 @@ public class Bytecode {
             out.writeInt(0);
         }
         
+        if ( paths != null ) {
+            out.writeInt(this.paths.length);
+            for(int i = 0; i < this.paths.length; i++) {
+                writeStrings(out, this.paths[i]);
+            }
+        }
+        else {
+            out.writeInt(0);
+        }
+        
+        if ( matchers != null ) {
+            out.writeInt(this.matchers.length);
+            for(int i = 0; i < this.matchers.length; i++) {
+                writeStrings(out, this.matchers[i].contextPath);
+                writeStrings(out, this.matchers[i].omittedFields);
+            }
+        }
+        else {
+            out.writeInt(0);
+        }
+        
         out.writeInt(this.flags);
         out.writeInt(this.numArgs);            
         out.writeInt(this.numOuters);
@@ -500,8 +691,11 @@ public class Bytecode {
         int version = in.readInt();
         Bytecode code = null;
         switch(version) {
-            case 1: {
-                code = readVersion1(env, in);
+            case 1: 
+            case 2: 
+            case 3: 
+            case 4: {
+                code = readVersion(env, in, version);
                 break;
             }
             default: {
@@ -513,19 +707,30 @@ public class Bytecode {
     }
     
     /**
-     * Reads Version 1
+     * Reads Version 1 to 4, version 2 adds the field paths, version 3 the object matchers and version 4 the
+     * constant objects and arrays
      * @param symbols
      * @param in
+     * @param version
      * @return
      * @throws IOException
      */
-    private static Bytecode readVersion1(JsonNode env, DataInput in) throws IOException {
+    private static Bytecode readVersion(JsonNode env, DataInput in, int version) throws IOException {
         int len = in.readInt();
         int[] instr = new int[len];
         for(int i = 0; i < len; i++) {
             instr[i] = in.readInt();
         }
         
+        if(version < 3) {
+            // the object matchers used to be resolved from the stack
+            for(int i = 0; i < len; i++) {
+                if(Opcodes.OPCODE(instr[i]) == Opcodes.MATCHER) {
+                    throw new IOException("Version " + version + " bytecode with object matchers is no longer supported, the template must be recompiled");
+                }
+            }
+        }
+        
         Bytecode result = new Bytecode(instr);
         result.maxstacksize = in.readInt();        
         
@@ -538,12 +743,49 @@ public class Bytecode {
                     break;
                 case 1: result.constants[i] = TextNode.valueOf(in.readUTF());
                     break;
+                case 2: result.constants[i] = IntNode.valueOf(in.readInt());
+                    break;
+                case 3: result.constants[i] = LongNode.valueOf(in.readLong());
+                    break;
+                case 4: {
+                    byte[] json = new byte[in.readInt()];
+                    in.readFully(json);
+                    result.constants[i] = JSON_MAPPER.readTree(json);
+                    break;
+                }
                 default: {
                     throw new Jslt2Exception("Illegal constant type: " + type);
                 }
             }
         }
         
+        result.stringConstants = new String[result.numConstants];
+        for(int i = 0; i < result.numConstants; i++) {
+            if(result.constants[i].isTextual()) {
+                result.stringConstants[i] = result.constants[i].asText().intern();
+            }
+        }
+        
+        result.functions = new Jslt2Function[result.numConstants];
+        
+        result.paths = ArrayUtil.EMPTY_PATHS;
+        if(version > 1) {
+            result.paths = new String[in.readInt()][];
+            for(int i = 0; i < result.paths.length; i++) {
+                result.paths[i] = readStrings(in);
+            }
+        }
+        
+        result.matchers = ArrayUtil.EMPTY_MATCHERS;
+        if(version > 2) {
+            result.matchers = new FieldMatcher[in.readInt()];
+            for(int i = 0; i < result.matchers.length; i++) {
+                String[] contextPath = readStrings(in);
+                String[] omittedFields = readStrings(in);
+                result.matchers[i] = new FieldMatcher(contextPath, omittedFields);
+            }
+        }
+        
         result.flags = in.readInt();
         result.numArgs = in.readInt();                
         result.numOuters = in.readInt();                
@@ -568,5 +810,21 @@ public class Bytecode {
         
         return result;
     }
+    
+    private static void writeStrings(DataOutput out, String[] strings) throws IOException {
+        out.writeInt(strings.length);
+        for(int i = 0; i < strings.length; i++) {
+            out.writeUTF(strings[i]);
+        }
+    }
+    
+    private static String[] readStrings(DataInput in) throws IOException {
+        String[] strings = new String[in.readInt()];
+        for(int i = 0; i < strings.length; i++) {
+            strings[i] = in.readUTF();
+        }
+        
+        return strings;
+    }
 
 }
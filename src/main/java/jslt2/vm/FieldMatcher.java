@@ -0,0 +1,114 @@
+/*
+ * see license.txt
+ */
+package jslt2.vm;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.NullNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import jslt2.util.Jslt2Util;
+
+/**
+ * The compiled form of an object matcher, i.e., <code>* - a, b : .</code>.  The path to the input object being
+ * matched and the omitted field names are resolved when the template is compiled, so matching an object only
+ * requires a field lookup per path element and a hash lookup per input field.
+ *
+ * @author Tony
+ *
+ */
+public class FieldMatcher {
+
+    /**
+     * The field names leading to the matched input object, outermost first
+     */
+    public final String[] contextPath;
+
+    /**
+     * The field names excluded from the match, in the order they were declared
+     */
+    public final String[] omittedFields;
+
+    private final Set<String> omitted;
+
+    /**
+     * @param contextPath
+     * @param omittedFields
+     */
+    public FieldMatcher(String[] contextPath, String[] omittedFields) {
+        this.contextPath = contextPath;
+        this.omittedFields = omittedFields;
+        this.omitted = new HashSet<>(Arrays.asList(omittedFields));
+    }
+
+    /**
+     * Resolves the input object to be matched
+     *
+     * @param input the input of the enclosing template
+     * @return the object to match against, or {@link NullNode} if the path doesn't exist
+     */
+    public JsonNode resolveContext(JsonNode input) {
+        if(!input.isObject()) {
+            return input;
+        }
+
+        for(int i = 0; i < this.contextPath.length; i++) {
+            input = input.get(this.contextPath[i]);
+            if(input == null) {
+                return NullNode.instance;
+            }
+        }
+
+        return input;
+    }
+
+    /**
+     * @param key
+     * @return true if the field is excluded from the match
+     */
+    public boolean isOmittedField(String key) {
+        return this.omittedFields.length > 0 && this.omitted.contains(key);
+    }
+
+    /**
+     * Copies the matched fields into the output object as they are.  This is used for the
+     * identity matcher, <code>* : .</code>, which doesn't require executing a value expression per field.
+     *
+     * @param outputObj the object being built
+     * @param input the input of the enclosing template
+     * @param stripNulls if the null and empty values should be stripped from the copied values
+     */
+    public void copyFields(ObjectNode outputObj, JsonNode input, boolean stripNulls) {
+        JsonNode context = resolveContext(input);
+        if(!context.isObject()) {
+            return;
+        }
+
+        Iterator<Map.Entry<String, JsonNode>> it = context.fields();
+        while(it.hasNext()) {
+            Map.Entry<String, JsonNode> next = it.next();
+            String key = next.getKey();
+            if(!outputObj.has(key) && !isOmittedField(key)) {
+                JsonNode value = next.getValue();
+                outputObj.set(key, stripNulls ? Jslt2Util.stripNullNodes(value) : value);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(".").append(String.join(".", this.contextPath)).append(" *");
+        if(this.omittedFields.length > 0) {
+            sb.append(" - ").append(String.join(", ", this.omittedFields));
+        }
+
+        return sb.toString();
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * see license.txt
+ */
+package jslt2.vm;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import jslt2.util.ArrayUtil;
+
+/**
+ * The cached results of the memoized template functions for a single evaluation, keyed by the function and the
+ * values of its arguments.  Each function keeps at most the configured number of results, the least recently used
+ * result is evicted first.
+ *
+ * <p>
+ * Only the calls whose arguments are all strings, numbers, booleans or nulls are cached.  The equality of
+ * objects ignores the order of their fields, which a function may observe, and hashing a large object or array on
+ * every call would cost more than most functions.
+ *
+ * @author Tony
+ *
+ */
+public class MemoCache {
+
+    private final int maxSize;
+    private final Map<Object, Map<List<JsonNode>, JsonNode>> results;
+
+    /**
+     * @param maxSize the maximum number of results cached per function
+     */
+    public MemoCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.results = new IdentityHashMap<>();
+    }
+
+    /**
+     * @param args
+     * @param offset the index of the first argument
+     * @param nargs the number of arguments
+     * @return a copy of the arguments to cache a call by, or null if the call can't be cached
+     */
+    public static JsonNode[] key(JsonNode[] args, int offset, int nargs) {
+        if(nargs == 0) {
+            return ArrayUtil.EMPTY_NODES;
+        }
+
+        for(int i = offset; i < offset + nargs; i++) {
+            JsonNode arg = args[i];
+            if(arg == null || !arg.isValueNode()) {
+                return null;
+            }
+        }
+
+        return Arrays.copyOfRange(args, offset, offset + nargs);
+    }
+
+    /**
+     * @param function the function called, by identity
+     * @param key the arguments, as returned by {@link #key(JsonNode[], int, int)}
+     * @return the cached result of the call, or null if not cached
+     */
+    public JsonNode get(Object function, JsonNode[] key) {
+        Map<List<JsonNode>, JsonNode> functionResults = this.results.get(function);
+        return functionResults != null ? functionResults.get(Arrays.asList(key)) : null;
+    }
+
+    /**
+     * Caches the result of the call
+     *
+     * @param function the function called, by identity
+     * @param key the arguments, as returned by {@link #key(JsonNode[], int, int)}
+     * @param result
+     */
+    public void put(Object function, JsonNode[] key, JsonNode result) {
+        if(result == null) {
+            return;
+        }
+
+        Map<List<JsonNode>, JsonNode> functionResults = this.results.get(function);
+        if(functionResults == null) {
+            functionResults = new LinkedHashMap<List<JsonNode>, JsonNode>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<List<JsonNode>, JsonNode> eldest) {
+                    return size() > maxSize;
+                }
+            };
+            this.results.put(function, functionResults);
+        }
+
+        functionResults.put(Arrays.asList(key), result);
+    }
+
+    /**
+     * Removes all of the cached results
+     */
+    public void clear() {
+        this.results.clear();
+    }
+}
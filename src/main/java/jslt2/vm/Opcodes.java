@@ -219,6 +219,42 @@ public class Opcodes {
                 op = "IFEQ";
                 break;
             }            
+            case IFNE:    {
+                op = "IFNE";
+                break;
+            }
+            case IF_CMPEQ: {
+                op = "IF_CMPEQ";
+                break;
+            }
+            case IF_CMPNE: {
+                op = "IF_CMPNE";
+                break;
+            }
+            case IF_CMPGT: {
+                op = "IF_CMPGT";
+                break;
+            }
+            case IF_CMPGE: {
+                op = "IF_CMPGE";
+                break;
+            }
+            case IF_CMPLT: {
+                op = "IF_CMPLT";
+                break;
+            }
+            case IF_CMPLE: {
+                op = "IF_CMPLE";
+                break;
+            }
+            case IFNULL: {
+                op = "IFNULL";
+                break;
+            }
+            case IFNONNULL: {
+                op = "IFNONNULL";
+                break;
+            }
 
             case NEW_ARRAY: {
                 op = "NEW_ARRAY";
@@ -254,6 +290,35 @@ public class Opcodes {
                 op = "GET_INPUT_FIELDK";
                 break;
             }
+            case GET_PATH: {
+                op = "GET_PATH";
+                break;
+            }
+            case GET_INPUT_PATH: {
+                op = "GET_INPUT_PATH";
+                break;
+            }
+            
+            case ADD_VALUE_FIELDK: {
+                op = "ADD_VALUE_FIELDK";
+                break;
+            }
+            case ADD_VALUE_FIELD: {
+                op = "ADD_VALUE_FIELD";
+                break;
+            }
+            case ADD_VALUE_ELEMENT: {
+                op = "ADD_VALUE_ELEMENT";
+                break;
+            }
+            case SEAL_VALUE_OBJ: {
+                op = "SEAL_VALUE_OBJ";
+                break;
+            }
+            case STRIP_NULLS: {
+                op = "STRIP_NULLS";
+                break;
+            }
             
             case ADD_FIELD: {
                 op = "ADD_FIELD";
@@ -288,10 +353,26 @@ public class Opcodes {
                 op = "MATCHER";
                 break;
             }
+            case COPY_MATCHER: {
+                op = "COPY_MATCHER";
+                break;
+            }
             case INVOKE:    {        
                 op = "INVOKE";
                 break;
             }
+            case TAIL_INVOKE: {
+                op = "TAIL_INVOKE";
+                break;
+            }
+            case COPY_CONST: {
+                op = "COPY_CONST";
+                break;
+            }
+            case IFEMPTY: {
+                op = "IFEMPTY";
+                break;
+            }
             case USER_INVOKE: {
                 op = "USER_INVOKE";
                 break;
@@ -360,6 +441,111 @@ public class Opcodes {
                 break;
             }
 
+            case CONCAT: {
+                op = "CONCAT";
+                break;
+            }
+            
+            /* quickened instructions */
+            case ADD_LONG: {
+                op = "ADD_LONG";
+                break;
+            }
+            case ADD_DOUBLE: {
+                op = "ADD_DOUBLE";
+                break;
+            }
+            case ADD_STR: {
+                op = "ADD_STR";
+                break;
+            }
+            case SUB_LONG: {
+                op = "SUB_LONG";
+                break;
+            }
+            case SUB_DOUBLE: {
+                op = "SUB_DOUBLE";
+                break;
+            }
+            case MUL_LONG: {
+                op = "MUL_LONG";
+                break;
+            }
+            case MUL_DOUBLE: {
+                op = "MUL_DOUBLE";
+                break;
+            }
+            case GT_NUM: {
+                op = "GT_NUM";
+                break;
+            }
+            case GTE_NUM: {
+                op = "GTE_NUM";
+                break;
+            }
+            case LT_NUM: {
+                op = "LT_NUM";
+                break;
+            }
+            case LTE_NUM: {
+                op = "LTE_NUM";
+                break;
+            }
+            case IF_CMPGT_NUM: {
+                op = "IF_CMPGT_NUM";
+                break;
+            }
+            case IF_CMPGE_NUM: {
+                op = "IF_CMPGE_NUM";
+                break;
+            }
+            case IF_CMPLT_NUM: {
+                op = "IF_CMPLT_NUM";
+                break;
+            }
+            case IF_CMPLE_NUM: {
+                op = "IF_CMPLE_NUM";
+                break;
+            }
+            
+            /* register instructions */
+            case ADD_RK: {
+                op = "ADD_RK";
+                break;
+            }
+            case SUB_RK: {
+                op = "SUB_RK";
+                break;
+            }
+            case MUL_RK: {
+                op = "MUL_RK";
+                break;
+            }
+            case DIV_RK: {
+                op = "DIV_RK";
+                break;
+            }
+            case MOD_RK: {
+                op = "MOD_RK";
+                break;
+            }
+            case GET_LOCAL_FIELDK: {
+                op = "GET_LOCAL_FIELDK";
+                break;
+            }
+            case GET_LOCAL_PATH: {
+                op = "GET_LOCAL_PATH";
+                break;
+            }
+            case COPY_INPUT_FIELDK: {
+                op = "COPY_INPUT_FIELDK";
+                break;
+            }
+            case COPY_INPUT_VALUE_FIELDK: {
+                op = "COPY_INPUT_VALUE_FIELDK";
+                break;
+            }
+
             case PIPE:    {
                 op = "PIPE";
                 break;
@@ -406,9 +592,9 @@ public class Opcodes {
         
         
         /* value creation */
-        NEW_ARRAY  = 14,              /*       */
+        NEW_ARRAY  = 14,              /* ARGx  */
         SEAL_ARRAY = 15,
-        NEW_OBJ    = 16,              /*       */
+        NEW_OBJ    = 16,              /* ARGx  */
         SEAL_OBJ   = 17,
         
         ADD_FIELDK   = 18,            /* ARGx  */
@@ -459,9 +645,103 @@ public class Opcodes {
         PIPE = 49,                    /* ARGx */
         
         /* debug */
-        LINE = 50                     /* ARGx */
+        LINE = 50,                    /* ARGx */
+        
+        /* fused member access */
+        GET_PATH       = 51,          /* ARGx */
+        GET_INPUT_PATH = 52,          /* ARGx */
+        
+        /* value creation which omits null and empty values */
+        ADD_VALUE_FIELDK  = 53,       /* ARGx */
+        ADD_VALUE_FIELD   = 54,       /*      */
+        ADD_VALUE_ELEMENT = 55,       /*      */
+        SEAL_VALUE_OBJ    = 56,       /*      */
+        STRIP_NULLS       = 57,       /*      */
+        
+        /* object matcher whose value is the matched field itself, i.e., * : . */
+        COPY_MATCHER      = 58,       /* ARG1, ARG2 */
+        
+        /* fused conditional jumps, which don't create a boolean value for the condition */
+        IFNE      = 59,               /* ARGsx */
+        IF_CMPEQ  = 60,               /* ARGsx */
+        IF_CMPNE  = 61,               /* ARGsx */
+        IF_CMPGT  = 62,               /* ARGsx */
+        IF_CMPGE  = 63,               /* ARGsx */
+        IF_CMPLT  = 64,               /* ARGsx */
+        IF_CMPLE  = 65,               /* ARGsx */
+        IFNULL    = 66,               /* ARGsx */
+        IFNONNULL = 67,               /* ARGsx */
+        
+        /* string concatenation of the ARGx values on the top of the stack */
+        CONCAT    = 68,               /* ARGx */
+        
+        /* quickened instructions, the VM rewrites the generic ones into these once it observes the 
+         * operand types, they fall back to the generic instruction if the types change */
+        ADD_LONG     = 69,            /*      */
+        ADD_DOUBLE   = 70,            /*      */
+        ADD_STR      = 71,            /*      */
+        SUB_LONG     = 72,            /*      */
+        SUB_DOUBLE   = 73,            /*      */
+        MUL_LONG     = 74,            /*      */
+        MUL_DOUBLE   = 75,            /*      */
+        GT_NUM       = 76,            /*      */
+        GTE_NUM      = 77,            /*      */
+        LT_NUM       = 78,            /*      */
+        LTE_NUM      = 79,            /*      */
+        IF_CMPGT_NUM = 80,            /* ARGsx */
+        IF_CMPGE_NUM = 81,            /* ARGsx */
+        IF_CMPLT_NUM = 82,            /* ARGsx */
+        IF_CMPLE_NUM = 83,            /* ARGsx */
+        
+        /* register instructions, emitted in place of a sequence of stack instructions if enabled by 
+         * Jslt2.Builder#registerInstructions.  The operands are addressed as RK values: a local 
+         * (register) or, if RK_CONST is set, a constant */
+        ADD_RK    = 84,               /* ARG1 ARG2 */
+        SUB_RK    = 85,               /* ARG1 ARG2 */
+        MUL_RK    = 86,               /* ARG1 ARG2 */
+        DIV_RK    = 87,               /* ARG1 ARG2 */
+        MOD_RK    = 88,               /* ARG1 ARG2 */
+        GET_LOCAL_FIELDK = 89,        /* ARG1 ARG2 */
+        GET_LOCAL_PATH   = 90,        /* ARG1 ARG2 */
+        COPY_INPUT_FIELDK       = 91, /* ARG1 ARG2 */
+        COPY_INPUT_VALUE_FIELDK = 92, /* ARG1 ARG2 */
+        
+        /* a call of a template function in tail position, the callee replaces the calling frame */
+        TAIL_INVOKE  = 93,            /* ARG1, ARG2 */
+        
+        /* loads a copy of a constant object or array, the constant itself is shared by the evaluations */
+        COPY_CONST   = 94,            /* ARGx */
+        
+        /* jumps if the value on the top of the stack has no elements to iterate over, the value is left on the stack */
+        IFEMPTY      = 95             /* ARGsx */
         ;
     
+    /**
+     * Marks an RK operand as an index into the constants rather than the locals
+     */
+    public static final int RK_CONST = 1 << (ARG1_SIZE - 1);
+    
+    /**
+     * The largest local or constant index an RK operand can address
+     */
+    public static final int MAX_RK_INDEX = RK_CONST - 1;
+    
+    /**
+     * @param rk
+     * @return true if the RK operand addresses a constant
+     */
+    public static final boolean ISK(int rk) {
+        return (rk & RK_CONST) != 0;
+    }
+    
+    /**
+     * @param rk
+     * @return the local or constant index of the RK operand
+     */
+    public static final int INDEXK(int rk) {
+        return rk & MAX_RK_INDEX;
+    }
+    
     
     private static final Map<String, Integer> opcodes = new HashMap<String, Integer>();
     static {                        
@@ -483,6 +763,15 @@ public class Opcodes {
 
         opcodes.put("JMP", JMP);
         opcodes.put("IFEQ", IFEQ);
+        opcodes.put("IFNE", IFNE);
+        opcodes.put("IF_CMPEQ", IF_CMPEQ);
+        opcodes.put("IF_CMPNE", IF_CMPNE);
+        opcodes.put("IF_CMPGT", IF_CMPGT);
+        opcodes.put("IF_CMPGE", IF_CMPGE);
+        opcodes.put("IF_CMPLT", IF_CMPLT);
+        opcodes.put("IF_CMPLE", IF_CMPLE);
+        opcodes.put("IFNULL", IFNULL);
+        opcodes.put("IFNONNULL", IFNONNULL);
         
         opcodes.put("NEW_ARRAY", NEW_ARRAY);
         opcodes.put("SEAL_ARRAY", SEAL_ARRAY);
@@ -494,19 +783,31 @@ public class Opcodes {
         opcodes.put("GET_FIELD", GET_FIELD);
         opcodes.put("GET_ARRAY_ELEMENT", GET_ARRAY_ELEMENT);
         opcodes.put("GET_INPUT_FIELDK", GET_INPUT_FIELDK);
+        opcodes.put("GET_PATH", GET_PATH);
+        opcodes.put("GET_INPUT_PATH", GET_INPUT_PATH);
         
         opcodes.put("ADD_FIELD", ADD_FIELD);
         opcodes.put("ADD_FIELDK", ADD_FIELDK);
         opcodes.put("ADD_ELEMENT", ADD_ELEMENT);
         
+        opcodes.put("ADD_VALUE_FIELDK", ADD_VALUE_FIELDK);
+        opcodes.put("ADD_VALUE_FIELD", ADD_VALUE_FIELD);
+        opcodes.put("ADD_VALUE_ELEMENT", ADD_VALUE_ELEMENT);
+        opcodes.put("SEAL_VALUE_OBJ", SEAL_VALUE_OBJ);
+        opcodes.put("STRIP_NULLS", STRIP_NULLS);
+        
         opcodes.put("ARRAY_SLICE", ARRAY_SLICE);
         opcodes.put("FOR_ARRAY_DEF", FOR_ARRAY_DEF);
         opcodes.put("FOR_OBJ_DEF", FOR_OBJ_DEF);
         
         opcodes.put("FUNC_DEF", FUNC_DEF);
         opcodes.put("MATCHER", MATCHER);
+        opcodes.put("COPY_MATCHER", COPY_MATCHER);
                         
         opcodes.put("INVOKE", INVOKE);
+        opcodes.put("TAIL_INVOKE", TAIL_INVOKE);
+        opcodes.put("COPY_CONST", COPY_CONST);
+        opcodes.put("IFEMPTY", IFEMPTY);
         opcodes.put("USER_INVOKE", USER_INVOKE);
 
         opcodes.put("ASYNC", ASYNC);
@@ -529,6 +830,34 @@ public class Opcodes {
         opcodes.put("LT", LT);
         opcodes.put("LTE", LTE);
         
+        opcodes.put("CONCAT", CONCAT);
+        
+        opcodes.put("ADD_LONG", ADD_LONG);
+        opcodes.put("ADD_DOUBLE", ADD_DOUBLE);
+        opcodes.put("ADD_STR", ADD_STR);
+        opcodes.put("SUB_LONG", SUB_LONG);
+        opcodes.put("SUB_DOUBLE", SUB_DOUBLE);
+        opcodes.put("MUL_LONG", MUL_LONG);
+        opcodes.put("MUL_DOUBLE", MUL_DOUBLE);
+        opcodes.put("GT_NUM", GT_NUM);
+        opcodes.put("GTE_NUM", GTE_NUM);
+        opcodes.put("LT_NUM", LT_NUM);
+        opcodes.put("LTE_NUM", LTE_NUM);
+        opcodes.put("IF_CMPGT_NUM", IF_CMPGT_NUM);
+        opcodes.put("IF_CMPGE_NUM", IF_CMPGE_NUM);
+        opcodes.put("IF_CMPLT_NUM", IF_CMPLT_NUM);
+        opcodes.put("IF_CMPLE_NUM", IF_CMPLE_NUM);
+        
+        opcodes.put("ADD_RK", ADD_RK);
+        opcodes.put("SUB_RK", SUB_RK);
+        opcodes.put("MUL_RK", MUL_RK);
+        opcodes.put("DIV_RK", DIV_RK);
+        opcodes.put("MOD_RK", MOD_RK);
+        opcodes.put("GET_LOCAL_FIELDK", GET_LOCAL_FIELDK);
+        opcodes.put("GET_LOCAL_PATH", GET_LOCAL_PATH);
+        opcodes.put("COPY_INPUT_FIELDK", COPY_INPUT_FIELDK);
+        opcodes.put("COPY_INPUT_VALUE_FIELDK", COPY_INPUT_VALUE_FIELDK);
+        
         opcodes.put("PIPE", PIPE);
         
         opcodes.put("LINE", LINE);
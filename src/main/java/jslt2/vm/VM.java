@@ -7,9 +7,13 @@ import static jslt2.vm.Opcodes.*;
 import static jslt2.vm.Bytecode.GLOBAL_FLAG;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.WeakHashMap;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.*;
@@ -33,6 +37,11 @@ public class VM {
      */
     public static final int DEFAULT_STACKSIZE = 128;
     
+    /**
+     * Shared outers for {@link Bytecode} that doesn't capture any values
+     */
+    private static final JsonNode[] EMPTY_OUTERS = new JsonNode[0];
+    
     private Jslt2 runtime;
     
     /* Value stacks 
@@ -51,7 +60,92 @@ public class VM {
      * The maximum stack size
      */
     private final int maxStackSize;
+    
+    /**
+     * If the arithmetic and comparison instructions are specialized to the observed operand types
+     */
+    private final boolean quickening;
+    
+    /**
+     * The quickened copies of the instructions this {@link VM} has executed, by their {@link Bytecode}.  Each 
+     * {@link VM} specializes its own copy, so the {@link Bytecode} shared between threads is never modified.  The 
+     * copies are kept across executions, until the {@link Bytecode} is no longer referenced
+     */
+    private final Map<Bytecode, QuickCode> quickened;
     private Async async;
+    
+    /**
+     * The captured outers of the functions defined (FUNC_DEF) during
+     * an execution.  These are kept in the {@link VM} rather than in the 
+     * {@link Bytecode} so that the compiled {@link Bytecode} can be shared 
+     * between threads
+     */
+    private Map<Bytecode, JsonNode[]> functionOuters;
+    
+    /**
+     * The results of the memoized functions during an execution, or null if disabled
+     */
+    private MemoCache memoCache;
+    
+    /**
+     * The kinds of {@link Frame}, which determine what is done with the result of a frame once it returns 
+     */
+    private static final int CALL_FRAME       = 0,
+                             FOR_ARRAY_FRAME  = 1,
+                             FOR_OBJECT_FRAME = 2,
+                             MATCHER_FRAME    = 3;
+    
+    /**
+     * A copy of the instructions of a {@link Bytecode}, whose arithmetic and comparison instructions are 
+     * rewritten to the ones specialized for the observed operand types
+     */
+    private static final class QuickCode {
+        final int[] instr;
+        
+        /* the instructions whose specialization observed other operand types, these are left generic */
+        final BitSet polymorphic;
+        
+        QuickCode(Bytecode code) {
+            this.instr = Arrays.copyOf(code.instr, code.instr.length);
+            this.polymorphic = new BitSet(code.len);
+        }
+    }
+    
+    /**
+     * An activation of a {@link Bytecode}.  The dispatch loop holds the state of the executing frame in its locals, 
+     * the frame keeps it while a nested frame executes.  The frame of a for body or a matcher also holds the state of 
+     * the iteration, it is reentered once per element.
+     */
+    private static final class Frame {
+        int kind;
+        Bytecode code;
+        QuickCode quick;
+        JsonNode[] outers;
+        int base;
+        int pc;
+        int lineNumber;
+        JsonNode input;
+        
+        /* the iteration of a for body or a matcher */
+        Iterator<Map.Entry<String, JsonNode>> fields;
+        ArrayNode elements;
+        int index;
+        ContainerNode<?> result;
+        
+        FieldMatcher matcher;
+        ObjectNode outputObj;
+        String key;
+        
+        /* the memoized call whose result is cached once the frame returns */
+        Bytecode memoCode;
+        JsonNode[] memoKey;
+    }
+    
+    /*frame stack
+     */
+    private Frame[] frames;
+    
+    private int depth;
        
     public VM(Jslt2 runtime) {
         this(runtime, runtime.getMinStackSize() <= 0 
@@ -63,9 +157,24 @@ public class VM {
      * @param stackSize - starting stack size
      */
     public VM(Jslt2 runtime, int stackSize) {
+        this(runtime, stackSize, new IdentityHashMap<>());
+    }
+    
+    /**
+     * @param runtime
+     * @param functionOuters - the captured outers of the defined functions
+     */
+    VM(Jslt2 runtime, Map<Bytecode, JsonNode[]> functionOuters) {
+        this(runtime, runtime.getMinStackSize() <= 0 
+                ? DEFAULT_STACKSIZE : runtime.getMinStackSize(), functionOuters);
+    }
+    
+    private VM(Jslt2 runtime, int stackSize, Map<Bytecode, JsonNode[]> functionOuters) {
         this.runtime = runtime;
 
         this.maxStackSize = Math.max(runtime.getMaxStackSize(), stackSize);
+        this.quickening = runtime.isQuickening();
+        this.quickened = this.quickening ? new WeakHashMap<>() : null;
         
         this.objectStack = new Stack<>();
         this.arrayStack  = new Stack<>();
@@ -73,7 +182,69 @@ public class VM {
         this.stack = new JsonNode[stackSize];
         this.top = 0;   
         
-        this.async = new Async(runtime);
+        this.frames = new Frame[16];
+        this.depth = -1;
+        
+        this.functionOuters = functionOuters;
+        this.async = new Async(runtime, functionOuters);
+        
+        if(runtime.getMemoCacheSize() > 0) {
+            this.memoCache = new MemoCache(runtime.getMemoCacheSize());
+        }
+    }
+    
+    /**
+     * Clears out any state left over from a previous execution, so that
+     * this {@link VM} can be reused.  This includes an execution which failed 
+     * part way through, leaving values on the stacks
+     */
+    public void reset() {
+        this.functionOuters.clear();
+        if(this.memoCache != null) {
+            this.memoCache.clear();
+        }
+        
+        while(this.depth >= 0) {
+            popFrame();
+        }
+        
+        Arrays.fill(this.stack, 0, this.top, null);
+        this.top = 0;
+        
+        this.objectStack.clear();
+        this.arrayStack.clear();
+    }
+    
+    /**
+     * @return the {@link Jslt2} runtime
+     */
+    public Jslt2 getRuntime() {
+        return this.runtime;
+    }
+    
+    /**
+     * @return the results of the memoized functions during the current execution, or null if disabled
+     */
+    public MemoCache getMemoCache() {
+        return this.memoCache;
+    }
+    
+    /**
+     * Binds the captured outers of a defined function (FUNC_DEF)
+     * 
+     * @param funcCode
+     * @param outers
+     */
+    public void defineFunction(Bytecode funcCode, JsonNode[] outers) {
+        this.functionOuters.put(funcCode, outers);
+    }
+    
+    /**
+     * @param funcCode
+     * @return the captured outers of the defined function, or null if not defined
+     */
+    public JsonNode[] getFunctionOuters(Bytecode funcCode) {
+        return this.functionOuters.get(funcCode);
     }
 
     /**
@@ -85,784 +256,1450 @@ public class VM {
      * @throws Jslt2Exception
      */
     public JsonNode execute(Bytecode code, JsonNode input) throws Jslt2Exception {
+        JsonNode[] outers = code.numOuters > 0 ? this.functionOuters.get(code) : null;
+        return execute(code, outers, input);
+    }
+    
+    /**
+     * Executes the supplied {@link Bytecode} with the captured outers and the {@link JsonNode} input
+     * 
+     * @param code the bytecode to execute
+     * @param outers the captured outer values
+     * @param input the json input
+     * @return the json output
+     * @throws Jslt2Exception
+     */
+    JsonNode execute(Bytecode code, JsonNode[] outers, JsonNode input) throws Jslt2Exception {
         final int base = top;
         prepareStack(code);        
         
-        return executeStackFrame(code, base, input);        
+        return executeStackFrame(code, outers, base, input);        
     }
+    
+    /**
+     * Executes the template function with the arguments, as an INVOKE would.  The code compiled by the 
+     * {@link jslt2.vm.jit.JitCompiler} hands a deep recursion over to the {@link VM}, which keeps its frames on the heap
+     * 
+     * @param funcCode the bytecode of the function
+     * @param input the json input
+     * @param args the arguments, which are assigned to the first locals
+     * @return the result of the function
+     * @throws Jslt2Exception
+     */
+    public JsonNode invoke(Bytecode funcCode, JsonNode input, JsonNode[] args) throws Jslt2Exception {
+        final int base = top;
+        prepareStack(funcCode);
         
-    private JsonNode executeStackFrame(Bytecode code, int base, JsonNode input) throws Jslt2Exception {
-        executeBytecode(code, base, input);
+        int nargs = args != null ? Math.min(args.length, funcCode.numLocals) : 0;
+        for(int j = 0; j < nargs; j++) {
+            stack[base + j] = args[j];
+        }
         
-        JsonNode result = stack[--top];
+        JsonNode[] outers = funcCode.numOuters > 0 ? this.functionOuters.get(funcCode) : null;
+        return executeStackFrame(funcCode, outers, base, input);
+    }
         
-        exitCall(code, base);        
-        return result;
+    private JsonNode executeStackFrame(Bytecode code, JsonNode[] outers, int base, JsonNode input) throws Jslt2Exception {
+        final int entryDepth = this.depth;
+        pushFrame(CALL_FRAME, code, outers, base, input);
+        
+        return executeBytecode(entryDepth);
     }
     
-    private void executeBytecode(Bytecode code, int base, JsonNode input) throws Jslt2Exception {
-        final int[] instr = code.instr;
-        final int len = code.len;
-        int pc = code.pc;
+    /**
+     * Executes the frames above the entry depth, until the frame pushed by executeStackFrame returns.  A call, pipe,
+     * for body or matcher pushes its frame and continues in this dispatch loop, rather than recursing into it, so the 
+     * depth of the template recursion isn't bound by the Java stack.
+     * 
+     * @param entryDepth the depth of the frame stack below the entry frame
+     * @return the result of the entry frame
+     * @throws Jslt2Exception
+     */
+    private JsonNode executeBytecode(final int entryDepth) throws Jslt2Exception {
+        Bytecode code = null;
+        int lineNumber = -1;
+        
+        try {
+            frames:
+            for(;;) {
+                final Frame frame = this.frames[this.depth];
+                
+                code = frame.code;
+                lineNumber = frame.lineNumber;
+                
+                final QuickCode quick = frame.quick;
+                final int[] instr = quick != null ? quick.instr : code.instr;
+                final int len = code.len;
+                int pc = frame.pc;
+        
+                final JsonNode[] constants = code.constants;
+                final String[] strings = code.stringConstants;
+                final Bytecode[] inner = code.inner;
+                final JsonNode[] calleeouters = frame.outers;
+                final int base = frame.base;
+                final JsonNode input = frame.input;
+                
+                while(pc < len) {
+                    int i = instr[pc++];
+                    int opcode =  i & 255; //OPCODE(i);
+
+                    switch(opcode) {
+                        case LINE: {
+                            lineNumber = ARGx(i);
+                            break;
+                        }
+                        case NEW_OBJ: {
+                            this.objectStack.push(this.runtime.newObjectNode(ARGx(i)));
+                            break;     
+                        }
+                        case SEAL_OBJ: {
+                            stack[top++] = this.objectStack.pop();
+                            break;
+                        }
+                        
+                        case NEW_ARRAY: {
+                            this.arrayStack.push(this.runtime.newArrayNode(ARGx(i)));
+                            break;       
+                        }
+                        case SEAL_ARRAY: {
+                            stack[top++] = this.arrayStack.pop();
+                            break;
+                        }
+                        
+                        case ADD_FIELDK: {                       
+                            ObjectNode obj = this.objectStack.peek();
+                            
+                            int iname = ARGx(i);
+                            String fieldName = strings[iname];
+                            
+                            obj.set(fieldName, stack[--top]);                        
+                            break;
+                        }
+                        case ADD_FIELD: {
+                            ObjectNode obj = this.objectStack.peek();
+                            
+                            JsonNode value = stack[--top];
+                            JsonNode index = stack[--top];
+                            
+                            obj.set(index.asText(), value);
+                            break;
+                        }
+                        case ADD_ELEMENT: {
+                            ArrayNode array = this.arrayStack.peek();                        
+                            array.add(stack[--top]);                        
+                            break;
+                        }
+                        case ADD_VALUE_FIELDK: {
+                            JsonNode value = stack[--top];
+                            if(Jslt2Util.isValue(value)) {
+                                this.objectStack.peek().set(strings[ARGx(i)], value);
+                            }
+                            break;
+                        }
+                        case ADD_VALUE_FIELD: {
+                            JsonNode value = stack[--top];
+                            JsonNode index = stack[--top];
+                            if(Jslt2Util.isValue(value)) {
+                                this.objectStack.peek().set(index.asText(), value);
+                            }
+                            break;
+                        }
+                        case ADD_VALUE_ELEMENT: {
+                            JsonNode value = stack[--top];
+                            if(Jslt2Util.isValue(value)) {
+                                this.arrayStack.peek().add(value);
+                            }
+                            break;
+                        }
+                        case SEAL_VALUE_OBJ: {
+                            stack[top++] = Jslt2Util.removeEmptyFields(this.objectStack.pop());
+                            break;
+                        }
+                        case STRIP_NULLS: {
+                            stack[top - 1] = Jslt2Util.stripNullNodes(stack[top - 1]);
+                            break;
+                        }
+                        
+                        case GET_FIELDK: {
+                            int iname = ARGx(i);                        
+                            String fieldName = strings[iname];
+                            JsonNode obj = stack[--top];
 
-        final JsonNode[] constants = code.constants;
-        final Bytecode[] inner = code.inner;
+                            JsonNode value = obj.get(fieldName);
+                            if(value == null) {
+                                value = NullNode.instance;
+                            }
+                                                    
+                            stack[top++] = value;
+                            break;
+                        }     
+                        case GET_FIELD: {                                     
+                            JsonNode index = stack[--top];
+                            JsonNode obj = stack[--top];
+
+                            JsonNode value = obj.get(index.asText());
+                            if(value == null) {
+                                value = NullNode.instance;
+                            }
+                            
+                            stack[top++] = value;
+                            break;
+                        } 
+                        case GET_ARRAY_ELEMENT: {                                     
+                            JsonNode index = stack[--top];
+                            JsonNode obj = stack[--top];
+
+                            JsonNode value = null;
+                            if(obj.isTextual()) {
+                                value = new TextNode("" + obj.asText().charAt(index.intValue()));
+                            }
+                            else {
+                                value = obj.get(index.asInt());
+                                if(value == null) {
+                                    value = NullNode.instance;
+                                }
+                            }
+                            
+                            stack[top++] = value;
+                            break;
+                        }
+                        case GET_INPUT_FIELDK: {
+                            int iname = ARGx(i);                        
+                            String fieldName = strings[iname];
+                            JsonNode value = input.get(fieldName);
+                            if(value == null) {
+                                value = NullNode.instance;
+                            }
+                                                    
+                            stack[top++] = value;
+                            break;
+                        }     
+                        case GET_PATH: {
+                            JsonNode obj = stack[--top];
+                            stack[top++] = Jslt2Util.getPath(obj, code.paths[ARGx(i)]);
+                            break;
+                        }
+                        case GET_INPUT_PATH: {
+                            stack[top++] = Jslt2Util.getPath(input, code.paths[ARGx(i)]);
+                            break;
+                        }
+                        case ARRAY_SLICE: {
+                            JsonNode end = stack[--top];
+                            JsonNode start = stack[--top];
+                            JsonNode array = stack[--top];
+                            
+                            stack[top++] = arraySlice(array, start, end);
+                            break;
+                        }
+                        case ASYNC: {
+                            pc += executeAsync(code, ARGx(i), calleeouters, base, pc, input);
+                            break;
+                        }
+                        case AWAIT: {
+                            async.await();
+                            break;
+                        }
+                        case COPY_MATCHER: {
+                            code.matchers[ARG1(i)].copyFields(this.objectStack.peek(), input, ARG2(i) != 0);
+                            break;
+                        }
+                        
+                        case LOAD_CONST: {
+                            int iname = ARGx(i);
+                            stack[top++] = constants[iname];
+                            break;
+                        }
+                        case COPY_CONST: {
+                            int iname = ARGx(i);
+                            stack[top++] = constants[iname].deepCopy();
+                            break;
+                        }
+                        case LOAD_LOCAL: {
+                            int iname = ARGx(i);
+                            stack[top++] = stack[base + iname];
+                            break;
+                        }
+                        case LOAD_OUTER: {
+                            int iname = ARGx(i);
+                            stack[top++] = calleeouters[iname];
+                            break;
+                        }
+                        case LOAD_JNULL: {
+                            stack[top++] = null;
+                            break;
+                        }
+                        case LOAD_NULL: {
+                            stack[top++] = NullNode.instance;
+                            break;
+                        }
+                        case LOAD_TRUE: {
+                            stack[top++] = BooleanNode.TRUE;
+                            break;
+                        }
+                        case LOAD_FALSE: {
+                            stack[top++] = BooleanNode.FALSE;
+                            break;
+                        }
+                        case LOAD_INPUT: {                        
+                            stack[top++] = input;
+                            break;
+                        }
+                        case STORE_LOCAL: {
+                            int iname = ARGx(i);
+                            stack[base + iname] = stack[--top];
+                            break;
+                        }
+
+                        case JMP:    {
+                            int pos = ARGsx(i);
+                            pc += pos;
+                            break;
+                        }
+                        case IFEQ:    {
+                            JsonNode cond = stack[--top];
+                            if (!Jslt2Util.isTrue(cond)) {
+                                int pos = ARGsx(i);
+                                pc += pos;
+                            }
+                            break;
+                        }
+                        case IFNE:    {
+                            JsonNode cond = stack[--top];
+                            if (Jslt2Util.isTrue(cond)) {
+                                pc += ARGsx(i);
+                            }
+                            break;
+                        }
+                        case IF_CMPEQ:
+                        case IF_CMPNE: {
+                            JsonNode r = stack[--top];
+                            JsonNode l = stack[--top];
+                            if (Jslt2Util.equals(l, r) == (opcode == IF_CMPEQ)) {
+                                pc += ARGsx(i);
+                            }
+                            break;
+                        }
+                        case IF_CMPGT:
+                        case IF_CMPGE:
+                        case IF_CMPLT:
+                        case IF_CMPLE: {
+                            if(quick != null) quicken(quick, pc - 1, stack[top - 2], stack[top - 1]);
+                            JsonNode r = stack[--top];
+                            JsonNode l = stack[--top];
+                            if (compared(opcode - IF_CMPGT, Jslt2Util.compare(l, r))) {
+                                pc += ARGsx(i);
+                            }
+                            break;
+                        }
+                        case IFNULL:
+                        case IFNONNULL: {
+                            JsonNode value = stack[--top];
+                            if (value.isNull() == (opcode == IFNULL)) {
+                                pc += ARGsx(i);
+                            }
+                            break;
+                        }
+                        case IFEMPTY: {
+                            JsonNode value = stack[top - 1];
+                            if (!value.isContainerNode() || value.size() == 0) {
+                                pc += ARGsx(i);
+                            }
+                            break;
+                        }
+                        
+                        case INVOKE:
+                        case PIPE:
+                        case FOR_ARRAY_DEF:
+                        case FOR_OBJ_DEF:
+                        case MATCHER: {
+                            frame.pc = pc;
+                            frame.lineNumber = lineNumber;
+                            if(enterFrame(frame, opcode, i)) {
+                                continue frames;
+                            }
+                            pc = frame.pc;
+                            break;
+                        }
+                        case FUNC_DEF: {
+                            int innerIndex = ARGx(i);
+                            Bytecode funcCode = inner[innerIndex];
+                            
+                            if(funcCode.numOuters > 0) {
+                                JsonNode[] outers = newOuters(funcCode.numOuters);
+                                pc += assignOuters(outers, calleeouters, funcCode.numOuters, base, pc, code);
+                                
+                                this.functionOuters.put(funcCode, outers);
+                            }
+                            break;
+                        }
+                        case TAIL_INVOKE: {
+                            tailInvoke(frame, i);
+                            continue frames;
+                        }
+                        case USER_INVOKE: {
+                            int nargs = ARG1(i);
+                            int constIndex = ARG2(i);
+                            
+                            Jslt2Function function = code.functions[constIndex];
+                            if(function == null) {
+                                function = lookupFunction(code, constIndex, nargs);
+                            }
+                            
+                            JsonNode c = null;
+                            if(nargs <= 3) {
+                                JsonNode arg2 = nargs > 2 ? stack[--top] : null;
+                                JsonNode arg1 = nargs > 1 ? stack[--top] : null;
+                                JsonNode arg0 = nargs > 0 ? stack[--top] : null;
+                                
+                                c = Jslt2Util.invoke(function, input, nargs, arg0, arg1, arg2);
+                            }
+                            else {
+                                JsonNode[] args = readArrayFromStack(nargs, stack);
+                                c = function.execute(input, args);
+                            }
+                            
+                            stack[top++] = c;
+                            break;
+                        }
+                        case MACRO_INVOKE: {
+                            JsonNode c = executeMacro(code, i, input);
+                            stack[top++] = c;
+                            break;
+                        }
+                        
+                        /* arithmetic operators */
+                        case ADD:    {
+                            if(quick != null) quicken(quick, pc - 1, stack[top - 2], stack[top - 1]);
+                            JsonNode r = stack[--top];
+                            JsonNode l = stack[--top];
+                            stack[top++] = add(l, r);
+                            break;
+                        }
+                        case SUB:    {
+                            if(quick != null) quicken(quick, pc - 1, stack[top - 2], stack[top - 1]);
+                            JsonNode r = stack[--top];
+                            JsonNode l = stack[--top];
+                            stack[top++] = sub(l, r);
+                            break;
+                        }
+                        case MUL:    {
+                            if(quick != null) quicken(quick, pc - 1, stack[top - 2], stack[top - 1]);
+                            JsonNode r = stack[--top];
+                            JsonNode l = stack[--top];
+                            stack[top++] = mul(l, r);
+                            break;
+                        }
+                        case DIV:    {
+                            JsonNode r = stack[--top];
+                            JsonNode l = stack[--top];
+                            stack[top++] = div(l, r);
+                            break;
+                        }
+                        case MOD:    {
+                            JsonNode r = stack[--top];
+                            JsonNode l = stack[--top];
+                            stack[top++] = mod(l, r);
+                            break;
+                        }
+                        case NEG:    {
+                            JsonNode l = stack[--top];
+                            JsonNode c = null;
+                            if(l.isNull()) {
+                                c = NullNode.instance;
+                            }
+                            else if(l.isIntegralNumber()) {
+                                c = new LongNode(-l.asLong());
+                            }
+                            else {
+                                c = new DoubleNode(-l.asDouble());
+                            }
+                            stack[top++] = c;
+                            break;
+                        }
+                        
+                        case NOT:    {
+                            JsonNode l = stack[--top];
+                            JsonNode c = BooleanNode.valueOf(!Jslt2Util.isTrue(l));
+                            stack[top++] = c;
+                            break;
+                        }
+                        case IS_TRUE:    {
+                            JsonNode l = stack[--top];
+                            JsonNode c = BooleanNode.valueOf(Jslt2Util.isTrue(l));
+                            stack[top++] = c;
+                            break;
+                        }
+                        case EQ:    {
+                            JsonNode r = stack[--top];
+                            JsonNode l = stack[--top];
+                            JsonNode c = BooleanNode.valueOf(Jslt2Util.equals(l, r));
+                            stack[top++] = c;
+                            break;
+                        }
+                        case NEQ:    {
+                            JsonNode r = stack[--top];
+                            JsonNode l = stack[--top];
+                            JsonNode c = BooleanNode.valueOf(!Jslt2Util.equals(l, r));
+                            stack[top++] = c;
+                            break;
+                        }
+                        case GT:
+                        case GTE:
+                        case LT:
+                        case LTE: {
+                            if(quick != null) quicken(quick, pc - 1, stack[top - 2], stack[top - 1]);
+                            JsonNode r = stack[--top];
+                            JsonNode l = stack[--top];
+                            stack[top++] = BooleanNode.valueOf(compared(opcode - GT, Jslt2Util.compare(l, r)));
+                            break;
+                        }
+                        case CONCAT: {
+                            int n = ARGx(i);
+                            top -= n;
+                            stack[top] = Jslt2Util.concat(stack, top, n);
+                            top++;
+                            break;
+                        }
+                        /* quickened instructions */
+                        case ADD_LONG:
+                        case SUB_LONG:
+                        case MUL_LONG: {
+                            pc = longArithmetic(quick, opcode, pc);
+                            break;
+                        }
+                        case ADD_DOUBLE:
+                        case SUB_DOUBLE:
+                        case MUL_DOUBLE: {
+                            pc = doubleArithmetic(quick, opcode, pc);
+                            break;
+                        }
+                        case ADD_STR: {
+                            pc = concatStrings(quick, pc);
+                            break;
+                        }
+                        case GT_NUM:
+                        case GTE_NUM:
+                        case LT_NUM:
+                        case LTE_NUM: {
+                            pc = compareNumbers(quick, opcode, pc);
+                            break;
+                        }
+                        case IF_CMPGT_NUM:
+                        case IF_CMPGE_NUM:
+                        case IF_CMPLT_NUM:
+                        case IF_CMPLE_NUM: {
+                            pc = branchNumbers(quick, i, pc);
+                            break;
+                        }
+                        
+                        /* register instructions */
+                        case ADD_RK:
+                        case SUB_RK:
+                        case MUL_RK:
+                        case DIV_RK:
+                        case MOD_RK: {
+                            stack[top++] = arithmetic(opcode, rk(ARG1(i), constants, base), rk(ARG2(i), constants, base));
+                            break;
+                        }
+                        case GET_LOCAL_FIELDK: {
+                            stack[top++] = Jslt2Util.getField(stack[base + ARG1(i)], strings[ARG2(i)]);
+                            break;
+                        }
+                        case GET_LOCAL_PATH: {
+                            stack[top++] = Jslt2Util.getPath(stack[base + ARG1(i)], code.paths[ARG2(i)]);
+                            break;
+                        }
+                        case COPY_INPUT_FIELDK: {
+                            this.objectStack.peek().set(strings[ARG2(i)], Jslt2Util.getField(input, strings[ARG1(i)]));
+                            break;
+                        }
+                        case COPY_INPUT_VALUE_FIELDK: {
+                            JsonNode value = Jslt2Util.stripNullNodes(Jslt2Util.getField(input, strings[ARG1(i)]));
+                            if(Jslt2Util.isValue(value)) {
+                                this.objectStack.peek().set(strings[ARG2(i)], value);
+                            }
+                            break;
+                        }
+                        
+                        default: {
+                            error("Unknown opcode '" + opcode + "' found for the Bytecode '" + Integer.toHexString(i) + "'");
+                        }
+                    }
+                }
+                
+                if(this.depth == entryDepth + 1) {
+                    break;
+                }
+                
+                returnFrame(frame);
+            }
+        }
+        catch(Exception e) {
+            this.depth = entryDepth;
+            buildStackTrace(code, lineNumber, e);
+        }
+        
+        // the entry frame returned
+        Frame frame = this.frames[this.depth];
+        JsonNode result = stack[--top];
         
-        final JsonNode[] calleeouters = code.outers;
+        exitCall(frame.code, frame.base);
+        popFrame();
+        
+        return result;
+    }
+    
+    /*
+     * The handlers of the cold (or large) opcodes.  These are kept out of executeBytecode
+     * so that the dispatch loop stays small enough for HotSpot to compile and inline well.
+     */
+    
+    /**
+     * Executes an instruction which may push a new frame: a call, a pipe, a for loop or a matcher.  The
+     * state of the executing frame must be saved beforehand, its pc is moved past the operands of the instruction.
+     * 
+     * @return true if a new frame was pushed, which is to be executed next
+     */
+    private boolean enterFrame(Frame frame, int opcode, int i) {
+        Bytecode code = frame.code;
+        int pc = frame.pc;
         
-        final int topStack = base + code.numLocals;
-        top = topStack;
+        switch(opcode) {
+            case INVOKE: {
+                int nargs = ARG1(i);
+                int bytecodeIndex = ARG2(i);
+                                        
+                Bytecode funcCode = (bytecodeIndex & GLOBAL_FLAG) > 0 ?
+                        code.global.inner[bytecodeIndex & ~GLOBAL_FLAG] :
+                        code.inner[bytecodeIndex];             
+                        
+                JsonNode[] memoKey = null;
+                if(funcCode.isMemoized()) {
+                    memoKey = memoKey(nargs);
+                    if(memoKey != null && cachedResult(funcCode, memoKey, nargs)) {
+                        return false;
+                    }
+                }
+                
+                prepareStack(funcCode);
+                
+                JsonNode[] outers = funcCode.numOuters > 0 ? this.functionOuters.get(funcCode) : null;
+                
+                Frame callee = pushFrame(CALL_FRAME, funcCode, outers, top - nargs, frame.input);
+                callee.memoCode = funcCode;
+                callee.memoKey = memoKey;
+                return true;
+            }
+            case PIPE: {
+                JsonNode newInput = stack[--top];
+                
+                Bytecode pipeCode = code.inner[ARGx(i)];
+                
+                JsonNode[] outers = newOuters(pipeCode.numOuters);                            
+                frame.pc += assignOuters(outers, frame.outers, pipeCode.numOuters, frame.base, pc, code);
+                
+                prepareStack(pipeCode);
+                
+                pushFrame(CALL_FRAME, pipeCode, outers, top, newInput);
+                return true;
+            }
+            case FOR_ARRAY_DEF: {
+                frame.pc += executeFor(FOR_ARRAY_FRAME, code, ARGx(i), frame.outers, frame.base, pc);
+                break;
+            }
+            case FOR_OBJ_DEF: {
+                frame.pc += executeFor(FOR_OBJECT_FRAME, code, ARGx(i), frame.outers, frame.base, pc);
+                break;
+            }
+            default: {
+                frame.pc += executeMatcher(code, i, frame.outers, frame.base, pc, frame.input);
+            }
+        }
+        
+        // a for loop over nothing, or a matcher without fields, doesn't push a frame
+        return this.frames[this.depth] != frame;
+    }
+    
+    /**
+     * Pushes the frame of the {@link Bytecode} on the frame stack, the locals start at the base of the stack
+     */
+    private Frame pushFrame(int kind, Bytecode code, JsonNode[] outers, int base, JsonNode input) {
+        if(++this.depth == this.frames.length) {
+            this.frames = Arrays.copyOf(this.frames, this.frames.length << 1);
+        }
+        
+        Frame frame = this.frames[this.depth];
+        if(frame == null) {
+            frame = this.frames[this.depth] = new Frame();
+        }
+        
+        frame.kind = kind;
+        frame.code = code;
+        frame.quick = quickCode(code);
+        frame.outers = outers;
+        frame.base = base;
+        frame.pc = code.pc;
+        frame.lineNumber = -1;
+        frame.input = input;
+        frame.memoCode = null;
+        frame.memoKey = null;
+        
+        top = base + code.numLocals;
+        return frame;
+    }
+    
+    /**
+     * Pops the top frame, the frame is kept for reuse without holding on to any values
+     */
+    private void popFrame() {
+        Frame frame = this.frames[this.depth--];
+        frame.outers = null;
+        frame.input = null;
+        frame.fields = null;
+        frame.elements = null;
+        frame.result = null;
+        frame.matcher = null;
+        frame.outputObj = null;
+        frame.key = null;
+        frame.memoCode = null;
+        frame.memoKey = null;
+    }
+    
+    /**
+     * Hands the result of the returned frame to the frame below it, a for body or matcher frame is 
+     * reentered instead while there are elements left
+     */
+    private void returnFrame(Frame frame) {
+        switch(frame.kind) {
+            case CALL_FRAME: {
+                JsonNode result = stack[--top];
+                if(frame.memoKey != null) {
+                    this.memoCache.put(frame.memoCode, frame.memoKey, result);
+                }
+                
+                exitCall(frame.code, frame.base);
+                popFrame();
+                
+                stack[top++] = result;
+                break;
+            }
+            case FOR_ARRAY_FRAME: {
+                JsonNode n = stack[--top];
+                
+                if(n != null && (this.runtime.includeNulls() || Jslt2Util.isValue(n))) {
+                    ((ArrayNode)frame.result).add(n);
+                }
+                
+                top = frame.base;
+                if(!nextElement(frame)) {
+                    exitLoop(frame);
+                }
+                break;
+            }
+            case FOR_OBJECT_FRAME: {
+                JsonNode v = stack[--top];
+                JsonNode k = stack[--top];
+                
+                if(k != null && (this.runtime.includeNulls() || Jslt2Util.isValue(v))) {
+                    ((ObjectNode)frame.result).set(k.asText(), v);
+                }
+                
+                top = frame.base;
+                if(!nextElement(frame)) {
+                    exitLoop(frame);
+                }
+                break;
+            }
+            case MATCHER_FRAME: {
+                JsonNode value = stack[--top];
+                frame.outputObj.set(frame.key, value);
+                
+                top = frame.base;
+                if(!nextField(frame)) {
+                    exitMatcher(frame);
+                }
+                break;
+            }
+        }
+    }
+    
+    /**
+     * Replaces the current frame with the frame of the called function.  The arguments become 
+     * the first locals of the frame.
+     */
+    private void tailInvoke(Frame frame, int i) {
+        int nargs = ARG1(i);
+        int bytecodeIndex = ARG2(i);
+        
+        Bytecode code = frame.code;
+        Bytecode funcCode = (bytecodeIndex & GLOBAL_FLAG) > 0 ?
+                code.global.inner[bytecodeIndex & ~GLOBAL_FLAG] :
+                code.inner[bytecodeIndex];
+        
+        if(funcCode.isMemoized()) {
+            JsonNode[] memoKey = memoKey(nargs);
+            if(memoKey != null) {
+                // the cached result is the result of this frame
+                if(cachedResult(funcCode, memoKey, nargs)) {
+                    frame.pc = code.len;
+                    return;
+                }
+                
+                // the result of the frame is cached by the first memoized call it makes
+                if(frame.memoKey == null) {
+                    frame.memoCode = funcCode;
+                    frame.memoKey = memoKey;
+                }
+            }
+        }
+        
+        int base = frame.base;
+        System.arraycopy(stack, top - nargs, stack, base, nargs);
+        
+        final int stackSize = Math.min(stack.length, base+code.maxstacksize);
+        for(int j = base + nargs; j < stackSize; j++) {
+            stack[j] = null;
+        }
+        
+        top = base + nargs;
+        prepareStack(funcCode);
+        
+        frame.code = funcCode;
+        frame.quick = quickCode(funcCode);
+        frame.outers = funcCode.numOuters > 0 ? this.functionOuters.get(funcCode) : null;
+        frame.pc = funcCode.pc;
+        frame.lineNumber = -1;
+        
+        top = base + funcCode.numLocals;
+    }
+    
+    /**
+     * @return the key to cache the call of a memoized function by its arguments on the stack, 
+     * or null if it isn't cached
+     */
+    private JsonNode[] memoKey(int nargs) {
+        return this.memoCache != null ? MemoCache.key(stack, top - nargs, nargs) : null;
+    }
+    
+    /**
+     * Replaces the arguments on the stack with the cached result of the call, if there is one
+     * 
+     * @return true if the result was cached
+     */
+    private boolean cachedResult(Bytecode funcCode, JsonNode[] memoKey, int nargs) {
+        JsonNode result = this.memoCache.get(funcCode, memoKey);
+        if(result == null) {
+            return false;
+        }
+        
+        top -= nargs;
+        stack[top++] = result;
+        return true;
+    }
+    
+    private JsonNode arraySlice(JsonNode array, JsonNode start, JsonNode end) {
+        int startIndex = start.intValue();
+        
+        if(array.isArray()) {
+            ArrayNode a = (ArrayNode)array;
+            int size = a.size();
+            
+            int endIndex = end.isNull() ? size : end.intValue();
+            if(endIndex < 0) {
+                endIndex = size + endIndex; 
+            }
+            else if(endIndex > size) {
+                endIndex = size;
+            }
+            
+            if(endIndex < startIndex) {
+                error("The end range (" + endIndex + ") is smaller than the start range (" + startIndex + ")");
+            }
+            
+            ArrayNode slice = this.runtime.newArrayNode(endIndex - startIndex);
+            for(int j = startIndex; j < endIndex; j++) {
+                slice.add(a.get(j));
+            }
+            
+            return slice;                        
+        }
+        else if(array.isTextual()) {
+            TextNode a = (TextNode)array;
+            String text = a.asText();
+            int size = text.length();
+            
+            int endIndex = end.isNull() ? size : end.intValue();
+            if(endIndex < 0) {
+                endIndex = size + endIndex; 
+            }
+            else if(endIndex > size) {
+                endIndex = size;
+            }
+            
+            if(endIndex < startIndex) {
+                error("The end range (" + endIndex + ") is smaller than the start range (" + startIndex + ")");
+            }
+                                                                    
+            return new TextNode(text.substring(startIndex, endIndex));
+        }
+        
+        return NullNode.instance;
+    }
+    
+    private int executeAsync(Bytecode code, int bytecodeIndex, JsonNode[] calleeouters, int base, int pc, JsonNode input) {
+        Bytecode asyncCode = code.inner[bytecodeIndex];
+        
+        JsonNode[] outers = newOuters(asyncCode.numOuters);                            
+        int n = assignOuters(outers, calleeouters, asyncCode.numOuters, base, pc, code);
+        
+        JsonNode index = stack[--top];
+        async.submit(stack, index.asInt(), input, asyncCode, outers);
+        
+        return n;
+    }
+    
+    private int executeMatcher(Bytecode code, int i, JsonNode[] calleeouters, int base, int pc, JsonNode input) {
+        FieldMatcher matcher = code.matchers[ARG1(i)];
+        JsonNode context = matcher.resolveContext(input);
+        
+        int bytecodeIndex = ARG2(i);
+        Bytecode valueCode = code.inner[bytecodeIndex];
+        
+        JsonNode[] outers = newOuters(valueCode.numOuters);                            
+        int numOuters = assignOuters(outers, calleeouters, valueCode.numOuters, base, pc, code);
+        
+        JsonNode inputNode = context;                        
+        if(!inputNode.isObject()) {
+            return numOuters;
+        }
+        
+        prepareStack(valueCode);
+        
+        Frame frame = pushFrame(MATCHER_FRAME, valueCode, outers, top, null);
+        frame.matcher = matcher;
+        frame.outputObj = this.objectStack.peek();
+        frame.fields = inputNode.fields();
+        
+        if(!nextField(frame)) {
+            exitMatcher(frame);
+        }
+        
+        return numOuters;
+    }
+    
+    /**
+     * Moves the matcher frame to the next field of the input which isn't in the output object
+     * 
+     * @return false if there are no fields left
+     */
+    private boolean nextField(Frame frame) {
+        while(frame.fields.hasNext()) {
+            Map.Entry<String, JsonNode> next = frame.fields.next();
+            String key = next.getKey();
+            if(!frame.outputObj.has(key) && !frame.matcher.isOmittedField(key)) {
+                frame.key = key;
+                frame.input = next.getValue();
+                frame.pc = frame.code.pc;
+                
+                top = frame.base + frame.code.numLocals;
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    private void exitMatcher(Frame frame) {
+        top = frame.base;
+        popFrame();
+        
+        exitCall(frame.code, top);
+    }
+    
+    /**
+     * Pushes the frame of a for body, which is entered with the first element of the iterated 
+     * array or object
+     */
+    private int executeFor(int kind, Bytecode code, int bytecodeIndex, JsonNode[] calleeouters, int base, int pc) {
+        Bytecode forCode = code.inner[bytecodeIndex];
+        
+        JsonNode[] outers = newOuters(forCode.numOuters);                            
+        int numOuters = assignOuters(outers, calleeouters, forCode.numOuters, base, pc, code);
+        
+        prepareStack(forCode);
+        
+        JsonNode object = stack[--top];
+        if(object.isNull()) {                            
+            stack[top++] = NullNode.instance;
+            return numOuters;
+        }
+        else if(!object.isObject() && !object.isArray()) {
+            throw new Jslt2Exception("ForIterationError: For loop can't iterate over '" + object + "'");
+        }
+        
+        Frame frame = pushFrame(kind, forCode, outers, top, null);
+        frame.result = kind == FOR_ARRAY_FRAME 
+                ? this.runtime.newArrayNode(object.size()) : this.runtime.newObjectNode();
+        frame.fields = object.isObject() ? object.fields() : null;
+        frame.elements = object.isArray() ? (ArrayNode)object : null;
+        frame.index = 0;
+        
+        if(!nextElement(frame)) {
+            exitLoop(frame);
+        }
+        
+        return numOuters;
+    }
+    
+    /**
+     * Moves the for body frame to the next element, the entry and index locals are assigned if the body 
+     * reads them
+     * 
+     * @return false if there are no elements left
+     */
+    private boolean nextElement(Frame frame) {
+        Bytecode forCode = frame.code;
+        int localTop = frame.base;
+        
+        JsonNode current;
+        if(frame.fields != null) {
+            if(!frame.fields.hasNext()) {
+                return false;
+            }
+            
+            Map.Entry<String, JsonNode> entry = frame.fields.next();
+            
+            current = NullNode.instance;
+            if(forCode.hasEntryLocals()) {
+                stack[localTop + 1] = new TextNode(entry.getKey());
+                stack[localTop + 2] = entry.getValue();
+            }
+            else {
+                current = newEntry(entry);
+            }
+        }
+        else {
+            if(frame.index >= frame.elements.size()) {
+                return false;
+            }
+            
+            current = frame.elements.get(frame.index);
+            if(forCode.hasEntryLocals()) {
+                stack[localTop + 1] = Jslt2Util.getField(current, "key");
+                stack[localTop + 2] = Jslt2Util.getField(current, "value");
+            }
+        }
+        
+        // include the current index in the automatic local variable, if the body reads it
+        if(forCode.hasIndexLocal()) {
+            stack[localTop] = this.runtime.indexNode(frame.index);
+        }
+        
+        frame.index++;
+        frame.input = current;
+        frame.pc = forCode.pc;
+        
+        top = localTop + forCode.numLocals;
+        return true;
+    }
+    
+    private void exitLoop(Frame frame) {
+        JsonNode result = frame.result;
+        
+        top = frame.base;
+        popFrame();
+        
+        stack[top++] = result;
+        
+        exitCall(frame.code, top); // ensure stack is cleared for forCode calls
+    }
+    
+    /**
+     * Creates the object a for body iterates over when iterating the entries of an object
+     */
+    private ObjectNode newEntry(Map.Entry<String, JsonNode> entry) {
+        ObjectNode current = this.runtime.newObjectNode();
+        current.set("key", new TextNode(entry.getKey()));
+        current.set("value", entry.getValue());
+        return current;
+    }
+    
+    /**
+     * Looks up the function of a call site that wasn't bound when the {@link Bytecode} was compiled, such as
+     * a {@link Bytecode} read from a stream.  The {@link Bytecode} may be shared between threads, so the
+     * function is looked up on each invocation rather than stored into it.
+     */
+    private Jslt2Function lookupFunction(Bytecode code, int constIndex, int nargs) {
+        String name = code.stringConstants[constIndex];
+        
+        Jslt2Function function = this.runtime.getFunction(name);
+        if(function == null) {
+            error("No function defined with the name '" + name + "'");
+        }
+        
+        String argumentError = this.runtime.checkFunctionArguments(name, nargs);
+        if(argumentError != null) {
+            error(argumentError);
+        }
+        
+        return function;
+    }
+    
+    private JsonNode executeMacro(Bytecode code, int i, JsonNode input) {
+        int nargs = ARG1(i);
+        int constIndex = ARG2(i);
+        
+        int endIndex = stack[--top].asInt();
+        String name = code.stringConstants[constIndex];
+        
+        int startIndex = endIndex - nargs;
+        
+        List<Bytecode> args = new ArrayList<>(nargs);
+        for(int ix = startIndex; ix < endIndex; ix++) {
+            args.add(code.inner[ix]);
+        }
+        
+        Jslt2MacroFunction macro = this.runtime.getMacro(name);
+        if(macro == null) {
+            error("No macro defined with the name '" + name + "'");
+        }
+        
+        return macro.execute(this, input, args);
+    }
+    
+    /**
+     * @return true if both operands are numbers and at least one of them isn't an integer, in which case
+     * the arithmetic is done in doubles
+     */
+    private static boolean isDoubleOperands(JsonNode l, JsonNode r) {
+        return l.isNumber() && r.isNumber() && !(l.isIntegralNumber() && r.isIntegralNumber());
+    }
+    
+    /**
+     * Rewrites the generic instruction at pc into the one specialized for the types of its operands, unless
+     * the instruction has already been specialized for other types
+     */
+    private static void quicken(QuickCode quick, int pc, JsonNode l, JsonNode r) {
+        if(quick.polymorphic.get(pc)) {
+            return;
+        }
+        
+        int i = quick.instr[pc];
+        int opcode = OPCODE(i);
+        int specialized = -1;
+        
+        boolean isLong = l.isIntegralNumber() && r.isIntegralNumber();
+        boolean isDouble = isDoubleOperands(l, r);
+        switch(opcode) {
+            case ADD: specialized = isLong ? ADD_LONG : isDouble ? ADD_DOUBLE : (l.isTextual() && r.isTextual()) ? ADD_STR : -1; break;
+            case SUB: specialized = isLong ? SUB_LONG : isDouble ? SUB_DOUBLE : -1; break;
+            case MUL: specialized = isLong ? MUL_LONG : isDouble ? MUL_DOUBLE : -1; break;
+            case GT:
+            case GTE:
+            case LT:
+            case LTE: specialized = l.isNumber() && r.isNumber() ? opcode - GT + GT_NUM : -1; break;
+            case IF_CMPGT:
+            case IF_CMPGE:
+            case IF_CMPLT:
+            case IF_CMPLE: specialized = l.isNumber() && r.isNumber() ? opcode - IF_CMPGT + IF_CMPGT_NUM : -1; break;
+            default:
+        }
+        
+        if(specialized > -1) {
+            quick.instr[pc] = (i & NOT_OP_MASK) | specialized;
+        }
+    }
+    
+    /*
+     * The instructions specialized for the types of their operands.  Each reverts the instruction to the generic
+     * one if the operands are of other types, they take the pc of the instruction following the specialized one
+     * and return the pc of the next instruction to execute.
+     */
+    
+    private int longArithmetic(QuickCode quick, int opcode, int pc) {
+        JsonNode r = stack[top - 1];
+        JsonNode l = stack[top - 2];
+        int generic = opcode == ADD_LONG ? ADD : opcode == SUB_LONG ? SUB : MUL;
+        if(!(l.isIntegralNumber() && r.isIntegralNumber())) {
+            return deoptimize(quick, pc - 1, generic);
+        }
+        
+        long a = l.asLong();
+        long b = r.asLong();
+        stack[--top - 1] = new LongNode(generic == ADD ? a + b : generic == SUB ? a - b : a * b);
+        return pc;
+    }
+    
+    private int doubleArithmetic(QuickCode quick, int opcode, int pc) {
+        JsonNode r = stack[top - 1];
+        JsonNode l = stack[top - 2];
+        int generic = opcode == ADD_DOUBLE ? ADD : opcode == SUB_DOUBLE ? SUB : MUL;
+        if(!isDoubleOperands(l, r)) {
+            return deoptimize(quick, pc - 1, generic);
+        }
+        
+        double a = l.asDouble();
+        double b = r.asDouble();
+        stack[--top - 1] = new DoubleNode(generic == ADD ? a + b : generic == SUB ? a - b : a * b);
+        return pc;
+    }
+    
+    private int concatStrings(QuickCode quick, int pc) {
+        JsonNode r = stack[top - 1];
+        JsonNode l = stack[top - 2];
+        if(!(l.isTextual() && r.isTextual())) {
+            return deoptimize(quick, pc - 1, ADD);
+        }
+        
+        stack[--top - 1] = new TextNode(l.textValue() + r.textValue());
+        return pc;
+    }
+    
+    private int compareNumbers(QuickCode quick, int opcode, int pc) {
+        JsonNode r = stack[top - 1];
+        JsonNode l = stack[top - 2];
+        if(!(l.isNumber() && r.isNumber())) {
+            return deoptimize(quick, pc - 1, opcode - GT_NUM + GT);
+        }
+        
+        // same as Jslt2Util.compare for numbers
+        int n = (int)(l.asDouble() - r.asDouble());
+        stack[--top - 1] = BooleanNode.valueOf(compared(opcode - GT_NUM, n));
+        return pc;
+    }
+    
+    private int branchNumbers(QuickCode quick, int i, int pc) {
+        JsonNode r = stack[top - 1];
+        JsonNode l = stack[top - 2];
+        int opcode = OPCODE(i);
+        if(!(l.isNumber() && r.isNumber())) {
+            return deoptimize(quick, pc - 1, opcode - IF_CMPGT_NUM + IF_CMPGT);
+        }
+        top -= 2;
+        
+        int n = (int)(l.asDouble() - r.asDouble());
+        return compared(opcode - IF_CMPGT_NUM, n) ? pc + ARGsx(i) : pc;
+    }
+    
+    /**
+     * @param comparison the offset of the comparison from the greater than instruction of its kind, the
+     * comparison instructions are ordered as greater than, greater or equal, less than and less or equal
+     * @param n the result of the comparison of the operands
+     * @return true if the comparison holds
+     */
+    private static boolean compared(int comparison, int n) {
+        switch(comparison) {
+            case 0:  return n > 0;
+            case 1:  return n >= 0;
+            case 2:  return n < 0;
+            default: return n <= 0;
+        }
+    }
+    
+    /**
+     * Reverts the specialized instruction at pc to the generic one, as it observed other operand types
+     * 
+     * @return the pc of the instruction, so that it's executed again as the generic instruction
+     */
+    private static int deoptimize(QuickCode quick, int pc, int generic) {
+        quick.polymorphic.set(pc);
+        quick.instr[pc] = (quick.instr[pc] & NOT_OP_MASK) | generic;
+        return pc;
+    }
+    
+    /**
+     * @return this {@link VM}'s quickened copy of the instructions, or null if quickening is disabled
+     */
+    private QuickCode quickCode(Bytecode code) {
+        if(!this.quickening) {
+            return null;
+        }
+        
+        QuickCode quick = this.quickened.get(code);
+        if(quick == null) {
+            quick = new QuickCode(code);
+            this.quickened.put(code, quick);
+        }
+        return quick;
+    }
+    
+    /**
+     * @param code
+     * @return the instructions this {@link VM} executes for the {@link Bytecode}, which are specialized to the 
+     * observed operand types if quickening is enabled
+     */
+    public int[] getInstructions(Bytecode code) {
+        QuickCode quick = quickCode(code);
+        return quick != null ? quick.instr : code.instr;
+    }
+    
+    /**
+     * @return the value of an RK operand, either a local of the current frame or a constant
+     */
+    private JsonNode rk(int rk, JsonNode[] constants, int base) {
+        return ISK(rk) ? constants[INDEXK(rk)] : this.stack[base + rk];
+    }
+    
+    /**
+     * @return the result of the arithmetic register instruction
+     */
+    private JsonNode arithmetic(int opcode, JsonNode l, JsonNode r) {
+        switch(opcode) {
+            case ADD_RK: return add(l, r);
+            case SUB_RK: return sub(l, r);
+            case MUL_RK: return mul(l, r);
+            case DIV_RK: return div(l, r);
+            default:     return mod(l, r);
+        }
+    }
+    
+    /*
+     * The arithmetic operators, shared by the stack and the register instructions
+     */
+    
+    private JsonNode add(JsonNode l, JsonNode r) {
+        if(l.isTextual() || r.isTextual()) {
+            return new TextNode(Jslt2Util.toString(l, false) + 
+                                Jslt2Util.toString(r, false)); 
+        }
+        else if((l.isArray() && r.isArray()) || (l.isObject() && r.isObject())) {
+            return union(l, r);
+        }
+        
+        l = Jslt2Util.number(l, true, null);
+        r = Jslt2Util.number(r, true, null);
+        
+        if(l.isNull() || r.isNull()) {
+            return NullNode.instance;
+        }
+        else if(l.isIntegralNumber() && r.isIntegralNumber()) {
+            return new LongNode(l.asLong() + r.asLong());
+        }
+        
+        return new DoubleNode(l.asDouble() + r.asDouble());
+    }
+    
+    private JsonNode sub(JsonNode l, JsonNode r) {
+        l = Jslt2Util.number(l, true, null);
+        r = Jslt2Util.number(r, true, null);
+        
+        if(l.isNull() || r.isNull()) {
+            return NullNode.instance;
+        }
+        else if(l.isIntegralNumber() && r.isIntegralNumber()) {
+            return new LongNode(l.asLong() - r.asLong());
+        }
+        
+        return new DoubleNode(l.asDouble() - r.asDouble());
+    }
+    
+    private JsonNode mul(JsonNode l, JsonNode r) {
+        if(l.isNull() || r.isNull()) {
+            return NullNode.instance;
+        }
+        else if(l.isTextual() || r.isTextual()) {
+            return multiplyString(l, r);
+        }
+        else if(l.isIntegralNumber() && r.isIntegralNumber()) {
+            return new LongNode(l.asLong() * r.asLong());
+        }
+        
+        return new DoubleNode(l.asDouble() * r.asDouble());
+    }
+    
+    private JsonNode div(JsonNode l, JsonNode r) {
+        l = Jslt2Util.number(l, true, null);
+        r = Jslt2Util.number(r, true, null);
+        
+        if(l.isNull() || r.isNull()) {
+            return NullNode.instance;
+        }
+        else if(l.isIntegralNumber() && r.isIntegralNumber()) {                        
+            long ld = l.longValue();
+            long rd = r.longValue();
+            if((ld % rd) == 0) {                               
+                return new LongNode(ld / rd);
+            }
+            
+            return new DoubleNode((double)ld / (double)rd);
+        }
+        
+        return new DoubleNode(l.doubleValue() / r.doubleValue());
+    }
+    
+    private JsonNode mod(JsonNode l, JsonNode r) {
+        l = Jslt2Util.number(l, true, null);
+        r = Jslt2Util.number(r, true, null);
+        
+        if(l.isNull() || r.isNull()) {
+            return NullNode.instance;
+        }
+        else if(l.isIntegralNumber() && r.isIntegralNumber()) {
+            return new LongNode(l.asLong() % r.asLong());
+        }
+        
+        return new DoubleNode(l.asDouble() % r.asDouble());
+    }
+    
+    private JsonNode union(JsonNode l, JsonNode r) {
+        if(l.isArray()) {
+            ArrayNode a = (ArrayNode)l;
+            ArrayNode b = (ArrayNode)r;
+            ArrayNode union = this.runtime.newArrayNode(a.size() + b.size());
+            union.addAll(a);
+            union.addAll(b);
+            
+            return union;
+        }
+        
+        ObjectNode a = (ObjectNode)l;
+        ObjectNode b = (ObjectNode)r;
+        ObjectNode union = this.runtime.newObjectNode();
+        union.setAll(b);
+        union.setAll(a);
+        
+        return union;
+    }
+    
+    private JsonNode multiplyString(JsonNode l, JsonNode r) {
+        String str = null;
+        int num = 0;
         
-        int lineNumber = -1;
+        if(l.isTextual() && r.isTextual()) {
+            error("Can't multiply two strings!");    
+        }
+        else if(l.isTextual()) {
+            str = l.asText();
+            num = r.intValue();
+        }
+        else {
+            str = r.asText();
+            num = l.intValue();
+        }
         
-        try {
-            while(pc < len) {
-                int i = instr[pc++];
-                int opcode =  i & 255; //OPCODE(i);
-
-                switch(opcode) {
-                    case LINE: {
-                        lineNumber = ARGx(i);
-                        break;
-                    }
-                    case NEW_OBJ: {
-                        this.objectStack.push(this.runtime.newObjectNode());
-                        break;     
-                    }
-                    case SEAL_OBJ: {
-                        stack[top++] = this.objectStack.pop();
-                        break;
-                    }
-                    
-                    case NEW_ARRAY: {
-                        this.arrayStack.push(this.runtime.newArrayNode(16));
-                        break;       
-                    }
-                    case SEAL_ARRAY: {
-                        stack[top++] = this.arrayStack.pop();
-                        break;
-                    }
-                    
-                    case ADD_FIELDK: {                       
-                        ObjectNode obj = this.objectStack.peek();
-                        
-                        int iname = ARGx(i);
-                        JsonNode fieldName = constants[iname];
-                        
-                        obj.set(fieldName.asText(), stack[--top]);                        
-                        break;
-                    }
-                    case ADD_FIELD: {
-                        ObjectNode obj = this.objectStack.peek();
-                        
-                        JsonNode value = stack[--top];
-                        JsonNode index = stack[--top];
-                        
-                        obj.set(index.asText(), value);
-                        break;
-                    }
-                    case ADD_ELEMENT: {
-                        ArrayNode array = this.arrayStack.peek();                        
-                        array.add(stack[--top]);                        
-                        break;
-                    }
-                    
-                    case GET_FIELDK: {
-                        int iname = ARGx(i);                        
-                        JsonNode index = constants[iname];
-                        JsonNode obj = stack[--top];
-
-                        JsonNode value = obj.get(index.asText());
-                        if(value == null) {
-                            value = NullNode.instance;
-                        }
-                                                
-                        stack[top++] = value;
-                        break;
-                    }     
-                    case GET_FIELD: {                                     
-                        JsonNode index = stack[--top];
-                        JsonNode obj = stack[--top];
-
-                        JsonNode value = obj.get(index.asText());
-                        if(value == null) {
-                            value = NullNode.instance;
-                        }
-                        
-                        stack[top++] = value;
-                        break;
-                    } 
-                    case GET_ARRAY_ELEMENT: {                                     
-                        JsonNode index = stack[--top];
-                        JsonNode obj = stack[--top];
-
-                        JsonNode value = null;
-                        if(obj.isTextual()) {
-                            value = new TextNode("" + obj.asText().charAt(index.intValue()));
-                        }
-                        else {
-                            value = obj.get(index.asInt());
-                            if(value == null) {
-                                value = NullNode.instance;
-                            }
-                        }
-                        
-                        stack[top++] = value;
-                        break;
-                    }
-                    case GET_INPUT_FIELDK: {
-                        int iname = ARGx(i);                        
-                        JsonNode index = constants[iname];
-                        JsonNode value = input.get(index.asText());
-                        if(value == null) {
-                            value = NullNode.instance;
-                        }
-                                                
-                        stack[top++] = value;
-                        break;
-                    }     
-                    case ARRAY_SLICE: {
-                        JsonNode end = stack[--top];
-                        JsonNode start = stack[--top];
-                        JsonNode array = stack[--top];
-                        
-                        int startIndex = start.intValue();
-                        
-                        if(array.isArray()) {
-                            ArrayNode a = (ArrayNode)array;
-                            int size = a.size();
-                            
-                            int endIndex = end.isNull() ? size : end.intValue();
-                            if(endIndex < 0) {
-                                endIndex = size + endIndex; 
-                            }
-                            else if(endIndex > size) {
-                                endIndex = size;
-                            }
-                            
-                            if(endIndex < startIndex) {
-                                error("The end range (" + endIndex + ") is smaller than the start range (" + startIndex + ")");
-                            }
-                            
-                            ArrayNode slice = this.runtime.newArrayNode(endIndex - startIndex);
-                            for(int j = startIndex; j < endIndex; j++) {
-                                slice.add(a.get(j));
-                            }
-                            
-                            stack[top++] = slice;                        
-                        }
-                        else if(array.isTextual()) {
-                            TextNode a = (TextNode)array;
-                            String text = a.asText();
-                            int size = text.length();
-                            
-                            int endIndex = end.isNull() ? size : end.intValue();
-                            if(endIndex < 0) {
-                                endIndex = size + endIndex; 
-                            }
-                            else if(endIndex > size) {
-                                endIndex = size;
-                            }
-                            
-                            if(endIndex < startIndex) {
-                                error("The end range (" + endIndex + ") is smaller than the start range (" + startIndex + ")");
-                            }
-                                                                                    
-                            stack[top++] = new TextNode(text.substring(startIndex, endIndex));
-                        }
-                        else {
-                            stack[top++] = NullNode.instance;
-                        }
-                        break;
-                    }
-                    case ASYNC: {                        
-                        int bytecodeIndex = ARGx(i);
-                        Bytecode asyncCode = inner[bytecodeIndex].clone();
-                        
-                        JsonNode[] outers = asyncCode.outers;                            
-                        pc += assignOuters(outers, calleeouters, asyncCode.numOuters, base, pc, code);
-                        
-                        JsonNode index = stack[--top];
-                        async.submit(stack, index.asInt(), input, asyncCode);                        
-                        break;
-                    }
-                    case AWAIT: {
-                        async.await();
-                        break;
-                    }
-                    case MATCHER: {
-                        ObjectNode outputObj = this.objectStack.peek();
-                        
-                        int n = ARG1(i);
-                        JsonNode[] omittedFields = readArrayFromStack(n, stack);
-                        
-                        JsonNode contextPath = stack[--top];
-                        JsonNode context = resolveContext(contextPath, input);
-                        
-                        JsonNode inputNode = context;                        
-                        if(!inputNode.isObject()) {
-                            continue;
-                        }
-                        
-                        int bytecodeIndex = ARG2(i);
-                        Bytecode valueCode = inner[bytecodeIndex].clone();
-                        
-                        JsonNode[] outers = valueCode.outers;                            
-                        pc += assignOuters(outers, calleeouters, valueCode.numOuters, base, pc, code);
-                        
-                        prepareStack(valueCode);
-                        
-                        ObjectNode inputObj = (ObjectNode)inputNode;
-                        Iterator<Map.Entry<String, JsonNode>> it = inputObj.fields();
-                        
-                        int localTop = top;
-                        while(it.hasNext()) {
-                            Map.Entry<String, JsonNode> next = it.next();
-                            String key = next.getKey();
-                            if(!outputObj.has(key)) {
-                                if(isOmittedField(omittedFields, key)) {
-                                    continue;
-                                }
-                                
-                                executeBytecode(valueCode, top, next.getValue());
-                                JsonNode value = stack[--top];
-                                
-                                outputObj.set(key, value);
-                            }
-                            top = localTop;
-                        }
-                        
-                        exitCall(valueCode, top);
-                        
-                        break;
-                    }
-                    
-                    case LOAD_CONST: {
-                        int iname = ARGx(i);
-                        stack[top++] = constants[iname];
-                        break;
-                    }
-                    case LOAD_LOCAL: {
-                        int iname = ARGx(i);
-                        stack[top++] = stack[base + iname];
-                        break;
-                    }
-                    case LOAD_OUTER: {
-                        int iname = ARGx(i);
-                        stack[top++] = calleeouters[iname];
-                        break;
-                    }
-                    case LOAD_JNULL: {
-                        stack[top++] = null;
-                        break;
-                    }
-                    case LOAD_NULL: {
-                        stack[top++] = NullNode.instance;
-                        break;
-                    }
-                    case LOAD_TRUE: {
-                        stack[top++] = BooleanNode.TRUE;
-                        break;
-                    }
-                    case LOAD_FALSE: {
-                        stack[top++] = BooleanNode.FALSE;
-                        break;
-                    }
-                    case LOAD_INPUT: {                        
-                        stack[top++] = input;
-                        break;
-                    }
-                    case STORE_LOCAL: {
-                        int iname = ARGx(i);
-                        stack[base + iname] = stack[--top];
-                        break;
-                    }
-
-                    case JMP:    {
-                        int pos = ARGsx(i);
-                        pc += pos;
-                        break;
-                    }
-                    case IFEQ:    {
-                        JsonNode cond = stack[--top];
-                        if (!Jslt2Util.isTrue(cond)) {
-                            int pos = ARGsx(i);
-                            pc += pos;
-                        }
-                        break;
-                    }
-                    
-                    case FOR_ARRAY_DEF: {                        
-                        int bytecodeIndex = ARGx(i);
-                        Bytecode forCode = inner[bytecodeIndex].clone();
-                        
-                        JsonNode[] outers = forCode.outers;                            
-                        pc += assignOuters(outers, calleeouters, forCode.numOuters, base, pc, code);
-                        
-                        prepareStack(forCode);
-                        
-                        JsonNode object = stack[--top];
-                        ArrayNode array = this.runtime.newArrayNode(object.size());
-                        
-                        if(object.isNull()) {                            
-                            stack[top++] = NullNode.instance;
-                            continue;
-                        }
-                        else if(object.isObject()) {
-                            Iterator<String> it = ((ObjectNode)object).fieldNames();
-                            int index = 0;
-                            int localTop = top;
-                            
-                            while(it.hasNext()) {
-                                String key = it.next();
-                                
-                                ObjectNode current = runtime.newObjectNode();
-                                current.set("key", new TextNode(key));
-                                current.set("value", object.get(key));
-                                
-                                // include the current index in the automatic local variable 
-                                stack[localTop] = IntNode.valueOf(index);
-                                
-                                executeBytecode(forCode, top, current); 
-                                JsonNode n = stack[--top];
-                                
-                                if(n != null) {
-                                    array.add(n);
-                                }
-                                
-                                index++;
-                                top = localTop;
-                            }
-                        }
-                        else if(object.isArray()) {
-                            ArrayNode a = (ArrayNode)object;
-                            int size = a.size();
-                            int localTop = top;
-                            for(int ix = 0; ix < size; ix++) {
-                                JsonNode current = a.get(ix);
-                                
-                                // include the current index in the automatic local variable
-                                stack[localTop] = IntNode.valueOf(ix);
-                                
-                                executeBytecode(forCode, top, current); 
-                                JsonNode n = stack[--top];
-                                
-                                if(n != null) {
-                                    array.add(n);  
-                                }
-                                
-                                top = localTop;
-                            }
-                        }
-                        else {
-                            throw new Jslt2Exception("ForIterationError: For loop can't iterate over '" + object + "'");
-                        }
-                        
-                        stack[top++] = array;
-                        
-                        exitCall(forCode, top); // ensure stack is cleared for forCode calls
-                        
-                        break;
-                    }
-                    case FOR_OBJ_DEF: {                        
-                        int bytecodeIndex = ARGx(i);
-                        Bytecode forCode = inner[bytecodeIndex].clone();
-                        
-                        JsonNode[] outers = forCode.outers;                            
-                        pc += assignOuters(outers, calleeouters, forCode.numOuters, base, pc, code);
-                                                
-                        ObjectNode obj = this.runtime.newObjectNode();
-                        
-                        prepareStack(forCode);
-                        
-                        JsonNode object = stack[--top];
-                        if(object.isNull()) {
-                            stack[top++] = NullNode.instance;
-                            continue;
-                        }
-                        else if(object.isObject()) {
-                            Iterator<String> it = ((ObjectNode)object).fieldNames();
-                            int index = 0;
-                            int localTop = top;
-                            
-                            while(it.hasNext()) {
-                                String key = it.next();
-                                
-                                ObjectNode current = runtime.newObjectNode();
-                                current.set("key", new TextNode(key));
-                                current.set("value", object.get(key));
-                                
-                                // include the current index in the automatic local variable 
-                                stack[localTop] = IntNode.valueOf(index);
-                                
-                                executeBytecode(forCode, top, current); 
-                                JsonNode v = stack[--top];
-                                JsonNode k = stack[--top];
-
-                                if(k != null) {
-                                    obj.set(k.asText(), v);
-                                }
-                                
-                                index++;
-                                top = localTop; 
-                            }                                                   
-                        }
-                        else if(object.isArray()) {            
-                            ArrayNode array = (ArrayNode)object;
-                            int size = array.size();
-                            int localTop = top;
-                            for(int ix = 0; ix < size; ix++) {
-                                JsonNode current = array.get(ix);
-                                
-                                // include the current index in the automatic local variable
-                                stack[localTop] = IntNode.valueOf(ix);
-                                
-                                executeBytecode(forCode, top, current); 
-                                JsonNode v = stack[--top];
-                                JsonNode k = stack[--top];
-                              
-                                if(k != null) {
-                                    obj.set(k.asText(), v);  
-                                }
-                                
-                                top = localTop;
-                            }
-                        }
-                        else {                            
-                            throw new Jslt2Exception("ForIterationError: For loop can't iterate over '" + object + "'");
-                        }
-                        
-                        stack[top++] = obj;
-                        
-                        exitCall(forCode, top); // ensure stack is cleared for forCode calls
-                        
-                        break;
-                    }
-                    case FUNC_DEF: {
-                        int innerIndex = ARGx(i);
-                        Bytecode funcCode = inner[innerIndex];
-                        
-                        JsonNode[] outers = funcCode.outers;                            
-                        pc += assignOuters(outers, calleeouters, funcCode.numOuters, base, pc, code);
-                        
-                        break;
-                    }
-                    
-                    case INVOKE:    {
-                        int nargs = ARG1(i);
-                        int bytecodeIndex = ARG2(i);
-                                                
-                        Bytecode funcCode = (bytecodeIndex & GLOBAL_FLAG) > 0 ?
-                                code.global.inner[bytecodeIndex & ~GLOBAL_FLAG] :
-                                inner[bytecodeIndex];             
-                                
-                        prepareStack(funcCode);
-
-                        JsonNode result = executeStackFrame(funcCode, top - nargs, input);
-                        
-                        stack[top++] = result;    
-                        break;
-                    }
-                    case USER_INVOKE: {
-                        int nargs = ARG1(i);
-                        int constIndex = ARG2(i);
-                        
-                        JsonNode name = constants[constIndex];
-                        
-                        JsonNode[] args = readArrayFromStack(nargs, stack);
-                        Jslt2Function function = this.runtime.getFunction(name.asText());
-                        if(function == null) {
-                            error("No function defined with the name '" + name.asText() + "'");
-                        }
-                        
-                        JsonNode c = function.execute(input, args);
-                        
-                        stack[top++] = c;
-                        break;
-                    }
-                    case MACRO_INVOKE: {
-                        int nargs = ARG1(i);
-                        int constIndex = ARG2(i);
-                        
-                        int endIndex = stack[--top].asInt();
-                        JsonNode name = constants[constIndex];
-                        
-                        int startIndex = endIndex - nargs;
-                        
-                        
-                        List<Bytecode> args = new ArrayList<>(nargs);
-                        for(int ix = startIndex; ix < endIndex; ix++) {
-                            args.add(inner[ix]);
-                        }
-                        
-                        //JsonNode[] args = readArrayFromStack(nargs, stack);
-                        Jslt2MacroFunction macro = this.runtime.getMacro(name.asText());
-                        if(macro == null) {
-                            error("No macro defined with the name '" + name.asText() + "'");
-                        }
-                        
-                        JsonNode c = macro.execute(this, input, args);
-                        
-                        stack[top++] = c;
-                        break;
-                    }
-                    
-                    /* arithmetic operators */
-                    case ADD:    {
-                        JsonNode r = stack[--top];
-                        JsonNode l = stack[--top];
-                        JsonNode c = null;
-                        if(l.isTextual() || r.isTextual()) {
-                            c = new TextNode(Jslt2Util.toString(l, false) + 
-                                             Jslt2Util.toString(r, false)); 
-                        }
-                        else if(l.isArray() && r.isArray()) {
-                            ArrayNode a = (ArrayNode)l;
-                            ArrayNode b = (ArrayNode)r;
-                            ArrayNode union = this.runtime.newArrayNode(a.size() + b.size());
-                            union.addAll(a);
-                            union.addAll(b);
-                            
-                            c = union;
-                        }
-                        else if(l.isObject() && r.isObject()) {
-                            ObjectNode a = (ObjectNode)l;
-                            ObjectNode b = (ObjectNode)r;
-                            ObjectNode union = this.runtime.newObjectNode();
-                            union.setAll(b);
-                            union.setAll(a);
-                            
-                            c = union;
-                        }
-                        else {
-                            l = Jslt2Util.number(l, true, null);
-                            r = Jslt2Util.number(r, true, null);
-                            
-                            if(l.isNull() || r.isNull()) {
-                                c = NullNode.instance;
-                            }
-                            else if(l.isIntegralNumber() && r.isIntegralNumber()) {
-                                c = new LongNode(l.asLong() + r.asLong());
-                            }
-                            else {
-                                c = new DoubleNode(l.asDouble() + r.asDouble());
-                            }
-                        }
-                        stack[top++] = c;
-                        break;
-                    }
-                    case SUB:    {
-                        JsonNode r = stack[--top];
-                        JsonNode l = stack[--top];                        
-                        JsonNode c = null;
-                        
-                        l = Jslt2Util.number(l, true, null);
-                        r = Jslt2Util.number(r, true, null);
-                        
-                        if(l.isNull() || r.isNull()) {
-                            c = NullNode.instance;
-                        }
-                        else if(l.isIntegralNumber() && r.isIntegralNumber()) {
-                            c = new LongNode(l.asLong() - r.asLong());
-                        }
-                        else {
-                            c = new DoubleNode(l.asDouble() - r.asDouble());
-                        }
-                        stack[top++] = c;
-                        break;
-                    }
-                    case MUL:    {
-                        JsonNode r = stack[--top];
-                        JsonNode l = stack[--top];
-                        JsonNode c = null;
-                                                
-                        if(l.isNull() || r.isNull()) {
-                            c = NullNode.instance;
-                        }
-                        else if(l.isTextual() || r.isTextual()) {
-                            
-                            String str = null;
-                            int num = 0;
-                            
-                            if(l.isTextual() && r.isTextual()) {
-                                error("Can't multiply two strings!");    
-                            }
-                            else if(l.isTextual()) {
-                                str = l.asText();
-                                num = r.intValue();
-                            }
-                            else {
-                                str = r.asText();
-                                num = l.intValue();
-                            }
-                            
-                            StringBuilder buf = new StringBuilder();
-                            for(; num > 0; num--) {
-                                buf.append(str);
-                            }
-                            
-                            c = new TextNode(buf.toString());
-                        }
-                        else if(l.isIntegralNumber() && r.isIntegralNumber()) {
-                            c = new LongNode(l.asLong() * r.asLong());
-                        }
-                        else {
-                            c = new DoubleNode(l.asDouble() * r.asDouble());
-                        }
-                        stack[top++] = c;
-                        break;
-                    }
-                    case DIV:    {
-                        JsonNode r = stack[--top];
-                        JsonNode l = stack[--top];
-                        JsonNode c = null;
-                        
-                        l = Jslt2Util.number(l, true, null);
-                        r = Jslt2Util.number(r, true, null);
-                        
-                        if(l.isNull() || r.isNull()) {
-                            c = NullNode.instance;
-                        }
-                        else if(l.isIntegralNumber() && r.isIntegralNumber()) {                        
-                            long ld = l.longValue();
-                            long rd = r.longValue();
-                            if((ld % rd) == 0) {                               
-                                c = new LongNode(ld / rd);
-                            }
-                            else {
-                                c = new DoubleNode((double)ld / (double)rd);
-                            }
-                        }
-                        else {
-                            c = new DoubleNode(l.doubleValue() / r.doubleValue());
-                        }
-                        
-                        
-                        stack[top++] = c;
-                        break;
-                    }
-                    case MOD:    {
-                        JsonNode r = stack[--top];
-                        JsonNode l = stack[--top];
-                        JsonNode c = null;
-                        
-                        l = Jslt2Util.number(l, true, null);
-                        r = Jslt2Util.number(r, true, null);
-                        
-                        if(l.isNull() || r.isNull()) {
-                            c = NullNode.instance;
-                        }
-                        else if(l.isIntegralNumber() && r.isIntegralNumber()) {
-                            c = new LongNode(l.asLong() % r.asLong());
-                        }
-                        else {
-                            c = new DoubleNode(l.asDouble() % r.asDouble());
-                        }
-                        stack[top++] = c;
-                        break;
-                    }
-                    case NEG:    {
-                        JsonNode l = stack[--top];
-                        JsonNode c = null;
-                        if(l.isNull()) {
-                            c = NullNode.instance;
-                        }
-                        else if(l.isIntegralNumber()) {
-                            c = new LongNode(-l.asLong());
-                        }
-                        else {
-                            c = new DoubleNode(-l.asDouble());
-                        }
-                        stack[top++] = c;
-                        break;
-                    }
-                    
-                    case NOT:    {
-                        JsonNode l = stack[--top];
-                        JsonNode c = BooleanNode.valueOf(!Jslt2Util.isTrue(l));
-                        stack[top++] = c;
-                        break;
-                    }
-                    case IS_TRUE:    {
-                        JsonNode l = stack[--top];
-                        JsonNode c = BooleanNode.valueOf(Jslt2Util.isTrue(l));
-                        stack[top++] = c;
-                        break;
-                    }
-                    case EQ:    {
-                        JsonNode r = stack[--top];
-                        JsonNode l = stack[--top];
-                        JsonNode c = BooleanNode.valueOf(Jslt2Util.equals(l, r));
-                        stack[top++] = c;
-                        break;
-                    }
-                    case NEQ:    {
-                        JsonNode r = stack[--top];
-                        JsonNode l = stack[--top];
-                        JsonNode c = BooleanNode.valueOf(!Jslt2Util.equals(l, r));
-                        stack[top++] = c;
-                        break;
-                    }
-                    case GT:    {
-                        JsonNode r = stack[--top];
-                        JsonNode l = stack[--top];
-                        int n = Jslt2Util.compare(l, r);
-                        JsonNode c = BooleanNode.valueOf(n > 0);
-                        stack[top++] = c;
-                        break;
-                    }
-                    case GTE:    {
-                        JsonNode r = stack[--top];
-                        JsonNode l = stack[--top];
-                        int n = Jslt2Util.compare(l, r);
-                        JsonNode c = BooleanNode.valueOf(n >= 0);
-                        stack[top++] = c;
-                        break;
-                    }
-                    case LT:    {
-                        JsonNode r = stack[--top];
-                        JsonNode l = stack[--top];
-                        int n = Jslt2Util.compare(l, r);
-                        JsonNode c = BooleanNode.valueOf(n < 0);
-                        stack[top++] = c;
-                        break;
-                    }
-                    case LTE:    {
-                        JsonNode r = stack[--top];
-                        JsonNode l = stack[--top];
-                        int n = Jslt2Util.compare(l, r);
-                        JsonNode c = BooleanNode.valueOf(n <= 0);
-                        stack[top++] = c;
-                        break;
-                    }
-                    case PIPE: {
-                        JsonNode newInput = stack[--top];
-                        
-                        int bytecodeIndex = ARGx(i);
-                        Bytecode pipeCode = inner[bytecodeIndex].clone();
-                        
-                        JsonNode[] outers = pipeCode.outers;                            
-                        pc += assignOuters(outers, calleeouters, pipeCode.numOuters, base, pc, code);
-                        
-                        prepareStack(pipeCode);
-                        
-                        JsonNode result = executeStackFrame(pipeCode, top, newInput);
-                        stack[top++] = result;
-                        break;
-                    }
-                    default: {
-                        error("Unknown opcode '" + opcode + "' found for the Bytecode '" + Integer.toHexString(i) + "'");
-                    }
-                }
-            }
+        StringBuilder buf = new StringBuilder();
+        for(; num > 0; num--) {
+            buf.append(str);
         }
-        catch(Exception e) {            
-            buildStackTrace(code, lineNumber, e);
-        }        
+        
+        return new TextNode(buf.toString());
     }
     
     private void buildStackTrace(Bytecode code, int lineNumber, Exception e) {
-        error(String.format("RuntimeError: '%s' at line %d stack trace: %s", code.getSourceFileName(), lineNumber, e));
+        throw runtimeError(code.getSourceFileName(), lineNumber, e);
+    }
+    
+    /**
+     * Wraps an exception raised by an execution, the compiled code reports its failures in the same format
+     * 
+     * @param sourceFileName the name of the source file of the template
+     * @param lineNumber the line executing when it failed, or -1 if not in debug mode
+     * @param e
+     * @return the exception to throw
+     */
+    public static Jslt2Exception runtimeError(String sourceFileName, int lineNumber, Exception e) {
+        return new Jslt2Exception(String.format("ExecutionError: RuntimeError: '%s' at line %d stack trace: %s", 
+                sourceFileName, lineNumber, e));
     }
     
     private void exitCall(Bytecode code, int base) {
@@ -927,27 +1764,6 @@ public class VM {
         return args;
     }
     
-    private boolean isOmittedField(JsonNode[] omittedFields, String key) {
-        if(omittedFields != null) {
-            for(int j = 0; j < omittedFields.length; j++) {
-                String field = omittedFields[j].asText(); 
-                
-                // check identifier
-                if(field.equals(key)) {
-                    return true;
-                }
-                
-                // check string
-                if(field.startsWith("\"") && field.endsWith("\"") &&
-                  (field.length() > 2 && field.substring(1, field.length()-1).equals(key))) {
-                    return true;
-                }
-            }
-        }
-        
-        return false;
-    }
-    
     /**
      * Handles an error in the execution.
      *
@@ -961,6 +1777,17 @@ public class VM {
         throw new Jslt2Exception("ExecutionError: " + errorMsg);
     }
 
+    /**
+     * Allocates the closure frame for an activation of an inner {@link Bytecode}.  The {@link Bytecode}
+     * itself is immutable, the captured values live in this array which is handed down the call chain.
+     * 
+     * @param numOuters
+     * @return the outers array
+     */
+    private static JsonNode[] newOuters(int numOuters) {
+        return numOuters > 0 ? new JsonNode[numOuters] : EMPTY_OUTERS;
+    }
+
     private int assignOuters(JsonNode[] outers, JsonNode[] calleeouters, 
                         int numOuters, 
                         int base, 
@@ -990,26 +1817,4 @@ public class VM {
         
         return numOuters;
     }
-    
-    private JsonNode resolveContext(JsonNode contextPath, JsonNode input) {
-        if(!input.isObject()) {
-            return input;
-        }
-        
-        String[] split = contextPath.asText().split(":");
-        for(int i = split.length - 1; i >= 0; i--) {
-            String fieldName = split[i];
-            if(fieldName.isEmpty()) {
-                continue;
-            }
-            
-            input = input.get(fieldName);
-            
-            if(input == null) {
-                return NullNode.instance;
-            }            
-        }
-        
-        return input;
-    }
 }
@@ -0,0 +1,79 @@
+/*
+ * see license.txt
+ */
+package jslt2.vm;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jslt2.Jslt2;
+
+/**
+ * A bounded pool of {@link VM}s.  A {@link VM} holds all of the per-execution state (the value stacks), so a
+ * {@link VM} can only be used by one thread at a time; the pool allows for the compiled {@link Bytecode} to be
+ * shared between threads, with each execution borrowing a {@link VM}.
+ *
+ * <p>
+ * If the pool is empty a new {@link VM} is created, and at most <code>maxSize</code> {@link VM}s are retained once
+ * they are released back to the pool.
+ *
+ * @author Tony
+ *
+ */
+public class VMPool {
+
+    /**
+     * Default number of {@link VM}s retained by the pool
+     */
+    public static final int DEFAULT_POOL_SIZE = 64;
+
+    private Jslt2 runtime;
+    private Queue<VM> pool;
+    private AtomicInteger size;
+    private final int maxSize;
+
+    /**
+     * @param runtime
+     * @param maxSize the maximum number of {@link VM}s to retain
+     */
+    public VMPool(Jslt2 runtime, int maxSize) {
+        this.runtime = runtime;
+        this.maxSize = maxSize;
+
+        this.pool = new ConcurrentLinkedQueue<>();
+        this.size = new AtomicInteger(0);
+    }
+
+    /**
+     * Borrows a {@link VM} from the pool, creating one if there are none available
+     *
+     * @return the {@link VM}
+     */
+    public VM acquire() {
+        VM vm = this.pool.poll();
+        if(vm == null) {
+            return new VM(this.runtime);
+        }
+
+        this.size.decrementAndGet();
+        return vm;
+    }
+
+    /**
+     * Returns the {@link VM} back to the pool.  The {@link VM} is {@link VM#reset()}, so it may be released 
+     * whether or not its execution completed successfully.
+     *
+     * @param vm
+     */
+    public void release(VM vm) {
+        vm.reset();
+
+        if(this.size.incrementAndGet() > this.maxSize) {
+            this.size.decrementAndGet();
+            return;
+        }
+
+        this.pool.offer(vm);
+    }
+}
@@ -17,8 +17,10 @@ import com.fasterxml.jackson.databind.node.IntNode;
 import com.fasterxml.jackson.databind.node.LongNode;
 import com.fasterxml.jackson.databind.node.TextNode;
 
+import jslt2.Jslt2Function;
 import jslt2.util.ArrayUtil;
 import jslt2.vm.Bytecode;
+import jslt2.vm.FieldMatcher;
 import jslt2.vm.Opcodes;
 import jslt2.vm.compiler.EmitterScope.ScopeType;
 
@@ -87,6 +89,11 @@ public class BytecodeEmitter {
      */
     private boolean isDebugMode;
     
+    /**
+     * If sequences of stack instructions are replaced by register instructions
+     */
+    private boolean registerInstructions;
+    
     /**
      */
     public BytecodeEmitter() {
@@ -143,6 +150,24 @@ public class BytecodeEmitter {
         }
     }
     
+    /**
+     * @return true if register instructions are emitted
+     */
+    public boolean isRegisterInstructions() {
+        return this.registerInstructions;
+    }
+    
+    /**
+     * Emits the register instructions, which read their operands from the locals and constants rather than
+     * the stack, in place of the sequences of stack instructions they replace, i.e., <code>LOAD_LOCAL 0; 
+     * LOAD_CONST 1; ADD</code> is emitted as <code>ADD_RK 0 K(1)</code>.
+     * 
+     * @param registerInstructions
+     */
+    public void setRegisterInstructions(boolean registerInstructions) {
+        this.registerInstructions = registerInstructions;
+    }
+    
     private void incrementMaxstackSize(int delta) {
         peek().localScope.incrementMaxstacksize(delta);
     }
@@ -377,13 +402,19 @@ public class BytecodeEmitter {
 
     /**
      * Stores the {@link JsonNode} in the constants table and
-     * emits a load instruction for it.
+     * emits a load instruction for it.  An object or array is
+     * loaded as a copy, so the evaluations don't share it.
      * 
      * @param obj
      */
     public void addAndloadconst(JsonNode obj) {
         int index = addConst(obj);
-        loadconst(index);
+        if(obj.isContainerNode()) {
+            copyconst(index);
+        }
+        else {
+            loadconst(index);
+        }
     }
     
     /**
@@ -429,6 +460,14 @@ public class BytecodeEmitter {
         addAndloadconst(LongNode.valueOf(i));
     }
         
+    /**
+     * @param ref the reference of the variable name
+     * @return the constant value bound to the variable, or null if it isn't constant
+     */
+    public JsonNode findConstant(String ref) {
+        return this.scopes.peek().findConstant(ref);
+    }
+    
     /**
      * Invokes a load instruction of the variable, either as a <code>loadlocal</code> or a <code>loadouter</code>.
      * 
@@ -440,6 +479,12 @@ public class BytecodeEmitter {
      * local storage or any parent scopes (i.e., Outer).
      */
     public boolean load(String ref) {
+        JsonNode constant = findConstant(ref);
+        if (constant != null) {
+            loadconst(constant);
+            return true;
+        }
+        
         boolean success = true;            
         int i = getLocals().get(ref);
         if (i > -1) {
@@ -604,6 +649,7 @@ public class BytecodeEmitter {
         BytecodeEmitter asm = new BytecodeEmitter(this.scopes);
         asm.start(ScopeType.LOCAL_SCOPE, numberOfParameters);
         asm.setDebug(this.isDebug());
+        asm.setRegisterInstructions(this.registerInstructions);
 
         peek().innerEmmitters.add(asm);
         this.innerEmitterStack.push(asm);
@@ -688,11 +734,48 @@ public class BytecodeEmitter {
         }
     }
     
+    /**
+     * Binds the local to a constant value rather than storing it, loading the local emits
+     * the constant instead
+     * 
+     * @param index
+     * @param value
+     */
+    public void constlocal(int index, JsonNode value) {
+        getLocals().setConstant(index, value);
+    }
+    
+    /**
+     * Loads the constant value, the literals with a dedicated instruction don't use the constants table
+     * 
+     * @param value
+     */
+    public void loadconst(JsonNode value) {
+        if (value.isNull()) {
+            loadnull();
+        }
+        else if (value.isBoolean()) {
+            if (value.booleanValue()) {
+                loadtrue();
+            }
+            else {
+                loadfalse();
+            }
+        }
+        else {
+            addAndloadconst(value);
+        }
+    }
+    
     public void loadconst(int index) {
         instrx(LOAD_CONST, index);    
         
         incrementMaxstackSize();
     }
+    public void copyconst(int index) {
+        instrx(COPY_CONST, index);
+        incrementMaxstackSize();
+    }
     public void loadlocal(int index) {        
         instrx(LOAD_LOCAL, index);
         incrementMaxstackSize();
@@ -704,6 +787,7 @@ public class BytecodeEmitter {
     }   
     
     public void storelocal(int index) {        
+        getLocals().setConstant(index, null);
         instrx(STORE_LOCAL, index);
         decrementMaxstackSize();
     }
@@ -740,16 +824,22 @@ public class BytecodeEmitter {
         }
     }
         
-    public void newobj() {
-        instr(NEW_OBJ);        
+    /**
+     * @param sizeHint the number of fields the object literal declares
+     */
+    public void newobj(int sizeHint) {
+        instrx(NEW_OBJ, Math.min(sizeHint, MAX_ARGx));
     }
     public void sealobj() {
         instr(SEAL_OBJ);
         incrementMaxstackSize();
     }
     
-    public void newarray() {
-        instr(NEW_ARRAY);        
+    /**
+     * @param sizeHint the number of elements the array literal declares
+     */
+    public void newarray(int sizeHint) {
+        instrx(NEW_ARRAY, Math.min(sizeHint, MAX_ARGx));
     }    
     
     public void sealarray() {
@@ -763,7 +853,9 @@ public class BytecodeEmitter {
     }
     
     public void addfieldk(int constIndex) {
-        instrx(ADD_FIELDK, constIndex);
+        if(!fuseInputField(COPY_INPUT_FIELDK, 1, constIndex)) {
+            instrx(ADD_FIELDK, constIndex);
+        }
         decrementMaxstackSize();
     }
     
@@ -777,6 +869,33 @@ public class BytecodeEmitter {
         decrementMaxstackSize();
     }
     
+    public void addvaluefieldk(String fieldName) {
+        int index = addConst(TextNode.valueOf(fieldName));
+        if(!fuseInputField(COPY_INPUT_VALUE_FIELDK, 2, index)) {
+            instrx(ADD_VALUE_FIELDK, index);
+        }
+        decrementMaxstackSize();
+    }
+    
+    public void addvaluefield() {
+        instr(ADD_VALUE_FIELD);
+        decrementMaxstackSize(2);
+    }
+    
+    public void addvalueelement() {
+        instr(ADD_VALUE_ELEMENT);
+        decrementMaxstackSize();
+    }
+    
+    public void sealvalueobj() {
+        instr(SEAL_VALUE_OBJ);
+        incrementMaxstackSize();
+    }
+    
+    public void stripnulls() {
+        instr(STRIP_NULLS);
+    }
+    
     public void arrayslice() {
         instr(ARRAY_SLICE);
         decrementMaxstackSize(2);
@@ -802,6 +921,36 @@ public class BytecodeEmitter {
         newLocalScopeEmitter(0);
     }
     
+    /**
+     * Adds the automatic <code>$index__</code> local of the current for body
+     * 
+     * @return the index of the local
+     */
+    public int indexlocal() {
+        peek().localScope.setIndexLocal(true);
+        return addLocal("$index__");
+    }
+    
+    /**
+     * Adds the locals holding the key and value of the object entry being iterated by the
+     * current for body
+     * 
+     * @return the index of the key local, the value local follows it
+     */
+    public int entrylocals() {
+        peek().localScope.setEntryLocals(true);
+        int keyIndex = addLocal(".key");
+        addLocal(".value");
+        return keyIndex;
+    }
+    
+    /**
+     * Marks the current function as memoized, its results may be cached by its arguments
+     */
+    public void memoized() {
+        peek().localScope.setMemoized(true);
+    }
+    
     public void async() {
         instrx(ASYNC, getBytecodeIndex());
         peek().localScope.setAsync(true);
@@ -813,18 +962,25 @@ public class BytecodeEmitter {
         instr(AWAIT);
     }
     
-    public void matcher(int numOfOmittedFields) {
-        instr2(MATCHER, numOfOmittedFields, getBytecodeIndex());
-        decrementMaxstackSize(numOfOmittedFields);
+    public void matcher(FieldMatcher matcher) {
+        int index = getConstants().storeMatcher(matcher);
+        instr2(MATCHER, index, getBytecodeIndex());
         newLocalScopeEmitter(0);
     }
     
+    public void copymatcher(FieldMatcher matcher, boolean stripNulls) {
+        int index = getConstants().storeMatcher(matcher);
+        instr2(COPY_MATCHER, index, stripNulls ? 1 : 0);
+    }
+    
     public void getfieldk(int constIndex) {
-        instrx(GET_FIELDK, constIndex);        
+        if(!fuseLocal(GET_LOCAL_FIELDK, constIndex)) {
+            instrx(GET_FIELDK, constIndex);
+        }
     }
     public void getfieldk(String stringconst) {
         int index = getConstants().store(stringconst);
-        instrx(GET_FIELDK, index);
+        getfieldk(index);
     }
     
     public void getfield() {
@@ -842,6 +998,18 @@ public class BytecodeEmitter {
         instrx(GET_INPUT_FIELDK, index);
     }
     
+    public void getpath(String[] path) {
+        int index = getConstants().storePath(path);
+        if(!fuseLocal(GET_LOCAL_PATH, index)) {
+            instrx(GET_PATH, index);
+        }
+    }
+    
+    public void getinputpath(String[] path) {
+        int index = getConstants().storePath(path);
+        instrx(GET_INPUT_PATH, index);
+    }
+    
     public void funcdef(int numberOfParameters) {
         instrx(FUNC_DEF, getBytecodeIndex());        
         incrementMaxstackSize(numberOfParameters);
@@ -865,6 +1033,36 @@ public class BytecodeEmitter {
         return labelName;
     }
     
+    public void ifne(String label) {
+        markLabel(IFNE, label);
+        decrementMaxstackSize();
+    }
+    
+    /**
+     * Jumps to the label if the comparison of the two values on the top of the stack holds
+     * 
+     * @param opcode one of the <code>IF_CMPxx</code> opcodes
+     * @param label
+     */
+    public void ifcmp(int opcode, String label) {
+        markLabel(opcode, label);
+        decrementMaxstackSize(2);
+    }
+    
+    public void ifnull(String label) {
+        markLabel(IFNULL, label);
+        decrementMaxstackSize();
+    }
+    
+    public void ifnonnull(String label) {
+        markLabel(IFNONNULL, label);
+        decrementMaxstackSize();
+    }
+    
+    public void ifempty(String label) {
+        markLabel(IFEMPTY, label);
+    }
+    
     public void macroinvoke(int numberOfArgs, String macroName) {
         int index = addConst(TextNode.valueOf(macroName));
         instr2(MACRO_INVOKE, numberOfArgs, index);          
@@ -876,6 +1074,11 @@ public class BytecodeEmitter {
         decrementMaxstackSize(numberOfArgs-1);
     }
     
+    public void tailinvoke(int numberOfArgs, int bytecodeIndex) {
+        instr2(TAIL_INVOKE, numberOfArgs, bytecodeIndex);          
+        decrementMaxstackSize(numberOfArgs-1);
+    }
+    
     public void userinvoke(int numberOfArgs, String functionName) {
         int index = addConst(TextNode.valueOf(functionName));
         instr2(USER_INVOKE, numberOfArgs, index);
@@ -890,29 +1093,153 @@ public class BytecodeEmitter {
         
     /* arithmetic operators */
     public void add() {
-        instr(ADD);
+        if(!fuseRK(ADD_RK)) instr(ADD);
         decrementMaxstackSize();
     }
     public void sub() {
-        instr(SUB);
+        if(!fuseRK(SUB_RK)) instr(SUB);
         decrementMaxstackSize();
     }
     public void mul() {
-        instr(MUL);
+        if(!fuseRK(MUL_RK)) instr(MUL);
         decrementMaxstackSize();
     }
     public void div() {
-        instr(DIV);
+        if(!fuseRK(DIV_RK)) instr(DIV);
         decrementMaxstackSize();
     }
     public void mod() {
-        instr(MOD);
+        if(!fuseRK(MOD_RK)) instr(MOD);
         decrementMaxstackSize();
     }
+    
+    /* register instructions */
+    
+    /**
+     * Determines if the last instructions can be replaced by a register instruction, which is only the case if
+     * register instructions are enabled and none of the replaced instructions, other than the first, is the target
+     * of a jump
+     * 
+     * @param n the number of instructions to replace
+     * @return true if the last n instructions can be replaced
+     */
+    private boolean canFuse(int n) {
+        int count = getInstructionCount();
+        if(!this.registerInstructions || count < n) {
+            return false;
+        }
+        
+        int first = count - n;
+        for(Label label : getLabels().labels()) {
+            int index = label.getLabelInstructionIndex();
+            if(index > first && index <= count) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * @return the RK operand read by the instruction if it loads a local or a constant, otherwise -1
+     */
+    private static int rkOperand(int instruction) {
+        int index = ARGx(instruction);
+        if(index > MAX_RK_INDEX) {
+            return -1;
+        }
+        
+        switch(OPCODE(instruction)) {
+            case LOAD_LOCAL: return index;
+            case LOAD_CONST: return index | RK_CONST;
+            default:         return -1;
+        }
+    }
+    
+    /**
+     * Replaces the loads of both operands of a binary operator and the operator itself with the register 
+     * instruction
+     * 
+     * @return true if replaced
+     */
+    private boolean fuseRK(int opcode) {
+        if(!canFuse(2)) {
+            return false;
+        }
+        
+        Instructions instrs = getInstructions();
+        int b = rkOperand(instrs.get(instrs.getCount() - 2));
+        int c = rkOperand(instrs.peekLast());
+        if(b < 0 || c < 0) {
+            return false;
+        }
+        
+        instrs.remove(instrs.getCount() - 1);
+        instrs.setLast(SET_ARG2(SET_ARG1(opcode, b), c));
+        return true;
+    }
+    
+    /**
+     * Replaces a <code>LOAD_LOCAL</code> followed by the instruction reading from the loaded value with the 
+     * register instruction
+     * 
+     * @return true if replaced
+     */
+    private boolean fuseLocal(int opcode, int arg) {
+        if(!canFuse(1) || arg > MAX_ARG2) {
+            return false;
+        }
+        
+        Instructions instrs = getInstructions();
+        int last = instrs.peekLast();
+        if(OPCODE(last) != LOAD_LOCAL || ARGx(last) > MAX_ARG1) {
+            return false;
+        }
+        
+        instrs.setLast(SET_ARG2(SET_ARG1(opcode, ARGx(last)), arg));
+        return true;
+    }
+    
+    /**
+     * Replaces a <code>GET_INPUT_FIELDK</code>, optionally followed by a <code>STRIP_NULLS</code>, and the instruction 
+     * adding the value to the object being built with the register instruction 
+     * 
+     * @param opcode
+     * @param n the number of instructions replaced
+     * @param fieldNameIndex the constant index of the name of the added field
+     * @return true if replaced
+     */
+    private boolean fuseInputField(int opcode, int n, int fieldNameIndex) {
+        if(!canFuse(n) || fieldNameIndex > MAX_ARG2) {
+            return false;
+        }
+        
+        Instructions instrs = getInstructions();
+        int count = instrs.getCount();
+        int get = instrs.get(count - n);
+        if(OPCODE(get) != GET_INPUT_FIELDK || ARGx(get) > MAX_ARG1 || 
+           (n > 1 && OPCODE(instrs.peekLast()) != STRIP_NULLS)) {
+            return false;
+        }
+        
+        if(n > 1) {
+            instrs.remove(count - 1);
+        }
+        instrs.setLast(SET_ARG2(SET_ARG1(opcode, ARGx(get)), fieldNameIndex));
+        return true;
+    }
     public void neg() {
         instr(NEG);
     }
         
+    /**
+     * @param n the number of values to concatenate
+     */
+    public void concat(int n) {
+        instrx(CONCAT, n);
+        decrementMaxstackSize(n - 1);
+    }
+        
     public void not() {
         instr(NOT);
     }
@@ -945,6 +1272,36 @@ public class BytecodeEmitter {
         decrementMaxstackSize();
     }
     
+    /**
+     * @param code
+     * @param index
+     * @return true if the local at the supplied index is loaded, or captured as an outer
+     */
+    private static boolean readsLocal(int[] code, int index) {
+        for(int i = 0; i < code.length; i++) {
+            int opcode = OPCODE(code[i]);
+            switch(opcode) {
+                case LOAD_LOCAL:
+                case xLOAD_LOCAL:
+                    if(ARGx(code[i]) == index) return true;
+                    break;
+                case ADD_RK:
+                case SUB_RK:
+                case MUL_RK:
+                case DIV_RK:
+                case MOD_RK:
+                    if(ARG1(code[i]) == index || ARG2(code[i]) == index) return true;
+                    break;
+                case GET_LOCAL_FIELDK:
+                case GET_LOCAL_PATH:
+                    if(ARG1(code[i]) == index) return true;
+                    break;
+            }
+        }
+        
+        return false;
+    }
+    
     /**
      * Compiles the assembler into {@link Bytecode}.
      * 
@@ -961,7 +1318,6 @@ public class BytecodeEmitter {
         if(this.localScope.hasOuters()) {
             Outers outers = this.localScope.getOuters();
             bytecode.numOuters = outers.getNumberOfOuters();
-            bytecode.outers = new JsonNode[bytecode.numOuters];
         }
         
         
@@ -989,17 +1345,48 @@ public class BytecodeEmitter {
         if (this.localScope.hasAsync()) {
             bytecode.setAsync();
         }
+        
+        if (this.localScope.hasEntryLocals()) {
+            bytecode.setEntryLocals();
+        }
+        
+        if (this.localScope.isMemoized()) {
+            bytecode.setMemoized();
+        }
+        
+        /* the index is only stored by the VM if it is read by the body, or captured by one of its closures */
+        if (this.localScope.hasIndexLocal() && readsLocal(code, 0)) {
+            bytecode.setIndexLocal();
+        }
                                         
         if (this.localScope.hasConstants()) {
             Constants constants = this.localScope.getConstants();
             bytecode.constants = constants.compile();
+            bytecode.stringConstants = constants.compileStrings();
             bytecode.numConstants = constants.getNumberOfConstants();
         }
         else {
             bytecode.numConstants = 0;
             bytecode.constants = ArrayUtil.EMPTY_NODES;
+            bytecode.stringConstants = ArrayUtil.EMPTY_STRINGS;
+        }
+        
+        if (this.localScope.hasPaths()) {
+            bytecode.paths = this.localScope.getConstants().compilePaths();
+        }
+        else {
+            bytecode.paths = ArrayUtil.EMPTY_PATHS;
         }
         
+        if (this.localScope.hasMatchers()) {
+            bytecode.matchers = this.localScope.getConstants().compileMatchers();
+        }
+        else {
+            bytecode.matchers = ArrayUtil.EMPTY_MATCHERS;
+        }
+        
+        bytecode.functions = new Jslt2Function[bytecode.numConstants];
+        
         int stacksize = this.localScope.getMaxstacksize();
         stacksize += bytecode.numArgs;
         stacksize += bytecode.numLocals; 
@@ -4,10 +4,20 @@
 package jslt2.vm.compiler;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.BooleanNode;
+import com.fasterxml.jackson.databind.node.NullNode;
+import com.fasterxml.jackson.databind.node.TextNode;
 
 import jslt2.Jslt2;
 import jslt2.Jslt2Exception;
+import jslt2.ast.Decl;
 import jslt2.ast.Decl.*;
 import jslt2.ast.Expr;
 import jslt2.ast.Expr.*;
@@ -17,9 +27,12 @@ import jslt2.parser.Parser;
 import jslt2.parser.Scanner;
 import jslt2.parser.Source;
 import jslt2.parser.tokens.TokenType;
+import jslt2.util.Jslt2Util;
 import jslt2.util.Stack;
 import jslt2.util.Tuple;
 import jslt2.vm.Bytecode;
+import jslt2.vm.FieldMatcher;
+import jslt2.vm.Opcodes;
 
 /**
  * The compiler for Jslt2
@@ -42,7 +55,9 @@ public class Compiler {
      * @return the {@link Bytecode}
      */
     public Bytecode compile(ProgramExpr program) throws Jslt2Exception {        
-        return new BytecodeEmitterNodeVisitor().compile(program);
+        Bytecode code = new BytecodeEmitterNodeVisitor().compile(program);
+        code.bindFunctions(this.runtime);
+        return code;
     }
     
     
@@ -54,17 +69,64 @@ public class Compiler {
         private Locals asyncLocals;
         private int asyncLocalsIndex;
         
+        /**
+         * If null and empty values are omitted from the output
+         */
+        private boolean omitNulls;
+        
+        /**
+         * The local holding the key of the object entry iterated by the current for body, the 
+         * value is held in the next local; or -1 if the body reads them from its input
+         */
+        private int entryLocal;
+        
+        /**
+         * Moves the invariant code out of the for bodies, a call is only hoisted if it invokes a pure
+         * runtime function rather than a function defined in the template
+         */
+        private LoopInvariants loopInvariants;
+        
+        /**
+         * The modules parsed ahead of the compilation, so that the unused declarations of the 
+         * whole program can be removed
+         */
+        private Map<ImportDecl, ModuleExpr> modules;
+        
+        /**
+         * The calls in tail position of the function being compiled, which replace its frame
+         * rather than nest a new one
+         */
+        private Set<FuncCallExpr> tailCalls;
+        
+        /**
+         * The functions whose results may be cached by their arguments
+         */
+        private Set<DefDecl> memoized;
+        
         public BytecodeEmitterNodeVisitor() {
             this.asm = new BytecodeEmitter(new EmitterScopes());
             this.asm.setDebug(runtime.isDebugMode());
+            this.asm.setRegisterInstructions(runtime.isRegisterInstructions());
+            this.omitNulls = !runtime.includeNulls();
+            this.entryLocal = -1;
+            this.loopInvariants = new LoopInvariants(name -> asm.getFunction(name) < 0 && runtime.isPureFunction(name));
             
             this.moduleStack = new Stack<>();
             this.libraryStack = new Stack<>();
             
             this.inAsyncBlock = false;
+            this.modules = new IdentityHashMap<>();
+            this.tailCalls = Collections.emptySet();
+            this.memoized = Collections.emptySet();
         }
         
         public Bytecode compile(ProgramExpr program) {
+            parseModules(program, new Stack<>());
+            new UnusedDeclarations(this.modules).remove(program);
+            if(runtime.getMemoCacheSize() > 0) {
+                this.memoized = new MemoizedFunctions(runtime, this.modules).find(program);
+            }
+            
             visit(program);
             
             return this.asm.compile();
@@ -73,50 +135,91 @@ public class Compiler {
         private Jslt2Exception error(Expr expr, String msg) {                
             return new Jslt2Exception(ErrorCode.errorMessage(expr.token, msg, expr.sourceLine));
         }
-
+        
         /**
-         * Used for matcher expressions, we must determine which
-         * input path to resolve to (i.e., if we're in a chain of
-         * ObjectExpr, we'll want to match the keys of the input)
+         * Emits an expression whose value is placed in the output.  If nulls are omitted, any null or empty values
+         * nested within the value are stripped out, unless the value is known to be free of them.
          */
-        private void pushInputContext(Expr expr) {
-            StringBuilder sb = new StringBuilder();
-            
-            Expr child = expr;
-            Expr parent = expr.parentNode;
-            if(parent instanceof ArrayExpr) {
-                throw error(parent, "Object matching not allowed in an array");
-            }
-            
-            int count = 0;
-            
-            while(parent != null && count < 2) {
-                if(parent instanceof ObjectExpr) {
-                    ObjectExpr objExpr = (ObjectExpr) parent;
-                    if(objExpr.forObjectExpr == null) {
-                        List<Tuple<Expr, Expr>> fields = objExpr.fields;
-                        for(Tuple<Expr, Expr> field : fields) {
-                            if(field.getSecond() == child) {
-                                sb.append(field.getFirst()).append(":");
-                            }
-                        }
-                    }
-                    
-                    count = 0;
-                }
-                else if(parent instanceof BinaryExpr) {
-                    BinaryExpr bExpr = (BinaryExpr)parent;
-                    if(bExpr.operator.equals(TokenType.PIPE)) {
-                        break;
-                    }
+        private void emitValue(Expr expr) {
+            expr.visit(this);
+            if(this.omitNulls && !isNullFree(expr)) {
+                asm.stripnulls();
+            }
+        }
+        
+        /**
+         * @return true if the value must be checked for null or empty before it is added to the output
+         */
+        private boolean omitsEmpty(Expr expr) {
+            return this.omitNulls && !isNeverEmpty(expr);
+        }
+        
+        /**
+         * @return true if the expression can never evaluate to null, an empty object or an empty array
+         */
+        private boolean isNeverEmpty(Expr expr) {
+            if(expr instanceof NumberExpr || expr instanceof StringExpr || expr instanceof BooleanExpr) {
+                return true;
+            }
+            
+            if(expr instanceof ConstantExpr) {
+                return Jslt2Util.isValue(constant((ConstantExpr)expr));
+            }
+            
+            if(expr instanceof GroupExpr) {
+                return isNeverEmpty(((GroupExpr)expr).expr);
+            }
+            
+            if(expr instanceof UnaryExpr) {
+                return ((UnaryExpr)expr).operator == TokenType.NOT;
+            }
+            
+            if(expr instanceof BinaryExpr) {
+                switch(((BinaryExpr)expr).operator) {
+                    case AND:
+                    case OR:
+                    case NOT_EQUALS:
+                    case GREATER_THAN:
+                    case GREATER_EQUALS:
+                    case LESS_THAN:
+                    case LESS_EQUALS:
+                    case EQUALS_EQUALS:
+                    case EQUALS: return true;
+                    default: return false;
                 }
-                
-                child = parent;
-                parent = parent.parentNode;
-                count++;
             }
             
-            asm.addAndloadconst(sb.toString());
+            return false;
+        }
+        
+        /**
+         * @return true if the expression never evaluates to a value containing null or empty values, that is
+         * a primitive or an object or array built by the template, which omits them as they are added
+         */
+        private boolean isNullFree(Expr expr) {
+            if(isNeverEmpty(expr) || expr instanceof NullExpr || expr instanceof ObjectExpr || expr instanceof ArrayExpr ||
+               expr instanceof ConstantExpr) {
+                return true;
+            }
+            
+            if(expr instanceof GroupExpr) {
+                return isNullFree(((GroupExpr)expr).expr);
+            }
+            
+            if(expr instanceof ElseExpr) {
+                return isNullFree(((ElseExpr)expr).expr);
+            }
+            
+            if(expr instanceof IfExpr) {
+                IfExpr ifExpr = (IfExpr)expr;
+                return isNullFree(ifExpr.thenExpr) && (ifExpr.elseExpr == null || isNullFree(ifExpr.elseExpr));
+            }
+            
+            if(expr instanceof BinaryExpr && ((BinaryExpr)expr).operator == TokenType.PIPE) {
+                return isNullFree(((BinaryExpr)expr).right);
+            }
+            
+            return false;
         }
         
         @Override
@@ -161,34 +264,57 @@ public class Compiler {
                 forExpr.visit(this);
             }
             else {
-                asm.newobj();
+                // the matcher must see the fields the template defines, even if they are null,
+                // so they are only omitted once the object is sealed
+                boolean hasMatcher = this.omitNulls && 
+                        expr.fields.stream().anyMatch(field -> field.getFirst() instanceof MatchExpr);
+                
+                asm.newobj((int)expr.fields.stream().filter(field -> !(field.getFirst() instanceof MatchExpr)).count());
                 for(Tuple<Expr, Expr> field : expr.fields) {
                     Expr fieldName = field.getFirst();
                     Expr fieldValue = field.getSecond();
                     
-                    if(fieldName instanceof IdentifierExpr) {
-                        fieldValue.visit(this);
-                        asm.addfieldk(((IdentifierExpr)fieldName).identifier);
+                    if(fieldName instanceof IdentifierExpr || fieldName instanceof StringExpr) {
+                        String name = (fieldName instanceof IdentifierExpr) ? ((IdentifierExpr)fieldName).identifier
+                                                                            : ((StringExpr)fieldName).string;
+                        emitValue(fieldValue);
+                        if(!hasMatcher && omitsEmpty(fieldValue)) {
+                            asm.addvaluefieldk(name);
+                        }
+                        else {
+                            asm.addfieldk(name);
+                        }
                     }
-                    else if(fieldName instanceof StringExpr) {
-                        fieldValue.visit(this);
-                        asm.addfieldk(((StringExpr)fieldName).string);
+                    else if(fieldName instanceof MatchExpr && isIdentity(fieldValue)) {
+                        // * : . copies the remaining fields as they are
+                        asm.line(fieldName.lineNumber);
+                        asm.copymatcher(fieldMatcher((MatchExpr)fieldName), this.omitNulls);
                     }
                     else if(fieldName instanceof MatchExpr) {
-                        pushInputContext(expr);
                         fieldName.visit(this);
                         
                         // this is the body of the matcher function
-                        fieldValue.visit(this);                        
+                        emitValue(fieldValue);                        
                         asm.end();
                     }
                     else {                     
                         fieldName.visit(this);
-                        fieldValue.visit(this);
-                        asm.addfield();
+                        emitValue(fieldValue);
+                        if(!hasMatcher && omitsEmpty(fieldValue)) {
+                            asm.addvaluefield();
+                        }
+                        else {
+                            asm.addfield();
+                        }
                     }
                 }
-                asm.sealobj();
+                
+                if(hasMatcher) {
+                    asm.sealvalueobj();
+                }
+                else {
+                    asm.sealobj();
+                }
             }
             
         }
@@ -202,29 +328,45 @@ public class Compiler {
                 arrayExpr.visit(this);
             }
             else {
-                asm.newarray();
                 List<Expr> elements = expr.elements;
+                asm.newarray(elements.size());
                 
                 for(Expr e : elements) {
-                    e.visit(this);
-                    asm.addelement();
-                    
+                    emitValue(e);
+                    if(omitsEmpty(e)) {
+                        asm.addvalueelement();
+                    }
+                    else {
+                        asm.addelement();
+                    }
                 }
                 asm.sealarray();
             }
         }
     
+        @Override
+        public void visit(ConstantExpr expr) {
+            asm.line(expr.lineNumber);
+            asm.addAndloadconst(constant(expr));
+        }
+        
+        /**
+         * @return the value of the literal, without its null and empty values if they are omitted
+         */
+        private JsonNode constant(ConstantExpr expr) {
+            return this.omitNulls ? Jslt2Util.stripNullNodes(expr.value) : expr.value;
+        }
+    
         @Override
         public void visit(IfExpr expr) {
             asm.line(expr.lineNumber);
             
-            Expr cond = expr.condition;
-            cond.visit(this);
+            String elseLabel = asm.nextLabelName();
+            branch(expr.condition, elseLabel, false);
             
             asm.markLexicalScope();
             expr.lets.forEach(field -> field.visit(this));
             
-            String elseLabel = asm.ifeq();
             Expr then = expr.thenExpr;
             then.visit(this);
             String endif = asm.jmp();
@@ -260,16 +402,32 @@ public class Compiler {
             
             Expr cond = expr.condition;
             cond.visit(this);
+            
+            // the loop invariants are evaluated once, before the loop, and only if the loop has elements
+            asm.markLexicalScope();
+            List<LetDecl> invariants = new ArrayList<>();
+            expr = this.loopInvariants.hoist(expr, invariants);
+            if(!invariants.isEmpty()) {
+                String loopLabel = asm.nextLabelName();
+                asm.ifempty(loopLabel);
+                invariants.forEach(let -> let.visit(this));
+                asm.label(loopLabel);
+            }
+            
             asm.forobjdef();                
                 // the automatic index variable 
-                asm.addLocal("$index__");
+                asm.indexlocal();
+                
+                int outerEntryLocal = this.entryLocal;
+                this.entryLocal = usesEntryObject(expr.lets, expr.ifExpr, expr.keyExpr, expr.valueExpr) 
+                        ? -1 : asm.entrylocals();
             
                 expr.lets.forEach(let -> let.visit(this));
                 
                 Expr ifExpr = expr.ifExpr;
                 if(ifExpr != null) {
-                    ifExpr.visit(this);
-                    String skipLabel = asm.ifeq();
+                    String skipLabel = asm.nextLabelName();
+                    branch(ifExpr, skipLabel, false);
                     
                     Expr key = expr.keyExpr;
                     if(key instanceof IdentifierExpr) {
@@ -281,7 +439,7 @@ public class Compiler {
                     }
                     
                     Expr value = expr.valueExpr;
-                    value.visit(this);
+                    emitValue(value);
                     String endif = asm.jmp();
                     
                     asm.label(skipLabel);
@@ -301,9 +459,12 @@ public class Compiler {
                     }
                     
                     Expr value = expr.valueExpr;
-                    value.visit(this);
+                    emitValue(value);
                 }
             asm.end();
+            asm.unmarkLexicalScope();
+            
+            this.entryLocal = outerEntryLocal;
         }
     
         @Override
@@ -312,19 +473,35 @@ public class Compiler {
             
             Expr cond = expr.condition;
             cond.visit(this);
+            
+            // the loop invariants are evaluated once, before the loop, and only if the loop has elements
+            asm.markLexicalScope();
+            List<LetDecl> invariants = new ArrayList<>();
+            expr = this.loopInvariants.hoist(expr, invariants);
+            if(!invariants.isEmpty()) {
+                String loopLabel = asm.nextLabelName();
+                asm.ifempty(loopLabel);
+                invariants.forEach(let -> let.visit(this));
+                asm.label(loopLabel);
+            }
+            
             asm.forarraydef();
                 // the automatic index variable 
-                asm.addLocal("$index__");
+                asm.indexlocal();
+                
+                int outerEntryLocal = this.entryLocal;
+                this.entryLocal = usesEntryObject(expr.lets, expr.ifExpr, null, expr.valueExpr) 
+                        ? -1 : asm.entrylocals();
                 
                 expr.lets.forEach(let -> let.visit(this));
                 
                 Expr ifExpr = expr.ifExpr;
                 if(ifExpr != null) {
-                    ifExpr.visit(this);
-                    String skipLabel = asm.ifeq();
+                    String skipLabel = asm.nextLabelName();
+                    branch(ifExpr, skipLabel, false);
                     
                     Expr value = expr.valueExpr;
-                    value.visit(this);
+                    emitValue(value);
                     
                     String endif = asm.jmp();
                     
@@ -335,9 +512,142 @@ public class Compiler {
                 }
                 else {
                     Expr value = expr.valueExpr;
-                    value.visit(this);
+                    emitValue(value);
                 }
             asm.end();
+            asm.unmarkLexicalScope();
+            
+            this.entryLocal = outerEntryLocal;
+        }
+        
+        /**
+         * Determines if a for body requires its input to be an object holding the <code>key</code> and 
+         * <code>value</code> of the iterated entry.  If the input is only used to read <code>.key</code> 
+         * and <code>.value</code>, these are instead read from locals and the entry object isn't created.
+         */
+        private boolean usesEntryObject(List<LetDecl> lets, Expr ifExpr, Expr keyExpr, Expr valueExpr) {
+            for(LetDecl let : lets) {
+                if(usesEntryObject(let.value)) {
+                    return true;
+                }
+            }
+            
+            return usesEntryObject(ifExpr) || usesEntryObject(keyExpr) || usesEntryObject(valueExpr);
+        }
+        
+        /**
+         * @return true if the expression uses its input other than to read the <code>.key</code> or 
+         * <code>.value</code> field.  Nested for bodies and the right side of a pipe have their own input.
+         */
+        private boolean usesEntryObject(Expr expr) {
+            if(expr == null || expr instanceof NumberExpr || expr instanceof StringExpr || expr instanceof BooleanExpr ||
+               expr instanceof NullExpr || expr instanceof VariableExpr || expr instanceof IdentifierExpr) {
+                return false;
+            }
+            
+            if(expr instanceof DotExpr) {
+                String fieldName = inputFieldName((DotExpr)expr);
+                return !"key".equals(fieldName) && !"value".equals(fieldName);
+            }
+            
+            if(expr instanceof GetExpr) {
+                return usesEntryObject(((GetExpr)expr).object);
+            }
+            
+            if(expr instanceof GroupExpr) {
+                return usesEntryObject(((GroupExpr)expr).expr);
+            }
+            
+            if(expr instanceof UnaryExpr) {
+                return usesEntryObject(((UnaryExpr)expr).expr);
+            }
+            
+            if(expr instanceof BinaryExpr) {
+                BinaryExpr binExpr = (BinaryExpr)expr;
+                return usesEntryObject(binExpr.left) || 
+                       (binExpr.operator != TokenType.PIPE && usesEntryObject(binExpr.right));
+            }
+            
+            if(expr instanceof ArrayIndexExpr) {
+                ArrayIndexExpr indexExpr = (ArrayIndexExpr)expr;
+                return usesEntryObject(indexExpr.array) || usesEntryObject(indexExpr.index);
+            }
+            
+            if(expr instanceof ArraySliceExpr) {
+                ArraySliceExpr sliceExpr = (ArraySliceExpr)expr;
+                return usesEntryObject(sliceExpr.array) || usesEntryObject(sliceExpr.startExpr) || usesEntryObject(sliceExpr.endExpr);
+            }
+            
+            if(expr instanceof IfExpr) {
+                IfExpr ifExpr = (IfExpr)expr;
+                return usesEntryObject(ifExpr.lets, ifExpr.condition, ifExpr.thenExpr, ifExpr.elseExpr);
+            }
+            
+            if(expr instanceof ElseExpr) {
+                ElseExpr elseExpr = (ElseExpr)expr;
+                return usesEntryObject(elseExpr.lets, null, null, elseExpr.expr);
+            }
+            
+            if(expr instanceof ForArrayExpr) {
+                return usesEntryObject(((ForArrayExpr)expr).condition);
+            }
+            
+            if(expr instanceof ForObjectExpr) {
+                return usesEntryObject(((ForObjectExpr)expr).condition);
+            }
+            
+            if(expr instanceof ArrayExpr) {
+                ArrayExpr arrayExpr = (ArrayExpr)expr;
+                if(arrayExpr.forExpr != null) {
+                    return usesEntryObject(arrayExpr.forExpr);
+                }
+                
+                for(Expr element : arrayExpr.elements) {
+                    if(usesEntryObject(element)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            
+            if(expr instanceof ObjectExpr) {
+                ObjectExpr objExpr = (ObjectExpr)expr;
+                if(objExpr.forObjectExpr != null) {
+                    return usesEntryObject(objExpr.forObjectExpr);
+                }
+                
+                if(usesEntryObject(objExpr.lets, null, null, null)) {
+                    return true;
+                }
+                
+                for(Tuple<Expr, Expr> field : objExpr.fields) {
+                    // a matcher reads the fields of its input
+                    if(field.getFirst() instanceof MatchExpr || 
+                       usesEntryObject(field.getFirst()) || usesEntryObject(field.getSecond())) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            
+            // function calls receive the input
+            return true;
+        }
+        
+        /**
+         * @return the local holding the entry field, or -1 if it is read from the input
+         */
+        private int entryLocal(String fieldName) {
+            if(this.entryLocal > -1) {
+                if("key".equals(fieldName)) {
+                    return this.entryLocal;
+                }
+                if("value".equals(fieldName)) {
+                    return this.entryLocal + 1;
+                }
+            }
+            
+            return -1;
         }
     
         @Override
@@ -346,8 +656,45 @@ public class Compiler {
             
             String localVarName = "$" + expr.identifier; 
             int index = asm.addLocal(localVarName);
-            expr.value.visit(this);
-            asm.storelocal(index);
+            
+            // a let bound to a constant is loaded as the constant where it's used
+            JsonNode constant = constantValue(expr.value);
+            if(constant != null) {
+                asm.constlocal(index, constant);
+            }
+            else {
+                expr.value.visit(this);
+                asm.storelocal(index);
+            }
+        }
+        
+        /**
+         * @return the value of the expression if it's a literal or a variable bound to one, otherwise null
+         */
+        private JsonNode constantValue(Expr expr) {
+            if(expr instanceof NumberExpr) {
+                return ((NumberExpr)expr).number;
+            }
+            if(expr instanceof StringExpr) {
+                return TextNode.valueOf(((StringExpr)expr).string);
+            }
+            if(expr instanceof BooleanExpr) {
+                return BooleanNode.valueOf(((BooleanExpr)expr).bool);
+            }
+            if(expr instanceof NullExpr) {
+                return NullNode.instance;
+            }
+            if(expr instanceof ConstantExpr) {
+                return constant((ConstantExpr)expr);
+            }
+            if(expr instanceof GroupExpr) {
+                return constantValue(((GroupExpr)expr).expr);
+            }
+            if(expr instanceof VariableExpr && !this.inAsyncBlock) {
+                return asm.findConstant(((VariableExpr)expr).variable);
+            }
+            
+            return null;
         }
     
         @Override
@@ -361,8 +708,15 @@ public class Compiler {
             
             asm.addFunction(functionName, asm.getBytecodeIndex());
             
+            Set<FuncCallExpr> outerTailCalls = this.tailCalls;
+            this.tailCalls = this.inAsyncBlock ? Collections.emptySet() : TailCalls.find(expr);
+            
             List<String> parameters = expr.parameters;
             asm.funcdef(parameters.size());        
+                if(!this.inAsyncBlock && this.memoized.contains(expr)) {
+                    asm.memoized();
+                }
+                
                 for(String param : parameters) {
                     asm.addLocal("$"+param);
                 }
@@ -370,6 +724,8 @@ public class Compiler {
                 
                 expr.expr.visit(this);
             asm.end();
+            
+            this.tailCalls = outerTailCalls;
         }
         
         @Override
@@ -421,8 +777,16 @@ public class Compiler {
             }
     
             if(bytecodeIndex < 0) {
+                String argumentError = runtime.checkFunctionArguments(functionName, numberOfArgs);
+                if(argumentError != null) {
+                    throw error(identifier, argumentError);
+                }
+                
                 asm.userinvoke(numberOfArgs, functionName);
             }        
+            else if(this.tailCalls.contains(expr)) {
+                asm.tailinvoke(numberOfArgs, bytecodeIndex);
+            }
             else {
                 asm.invoke(numberOfArgs, bytecodeIndex);
             }
@@ -469,8 +833,40 @@ public class Compiler {
         public void visit(GetExpr expr) {
             asm.line(expr.lineNumber);
             
-            expr.object.visit(this);
-            asm.getfieldk(expr.identifier);        
+            /* fold a chain of field accesses, i.e., .a.b.c, into a single path access */
+            List<String> path = new ArrayList<>();
+            
+            Expr object = expr;
+            while(object instanceof GetExpr) {
+                GetExpr get = (GetExpr)object;
+                path.add(0, get.identifier);
+                object = get.object;
+            }
+            
+            String fieldName = (object instanceof DotExpr) ? inputFieldName((DotExpr)object) : null;
+            int local = entryLocal(fieldName);
+            if(local > -1) {
+                asm.loadlocal(local);
+                if(path.size() > 1) {
+                    asm.getpath(path.toArray(new String[path.size()]));
+                }
+                else {
+                    asm.getfieldk(expr.identifier);
+                }
+            }
+            else if(fieldName != null) {
+                path.add(0, fieldName);
+                asm.getinputpath(path.toArray(new String[path.size()]));
+            }
+            else {
+                object.visit(this);
+                if(path.size() > 1) {
+                    asm.getpath(path.toArray(new String[path.size()]));
+                }
+                else {
+                    asm.getfieldk(expr.identifier);
+                }
+            }
         }
     
         @Override
@@ -492,12 +888,11 @@ public class Compiler {
             }
             
             try {
-                Scanner scanner = new Scanner(new Source(runtime.getResolver().resolve(fileName)));
-                Parser parser = new Parser(runtime, scanner);
+                ModuleExpr module = this.modules.containsKey(expr) ? this.modules.get(expr) : parseModule(fileName);
                 
                 this.libraryStack.push(fileName);
                 this.moduleStack.push(expr.alias);
-                parser.parseModule().visit(this);
+                module.visit(this);
                 this.moduleStack.pop();
                 this.libraryStack.pop();
             }
@@ -505,13 +900,48 @@ public class Compiler {
                 throw new Jslt2Exception(e);
             }
         }
+        
+        private ModuleExpr parseModule(String fileName) throws Exception {
+            Scanner scanner = new Scanner(new Source(runtime.getResolver().resolve(fileName)));
+            Parser parser = new Parser(runtime, scanner);
+            
+            return parser.parseModule();
+        }
+        
+        /**
+         * Parses the modules imported by the module and, recursively, by the imported modules.  A module 
+         * which fails to parse, or is imported by itself, is left for {@link #visit(ImportDecl)} to report
+         */
+        private void parseModules(ModuleExpr module, Stack<String> libraries) {
+            for(Decl decl : module.declarations) {
+                if(decl instanceof ImportDecl) {
+                    ImportDecl importDecl = (ImportDecl)decl;
+                    String fileName = importDecl.library.substring(1, importDecl.library.length() - 1);
+                    if(libraries.contains(fileName)) {
+                        continue;
+                    }
+                    
+                    try {
+                        ModuleExpr imported = parseModule(fileName);
+                        this.modules.put(importDecl, imported);
+                        
+                        libraries.push(fileName);
+                        parseModules(imported, libraries);
+                        libraries.pop();
+                    }
+                    catch(Exception e) {
+                        /* reported when compiled */
+                    }
+                }
+            }
+        }
     
         @Override
         public void visit(ProgramExpr expr) {
             asm.startGlobal();
                 asm.line(expr.lineNumber);
                 expr.declarations.forEach(decl -> decl.visit(this));                
-                expr.expr.visit(this);
+                emitValue(expr.expr);
             asm.end();
         }
         
@@ -581,45 +1011,38 @@ public class Compiler {
     
             TokenType operator = expr.operator;
             switch(operator) {
-                case AND: {
-                    expr.left.visit(this);
-                    String escape = asm.ifeq();
-                    
-                    expr.right.visit(this);
-                    asm.istrue();
-               
-                    String endif = asm.jmp();
-                    asm.label(escape);
-                    asm.loadfalse();
-                    asm.label(endif);
-                    break;
-                }
+                case AND:
                 case OR: {
-                    expr.left.visit(this);
-                    String secondConditional = asm.ifeq();
-                    String skip = asm.jmp();
+                    String falseLabel = asm.nextLabelName();
+                    branch(expr, falseLabel, false);
                     
-                    asm.label(secondConditional);
-                    expr.right.visit(this);
-                    asm.istrue();
+                    asm.loadtrue();
                     String end = asm.jmp();
                     
-                    asm.label(skip);
-                    asm.loadtrue();
+                    asm.label(falseLabel);
+                    asm.loadfalse();
                     asm.label(end);
-                    
                     break;
                 }
                 case PIPE: {
                     expr.left.visit(this);
                     
                     asm.pipe();
+                    int outerEntryLocal = this.entryLocal;
+                    this.entryLocal = -1;
+                    
                     expr.right.visit(this);
+                    
+                    this.entryLocal = outerEntryLocal;
                     asm.end();
                     
                     break;
                 }
                 default: {
+                    if(operator == TokenType.PLUS && visitConcat(expr)) {
+                        break;
+                    }
+                    
                     expr.left.visit(this);
                     expr.right.visit(this);
                     
@@ -628,6 +1051,170 @@ public class Compiler {
             }
         }
         
+        /**
+         * Compiles a chain of additions, i.e., <code>"a" + .x + "-" + .y</code>, into a single <code>CONCAT</code>.  Once 
+         * a string literal is added, the result of every following addition is a string, so the operands from that
+         * point on are concatenated in one go rather than creating a string per addition.
+         * 
+         * @return true if the chain was compiled into a <code>CONCAT</code>
+         */
+        private boolean visitConcat(BinaryExpr expr) {
+            List<Expr> operands = new ArrayList<>();
+            Expr left = expr;
+            while(left instanceof BinaryExpr && ((BinaryExpr)left).operator == TokenType.PLUS) {
+                operands.add(0, ((BinaryExpr)left).right);
+                left = ((BinaryExpr)left).left;
+            }
+            operands.add(0, left);
+            
+            // the first addition whose result is known to be a string
+            int start = -1;
+            for(int i = 1; i < operands.size(); i++) {
+                if(operands.get(i) instanceof StringExpr || (i == 1 && operands.get(0) instanceof StringExpr)) {
+                    start = i;
+                    break;
+                }
+            }
+            
+            int n = operands.size() - start + 1;
+            if(start < 0 || n < 3 || n > Opcodes.MAX_ARGx) {
+                return false;
+            }
+            
+            operands.get(0).visit(this);
+            for(int i = 1; i < start; i++) {
+                operands.get(i).visit(this);
+                asm.add();
+            }
+            
+            for(int i = start; i < operands.size(); i++) {
+                operands.get(i).visit(this);
+            }
+            
+            asm.concat(n);
+            return true;
+        }
+        
+        /**
+         * Emits the condition as a jump to the label, taken if the condition evaluates to <code>jumpIf</code>, 
+         * otherwise the execution falls through.  Comparisons, <code>not</code>, <code>and</code> and <code>or</code>
+         * are compiled into the fused jump instructions, so no boolean value is created for them.
+         * 
+         * @param cond
+         * @param label
+         * @param jumpIf
+         */
+        private void branch(Expr cond, String label, boolean jumpIf) {
+            if(cond instanceof GroupExpr) {
+                branch(((GroupExpr)cond).expr, label, jumpIf);
+                return;
+            }
+            
+            if(cond instanceof UnaryExpr && ((UnaryExpr)cond).operator == TokenType.NOT) {
+                branch(((UnaryExpr)cond).expr, label, !jumpIf);
+                return;
+            }
+            
+            if(isLibraryNot(cond)) {
+                branch(((FuncCallExpr)cond).arguments.get(0), label, !jumpIf);
+                return;
+            }
+            
+            if(cond instanceof BinaryExpr) {
+                BinaryExpr expr = (BinaryExpr)cond;
+                switch(expr.operator) {
+                    case AND:
+                    case OR: {
+                        // 'and' is decided by its first false operand, 'or' by its first true one 
+                        boolean decidedBy = expr.operator == TokenType.OR;
+                        if(jumpIf == decidedBy) {
+                            branch(expr.left, label, jumpIf);
+                            branch(expr.right, label, jumpIf);
+                        }
+                        else {
+                            String skip = asm.nextLabelName();
+                            branch(expr.left, skip, !jumpIf);
+                            branch(expr.right, label, jumpIf);
+                            asm.label(skip);
+                        }
+                        return;
+                    }
+                    case EQUALS:
+                    case EQUALS_EQUALS:
+                    case NOT_EQUALS:
+                    case GREATER_THAN:
+                    case GREATER_EQUALS:
+                    case LESS_THAN:
+                    case LESS_EQUALS: {
+                        asm.line(expr.lineNumber);
+                        
+                        TokenType op = jumpIf ? expr.operator : negate(expr.operator);
+                        boolean isEquality = op == TokenType.EQUALS || op == TokenType.EQUALS_EQUALS || op == TokenType.NOT_EQUALS;
+                        
+                        expr.left.visit(this);
+                        if(isEquality && expr.right instanceof NullExpr) {
+                            if(op == TokenType.NOT_EQUALS) asm.ifnonnull(label);
+                            else                           asm.ifnull(label);
+                        }
+                        else {
+                            expr.right.visit(this);
+                            asm.ifcmp(compareOpcode(op), label);
+                        }
+                        return;
+                    }
+                    default: {
+                        break;
+                    }
+                }
+            }
+            
+            cond.visit(this);
+            if(jumpIf) asm.ifne(label);
+            else       asm.ifeq(label);
+        }
+        
+        /**
+         * @return true if the expression calls the standard library <code>not</code> function, as opposed to a
+         * function of the template or one which replaced it in the runtime 
+         */
+        private boolean isLibraryNot(Expr expr) {
+            if(!(expr instanceof FuncCallExpr)) {
+                return false;
+            }
+            
+            FuncCallExpr callExpr = (FuncCallExpr)expr;
+            return callExpr.arguments.size() == 1 && 
+                   callExpr.object instanceof IdentifierExpr &&
+                   ((IdentifierExpr)callExpr.object).identifier.equals("not") &&
+                   asm.getFunction("not") < 0 && 
+                   runtime.isPureFunction("not");
+        }
+        
+        /**
+         * @return the comparison which holds when the supplied one doesn't
+         */
+        private TokenType negate(TokenType op) {
+            switch(op) {
+                case NOT_EQUALS:     return TokenType.EQUALS;
+                case GREATER_THAN:   return TokenType.LESS_EQUALS;
+                case GREATER_EQUALS: return TokenType.LESS_THAN;
+                case LESS_THAN:      return TokenType.GREATER_EQUALS;
+                case LESS_EQUALS:    return TokenType.GREATER_THAN;
+                default:             return TokenType.NOT_EQUALS;
+            }
+        }
+        
+        private int compareOpcode(TokenType op) {
+            switch(op) {
+                case NOT_EQUALS:     return Opcodes.IF_CMPNE;
+                case GREATER_THAN:   return Opcodes.IF_CMPGT;
+                case GREATER_EQUALS: return Opcodes.IF_CMPGE;
+                case LESS_THAN:      return Opcodes.IF_CMPLT;
+                case LESS_EQUALS:    return Opcodes.IF_CMPLE;
+                default:             return Opcodes.IF_CMPEQ;
+            }
+        }
+        
         /**
          * Visits a Binary Expression
          * 
@@ -662,16 +1249,13 @@ public class Compiler {
             
             Expr field = expr.field;
             if(field != null) {   
-                if(field instanceof StringExpr) {
-                    String fieldName = ((StringExpr)field).string;
-                    if(fieldName.startsWith("\"") && fieldName.endsWith("\"") && fieldName.length() > 2) {
-                        fieldName = fieldName.substring(1, fieldName.length() - 1);
-                    }
-                    asm.getinputfieldk(fieldName);
+                String fieldName = inputFieldName(expr);
+                int local = entryLocal(fieldName);
+                if(local > -1) {
+                    asm.loadlocal(local);
                 }
-                else if (field instanceof IdentifierExpr) {
-                    IdentifierExpr iExpr = (IdentifierExpr)field;
-                    asm.getinputfieldk(iExpr.identifier);
+                else if(fieldName != null) {
+                    asm.getinputfieldk(fieldName);
                 }
                 else {
                     asm.loadinput();
@@ -682,29 +1266,60 @@ public class Compiler {
                 asm.loadinput();
             }
         }
+        
+        /**
+         * @param expr
+         * @return the name of the input field the {@link DotExpr} accesses, or null if it
+         * isn't a simple field access
+         */
+        private String inputFieldName(DotExpr expr) {
+            Expr field = expr.field;
+            if(field instanceof StringExpr) {
+                String fieldName = ((StringExpr)field).string;
+                if(fieldName.startsWith("\"") && fieldName.endsWith("\"") && fieldName.length() > 2) {
+                    fieldName = fieldName.substring(1, fieldName.length() - 1);
+                }
+                return fieldName;
+            }
+            
+            if(field instanceof IdentifierExpr) {
+                return ((IdentifierExpr)field).identifier;
+            }
+            
+            return null;
+        }
     
         @Override
         public void visit(MatchExpr expr) {
             asm.line(expr.lineNumber);
-            List<Expr> fields = expr.fields;
-            int numFieldsToOmit = 0;
-            
-            if(fields != null) {
-                numFieldsToOmit = fields.size();
-                for(Expr field : fields) {
-                    if(field instanceof IdentifierExpr) {
-                        asm.addAndloadconst(((IdentifierExpr)field).identifier);
-                    }
-                    else if(field instanceof StringExpr) {
-                        asm.addAndloadconst(((StringExpr)field).string);
-                    }
-                    else {
-                        throw error(expr, "Invalid match field expression: " + field);
-                    }
-                }
+            asm.matcher(fieldMatcher(expr));
+        }
+        
+        /**
+         * @return true if the expression evaluates to the input itself, i.e., <code>.</code>
+         */
+        private boolean isIdentity(Expr expr) {
+            if(expr instanceof GroupExpr) {
+                return isIdentity(((GroupExpr)expr).expr);
+            }
+            
+            return expr instanceof DotExpr && ((DotExpr)expr).field == null;
+        }
+        
+        private FieldMatcher fieldMatcher(MatchExpr expr) {
+            String[] omittedFields = FieldMatchers.omittedFields(expr);
+            if(omittedFields == null) {
+                Expr field = expr.fields.stream()
+                        .filter(f -> !(f instanceof IdentifierExpr || f instanceof StringExpr)).findFirst().get();
+                throw error(expr, "Invalid match field expression: " + field);
+            }
+            
+            String[] contextPath = FieldMatchers.inputContextPath(expr.parentNode);
+            if(contextPath == null) {
+                throw error(expr.parentNode.parentNode, "Object matching not allowed in an array");
             }
             
-            asm.matcher(numFieldsToOmit);
+            return new FieldMatcher(contextPath, omittedFields);
         }
     }
 }
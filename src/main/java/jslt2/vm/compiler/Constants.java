@@ -6,6 +6,7 @@
 package jslt2.vm.compiler;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import com.fasterxml.jackson.databind.JsonNode;
@@ -14,11 +15,13 @@ import com.fasterxml.jackson.databind.node.TextNode;
 
 import jslt2.util.ArrayUtil;
 import jslt2.vm.Bytecode;
+import jslt2.vm.FieldMatcher;
 
 
 /**
  * The {@link Constants} pool.  For each {@link Bytecode} there 
- * exists a constants pool.  The pool stores literals such as strings and numbers.
+ * exists a constants pool.  The pool stores literals such as strings and numbers, along
+ * with the field paths used by the fused path access instructions and the object matchers.
  * 
  * @author Tony
  *
@@ -30,6 +33,16 @@ public class Constants {
      */
     private List<JsonNode> storage;
     
+    /**
+     * Field path storage
+     */
+    private List<String[]> paths;
+    
+    /**
+     * Object matcher storage
+     */
+    private List<FieldMatcher> matchers;
+    
     /**
      */
     public Constants() {        
@@ -106,6 +119,93 @@ public class Constants {
         return this.storage == null ? null : this.storage.get(index);
     }
     
+    /**
+     * @return The number of field paths in the pool
+     */
+    public int getNumberOfPaths() {
+        return (this.paths != null) ? this.paths.size() : 0;
+    }
+    
+    /**
+     * Stores a field path, i.e., the field names of <code>.a.b.c</code>
+     * 
+     * @param path
+     * @return the path index of where it's stored
+     */
+    public int storePath(String[] path) {
+        if (this.paths == null) {
+            this.paths = new ArrayList<>();
+        }
+        
+        for(int i = 0; i < this.paths.size(); i++) {
+            if(Arrays.equals(this.paths.get(i), path)) {
+                return i;
+            }
+        }
+        
+        this.paths.add(path);
+        return this.paths.size() - 1;
+    }
+    
+    /**
+     * @return compiles into an array of field paths
+     */
+    public String[][] compilePaths() {
+        String[][] result = ArrayUtil.EMPTY_PATHS;
+        if (this.paths != null) {
+            result = this.paths.toArray(new String[this.paths.size()][]);
+        }
+        return result;
+    }
+    
+    /**
+     * @return The number of object matchers in the pool
+     */
+    public int getNumberOfMatchers() {
+        return (this.matchers != null) ? this.matchers.size() : 0;
+    }
+    
+    /**
+     * Stores an object matcher
+     * 
+     * @param matcher
+     * @return the matcher index of where it's stored
+     */
+    public int storeMatcher(FieldMatcher matcher) {
+        if (this.matchers == null) {
+            this.matchers = new ArrayList<>();
+        }
+        
+        this.matchers.add(matcher);
+        return this.matchers.size() - 1;
+    }
+    
+    /**
+     * @return compiles into an array of object matchers
+     */
+    public FieldMatcher[] compileMatchers() {
+        FieldMatcher[] result = ArrayUtil.EMPTY_MATCHERS;
+        if (this.matchers != null) {
+            result = this.matchers.toArray(new FieldMatcher[this.matchers.size()]);
+        }
+        return result;
+    }
+    
+    /**
+     * @return compiles into an array of the interned text of the string constants, the
+     * entries of non-textual constants are null
+     */
+    public String[] compileStrings() {
+        String[] strings = new String[getNumberOfConstants()];
+        for(int i = 0; i < strings.length; i++) {
+            JsonNode constant = this.storage.get(i);
+            if(constant.isTextual()) {
+                strings[i] = constant.asText().intern();
+            }
+        }
+        return strings;
+    }
+    
     /**
      * @return compiles into an array of constants
      */
@@ -9,6 +9,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Stack;
 
+import com.fasterxml.jackson.databind.JsonNode;
+
 import jslt2.Jslt2Exception;
 import jslt2.vm.Bytecode;
 import jslt2.vm.Opcodes;
@@ -86,6 +88,9 @@ public class EmitterScope {
     private boolean usesLocals;
     private boolean debug;    
     private boolean hasAsync;
+    private boolean hasEntryLocals;
+    private boolean hasIndexLocal;
+    private boolean memoized;
     
     private int currentLineNumber;
     private int numArgs;
@@ -195,6 +200,36 @@ public class EmitterScope {
         this.hasAsync = async;
     }
     
+    /**
+     * @return true if the key and value of the iterated object entry are held in locals
+     */
+    public boolean hasEntryLocals() {
+        return hasEntryLocals;
+    }
+    
+    public void setEntryLocals(boolean entryLocals) {
+        this.hasEntryLocals = entryLocals;
+    }
+    
+    public boolean hasIndexLocal() {
+        return hasIndexLocal;
+    }
+    
+    public void setIndexLocal(boolean indexLocal) {
+        this.hasIndexLocal = indexLocal;
+    }
+    
+    /**
+     * @return true if the results of the function may be cached by its arguments
+     */
+    public boolean isMemoized() {
+        return memoized;
+    }
+    
+    public void setMemoized(boolean memoized) {
+        this.memoized = memoized;
+    }
+    
     /**
      * @return true if the current scope stores variables on the stack
      * or in the current environment
@@ -396,6 +431,20 @@ public class EmitterScope {
     public boolean hasConstants() {
         return constants != null && constants.getNumberOfConstants() > 0;
     }
+    
+    /**
+     * @return true if there are field paths in this scope
+     */
+    public boolean hasPaths() {
+        return constants != null && constants.getNumberOfPaths() > 0;
+    }
+    
+    /**
+     * @return true if there are object matchers in this scope
+     */
+    public boolean hasMatchers() {
+        return constants != null && constants.getNumberOfMatchers() > 0;
+    }
 
     /**
      * @return the globals
@@ -439,6 +488,28 @@ public class EmitterScope {
     }
 
 
+    /**
+     * Finds the constant value bound to a reference, the closest scope declaring the reference decides
+     * 
+     * @param reference
+     * @return the constant value, or null if the reference isn't found or isn't bound to a constant
+     */
+    public JsonNode findConstant(String reference) {
+        EmitterScope scope = this;
+        while(scope != null) {
+            if(scope.locals != null) {
+                int index = scope.locals.get(reference);
+                if(index > -1) {
+                    return scope.locals.getConstant(index);
+                }
+            }
+            
+            scope = scope.getParent();
+        }
+        
+        return null;
+    }
+    
     /**
      * Finds a reference, generating an {@link OuterDesc} if found
      * 
@@ -0,0 +1,118 @@
+/*
+ * see license.txt
+ */
+package jslt2.vm.compiler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jslt2.ast.Expr;
+import jslt2.ast.Expr.*;
+import jslt2.parser.tokens.TokenType;
+import jslt2.util.Tuple;
+import jslt2.vm.FieldMatcher;
+
+/**
+ * Resolves the {@link FieldMatcher} of a matcher field, <code>* - a, b : .</code>, from its place in the template.
+ * A matcher matches the fields of the input at the path of the enclosing object fields, i.e., the matcher of
+ * <code>{"a": {* : .}}</code> matches the fields of <code>.a</code>.
+ *
+ * @author Tony
+ *
+ */
+public class FieldMatchers {
+
+    /**
+     * @param expr
+     * @return the matcher, or null if the matcher isn't within an object or omits a field which isn't a name
+     */
+    public static FieldMatcher fieldMatcher(MatchExpr expr) {
+        String[] omittedFields = omittedFields(expr);
+        String[] contextPath = inputContextPath(expr.parentNode);
+        if(omittedFields == null || contextPath == null) {
+            return null;
+        }
+
+        return new FieldMatcher(contextPath, omittedFields);
+    }
+
+    /**
+     * @param expr
+     * @return the names of the fields omitted from the match, or null if one of them isn't a name
+     */
+    public static String[] omittedFields(MatchExpr expr) {
+        List<String> omittedFields = new ArrayList<>();
+
+        if(expr.fields != null) {
+            for(Expr field : expr.fields) {
+                if(field instanceof IdentifierExpr) {
+                    omittedFields.add(((IdentifierExpr)field).identifier);
+                }
+                else if(field instanceof StringExpr) {
+                    // the string is as it appears in the source, including its quotes
+                    String name = ((StringExpr)field).string;
+                    if(name.length() > 2 && name.startsWith("\"") && name.endsWith("\"")) {
+                        name = name.substring(1, name.length() - 1);
+                    }
+                    omittedFields.add(name);
+                }
+                else {
+                    return null;
+                }
+            }
+        }
+
+        return omittedFields.toArray(new String[omittedFields.size()]);
+    }
+
+    /**
+     * Used for matcher expressions, we must determine which
+     * input path to resolve to (i.e., if we're in a chain of
+     * ObjectExpr, we'll want to match the keys of the input)
+     *
+     * @param expr the object holding the matcher
+     * @return the path, or null if the matcher is within an array
+     */
+    public static String[] inputContextPath(Expr expr) {
+        List<String> path = new ArrayList<>();
+
+        Expr child = expr;
+        Expr parent = expr.parentNode;
+        if(parent instanceof ArrayExpr) {
+            return null;
+        }
+
+        int count = 0;
+
+        while(parent != null && count < 2) {
+            if(parent instanceof ObjectExpr) {
+                ObjectExpr objExpr = (ObjectExpr) parent;
+                if(objExpr.forObjectExpr == null) {
+                    List<Tuple<Expr, Expr>> fields = objExpr.fields;
+                    for(Tuple<Expr, Expr> field : fields) {
+                        if(field.getSecond() == child) {
+                            String fieldName = field.getFirst().toString();
+                            if(!fieldName.isEmpty()) {
+                                path.add(0, fieldName);
+                            }
+                        }
+                    }
+                }
+
+                count = 0;
+            }
+            else if(parent instanceof BinaryExpr) {
+                BinaryExpr bExpr = (BinaryExpr)parent;
+                if(bExpr.operator.equals(TokenType.PIPE)) {
+                    break;
+                }
+            }
+
+            child = parent;
+            parent = parent.parentNode;
+            count++;
+        }
+
+        return path.toArray(new String[path.size()]);
+    }
+}
@@ -5,6 +5,8 @@
 */
 package jslt2.vm.compiler;
 
+import com.fasterxml.jackson.databind.JsonNode;
+
 import jslt2.util.ArrayUtil;
 
 /**
@@ -26,6 +28,11 @@ public class Locals {
      */
     private String[] pool;    
     
+    /**
+     * The constant values bound to the references, by their index in the pool
+     */
+    private JsonNode[] constants;
+    
     /**
      * Current index to store in the pool
      */
@@ -165,10 +172,46 @@ public class Locals {
     public void setIndex(int prevIndex) {
         for(int i = prevIndex; i < this.index; i++) {
             if(this.pool!=null ) this.pool[i] = null;
+            setConstant(i, null);
         }
         this.index = prevIndex;
     }
     
+    /**
+     * Binds a constant value to the local at the supplied index, so that loading it doesn't 
+     * require the local to be stored
+     * 
+     * @param index
+     * @param value the constant value, or null if the local is no longer constant
+     */
+    public void setConstant(int index, JsonNode value) {
+        if(this.constants == null || index >= this.constants.length) {
+            if(value == null) {
+                return;
+            }
+            
+            JsonNode[] newConstants = new JsonNode[Math.max(index + 1, this.pool.length)];
+            if(this.constants != null) {
+                System.arraycopy(this.constants, 0, newConstants, 0, this.constants.length);
+            }
+            this.constants = newConstants;
+        }
+        
+        this.constants[index] = value;
+    }
+    
+    /**
+     * @param index
+     * @return the constant value bound to the local at the supplied index, or null if it isn't constant
+     */
+    public JsonNode getConstant(int index) {
+        if(this.constants == null || index >= this.constants.length) {
+            return null;
+        }
+        
+        return this.constants[index];
+    }
+    
     /**
      * @return the current index value
      */
@@ -185,6 +228,10 @@ public class Locals {
             clone.pool = new String[this.pool.length];
             System.arraycopy(this.pool, 0, clone.pool, 0, this.pool.length);
         }
+        
+        if (this.constants != null) {
+            clone.constants = this.constants.clone();
+        }
         return clone;
     }
 }
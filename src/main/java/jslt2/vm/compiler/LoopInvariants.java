@@ -0,0 +1,464 @@
+/*
+ * see license.txt
+ */
+package jslt2.vm.compiler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+import jslt2.ast.Decl.LetDecl;
+import jslt2.ast.Expr;
+import jslt2.ast.Expr.*;
+import jslt2.parser.tokens.TokenType;
+import jslt2.util.Tuple;
+
+/**
+ * Moves the loop invariant code out of a for body, so that it is evaluated once per loop rather than once per
+ * iteration.  An expression is loop invariant if it doesn't read the input, the <code>$index__</code> or a let
+ * of the body which depends on them, and only calls pure functions.
+ *
+ * <p>
+ * Each hoisted expression is bound to a synthetic let, which the compiler evaluates in the enclosing scope right
+ * before the loop is created; the body then reads it as an outer.  An invariant let of the body is kept as a copy of
+ * its synthetic let, so its shadowing rules are unchanged.  Invariant sub-expressions of the body, such as
+ * <code>lowercase($config.prefix)</code>, are replaced with a reference to their synthetic let.  Only the
+ * sub-expressions that are evaluated on every iteration are hoisted, the branches of an <code>if</code> and the right
+ * side of <code>and</code>/<code>or</code> are left alone.  The compiler skips the hoisted lets if the loop has no
+ * elements, so an invariant which fails, such as <code>number("abc")</code>, only fails where the body would.
+ *
+ * <p>
+ * The program is left as is, the nodes on the path to a hoisted expression are copied, so the same program may be
+ * compiled again, or by another compiler.
+ *
+ * @author Tony
+ *
+ */
+public class LoopInvariants {
+
+    private static final String INDEX_VARIABLE = "$index__";
+
+    private final Predicate<String> isPureFunction;
+    private int nextInvariant;
+
+    /**
+     * The variables bound by the body being analyzed, mapped to the synthetic variable holding
+     * their value if they are invariant, otherwise to null
+     */
+    private Map<String, String> bodyVariables;
+    private List<LetDecl> hoisted;
+
+    /**
+     * @param isPureFunction determines if a function called by name is pure
+     */
+    public LoopInvariants(Predicate<String> isPureFunction) {
+        this.isPureFunction = isPureFunction;
+    }
+
+    /**
+     * Hoists the invariant code of the for body
+     *
+     * @param expr
+     * @param hoisted the lets to evaluate before the loop are added to this list
+     * @return a copy of the for expression whose body reads the hoisted values
+     */
+    public ForArrayExpr hoist(ForArrayExpr expr, List<LetDecl> hoisted) {
+        begin(hoisted);
+
+        ForArrayExpr result = expr.copy();
+        result.lets = hoistLets(expr.lets);
+        if(expr.ifExpr != null) {
+            result.ifExpr = hoistExpr(expr.ifExpr);
+        }
+        else {
+            result.valueExpr = hoistExpr(expr.valueExpr);
+        }
+
+        return result;
+    }
+
+    /**
+     * Hoists the invariant code of the for body
+     *
+     * @param expr
+     * @param hoisted the lets to evaluate before the loop are added to this list
+     * @return a copy of the for expression whose body reads the hoisted values
+     */
+    public ForObjectExpr hoist(ForObjectExpr expr, List<LetDecl> hoisted) {
+        begin(hoisted);
+
+        ForObjectExpr result = expr.copy();
+        result.lets = hoistLets(expr.lets);
+        if(expr.ifExpr != null) {
+            result.ifExpr = hoistExpr(expr.ifExpr);
+        }
+        else {
+            result.keyExpr = hoistExpr(expr.keyExpr);
+            result.valueExpr = hoistExpr(expr.valueExpr);
+        }
+
+        return result;
+    }
+
+    private void begin(List<LetDecl> hoisted) {
+        this.bodyVariables = new HashMap<>();
+        this.bodyVariables.put(INDEX_VARIABLE, null);
+        this.hoisted = hoisted;
+    }
+
+    private List<LetDecl> hoistLets(List<LetDecl> lets) {
+        List<LetDecl> result = new ArrayList<>(lets.size());
+        for(LetDecl let : lets) {
+            String variable = "$" + let.identifier;
+            if(isInvariant(let.value)) {
+                VariableExpr invariant = hoist(let.value);
+
+                LetDecl copy = new LetDecl(let.identifier, invariant);
+                copy.lineNumber = let.lineNumber;
+                copy.parentNode = let.parentNode;
+                result.add(copy);
+
+                this.bodyVariables.put(variable, invariant.variable);
+            }
+            else {
+                LetDecl copy = let.copy();
+                copy.value = hoistExpr(let.value);
+                result.add(copy);
+
+                this.bodyVariables.put(variable, null);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Binds the invariant expression to a synthetic let
+     *
+     * @return the reference to the synthetic let
+     */
+    private VariableExpr hoist(Expr expr) {
+        String identifier = ".invariant" + (this.nextInvariant++);
+
+        LetDecl let = new LetDecl(identifier, substitute(expr));
+        let.lineNumber = expr.lineNumber;
+        this.hoisted.add(let);
+
+        VariableExpr variable = new VariableExpr("$" + identifier);
+        variable.lineNumber = expr.lineNumber;
+        variable.parentNode = expr.parentNode;
+        return variable;
+    }
+
+    /**
+     * Hoists the invariant sub-expressions that are evaluated whenever the expression is
+     *
+     * @return the expression to use in place of the supplied one
+     */
+    private Expr hoistExpr(Expr expr) {
+        if(expr == null) {
+            return null;
+        }
+
+        if(isInvariant(expr) && isWorthHoisting(expr)) {
+            return hoist(expr);
+        }
+
+        if(expr instanceof GroupExpr) {
+            GroupExpr groupExpr = expr.copy();
+            groupExpr.expr = hoistExpr(groupExpr.expr);
+            return groupExpr;
+        }
+
+        if(expr instanceof UnaryExpr) {
+            UnaryExpr unaryExpr = expr.copy();
+            unaryExpr.expr = hoistExpr(unaryExpr.expr);
+            return unaryExpr;
+        }
+
+        if(expr instanceof GetExpr) {
+            GetExpr getExpr = expr.copy();
+            getExpr.object = hoistExpr(getExpr.object);
+            return getExpr;
+        }
+
+        if(expr instanceof BinaryExpr) {
+            BinaryExpr binExpr = expr.copy();
+            binExpr.left = hoistExpr(binExpr.left);
+            if(!isConditional(binExpr.operator)) {
+                binExpr.right = hoistExpr(binExpr.right);
+            }
+            return binExpr;
+        }
+
+        if(expr instanceof ArrayIndexExpr) {
+            ArrayIndexExpr indexExpr = expr.copy();
+            indexExpr.array = hoistExpr(indexExpr.array);
+            indexExpr.index = hoistExpr(indexExpr.index);
+            return indexExpr;
+        }
+
+        if(expr instanceof ArraySliceExpr) {
+            ArraySliceExpr sliceExpr = expr.copy();
+            sliceExpr.array = hoistExpr(sliceExpr.array);
+            sliceExpr.startExpr = hoistExpr(sliceExpr.startExpr);
+            sliceExpr.endExpr = hoistExpr(sliceExpr.endExpr);
+            return sliceExpr;
+        }
+
+        if(expr instanceof FuncCallExpr) {
+            FuncCallExpr callExpr = expr.copy();
+            callExpr.arguments = map(callExpr.arguments, this::hoistExpr);
+            return callExpr;
+        }
+
+        if(expr instanceof IfExpr) {
+            IfExpr ifExpr = (IfExpr)expr;
+            if(ifExpr.lets.isEmpty()) {
+                ifExpr = ifExpr.copy();
+                ifExpr.condition = hoistExpr(ifExpr.condition);
+            }
+            return ifExpr;
+        }
+
+        if(expr instanceof ArrayExpr) {
+            ArrayExpr arrayExpr = expr.copy();
+            if(arrayExpr.forExpr != null) {
+                arrayExpr.forExpr = arrayExpr.forExpr.copy();
+                arrayExpr.forExpr.condition = hoistExpr(arrayExpr.forExpr.condition);
+            }
+            else {
+                arrayExpr.elements = map(arrayExpr.elements, this::hoistExpr);
+            }
+            return arrayExpr;
+        }
+
+        if(expr instanceof ObjectExpr) {
+            ObjectExpr objExpr = (ObjectExpr)expr;
+            if(objExpr.forObjectExpr != null) {
+                objExpr = objExpr.copy();
+                objExpr.forObjectExpr = objExpr.forObjectExpr.copy();
+                objExpr.forObjectExpr.condition = hoistExpr(objExpr.forObjectExpr.condition);
+            }
+            else if(objExpr.lets.isEmpty()) {
+                objExpr = objExpr.copy();
+                objExpr.fields = mapFields(objExpr.fields, field -> {
+                    // the value of a matcher is evaluated per matched field
+                    return field.getFirst() instanceof MatchExpr
+                            ? field.getSecond() : hoistExpr(field.getSecond());
+                });
+            }
+            return objExpr;
+        }
+
+        return expr;
+    }
+
+    /**
+     * @return true if the expression does work each time it's evaluated, constants and variables
+     * aren't worth hoisting and the object and array literals are expected to create new nodes
+     */
+    private boolean isWorthHoisting(Expr expr) {
+        if(expr instanceof GroupExpr) {
+            return isWorthHoisting(((GroupExpr)expr).expr);
+        }
+
+        return expr instanceof FuncCallExpr || expr instanceof BinaryExpr || expr instanceof UnaryExpr ||
+               expr instanceof GetExpr || expr instanceof ArrayIndexExpr || expr instanceof ArraySliceExpr ||
+               expr instanceof IfExpr;
+    }
+
+    private static boolean isConditional(TokenType operator) {
+        return operator == TokenType.AND || operator == TokenType.OR || operator == TokenType.PIPE;
+    }
+
+    /**
+     * @return true if the expression yields the same value on every iteration.  Expressions binding
+     * their own variables are never considered invariant
+     */
+    private boolean isInvariant(Expr expr) {
+        if(expr == null || expr instanceof NumberExpr || expr instanceof StringExpr ||
+           expr instanceof BooleanExpr || expr instanceof NullExpr || expr instanceof ConstantExpr) {
+            return true;
+        }
+
+        if(expr instanceof VariableExpr) {
+            String variable = ((VariableExpr)expr).variable;
+            return !this.bodyVariables.containsKey(variable) || this.bodyVariables.get(variable) != null;
+        }
+
+        if(expr instanceof GroupExpr) {
+            return isInvariant(((GroupExpr)expr).expr);
+        }
+
+        if(expr instanceof UnaryExpr) {
+            return isInvariant(((UnaryExpr)expr).expr);
+        }
+
+        if(expr instanceof GetExpr) {
+            return isInvariant(((GetExpr)expr).object);
+        }
+
+        if(expr instanceof BinaryExpr) {
+            BinaryExpr binExpr = (BinaryExpr)expr;
+            return binExpr.operator != TokenType.PIPE && isInvariant(binExpr.left) && isInvariant(binExpr.right);
+        }
+
+        if(expr instanceof ArrayIndexExpr) {
+            ArrayIndexExpr indexExpr = (ArrayIndexExpr)expr;
+            return isInvariant(indexExpr.array) && isInvariant(indexExpr.index);
+        }
+
+        if(expr instanceof ArraySliceExpr) {
+            ArraySliceExpr sliceExpr = (ArraySliceExpr)expr;
+            return isInvariant(sliceExpr.array) && isInvariant(sliceExpr.startExpr) && isInvariant(sliceExpr.endExpr);
+        }
+
+        if(expr instanceof FuncCallExpr) {
+            FuncCallExpr callExpr = (FuncCallExpr)expr;
+            if(!(callExpr.object instanceof IdentifierExpr) ||
+               !this.isPureFunction.test(((IdentifierExpr)callExpr.object).identifier)) {
+                return false;
+            }
+
+            return callExpr.arguments.stream().allMatch(this::isInvariant);
+        }
+
+        if(expr instanceof IfExpr) {
+            IfExpr ifExpr = (IfExpr)expr;
+            return ifExpr.lets.isEmpty() && isInvariant(ifExpr.condition) && isInvariant(ifExpr.thenExpr) &&
+                   (ifExpr.elseExpr == null || (ifExpr.elseExpr.lets.isEmpty() && isInvariant(ifExpr.elseExpr.expr)));
+        }
+
+        if(expr instanceof ArrayExpr) {
+            ArrayExpr arrayExpr = (ArrayExpr)expr;
+            return arrayExpr.forExpr == null && arrayExpr.elements.stream().allMatch(this::isInvariant);
+        }
+
+        if(expr instanceof ObjectExpr) {
+            ObjectExpr objExpr = (ObjectExpr)expr;
+            if(objExpr.forObjectExpr != null || !objExpr.lets.isEmpty()) {
+                return false;
+            }
+
+            for(Tuple<Expr, Expr> field : objExpr.fields) {
+                Expr fieldName = field.getFirst();
+                boolean isConstantName = fieldName instanceof IdentifierExpr || fieldName instanceof StringExpr;
+                if(!(isConstantName || isInvariant(fieldName)) || !isInvariant(field.getSecond())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // the input, matchers and macros
+        return false;
+    }
+
+    /**
+     * Replaces the references to the invariant lets of the body with their synthetic variables,
+     * the expression must be invariant
+     *
+     * @return the expression to use in place of the supplied one
+     */
+    private Expr substitute(Expr expr) {
+        if(expr instanceof VariableExpr) {
+            String synthetic = this.bodyVariables.get(((VariableExpr)expr).variable);
+            if(synthetic != null) {
+                VariableExpr variable = new VariableExpr(synthetic);
+                variable.lineNumber = expr.lineNumber;
+                variable.parentNode = expr.parentNode;
+                return variable;
+            }
+        }
+        else if(expr instanceof GroupExpr) {
+            GroupExpr groupExpr = expr.copy();
+            groupExpr.expr = substitute(groupExpr.expr);
+            return groupExpr;
+        }
+        else if(expr instanceof UnaryExpr) {
+            UnaryExpr unaryExpr = expr.copy();
+            unaryExpr.expr = substitute(unaryExpr.expr);
+            return unaryExpr;
+        }
+        else if(expr instanceof GetExpr) {
+            GetExpr getExpr = expr.copy();
+            getExpr.object = substitute(getExpr.object);
+            return getExpr;
+        }
+        else if(expr instanceof BinaryExpr) {
+            BinaryExpr binExpr = expr.copy();
+            binExpr.left = substitute(binExpr.left);
+            binExpr.right = substitute(binExpr.right);
+            return binExpr;
+        }
+        else if(expr instanceof ArrayIndexExpr) {
+            ArrayIndexExpr indexExpr = expr.copy();
+            indexExpr.array = substitute(indexExpr.array);
+            indexExpr.index = substitute(indexExpr.index);
+            return indexExpr;
+        }
+        else if(expr instanceof ArraySliceExpr) {
+            ArraySliceExpr sliceExpr = expr.copy();
+            sliceExpr.array = substitute(sliceExpr.array);
+            sliceExpr.startExpr = substitute(sliceExpr.startExpr);
+            sliceExpr.endExpr = substitute(sliceExpr.endExpr);
+            return sliceExpr;
+        }
+        else if(expr instanceof FuncCallExpr) {
+            FuncCallExpr callExpr = expr.copy();
+            callExpr.arguments = map(callExpr.arguments, this::substitute);
+            return callExpr;
+        }
+        else if(expr instanceof IfExpr) {
+            IfExpr ifExpr = expr.copy();
+            ifExpr.condition = substitute(ifExpr.condition);
+            ifExpr.thenExpr = substitute(ifExpr.thenExpr);
+            if(ifExpr.elseExpr != null) {
+                ifExpr.elseExpr = ifExpr.elseExpr.copy();
+                ifExpr.elseExpr.expr = substitute(ifExpr.elseExpr.expr);
+            }
+            return ifExpr;
+        }
+        else if(expr instanceof ArrayExpr) {
+            ArrayExpr arrayExpr = expr.copy();
+            arrayExpr.elements = map(arrayExpr.elements, this::substitute);
+            return arrayExpr;
+        }
+        else if(expr instanceof ObjectExpr) {
+            ObjectExpr objExpr = expr.copy();
+            objExpr.fields = new ArrayList<>(objExpr.fields.size());
+            for(Tuple<Expr, Expr> field : ((ObjectExpr)expr).fields) {
+                Expr fieldName = field.getFirst();
+                if(!(fieldName instanceof IdentifierExpr || fieldName instanceof StringExpr)) {
+                    fieldName = substitute(fieldName);
+                }
+                objExpr.fields.add(new Tuple<>(fieldName, substitute(field.getSecond())));
+            }
+            return objExpr;
+        }
+
+        return expr;
+    }
+
+    private static List<Expr> map(List<Expr> exprs, UnaryOperator<Expr> f) {
+        List<Expr> result = new ArrayList<>(exprs.size());
+        for(Expr expr : exprs) {
+            result.add(f.apply(expr));
+        }
+        return result;
+    }
+
+    private static List<Tuple<Expr, Expr>> mapFields(List<Tuple<Expr, Expr>> fields,
+                                                     Function<Tuple<Expr, Expr>, Expr> value) {
+        List<Tuple<Expr, Expr>> result = new ArrayList<>(fields.size());
+        for(Tuple<Expr, Expr> field : fields) {
+            result.add(new Tuple<>(field.getFirst(), value.apply(field)));
+        }
+        return result;
+    }
+}
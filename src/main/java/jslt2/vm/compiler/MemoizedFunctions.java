@@ -0,0 +1,268 @@
+/*
+ * see license.txt
+ */
+package jslt2.vm.compiler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import jslt2.Jslt2;
+import jslt2.ast.Decl;
+import jslt2.ast.Decl.*;
+import jslt2.ast.Expr;
+import jslt2.ast.Expr.*;
+import jslt2.parser.tokens.TokenType;
+import jslt2.util.Tuple;
+
+/**
+ * Finds the template functions whose results may be cached by the values of their arguments.  Such a function is
+ * pure, that is it only calls pure runtime functions and other memoized template functions, and doesn't read its
+ * input: a template function is evaluated with the input of its caller, so its result would otherwise depend on more
+ * than its arguments.  The input may still be read where it is rebound, in a for body or the right side of a pipe.
+ * The variables declared at the top of the template are constant during an evaluation, so they may be read as well.
+ *
+ * <p>
+ * Recursive functions are assumed to be memoized, the functions which fail the analysis are removed until nothing
+ * else can be removed.
+ *
+ * @author Tony
+ *
+ */
+public class MemoizedFunctions {
+
+    private final Jslt2 runtime;
+
+    /**
+     * The parsed modules of the import declarations
+     */
+    private final Map<ImportDecl, ModuleExpr> modules;
+
+    /**
+     * The bodies of the template functions by the names they can be called with, these
+     * are either the {@link DefDecl} or the body of a module
+     */
+    private final Map<String, List<Expr>> functions;
+    private final Set<DefDecl> memoized;
+
+    /**
+     * @param runtime
+     * @param modules the parsed modules of the import declarations, an import missing from the map
+     * is treated as an empty module
+     */
+    public MemoizedFunctions(Jslt2 runtime, Map<ImportDecl, ModuleExpr> modules) {
+        this.runtime = runtime;
+        this.modules = modules;
+
+        this.functions = new HashMap<>();
+        this.memoized = Collections.newSetFromMap(new IdentityHashMap<>());
+    }
+
+    /**
+     * @param program
+     * @return the functions of the program and its modules whose results may be cached
+     */
+    public Set<DefDecl> find(ProgramExpr program) {
+        addFunctions(program, null);
+
+        for(List<Expr> bodies : this.functions.values()) {
+            for(Expr body : bodies) {
+                if(body instanceof DefDecl) {
+                    this.memoized.add((DefDecl)body);
+                }
+            }
+        }
+
+        boolean changed;
+        do {
+            changed = this.memoized.removeIf(def -> !isMemoizable(def));
+        }
+        while(changed);
+
+        return this.memoized;
+    }
+
+    private void addFunctions(ModuleExpr module, String alias) {
+        boolean isModule = !(module instanceof ProgramExpr);
+        for(Decl decl : module.declarations) {
+            if(decl instanceof DefDecl) {
+                DefDecl def = (DefDecl)decl;
+                addFunction(def.identifier, def);
+                if(isModule) {
+                    addFunction(alias + ":" + def.identifier, def);
+                }
+            }
+            else if(decl instanceof ImportDecl) {
+                ImportDecl importDecl = (ImportDecl)decl;
+                ModuleExpr imported = this.modules.get(importDecl);
+                if(imported != null) {
+                    addFunction(importDecl.alias, imported.expr);
+                    addFunctions(imported, importDecl.alias);
+                }
+            }
+        }
+
+        // the body of a module is a function named after its alias
+        if(isModule && module.expr != null) {
+            addFunction(alias + ":" + alias, module.expr);
+        }
+    }
+
+    private void addFunction(String name, Expr body) {
+        if(body != null) {
+            this.functions.computeIfAbsent(name, k -> new ArrayList<>()).add(body);
+        }
+    }
+
+    private boolean isMemoizable(DefDecl def) {
+        return lets(def.lets, false) && isMemoizable(def.expr, false);
+    }
+
+    private boolean lets(List<LetDecl> lets, boolean inputBound) {
+        for(LetDecl let : lets) {
+            if(!isMemoizable(let.value, inputBound)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param expr
+     * @param inputBound if the input has been rebound by a for body or pipe, so reading it is allowed
+     * @return true if the expression is pure and, unless rebound, doesn't read the input of the function
+     */
+    private boolean isMemoizable(Expr expr, boolean inputBound) {
+        if(expr == null || expr instanceof NumberExpr || expr instanceof StringExpr || expr instanceof BooleanExpr ||
+           expr instanceof NullExpr || expr instanceof ConstantExpr || expr instanceof VariableExpr) {
+            return true;
+        }
+
+        if(expr instanceof DotExpr || expr instanceof IdentifierExpr || expr instanceof MatchExpr) {
+            return inputBound;
+        }
+
+        if(expr instanceof GroupExpr) {
+            return isMemoizable(((GroupExpr)expr).expr, inputBound);
+        }
+
+        if(expr instanceof UnaryExpr) {
+            return isMemoizable(((UnaryExpr)expr).expr, inputBound);
+        }
+
+        if(expr instanceof GetExpr) {
+            return isMemoizable(((GetExpr)expr).object, inputBound);
+        }
+
+        if(expr instanceof BinaryExpr) {
+            BinaryExpr binExpr = (BinaryExpr)expr;
+            return isMemoizable(binExpr.left, inputBound) &&
+                   isMemoizable(binExpr.right, inputBound || binExpr.operator == TokenType.PIPE);
+        }
+
+        if(expr instanceof ArrayIndexExpr) {
+            ArrayIndexExpr indexExpr = (ArrayIndexExpr)expr;
+            return isMemoizable(indexExpr.array, inputBound) && isMemoizable(indexExpr.index, inputBound);
+        }
+
+        if(expr instanceof ArraySliceExpr) {
+            ArraySliceExpr sliceExpr = (ArraySliceExpr)expr;
+            return isMemoizable(sliceExpr.array, inputBound) && isMemoizable(sliceExpr.startExpr, inputBound) &&
+                   isMemoizable(sliceExpr.endExpr, inputBound);
+        }
+
+        if(expr instanceof FuncCallExpr) {
+            FuncCallExpr callExpr = (FuncCallExpr)expr;
+            if(!isMemoizedFunction(callExpr.object)) {
+                return false;
+            }
+
+            for(Expr arg : callExpr.arguments) {
+                if(!isMemoizable(arg, inputBound)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        if(expr instanceof IfExpr) {
+            IfExpr ifExpr = (IfExpr)expr;
+            return lets(ifExpr.lets, inputBound) && isMemoizable(ifExpr.condition, inputBound) &&
+                   isMemoizable(ifExpr.thenExpr, inputBound) &&
+                   (ifExpr.elseExpr == null || (lets(ifExpr.elseExpr.lets, inputBound) &&
+                                                isMemoizable(ifExpr.elseExpr.expr, inputBound)));
+        }
+
+        if(expr instanceof ArrayExpr) {
+            ArrayExpr arrayExpr = (ArrayExpr)expr;
+            if(!isMemoizable(arrayExpr.forExpr, inputBound)) {
+                return false;
+            }
+
+            for(Expr element : arrayExpr.elements) {
+                if(!isMemoizable(element, inputBound)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        if(expr instanceof ObjectExpr) {
+            ObjectExpr objExpr = (ObjectExpr)expr;
+            if(!lets(objExpr.lets, inputBound) || !isMemoizable(objExpr.forObjectExpr, inputBound)) {
+                return false;
+            }
+
+            for(Tuple<Expr, Expr> field : objExpr.fields) {
+                Expr fieldName = field.getFirst();
+                boolean isConstantName = fieldName instanceof IdentifierExpr || fieldName instanceof StringExpr;
+                if(!(isConstantName || isMemoizable(fieldName, inputBound)) || !isMemoizable(field.getSecond(), inputBound)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // the body of a for is evaluated with each element as its input
+        if(expr instanceof ForArrayExpr) {
+            ForArrayExpr forExpr = (ForArrayExpr)expr;
+            return isMemoizable(forExpr.condition, inputBound) && lets(forExpr.lets, true) &&
+                   isMemoizable(forExpr.ifExpr, true) && isMemoizable(forExpr.valueExpr, true);
+        }
+
+        if(expr instanceof ForObjectExpr) {
+            ForObjectExpr forExpr = (ForObjectExpr)expr;
+            return isMemoizable(forExpr.condition, inputBound) && lets(forExpr.lets, true) &&
+                   isMemoizable(forExpr.ifExpr, true) && isMemoizable(forExpr.keyExpr, true) &&
+                   isMemoizable(forExpr.valueExpr, true);
+        }
+
+        // macros
+        return false;
+    }
+
+    private boolean isMemoizedFunction(Expr function) {
+        if(!(function instanceof IdentifierExpr)) {
+            return false;
+        }
+
+        String name = ((IdentifierExpr)function).identifier;
+        List<Expr> bodies = this.functions.get(name);
+        if(bodies != null) {
+            for(Expr body : bodies) {
+                if(!this.memoized.contains(body)) {
+                    return false;
+                }
+            }
+
+            // a template function may still be resolved to a runtime function
+            return !this.runtime.hasFunction(name) || this.runtime.isPureFunction(name);
+        }
+
+        return this.runtime.isPureFunction(name);
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * see license.txt
+ */
+package jslt2.vm.compiler;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import jslt2.ast.Decl.DefDecl;
+import jslt2.ast.Expr;
+import jslt2.ast.Expr.*;
+
+/**
+ * Finds the function calls in tail position of a template function, that is the calls whose result is the result of
+ * the function.  A call is in tail position if it is the body of the function, or a branch of an <code>if</code> in
+ * tail position.  The calls within a for body, a pipe, an object or an array are never in tail position.
+ *
+ * <p>
+ * A call in tail position doesn't need the calling frame once it is made, so the callee may replace it rather
+ * than nest a new one; a recursive function that only calls itself in tail position then runs in constant stack space.
+ *
+ * @author Tony
+ *
+ */
+public class TailCalls {
+
+    /**
+     * @param def
+     * @return the calls in tail position of the function body
+     */
+    public static Set<FuncCallExpr> find(DefDecl def) {
+        Set<FuncCallExpr> calls = Collections.newSetFromMap(new IdentityHashMap<>());
+        find(def.expr, calls);
+        return calls;
+    }
+
+    private static void find(Expr expr, Set<FuncCallExpr> calls) {
+        if(expr instanceof FuncCallExpr) {
+            calls.add((FuncCallExpr)expr);
+        }
+        else if(expr instanceof GroupExpr) {
+            find(((GroupExpr)expr).expr, calls);
+        }
+        else if(expr instanceof IfExpr) {
+            IfExpr ifExpr = (IfExpr)expr;
+            find(ifExpr.thenExpr, calls);
+            if(ifExpr.elseExpr != null) {
+                find(ifExpr.elseExpr.expr, calls);
+            }
+        }
+    }
+}
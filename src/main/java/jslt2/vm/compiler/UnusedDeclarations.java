@@ -0,0 +1,356 @@
+/*
+ * see license.txt
+ */
+package jslt2.vm.compiler;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import jslt2.ast.Decl;
+import jslt2.ast.Decl.*;
+import jslt2.ast.Expr;
+import jslt2.ast.Expr.*;
+import jslt2.util.Tuple;
+
+/**
+ * Removes the lets and functions which are never referenced from a program and the modules it imports, so they
+ * are neither compiled nor evaluated.
+ *
+ * <p>
+ * The analysis is by name: a let is kept if its variable is referenced anywhere in the program, and a function
+ * is kept if it is called by any of the names it can be called with.  Removing an unused declaration removes its own
+ * references, so this is repeated until nothing else can be removed.  A let is only removed if evaluating it can't
+ * fail, that is its value is built of literals, paths of the input, equality tests and arrays or objects of those.  A
+ * let calling <code>error()</code> to validate the input, or <code>number()</code> which fails on a malformed number,
+ * is kept; so is a let reading a variable, as an undefined variable is reported when the let is compiled.
+ *
+ * @author Tony
+ *
+ */
+public class UnusedDeclarations {
+
+    /**
+     * The parsed modules of the import declarations
+     */
+    private final Map<ImportDecl, ModuleExpr> modules;
+
+    private final Map<String, Integer> variableReferences;
+    private final Map<String, Integer> functionReferences;
+
+    private boolean removed;
+
+    /**
+     * @param modules the parsed modules of the import declarations, an import missing from the map
+     * is treated as an empty module
+     */
+    public UnusedDeclarations(Map<ImportDecl, ModuleExpr> modules) {
+        this.modules = modules;
+
+        this.variableReferences = new HashMap<>();
+        this.functionReferences = new HashMap<>();
+    }
+
+    /**
+     * Removes the unused declarations from the program and its modules
+     *
+     * @param program
+     */
+    public void remove(ProgramExpr program) {
+        count(program, 1);
+
+        do {
+            this.removed = false;
+            prune(program, null);
+        }
+        while(this.removed);
+    }
+
+    /**
+     * @return true if evaluating the expression can't fail
+     */
+    private static boolean cannotFail(Expr expr) {
+        if(expr instanceof NullExpr || expr instanceof BooleanExpr || expr instanceof NumberExpr ||
+           expr instanceof StringExpr || expr instanceof ConstantExpr) {
+            return true;
+        }
+
+        if(expr instanceof GroupExpr) {
+            return cannotFail(((GroupExpr)expr).expr);
+        }
+
+        // a field of anything other than an object is null
+        if(expr instanceof DotExpr) {
+            Expr field = ((DotExpr)expr).field;
+            return field == null || field instanceof IdentifierExpr || field instanceof StringExpr;
+        }
+
+        if(expr instanceof GetExpr) {
+            return cannotFail(((GetExpr)expr).object);
+        }
+
+        if(expr instanceof ArrayIndexExpr) {
+            ArrayIndexExpr indexExpr = (ArrayIndexExpr)expr;
+            return cannotFail(indexExpr.array) && indexExpr.index instanceof NumberExpr;
+        }
+
+        if(expr instanceof BinaryExpr) {
+            BinaryExpr binExpr = (BinaryExpr)expr;
+            switch(binExpr.operator) {
+                case EQUALS_EQUALS:
+                case NOT_EQUALS:
+                case AND:
+                case OR:
+                    return cannotFail(binExpr.left) && cannotFail(binExpr.right);
+                default:
+                    return false;
+            }
+        }
+
+        if(expr instanceof ArrayExpr) {
+            ArrayExpr arrayExpr = (ArrayExpr)expr;
+            return arrayExpr.forExpr == null && arrayExpr.elements.stream().allMatch(UnusedDeclarations::cannotFail);
+        }
+
+        if(expr instanceof ObjectExpr) {
+            ObjectExpr objExpr = (ObjectExpr)expr;
+            if(!objExpr.lets.isEmpty() || objExpr.forObjectExpr != null) {
+                return false;
+            }
+
+            for(Tuple<Expr, Expr> field : objExpr.fields) {
+                Expr key = field.getFirst();
+                if(!(key instanceof IdentifierExpr || key instanceof StringExpr) || !cannotFail(field.getSecond())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Adds the delta to the number of references of the variables and functions used in the expression
+     */
+    private void count(Expr expr, int delta) {
+        if(expr instanceof VariableExpr) {
+            this.variableReferences.merge(((VariableExpr)expr).variable, delta, Integer::sum);
+        }
+        else if(expr instanceof FuncCallExpr) {
+            Expr function = ((FuncCallExpr)expr).object;
+            if(function instanceof IdentifierExpr) {
+                this.functionReferences.merge(((IdentifierExpr)function).identifier, delta, Integer::sum);
+            }
+        }
+
+        forEachChild(expr, child -> count(child, delta));
+    }
+
+    private boolean isReferenced(Map<String, Integer> references, String name) {
+        return references.getOrDefault(name, 0) > 0;
+    }
+
+    private void prune(Expr expr, String alias) {
+        if(expr instanceof ModuleExpr) {
+            ModuleExpr module = (ModuleExpr)expr;
+            boolean isModule = !(module instanceof ProgramExpr);
+
+            Iterator<Decl> it = module.declarations.iterator();
+            while(it.hasNext()) {
+                Decl decl = it.next();
+                if(decl instanceof DefDecl) {
+                    String name = ((DefDecl)decl).identifier;
+                    if(!isReferenced(this.functionReferences, name) &&
+                       !(isModule && isReferenced(this.functionReferences, alias + ":" + name))) {
+                        remove(decl);
+                        it.remove();
+                        continue;
+                    }
+                }
+                else if(decl instanceof LetDecl) {
+                    if(isUnused((LetDecl)decl)) {
+                        remove(decl);
+                        it.remove();
+                        continue;
+                    }
+                }
+                else if(decl instanceof ImportDecl) {
+                    ImportDecl importDecl = (ImportDecl)decl;
+                    ModuleExpr imported = this.modules.get(importDecl);
+                    if(imported != null) {
+                        if(imported.expr != null &&
+                           !isReferenced(this.functionReferences, importDecl.alias) &&
+                           !isReferenced(this.functionReferences, importDecl.alias + ":" + importDecl.alias)) {
+                            remove(imported.expr);
+                            imported.expr = null;
+                        }
+
+                        prune(imported, importDecl.alias);
+                    }
+                    continue;
+                }
+
+                prune(decl, alias);
+            }
+
+            if(module.expr != null) {
+                prune(module.expr, alias);
+            }
+            return;
+        }
+
+        List<LetDecl> lets = lets(expr);
+        if(lets != null) {
+            lets.removeIf(let -> {
+                if(isUnused(let)) {
+                    remove(let);
+                    return true;
+                }
+                return false;
+            });
+        }
+
+        forEachChild(expr, child -> prune(child, alias));
+    }
+
+    private boolean isUnused(LetDecl let) {
+        return !isReferenced(this.variableReferences, "$" + let.identifier) && cannotFail(let.value);
+    }
+
+    private void remove(Expr expr) {
+        count(expr, -1);
+        this.removed = true;
+    }
+
+    /**
+     * @return the lets declared by the expression, or null if it doesn't declare any that may be removed
+     */
+    private static List<LetDecl> lets(Expr expr) {
+        if(expr instanceof DefDecl)       return ((DefDecl)expr).lets;
+        if(expr instanceof ObjectExpr)    return ((ObjectExpr)expr).lets;
+        if(expr instanceof IfExpr)        return ((IfExpr)expr).lets;
+        if(expr instanceof ElseExpr)      return ((ElseExpr)expr).lets;
+        if(expr instanceof ForArrayExpr)  return ((ForArrayExpr)expr).lets;
+        if(expr instanceof ForObjectExpr) return ((ForObjectExpr)expr).lets;
+        return null;
+    }
+
+    /**
+     * Applies the function to the direct children of the expression, an import declaration
+     * has its parsed module as its child
+     */
+    private void forEachChild(Expr expr, Consumer<Expr> f) {
+        if(expr == null) {
+            return;
+        }
+
+        if(expr instanceof ModuleExpr) {
+            ModuleExpr module = (ModuleExpr)expr;
+            module.declarations.forEach(f);
+            accept(module.expr, f);
+        }
+        else if(expr instanceof ImportDecl) {
+            accept(this.modules.get(expr), f);
+        }
+        else if(expr instanceof LetDecl) {
+            f.accept(((LetDecl)expr).value);
+        }
+        else if(expr instanceof DefDecl) {
+            DefDecl def = (DefDecl)expr;
+            def.lets.forEach(f);
+            f.accept(def.expr);
+        }
+        else if(expr instanceof AsyncBlockDecl) {
+            ((AsyncBlockDecl)expr).lets.forEach(f);
+        }
+        else if(expr instanceof ArrayExpr) {
+            ArrayExpr arrayExpr = (ArrayExpr)expr;
+            accept(arrayExpr.forExpr, f);
+            arrayExpr.elements.forEach(f);
+        }
+        else if(expr instanceof ObjectExpr) {
+            ObjectExpr objExpr = (ObjectExpr)expr;
+            objExpr.lets.forEach(f);
+            accept(objExpr.forObjectExpr, f);
+            for(Tuple<Expr, Expr> field : objExpr.fields) {
+                f.accept(field.getFirst());
+                f.accept(field.getSecond());
+            }
+        }
+        else if(expr instanceof ForArrayExpr) {
+            ForArrayExpr forExpr = (ForArrayExpr)expr;
+            f.accept(forExpr.condition);
+            forExpr.lets.forEach(f);
+            accept(forExpr.ifExpr, f);
+            f.accept(forExpr.valueExpr);
+        }
+        else if(expr instanceof ForObjectExpr) {
+            ForObjectExpr forExpr = (ForObjectExpr)expr;
+            f.accept(forExpr.condition);
+            forExpr.lets.forEach(f);
+            accept(forExpr.ifExpr, f);
+            f.accept(forExpr.keyExpr);
+            f.accept(forExpr.valueExpr);
+        }
+        else if(expr instanceof IfExpr) {
+            IfExpr ifExpr = (IfExpr)expr;
+            ifExpr.lets.forEach(f);
+            f.accept(ifExpr.condition);
+            f.accept(ifExpr.thenExpr);
+            accept(ifExpr.elseExpr, f);
+        }
+        else if(expr instanceof ElseExpr) {
+            ElseExpr elseExpr = (ElseExpr)expr;
+            elseExpr.lets.forEach(f);
+            f.accept(elseExpr.expr);
+        }
+        else if(expr instanceof FuncCallExpr) {
+            FuncCallExpr callExpr = (FuncCallExpr)expr;
+            f.accept(callExpr.object);
+            callExpr.arguments.forEach(f);
+        }
+        else if(expr instanceof MacroCallExpr) {
+            ((MacroCallExpr)expr).arguments.forEach(f);
+        }
+        else if(expr instanceof MatchExpr) {
+            ((MatchExpr)expr).fields.forEach(f);
+        }
+        else if(expr instanceof BinaryExpr) {
+            BinaryExpr binExpr = (BinaryExpr)expr;
+            f.accept(binExpr.left);
+            f.accept(binExpr.right);
+        }
+        else if(expr instanceof UnaryExpr) {
+            f.accept(((UnaryExpr)expr).expr);
+        }
+        else if(expr instanceof GroupExpr) {
+            f.accept(((GroupExpr)expr).expr);
+        }
+        else if(expr instanceof GetExpr) {
+            f.accept(((GetExpr)expr).object);
+        }
+        else if(expr instanceof DotExpr) {
+            accept(((DotExpr)expr).field, f);
+        }
+        else if(expr instanceof ArrayIndexExpr) {
+            ArrayIndexExpr indexExpr = (ArrayIndexExpr)expr;
+            f.accept(indexExpr.array);
+            f.accept(indexExpr.index);
+        }
+        else if(expr instanceof ArraySliceExpr) {
+            ArraySliceExpr sliceExpr = (ArraySliceExpr)expr;
+            f.accept(sliceExpr.array);
+            accept(sliceExpr.startExpr, f);
+            accept(sliceExpr.endExpr, f);
+        }
+    }
+
+    private static void accept(Expr expr, Consumer<Expr> f) {
+        if(expr != null) {
+            f.accept(expr);
+        }
+    }
+}
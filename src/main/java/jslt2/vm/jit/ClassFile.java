@@ -0,0 +1,259 @@
+/*
+ * see license.txt
+ */
+package jslt2.vm.jit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jslt2.Jslt2Exception;
+
+/**
+ * A minimal JVM class file writer, just enough to emit the classes generated by the {@link JitCompiler}.
+ *
+ * <p>
+ * The classes are written with the Java 5 class file version (49), which does not require the <code>StackMapTable</code>
+ * attribute; the JVM falls back to the type inferencing verifier for these classes, which keeps the writer small.
+ *
+ * @author Tony
+ *
+ */
+public class ClassFile {
+
+    public static final int ACC_PUBLIC = 0x0001;
+    public static final int ACC_FINAL  = 0x0010;
+    public static final int ACC_SUPER  = 0x0020;
+
+    private static final int VERSION = 49;
+
+    private static final int CONSTANT_Utf8        = 1;
+    private static final int CONSTANT_Integer     = 3;
+    private static final int CONSTANT_Class       = 7;
+    private static final int CONSTANT_String      = 8;
+    private static final int CONSTANT_Fieldref    = 9;
+    private static final int CONSTANT_Methodref   = 10;
+    private static final int CONSTANT_NameAndType = 12;
+
+    /**
+     * A method with its code attribute
+     */
+    static class Method {
+        int access;
+        int name;
+        int descriptor;
+        CodeBuffer code;
+    }
+
+    private ByteArrayOutputStream poolBytes;
+    private DataOutputStream pool;
+    private int poolSize;
+    private Map<String, Integer> poolEntries;
+
+    private int thisClass;
+    private int superClass;
+    private List<Method> methods;
+
+    /**
+     * @param className the internal name of the class (i.e., <code>jslt2/vm/jit/Foo</code>)
+     * @param superClassName the internal name of the super class
+     */
+    public ClassFile(String className, String superClassName) {
+        this.poolBytes = new ByteArrayOutputStream();
+        this.pool = new DataOutputStream(this.poolBytes);
+        this.poolSize = 1;
+        this.poolEntries = new HashMap<>();
+        this.methods = new ArrayList<>();
+
+        this.thisClass = classRef(className);
+        this.superClass = classRef(superClassName);
+    }
+
+    /**
+     * Adds a method to this class
+     *
+     * @param access
+     * @param name
+     * @param descriptor
+     * @param code
+     */
+    public void addMethod(int access, String name, String descriptor, CodeBuffer code) {
+        Method method = new Method();
+        method.access = access;
+        method.name = utf8(name);
+        method.descriptor = utf8(descriptor);
+        method.code = code;
+
+        this.methods.add(method);
+    }
+
+    public int utf8(String value) {
+        String key = "U" + value;
+        Integer index = this.poolEntries.get(key);
+        if(index == null) {
+            try {
+                this.pool.writeByte(CONSTANT_Utf8);
+                this.pool.writeUTF(value);
+            }
+            catch(IOException e) {
+                throw new Jslt2Exception(e);
+            }
+            index = newEntry(key);
+        }
+        return index;
+    }
+
+    public int integer(int value) {
+        String key = "I" + value;
+        Integer index = this.poolEntries.get(key);
+        if(index == null) {
+            write(CONSTANT_Integer, value);
+            index = newEntry(key);
+        }
+        return index;
+    }
+
+    public int string(String value) {
+        String key = "S" + value;
+        Integer index = this.poolEntries.get(key);
+        if(index == null) {
+            int utf8 = utf8(value);
+            write(CONSTANT_String, (short)utf8);
+            index = newEntry(key);
+        }
+        return index;
+    }
+
+    public int classRef(String internalName) {
+        String key = "C" + internalName;
+        Integer index = this.poolEntries.get(key);
+        if(index == null) {
+            int utf8 = utf8(internalName);
+            write(CONSTANT_Class, (short)utf8);
+            index = newEntry(key);
+        }
+        return index;
+    }
+
+    public int fieldRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_Fieldref, owner, name, descriptor);
+    }
+
+    public int methodRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_Methodref, owner, name, descriptor);
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor) {
+        String key = "M" + tag + owner + "." + name + descriptor;
+        Integer index = this.poolEntries.get(key);
+        if(index == null) {
+            int classIndex = classRef(owner);
+            int nameAndType = nameAndType(name, descriptor);
+            write(tag, (short)classIndex, (short)nameAndType);
+            index = newEntry(key);
+        }
+        return index;
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        String key = "N" + name + descriptor;
+        Integer index = this.poolEntries.get(key);
+        if(index == null) {
+            int nameIndex = utf8(name);
+            int descIndex = utf8(descriptor);
+            write(CONSTANT_NameAndType, (short)nameIndex, (short)descIndex);
+            index = newEntry(key);
+        }
+        return index;
+    }
+
+    private void write(int tag, int value) {
+        try {
+            this.pool.writeByte(tag);
+            this.pool.writeInt(value);
+        }
+        catch(IOException e) {
+            throw new Jslt2Exception(e);
+        }
+    }
+
+    private void write(int tag, short value) {
+        try {
+            this.pool.writeByte(tag);
+            this.pool.writeShort(value);
+        }
+        catch(IOException e) {
+            throw new Jslt2Exception(e);
+        }
+    }
+
+    private void write(int tag, short a, short b) {
+        try {
+            this.pool.writeByte(tag);
+            this.pool.writeShort(a);
+            this.pool.writeShort(b);
+        }
+        catch(IOException e) {
+            throw new Jslt2Exception(e);
+        }
+    }
+
+    private int newEntry(String key) {
+        int index = this.poolSize++;
+        if(index > 0xFFFF) {
+            throw new Jslt2Exception("Constant pool overflow");
+        }
+
+        this.poolEntries.put(key, index);
+        return index;
+    }
+
+    /**
+     * Writes out the class file
+     *
+     * @return the class file bytes
+     */
+    public byte[] toByteArray() {
+        try {
+            int codeAttribute = utf8("Code");
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+
+            out.writeShort(this.poolSize);
+            this.pool.flush();
+            out.write(this.poolBytes.toByteArray());
+
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(this.thisClass);
+            out.writeShort(this.superClass);
+            out.writeShort(0); // interfaces
+            out.writeShort(0); // fields
+
+            out.writeShort(this.methods.size());
+            for(Method method : this.methods) {
+                out.writeShort(method.access);
+                out.writeShort(method.name);
+                out.writeShort(method.descriptor);
+                out.writeShort(1); // attributes
+
+                method.code.write(out, codeAttribute);
+            }
+
+            out.writeShort(0); // class attributes
+            out.flush();
+
+            return bytes.toByteArray();
+        }
+        catch(IOException e) {
+            throw new Jslt2Exception(e);
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * see license.txt
+ */
+package jslt2.vm.jit;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import jslt2.Jslt2Exception;
+
+/**
+ * The JVM instructions of a single method body.  Jumps are emitted against {@link Label}s, which are
+ * patched once the {@link Label} position is known.
+ *
+ * @author Tony
+ *
+ */
+public class CodeBuffer {
+
+    /* the subset of the JVM instruction set used by the JitCompiler */
+    public static final int ACONST_NULL   = 1;
+    public static final int ICONST_0      = 3;
+    public static final int BIPUSH        = 16;
+    public static final int SIPUSH        = 17;
+    public static final int LDC_W         = 19;
+    public static final int ILOAD         = 21;
+    public static final int ALOAD         = 25;
+    public static final int ISTORE        = 54;
+    public static final int ASTORE        = 58;
+    public static final int AALOAD        = 50;
+    public static final int AASTORE       = 83;
+    public static final int POP           = 87;
+    public static final int DUP           = 89;
+    public static final int IFEQ          = 153;
+    public static final int IFNE          = 154;
+    public static final int IFLT          = 155;
+    public static final int IFGE          = 156;
+    public static final int IFGT          = 157;
+    public static final int IFLE          = 158;
+    public static final int GOTO          = 167;
+    public static final int ARETURN       = 176;
+    public static final int RETURN        = 177;
+    public static final int GETSTATIC     = 178;
+    public static final int GETFIELD      = 180;
+    public static final int PUTFIELD      = 181;
+    public static final int INVOKEVIRTUAL = 182;
+    public static final int INVOKESPECIAL = 183;
+    public static final int INVOKESTATIC  = 184;
+    public static final int ANEWARRAY     = 189;
+    public static final int ATHROW        = 191;
+    public static final int WIDE          = 196;
+
+    /**
+     * A jump target
+     */
+    public static class Label {
+        int position = -1;
+        List<Integer> fixups = new ArrayList<>();
+    }
+
+    static class Handler {
+        Label start;
+        Label end;
+        Label handler;
+        int type;
+    }
+
+    private byte[] code;
+    private int size;
+
+    private int maxStack;
+    private int maxLocals;
+
+    private List<Label> labels;
+    private List<Handler> handlers;
+
+    /**
+     * @param maxStack the maximum operand stack depth
+     * @param maxLocals the number of local variable slots
+     */
+    public CodeBuffer(int maxStack, int maxLocals) {
+        this.maxStack = maxStack;
+        this.maxLocals = maxLocals;
+
+        this.code = new byte[256];
+        this.labels = new ArrayList<>();
+        this.handlers = new ArrayList<>();
+    }
+
+    /**
+     * @return the size of the method body in bytes
+     */
+    public int size() {
+        return this.size;
+    }
+
+    public Label newLabel() {
+        Label label = new Label();
+        this.labels.add(label);
+        return label;
+    }
+
+    public void mark(Label label) {
+        label.position = this.size;
+    }
+
+    /**
+     * Registers an exception handler
+     *
+     * @param start inclusive start of the protected range
+     * @param end exclusive end of the protected range
+     * @param handler the handler code
+     * @param type the constant pool index of the caught exception class
+     */
+    public void tryCatch(Label start, Label end, Label handler, int type) {
+        Handler h = new Handler();
+        h.start = start;
+        h.end = end;
+        h.handler = handler;
+        h.type = type;
+
+        this.handlers.add(h);
+    }
+
+    public void op(int opcode) {
+        u1(opcode);
+    }
+
+    public void op(int opcode, int poolIndex) {
+        u1(opcode);
+        u2(poolIndex);
+    }
+
+    public void jump(int opcode, Label label) {
+        int position = this.size;
+        u1(opcode);
+        label.fixups.add(position);
+        u2(0);
+    }
+
+    public void iconst(ClassFile cf, int value) {
+        if(value >= -1 && value <= 5) {
+            u1(ICONST_0 + value);
+        }
+        else if(value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            u1(BIPUSH);
+            u1(value);
+        }
+        else if(value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            u1(SIPUSH);
+            u2(value);
+        }
+        else {
+            u1(LDC_W);
+            u2(cf.integer(value));
+        }
+    }
+
+    public void load(int opcode, int local) {
+        if(local > 255) {
+            u1(WIDE);
+            u1(opcode);
+            u2(local);
+        }
+        else {
+            u1(opcode);
+            u1(local);
+        }
+    }
+
+    public void aload(int local) {
+        load(ALOAD, local);
+    }
+
+    public void astore(int local) {
+        load(ASTORE, local);
+    }
+
+    private void u1(int value) {
+        if(this.size + 1 > this.code.length) {
+            byte[] newCode = new byte[this.code.length << 1];
+            System.arraycopy(this.code, 0, newCode, 0, this.size);
+            this.code = newCode;
+        }
+
+        this.code[this.size++] = (byte)value;
+    }
+
+    private void u2(int value) {
+        u1(value >> 8);
+        u1(value);
+    }
+
+    private void resolve() {
+        for(Label label : this.labels) {
+            if(label.position < 0) {
+                throw new Jslt2Exception("Unmarked label");
+            }
+
+            for(int position : label.fixups) {
+                int offset = label.position - position;
+                if(offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+                    throw new Jslt2Exception("Jump offset out of range");
+                }
+
+                this.code[position + 1] = (byte)(offset >> 8);
+                this.code[position + 2] = (byte)offset;
+            }
+        }
+    }
+
+    /**
+     * Writes out the Code attribute
+     *
+     * @param out
+     * @param codeAttribute the constant pool index of the "Code" name
+     * @throws IOException
+     */
+    void write(DataOutputStream out, int codeAttribute) throws IOException {
+        resolve();
+
+        out.writeShort(codeAttribute);
+        out.writeInt(2 + 2 + 4 + this.size + 2 + this.handlers.size() * 8 + 2);
+        out.writeShort(this.maxStack);
+        out.writeShort(this.maxLocals);
+        out.writeInt(this.size);
+        out.write(this.code, 0, this.size);
+
+        out.writeShort(this.handlers.size());
+        for(Handler h : this.handlers) {
+            out.writeShort(h.start.position);
+            out.writeShort(h.end.position);
+            out.writeShort(h.handler.position);
+            out.writeShort(h.type);
+        }
+
+        out.writeShort(0); // attributes
+    }
+}
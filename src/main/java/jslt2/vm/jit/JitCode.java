@@ -0,0 +1,96 @@
+/*
+ * see license.txt
+ */
+package jslt2.vm.jit;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import jslt2.Jslt2Exception;
+import jslt2.Jslt2Function;
+import jslt2.vm.Bytecode;
+import jslt2.vm.FieldMatcher;
+import jslt2.vm.VM;
+
+/**
+ * The base class of the classes generated by the {@link JitCompiler}.  There is one generated class per
+ * {@link Bytecode}, the {@link JitCode#execute(JitRuntime, JsonNode, JsonNode[], JsonNode[])} method holds the
+ * translated instructions.
+ *
+ * <p>
+ * The fields are public as they are accessed by the generated classes, which live in their own class loader.
+ *
+ * @author Tony
+ *
+ */
+public abstract class JitCode {
+
+    /**
+     * The {@link Bytecode} this was compiled from
+     */
+    public Bytecode bytecode;
+
+    /**
+     * The {@link Bytecode#constants}
+     */
+    public JsonNode[] constants;
+
+    /**
+     * The {@link Bytecode#stringConstants}, used for field and function names
+     */
+    public String[] strings;
+
+    /**
+     * The {@link Bytecode#paths}
+     */
+    public String[][] paths;
+
+    /**
+     * The {@link Bytecode#matchers}
+     */
+    public FieldMatcher[] matchers;
+
+    /**
+     * The {@link Bytecode#functions}
+     */
+    public Jslt2Function[] functions;
+
+    /**
+     * The compiled {@link Bytecode#inner}
+     */
+    public JitCode[] inner;
+
+    /**
+     * The compiled {@link Bytecode#global}
+     */
+    public JitCode global;
+
+    /**
+     * Executes the compiled code
+     *
+     * @param rt the runtime support for the current execution
+     * @param input the json input
+     * @param outers the captured outer values
+     * @param args the arguments, which are assigned to the first locals
+     * @return the result
+     */
+    public abstract JsonNode execute(JitRuntime rt, JsonNode input, JsonNode[] outers, JsonNode[] args);
+
+    /**
+     * Executes the compiled code with the supplied {@link VM}.  The {@link VM} is used for the state that is
+     * shared with the interpreter, such as the defined functions and the macro invocations.
+     *
+     * @param vm
+     * @param input
+     * @return the result
+     * @throws Jslt2Exception
+     */
+    public JsonNode execute(VM vm, JsonNode input) throws Jslt2Exception {
+        JitRuntime rt = new JitRuntime(vm);
+        try {
+            return execute(rt, input, null, null);
+        }
+        catch(StackOverflowError e) {
+            throw new Jslt2Exception("ExecutionError: Stack overflow, '" + this.bytecode.getSourceFileName() + "'");
+        }
+    }
+}
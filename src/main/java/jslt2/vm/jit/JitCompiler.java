@@ -0,0 +1,1110 @@
+/*
+ * see license.txt
+ */
+package jslt2.vm.jit;
+
+import static jslt2.vm.Opcodes.*;
+import static jslt2.vm.Bytecode.GLOBAL_FLAG;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jslt2.vm.Bytecode;
+import jslt2.vm.VM;
+import jslt2.vm.jit.CodeBuffer.Label;
+
+/**
+ * Translates a {@link Bytecode} tree into JVM classes, one class per {@link Bytecode}.
+ *
+ * <p>
+ * The stack of the {@link VM} is resolved at compile time: the depth of the value stack (and of the object and array
+ * builder stacks) is known for every instruction, so each stack slot becomes a JVM local and each opcode becomes
+ * straight-line code that loads and stores those locals.  Anything beyond a simple load or store calls into
+ * {@link JitRuntime}.  This removes the interpreter dispatch and lets HotSpot optimize each template on its own.
+ *
+ * <p>
+ * Not every {@link Bytecode} can be compiled (async blocks, or code in which the stack depth isn't fixed); in which
+ * case {@link JitCompiler#compile(Bytecode)} returns null and the template stays in the {@link VM} interpreter.
+ *
+ * @author Tony
+ *
+ */
+public class JitCompiler {
+
+    private static final AtomicInteger classId = new AtomicInteger();
+
+    private static final String JSON_NODE   = "com/fasterxml/jackson/databind/JsonNode";
+    private static final String OBJECT_NODE = "com/fasterxml/jackson/databind/node/ObjectNode";
+    private static final String ARRAY_NODE  = "com/fasterxml/jackson/databind/node/ArrayNode";
+    private static final String NULL_NODE   = "com/fasterxml/jackson/databind/node/NullNode";
+    private static final String BOOL_NODE   = "com/fasterxml/jackson/databind/node/BooleanNode";
+    private static final String JIT_CODE    = "jslt2/vm/jit/JitCode";
+    private static final String JIT_RUNTIME = "jslt2/vm/jit/JitRuntime";
+    private static final String BYTECODE    = "jslt2/vm/Bytecode";
+    private static final String JSLT2_FUNCTION = "jslt2/Jslt2Function";
+    private static final String FIELD_MATCHER  = "jslt2/vm/FieldMatcher";
+
+    private static final String J   = "L" + JSON_NODE + ";";
+    private static final String JA  = "[" + J;
+    private static final String O   = "L" + OBJECT_NODE + ";";
+    private static final String A   = "L" + ARRAY_NODE + ";";
+    private static final String S   = "Ljava/lang/String;";
+    private static final String SA  = "[" + S;
+    private static final String SAA = "[" + SA;
+    private static final String JC  = "L" + JIT_CODE + ";";
+    private static final String JCA = "[" + JC;
+    private static final String RT  = "L" + JIT_RUNTIME + ";";
+    private static final String BC  = "L" + BYTECODE + ";";
+    private static final String FN  = "L" + JSLT2_FUNCTION + ";";
+    private static final String FNA = "[" + FN;
+    private static final String FM  = "L" + FIELD_MATCHER + ";";
+    private static final String FMA = "[" + FM;
+
+    private static final String EXECUTE = "(" + RT + J + JA + JA + ")" + J;
+    private static final String BINARY  = "(" + J + J + ")" + J;
+    private static final String UNARY   = "(" + J + ")" + J;
+
+    /* fixed JVM locals of the generated execute method */
+    private static final int THIS   = 0;
+    private static final int RUNTIME = 1;
+    private static final int INPUT  = 2;
+    private static final int OUTERS = 3;
+    private static final int ARGS   = 4;
+    private static final int LINE_NUMBER = 5;
+    private static final int ERROR  = 6;
+    private static final int FIRST_LOCAL = 7;
+
+    /**
+     * The results of the stack depth analysis of a {@link Bytecode}
+     */
+    static class Frame {
+        int[] stackDepth;
+        int[] objDepth;
+        int[] arrayDepth;
+
+        int maxStack;
+        int maxObj;
+        int maxArray;
+    }
+
+    static class JitClassLoader extends ClassLoader {
+        JitClassLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(String name, byte[] b) {
+            return defineClass(name, b, 0, b.length);
+        }
+    }
+
+    /**
+     * Compiles the {@link Bytecode} (and all of its inner {@link Bytecode}) into JVM classes
+     *
+     * @param root
+     * @return the compiled code, or null if the {@link Bytecode} isn't supported by the {@link JitCompiler}
+     */
+    public JitCode compile(Bytecode root) {
+        List<Bytecode> codes = new ArrayList<>();
+        Map<Bytecode, Boolean> forBodies = new IdentityHashMap<>();
+        collect(root, codes, forBodies);
+
+        Map<Bytecode, Frame> frames = new IdentityHashMap<>();
+        for(Bytecode code : codes) {
+            if(code.global != null && !codes.contains(code.global)) {
+                return null;
+            }
+
+            Frame frame = analyze(code);
+            if(frame == null) {
+                return null;
+            }
+
+            frames.put(code, frame);
+        }
+
+        try {
+            JitClassLoader loader = new JitClassLoader(JitCode.class.getClassLoader());
+
+            Map<Bytecode, JitCode> compiled = new IdentityHashMap<>();
+            for(Bytecode code : codes) {
+                int numParams = forBodies.containsKey(code) ? (code.hasEntryLocals() ? 3 : 1) : code.numArgs;
+
+                String className = "jslt2/vm/jit/Compiled" + classId.incrementAndGet();
+                byte[] bytes = generate(className, code, frames.get(code), numParams);
+
+                Class<?> clazz = loader.define(className.replace('/', '.'), bytes);
+                compiled.put(code, (JitCode)clazz.getDeclaredConstructor().newInstance());
+            }
+
+            for(Bytecode code : codes) {
+                link(compiled.get(code), code, compiled);
+            }
+
+            return compiled.get(root);
+        }
+        catch(Exception | LinkageError e) {
+            // not able to be compiled, stay in the interpreter
+            return null;
+        }
+    }
+
+    private static void collect(Bytecode code, List<Bytecode> codes, Map<Bytecode, Boolean> forBodies) {
+        codes.add(code);
+
+        for(int pc = code.pc; pc < code.len; pc++) {
+            int i = code.instr[pc];
+            int opcode = OPCODE(i);
+            if(opcode == FOR_ARRAY_DEF || opcode == FOR_OBJ_DEF) {
+                forBodies.put(code.inner[ARGx(i)], Boolean.TRUE);
+            }
+        }
+
+        for(int i = 0; i < code.numInners; i++) {
+            collect(code.inner[i], codes, forBodies);
+        }
+    }
+
+    private static void link(JitCode jit, Bytecode code, Map<Bytecode, JitCode> compiled) {
+        jit.bytecode = code;
+        jit.constants = code.constants;
+        jit.paths = code.paths;
+        jit.matchers = code.matchers;
+        jit.functions = code.functions;
+
+        jit.strings = code.stringConstants;
+
+        jit.inner = new JitCode[code.numInners];
+        for(int i = 0; i < code.numInners; i++) {
+            jit.inner[i] = compiled.get(code.inner[i]);
+        }
+
+        if(code.global != null) {
+            jit.global = compiled.get(code.global);
+        }
+    }
+
+    /**
+     * The number of captured outer pseudo instructions that follow the instruction
+     */
+    private static int numPseudo(Bytecode code, int i) {
+        switch(OPCODE(i)) {
+            case FOR_ARRAY_DEF:
+            case FOR_OBJ_DEF:
+            case PIPE:
+            case FUNC_DEF:
+                return code.inner[ARGx(i)].numOuters;
+            case MATCHER:
+                return code.inner[ARG2(i)].numOuters;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Calculates the depth of the value, object and array stacks for each instruction.
+     *
+     * @param code
+     * @return the {@link Frame} or null if the code can't be compiled
+     */
+    private static Frame analyze(Bytecode code) {
+        final int[] instr = code.instr;
+        final int len = code.len;
+
+        Frame frame = new Frame();
+        frame.stackDepth = new int[len + 1];
+        frame.objDepth = new int[len + 1];
+        frame.arrayDepth = new int[len + 1];
+        Arrays.fill(frame.stackDepth, -1);
+
+        frame.stackDepth[code.pc] = 0;
+
+        int pc = code.pc;
+        while(pc < len) {
+            int i = instr[pc];
+            int opcode = OPCODE(i);
+            int next = pc + 1 + numPseudo(code, i);
+
+            int sd = frame.stackDepth[pc];
+            int od = frame.objDepth[pc];
+            int ad = frame.arrayDepth[pc];
+            if(sd < 0) {
+                // unreachable
+                pc = next;
+                continue;
+            }
+
+            int target = -1;
+            switch(opcode) {
+                case LINE: break;
+                case NEW_OBJ: od++; break;
+                case SEAL_OBJ: od--; sd++; break;
+                case NEW_ARRAY: ad++; break;
+                case SEAL_ARRAY: ad--; sd++; break;
+                case ADD_FIELDK: sd--; if(od < 1) return null; break;
+                case ADD_FIELD: sd -= 2; if(od < 1) return null; break;
+                case ADD_ELEMENT: sd--; if(ad < 1) return null; break;
+                case SEAL_VALUE_OBJ: od--; sd++; break;
+                case ADD_VALUE_FIELDK: sd--; if(od < 1) return null; break;
+                case ADD_VALUE_FIELD: sd -= 2; if(od < 1) return null; break;
+                case ADD_VALUE_ELEMENT: sd--; if(ad < 1) return null; break;
+                case STRIP_NULLS: break;
+                case GET_FIELDK: break;
+                case GET_FIELD:
+                case GET_ARRAY_ELEMENT: sd--; break;
+                case GET_INPUT_FIELDK: sd++; break;
+                case GET_PATH: break;
+                case GET_INPUT_PATH: sd++; break;
+                case ARRAY_SLICE: sd -= 2; break;
+                case MATCHER:
+                case COPY_MATCHER: if(od < 1) return null; break;
+                case LOAD_CONST:
+                case COPY_CONST:
+                case LOAD_OUTER:
+                case LOAD_JNULL:
+                case LOAD_NULL:
+                case LOAD_TRUE:
+                case LOAD_FALSE:
+                case LOAD_INPUT: sd++; break;
+                case LOAD_LOCAL: if(ARGx(i) >= code.numLocals) return null; sd++; break;
+                case STORE_LOCAL: if(ARGx(i) >= code.numLocals) return null; sd--; break;
+                case JMP: target = pc + 1 + ARGsx(i); break;
+                case IFEQ:
+                case IFNE:
+                case IFNULL:
+                case IFNONNULL: sd--; target = pc + 1 + ARGsx(i); break;
+                case IFEMPTY: target = pc + 1 + ARGsx(i); break;
+                case IF_CMPEQ:
+                case IF_CMPNE:
+                case IF_CMPGT:
+                case IF_CMPGE:
+                case IF_CMPLT:
+                case IF_CMPLE: sd -= 2; target = pc + 1 + ARGsx(i); break;
+                case FOR_ARRAY_DEF:
+                case FOR_OBJ_DEF:
+                case PIPE:
+                case FUNC_DEF: break;
+                case INVOKE: sd -= ARG1(i) - 1; break;
+                case TAIL_INVOKE: sd -= ARG1(i) - 1; if(od != 0 || ad != 0) return null; break;
+                case CONCAT: sd -= ARGx(i) - 1; break;
+                case USER_INVOKE: sd -= ARG1(i) - 1; break;
+                case MACRO_INVOKE: break;
+                case ADD:
+                case SUB:
+                case MUL:
+                case DIV:
+                case MOD:
+                case EQ:
+                case NEQ:
+                case GT:
+                case GTE:
+                case LT:
+                case LTE: sd--; break;
+                case NEG:
+                case NOT:
+                case IS_TRUE: break;
+                case ADD_RK:
+                case SUB_RK:
+                case MUL_RK:
+                case DIV_RK:
+                case MOD_RK: 
+                    if(!isRK(code, ARG1(i)) || !isRK(code, ARG2(i))) return null; 
+                    sd++; 
+                    break;
+                case GET_LOCAL_FIELDK:
+                case GET_LOCAL_PATH: if(ARG1(i) >= code.numLocals) return null; sd++; break;
+                case COPY_INPUT_FIELDK:
+                case COPY_INPUT_VALUE_FIELDK: if(od < 1) return null; break;
+                default:
+                    // ASYNC, AWAIT and anything unknown stays in the interpreter
+                    return null;
+            }
+
+            if(sd < 0 || od < 0 || ad < 0 || frame.stackDepth[pc] < minDepth(opcode, i)) {
+                return null;
+            }
+
+            for(int p = pc + 1; p < next; p++) {
+                int pseudo = OPCODE(instr[p]);
+                if(pseudo == xLOAD_LOCAL && ARGx(instr[p]) >= code.numLocals) {
+                    return null;
+                }
+                if(pseudo != xLOAD_LOCAL && pseudo != xLOAD_OUTER) {
+                    return null;
+                }
+            }
+
+            frame.maxStack = Math.max(frame.maxStack, sd);
+            frame.maxObj = Math.max(frame.maxObj, od);
+            frame.maxArray = Math.max(frame.maxArray, ad);
+
+            if(target >= 0) {
+                if(target <= pc || target > len || !merge(frame, target, sd, od, ad)) {
+                    return null;
+                }
+            }
+
+            if(opcode != JMP) {
+                if(next > len || !merge(frame, next, sd, od, ad)) {
+                    return null;
+                }
+            }
+
+            pc = next;
+        }
+
+        if(frame.stackDepth[len] < 1 || frame.objDepth[len] != 0 || frame.arrayDepth[len] != 0) {
+            return null;
+        }
+
+        return frame;
+    }
+
+    /**
+     * The number of values an instruction reads off of the stack
+     */
+    private static int minDepth(int opcode, int i) {
+        switch(opcode) {
+            case ADD_FIELD:
+            case ADD_VALUE_FIELD:
+            case GET_FIELD:
+            case GET_ARRAY_ELEMENT:
+            case ADD: case SUB: case MUL: case DIV: case MOD:
+            case EQ: case NEQ: case GT: case GTE: case LT: case LTE:
+            case IF_CMPEQ: case IF_CMPNE: case IF_CMPGT: case IF_CMPGE: case IF_CMPLT: case IF_CMPLE:
+                return 2;
+            case ARRAY_SLICE:
+                return 3;
+            case INVOKE:
+            case TAIL_INVOKE:
+            case USER_INVOKE:
+                return ARG1(i);
+            case CONCAT:
+                return ARGx(i);
+            case ADD_FIELDK:
+            case ADD_ELEMENT:
+            case ADD_VALUE_FIELDK:
+            case ADD_VALUE_ELEMENT:
+            case STRIP_NULLS:
+            case GET_FIELDK:
+            case GET_PATH:
+            case STORE_LOCAL:
+            case IFEQ:
+            case IFNE:
+            case IFNULL:
+            case IFNONNULL:
+            case IFEMPTY:
+            case FOR_ARRAY_DEF:
+            case FOR_OBJ_DEF:
+            case PIPE:
+            case MACRO_INVOKE:
+            case NEG:
+            case NOT:
+            case IS_TRUE:
+                return 1;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * If the register operand is a constant or one of the locals of the {@link Bytecode}
+     */
+    private static boolean isRK(Bytecode code, int rk) {
+        return ISK(rk) || rk < code.numLocals;
+    }
+
+    private static boolean merge(Frame frame, int pc, int sd, int od, int ad) {
+        if(frame.stackDepth[pc] < 0) {
+            frame.stackDepth[pc] = sd;
+            frame.objDepth[pc] = od;
+            frame.arrayDepth[pc] = ad;
+            return true;
+        }
+
+        return frame.stackDepth[pc] == sd &&
+               frame.objDepth[pc] == od &&
+               frame.arrayDepth[pc] == ad;
+    }
+
+    /**
+     * Generates the class for the {@link Bytecode}
+     */
+    private static byte[] generate(String className, Bytecode code, Frame frame, int numParams) {
+        final int[] instr = code.instr;
+        final int len = code.len;
+
+        final int localBase = FIRST_LOCAL;
+        final int stackBase = localBase + code.numLocals;
+        final int objBase = stackBase + frame.maxStack;
+        final int arrayBase = objBase + frame.maxObj;
+        final int numLocals = arrayBase + frame.maxArray;
+
+        ClassFile cf = new ClassFile(className, JIT_CODE);
+
+        CodeBuffer init = new CodeBuffer(1, 1);
+        init.aload(THIS);
+        init.op(CodeBuffer.INVOKESPECIAL, cf.methodRef(JIT_CODE, "<init>", "()V"));
+        init.op(CodeBuffer.RETURN);
+        cf.addMethod(ClassFile.ACC_PUBLIC, "<init>", "()V", init);
+
+        CodeBuffer c = new CodeBuffer(16, numLocals);
+
+        /* prologue: every slot starts out as null, then assign the arguments */
+        c.iconst(cf, -1);
+        c.load(CodeBuffer.ISTORE, LINE_NUMBER);
+        for(int j = localBase; j < numLocals; j++) {
+            c.op(CodeBuffer.ACONST_NULL);
+            c.astore(j);
+        }
+        for(int j = 0; j < numParams && j < code.numLocals; j++) {
+            c.aload(ARGS);
+            c.iconst(cf, j);
+            c.op(CodeBuffer.AALOAD);
+            c.astore(localBase + j);
+        }
+
+        Label[] labels = new Label[len + 1];
+        for(int pc = code.pc; pc <= len; pc++) {
+            if(frame.stackDepth[pc] >= 0) {
+                labels[pc] = c.newLabel();
+            }
+        }
+
+        Label start = c.newLabel();
+        Label end = c.newLabel();
+        Label handler = c.newLabel();
+
+        c.mark(start);
+
+        int pc = code.pc;
+        while(pc < len) {
+            int i = instr[pc];
+            int opcode = OPCODE(i);
+            int next = pc + 1 + numPseudo(code, i);
+
+            int sd = frame.stackDepth[pc];
+            if(sd < 0) {
+                pc = next;
+                continue;
+            }
+
+            c.mark(labels[pc]);
+
+            final int top = stackBase + sd;                      // next free stack slot
+            final int obj = objBase + frame.objDepth[pc] - 1;    // current object being built
+            final int array = arrayBase + frame.arrayDepth[pc] - 1; // current array being built
+
+            switch(opcode) {
+                case LINE: {
+                    c.iconst(cf, ARGx(i));
+                    c.load(CodeBuffer.ISTORE, LINE_NUMBER);
+                    break;
+                }
+                case NEW_OBJ: {
+                    c.aload(RUNTIME);
+                    c.iconst(cf, ARGx(i));
+                    c.op(CodeBuffer.INVOKEVIRTUAL, cf.methodRef(JIT_RUNTIME, "newObjectNode", "(I)" + O));
+                    c.astore(obj + 1);
+                    break;
+                }
+                case SEAL_OBJ: {
+                    c.aload(obj);
+                    c.astore(top);
+                    break;
+                }
+                case SEAL_VALUE_OBJ: {
+                    c.aload(obj);
+                    c.op(CodeBuffer.INVOKESTATIC, cf.methodRef(JIT_RUNTIME, "removeEmptyFields", "(" + O + ")" + O));
+                    c.astore(top);
+                    break;
+                }
+                case NEW_ARRAY: {
+                    c.aload(RUNTIME);
+                    c.iconst(cf, ARGx(i));
+                    c.op(CodeBuffer.INVOKEVIRTUAL, cf.methodRef(JIT_RUNTIME, "newArrayNode", "(I)" + A));
+                    c.astore(array + 1);
+                    break;
+                }
+                case SEAL_ARRAY: {
+                    c.aload(array);
+                    c.astore(top);
+                    break;
+                }
+                case ADD_FIELDK: {
+                    c.aload(obj);
+                    loadString(cf, c, ARGx(i));
+                    c.aload(top - 1);
+                    c.op(CodeBuffer.INVOKESTATIC, cf.methodRef(JIT_RUNTIME, "addField", "(" + O + S + J + ")V"));
+                    break;
+                }
+                case ADD_FIELD: {
+                    c.aload(obj);
+                    c.aload(top - 2);
+                    c.aload(top - 1);
+                    c.op(CodeBuffer.INVOKESTATIC, cf.methodRef(JIT_RUNTIME, "addField", "(" + O + J + J + ")V"));
+                    break;
+                }
+                case ADD_ELEMENT: {
+                    c.aload(array);
+                    c.aload(top - 1);
+                    c.op(CodeBuffer.INVOKESTATIC, cf.methodRef(JIT_RUNTIME, "addElement", "(" + A + J + ")V"));
+                    break;
+                }
+                case ADD_VALUE_FIELDK: {
+                    c.aload(obj);
+                    loadString(cf, c, ARGx(i));
+                    c.aload(top - 1);
+                    c.op(CodeBuffer.INVOKESTATIC, cf.methodRef(JIT_RUNTIME, "addValueField", "(" + O + S + J + ")V"));
+                    break;
+                }
+                case ADD_VALUE_FIELD: {
+                    c.aload(obj);
+                    c.aload(top - 2);
+                    c.aload(top - 1);
+                    c.op(CodeBuffer.INVOKESTATIC, cf.methodRef(JIT_RUNTIME, "addValueField", "(" + O + J + J + ")V"));
+                    break;
+                }
+                case ADD_VALUE_ELEMENT: {
+                    c.aload(array);
+                    c.aload(top - 1);
+                    c.op(CodeBuffer.INVOKESTATIC, cf.methodRef(JIT_RUNTIME, "addValueElement", "(" + A + J + ")V"));
+                    break;
+                }
+                case STRIP_NULLS: {
+                    c.aload(top - 1);
+                    c.op(CodeBuffer.INVOKESTATIC, cf.methodRef(JIT_RUNTIME, "stripNulls", UNARY));
+                    c.astore(top - 1);
+                    break;
+                }
+                case GET_FIELDK: {
+                    c.aload(top - 1);
+                    loadString(cf, c, ARGx(i));
+                    c.op(CodeBuffer.INVOKESTATIC, cf.methodRef(JIT_RUNTIME, "getField", "(" + J + S + ")" + J));
+                    c.astore(top - 1);
+                    break;
+                }
+                case GET_FIELD: {
+                    c.aload(top - 2);
+                    c.aload(top - 1);
+                    c.op(CodeBuffer.INVOKESTATIC, cf.methodRef(JIT_RUNTIME, "getField", BINARY));
+                    c.astore(top - 2);
+                    break;
+                }
+                case GET_ARRAY_ELEMENT: {
+                    c.aload(top - 2);
+                    c.aload(top - 1);
+                    c.op(CodeBuffer.INVOKESTATIC, cf.methodRef(JIT_RUNTIME, "getArrayElement", BINARY));
+                    c.astore(top - 2);
+                    break;
+                }
+                case GET_INPUT_FIELDK: {
+                    c.aload(INPUT);
+                    loadString(cf, c, ARGx(i));
+                    c.op(CodeBuffer.INVOKESTATIC, cf.methodRef(JIT_RUNTIME, "getField", "(" + J + S + ")" + J));
+                    c.astore(top);
+                    break;
+                }
+                case GET_PATH: {
+                    c.aload(top - 1);
+                    loadPath(cf, c, ARGx(i));
+                    c.op(CodeBuffer.INVOKESTATIC, cf.methodRef(JIT_RUNTIME, "getPath", "(" + J + SA + ")" + J));
+                    c.astore(top - 1);
+                    break;
+                }
+                case GET_INPUT_PATH: {
+                    c.aload(INPUT);
+                    loadPath(cf, c, ARGx(i));
+                    c.op(CodeBuffer.INVOKESTATIC, cf.methodRef(JIT_RUNTIME, "getPath", "(" + J + SA + ")" + J));
+                    c.astore(top);
+                    break;
+                }
+                case ARRAY_SLICE: {
+                    c.aload(RUNTIME);
+                    c.aload(top - 3);
+                    c.aload(top - 2);
+                    c.aload(top - 1);
+                    c.op(CodeBuffer.INVOKEVIRTUAL, cf.methodRef(JIT_RUNTIME, "arraySlice", "(" + J + J + J + ")" + J));
+                    c.astore(top - 3);
+                    break;
+                }
+                case MATCHER: {
+                    int innerIndex = ARG2(i);
+
+                    c.aload(RUNTIME);
+                    c.aload(obj);
+                    c.aload(THIS);
+                    c.op(CodeBuffer.GETFIELD, cf.fieldRef(JIT_CODE, "matchers", FMA));
+                    c.iconst(cf, ARG1(i));
+                    c.op(CodeBuffer.AALOAD);
+                    c.aload(INPUT);
+                    loadInner(cf, c, innerIndex);
+                    newOuters(cf, c, code, pc, localBase);
+                    c.op(CodeBuffer.INVOKEVIRTUAL, cf.methodRef(JIT_RUNTIME, "matcher", "(" + O + FM + J + JC + JA + ")V"));
+                    break;
+                }
+                case COPY_MATCHER: {
+                    c.aload(THIS);
+                    c.op(CodeBuffer.GETFIELD, cf.fieldRef(JIT_CODE, "matchers", FMA));
+                    c.iconst(cf, ARG1(i));
+                    c.op(CodeBuffer.AALOAD);
+                    c.aload(obj);
+                    c.aload(INPUT);
+                    c.iconst(cf, ARG2(i));
+                    c.op(CodeBuffer.INVOKEVIRTUAL, cf.methodRef(FIELD_MATCHER, "copyFields", "(" + O + J + "Z)V"));
+                    break;
+                }
+                case LOAD_CONST: {
+                    c.aload(THIS);
+                    c.op(CodeBuffer.GETFIELD, cf.fieldRef(JIT_CODE, "constants", JA));
+                    c.iconst(cf, ARGx(i));
+                    c.op(CodeBuffer.AALOAD);
+                    c.astore(top);
+                    break;
+                }
+                case COPY_CONST: {
+                    c.aload(THIS);
+                    c.op(CodeBuffer.GETFIELD, cf.fieldRef(JIT_CODE, "constants", JA));
+                    c.iconst(cf, ARGx(i));
+                    c.op(CodeBuffer.AALOAD);
+                    c.op(CodeBuffer.INVOKEVIRTUAL, cf.methodRef(JSON_NODE, "deepCopy", "()" + J));
+                    c.astore(top);
+                    break;
+                }
+                case LOAD_LOCAL: {
+                    c.aload(localBase + ARGx(i));
+                    c.astore(top);
+                    break;
+                }
+                case LOAD_OUTER: {
+                    c.aload(OUTERS);
+                    c.iconst(cf, ARGx(i));
+                    c.op(CodeBuffer.AALOAD);
+                    c.astore(top);
+                    break;
+                }
+                case LOAD_JNULL: {
+                    c.op(CodeBuffer.ACONST_NULL);
+                    c.astore(top);
+                    break;
+                }
+                case LOAD_NULL: {
+                    c.op(CodeBuffer.GETSTATIC, cf.fieldRef(NULL_NODE, "instance", "L" + NULL_NODE + ";"));
+                    c.astore(top);
+                    break;
+                }
+                case LOAD_TRUE: {
+                    c.op(CodeBuffer.GETSTATIC, cf.fieldRef(BOOL_NODE, "TRUE", "L" + BOOL_NODE + ";"));
+                    c.astore(top);
+                    break;
+                }
+                case LOAD_FALSE: {
+                    c.op(CodeBuffer.GETSTATIC, cf.fieldRef(BOOL_NODE, "FALSE", "L" + BOOL_NODE + ";"));
+                    c.astore(top);
+                    break;
+                }
+                case LOAD_INPUT: {
+                    c.aload(INPUT);
+                    c.astore(top);
+                    break;
+                }
+                case STORE_LOCAL: {
+                    c.aload(top - 1);
+                    c.astore(localBase + ARGx(i));
+                    break;
+                }
+                case JMP: {
+                    c.jump(CodeBuffer.GOTO, labels[pc + 1 + ARGsx(i)]);
+                    break;
+                }
+                case IFEQ: {
+                    c.aload(top - 1);
+                    c.op(CodeBuffer.INVOKESTATIC, cf.methodRef(JIT_RUNTIME, "isTrue", "(" + J + ")Z"));
+                    c.jump(CodeBuffer.IFEQ, labels[pc + 1 + ARGsx(i)]);
+                    break;
+                }
+                case IFNE: {
+                    c.aload(top - 1);
+                    c.op(CodeBuffer.INVOKESTATIC, cf.methodRef(JIT_RUNTIME, "isTrue", "(" + J + ")Z"));
+                    c.jump(CodeBuffer.IFNE, labels[pc + 1 + ARGsx(i)]);
+                    break;
+                }
+                case IFNULL:
+                case IFNONNULL: {
+                    c.aload(top - 1);
+                    c.op(CodeBuffer.INVOKESTATIC, cf.methodRef(JIT_RUNTIME, "isNull", "(" + J + ")Z"));
+                    c.jump(opcode == IFNULL ? CodeBuffer.IFNE : CodeBuffer.IFEQ, labels[pc + 1 + ARGsx(i)]);
+                    break;
+                }
+                case IFEMPTY: {
+                    c.aload(top - 1);
+                    c.op(CodeBuffer.INVOKESTATIC, cf.methodRef(JIT_RUNTIME, "hasElements", "(" + J + ")Z"));
+                    c.jump(CodeBuffer.IFEQ, labels[pc + 1 + ARGsx(i)]);
+                    break;
+                }
+                case IF_CMPEQ:
+                case IF_CMPNE: {
+                    c.aload(top - 2);
+                    c.aload(top - 1);
+                    c.op(CodeBuffer.INVOKESTATIC, cf.methodRef(JIT_RUNTIME, "equals", "(" + J + J + ")Z"));
+                    c.jump(opcode == IF_CMPEQ ? CodeBuffer.IFNE : CodeBuffer.IFEQ, labels[pc + 1 + ARGsx(i)]);
+                    break;
+                }
+                case IF_CMPGT:
+                case IF_CMPGE:
+                case IF_CMPLT:
+                case IF_CMPLE: {
+                    c.aload(top - 2);
+                    c.aload(top - 1);
+                    c.op(CodeBuffer.INVOKESTATIC, cf.methodRef(JIT_RUNTIME, "compare", "(" + J + J + ")I"));
+                    
+                    int jump = opcode == IF_CMPGT ? CodeBuffer.IFGT :
+                               opcode == IF_CMPGE ? CodeBuffer.IFGE :
+                               opcode == IF_CMPLT ? CodeBuffer.IFLT : CodeBuffer.IFLE;
+                    c.jump(jump, labels[pc + 1 + ARGsx(i)]);
+                    break;
+                }
+                case FOR_ARRAY_DEF:
+                case FOR_OBJ_DEF: {
+                    c.aload(RUNTIME);
+                    loadInner(cf, c, ARGx(i));
+                    c.aload(top - 1);
+                    newOuters(cf, c, code, pc, localBase);
+                    c.op(CodeBuffer.INVOKEVIRTUAL, cf.methodRef(JIT_RUNTIME, opcode == FOR_ARRAY_DEF ? "forArray" : "forObject",
+                                                                "(" + JC + J + JA + ")" + J));
+                    c.astore(top - 1);
+                    break;
+                }
+                case PIPE: {
+                    c.aload(RUNTIME);
+                    loadInner(cf, c, ARGx(i));
+                    c.aload(top - 1);
+                    newOuters(cf, c, code, pc, localBase);
+                    c.op(CodeBuffer.INVOKEVIRTUAL, cf.methodRef(JIT_RUNTIME, "pipe", "(" + JC + J + JA + ")" + J));
+                    c.astore(top - 1);
+                    break;
+                }
+                case FUNC_DEF: {
+                    if(code.inner[ARGx(i)].numOuters > 0) {
+                        c.aload(RUNTIME);
+                        loadInner(cf, c, ARGx(i));
+                        newOuters(cf, c, code, pc, localBase);
+                        c.op(CodeBuffer.INVOKEVIRTUAL, cf.methodRef(JIT_RUNTIME, "defineFunction", "(" + JC + JA + ")V"));
+                    }
+                    break;
+                }
+                case TAIL_INVOKE: {
+                    int nargs = ARG1(i);
+                    int bytecodeIndex = ARG2(i);
+
+                    Bytecode funcCode = (bytecodeIndex & GLOBAL_FLAG) > 0 ?
+                            code.global.inner[bytecodeIndex & ~GLOBAL_FLAG] :
+                            code.inner[bytecodeIndex];
+
+                    // a recursive call loops back to the start of the function with the new arguments
+                    if(funcCode == code) {
+                        for(int j = 0; j < code.numLocals; j++) {
+                            if(j < nargs) {
+                                c.aload(top - nargs + j);
+                            }
+                            else {
+                                c.op(CodeBuffer.ACONST_NULL);
+                            }
+                            c.astore(localBase + j);
+                        }
+                        c.jump(CodeBuffer.GOTO, labels[code.pc]);
+                        break;
+                    }
+
+                    // otherwise return, the calling JitRuntime#invoke executes the function in place of this one
+                    c.aload(RUNTIME);
+                    loadFunction(cf, c, bytecodeIndex);
+                    newArray(cf, c, top - nargs, nargs);
+                    c.op(CodeBuffer.INVOKEVIRTUAL, cf.methodRef(JIT_RUNTIME, "tailInvoke", "(" + JC + JA + ")" + J));
+                    c.op(CodeBuffer.ARETURN);
+                    break;
+                }
+                case INVOKE: {
+                    int nargs = ARG1(i);
+                    int bytecodeIndex = ARG2(i);
+
+                    c.aload(RUNTIME);
+                    loadFunction(cf, c, bytecodeIndex);
+                    c.aload(INPUT);
+                    newArray(cf, c, top - nargs, nargs);
+                    c.op(CodeBuffer.INVOKEVIRTUAL, cf.methodRef(JIT_RUNTIME, "invoke", "(" + JC + J + JA + ")" + J));
+                    c.astore(top - nargs);
+                    break;
+                }
+                case CONCAT: {
+                    int n = ARGx(i);
+                    newArray(cf, c, top - n, n);
+                    c.op(CodeBuffer.INVOKESTATIC, cf.methodRef(JIT_RUNTIME, "concat", "(" + JA + ")" + J));
+                    c.astore(top - n);
+                    break;
+                }
+                case USER_INVOKE: {
+                    int nargs = ARG1(i);
+
+                    c.aload(RUNTIME);
+                    c.aload(THIS);
+                    c.op(CodeBuffer.GETFIELD, cf.fieldRef(JIT_CODE, "functions", FNA));
+                    c.iconst(cf, ARG2(i));
+                    c.op(CodeBuffer.AALOAD);
+                    loadString(cf, c, ARG2(i));
+                    if(nargs <= 3) {
+                        // pass the arguments directly, avoiding the argument array
+                        c.iconst(cf, nargs);
+                        for(int a = 0; a < 3; a++) {
+                            if(a < nargs) {
+                                c.aload(top - nargs + a);
+                            }
+                            else {
+                                c.op(CodeBuffer.ACONST_NULL);
+                            }
+                        }
+                        c.aload(INPUT);
+                        c.op(CodeBuffer.INVOKEVIRTUAL, cf.methodRef(JIT_RUNTIME, "userInvoke", "(" + FN + S + "I" + J + J + J + J + ")" + J));
+                    }
+                    else {
+                        newArray(cf, c, top - nargs, nargs);
+                        c.aload(INPUT);
+                        c.op(CodeBuffer.INVOKEVIRTUAL, cf.methodRef(JIT_RUNTIME, "userInvoke", "(" + FN + S + JA + J + ")" + J));
+                    }
+                    c.astore(top - nargs);
+                    break;
+                }
+                case MACRO_INVOKE: {
+                    c.aload(RUNTIME);
+                    loadString(cf, c, ARG2(i));
+                    c.aload(THIS);
+                    c.op(CodeBuffer.GETFIELD, cf.fieldRef(JIT_CODE, "bytecode", BC));
+                    c.aload(top - 1);
+                    c.iconst(cf, ARG1(i));
+                    c.aload(INPUT);
+                    c.op(CodeBuffer.INVOKEVIRTUAL, cf.methodRef(JIT_RUNTIME, "macroInvoke", "(" + S + BC + J + "I" + J + ")" + J));
+                    c.astore(top - 1);
+                    break;
+                }
+                case ADD: {
+                    c.aload(RUNTIME);
+                    c.aload(top - 2);
+                    c.aload(top - 1);
+                    c.op(CodeBuffer.INVOKEVIRTUAL, cf.methodRef(JIT_RUNTIME, "add", BINARY));
+                    c.astore(top - 2);
+                    break;
+                }
+                case SUB: binary(cf, c, "sub", top); break;
+                case MUL: binary(cf, c, "mul", top); break;
+                case DIV: binary(cf, c, "div", top); break;
+                case MOD: binary(cf, c, "mod", top); break;
+                case EQ:  binary(cf, c, "eq", top); break;
+                case NEQ: binary(cf, c, "neq", top); break;
+                case GT:  binary(cf, c, "gt", top); break;
+                case GTE: binary(cf, c, "gte", top); break;
+                case LT:  binary(cf, c, "lt", top); break;
+                case LTE: binary(cf, c, "lte", top); break;
+                case NEG:     unary(cf, c, "neg", top); break;
+                case NOT:     unary(cf, c, "not", top); break;
+                case IS_TRUE: unary(cf, c, "istrue", top); break;
+                case ADD_RK: {
+                    c.aload(RUNTIME);
+                    loadRK(cf, c, ARG1(i), localBase);
+                    loadRK(cf, c, ARG2(i), localBase);
+                    c.op(CodeBuffer.INVOKEVIRTUAL, cf.methodRef(JIT_RUNTIME, "add", BINARY));
+                    c.astore(top);
+                    break;
+                }
+                case SUB_RK: binaryRK(cf, c, "sub", i, localBase, top); break;
+                case MUL_RK: binaryRK(cf, c, "mul", i, localBase, top); break;
+                case DIV_RK: binaryRK(cf, c, "div", i, localBase, top); break;
+                case MOD_RK: binaryRK(cf, c, "mod", i, localBase, top); break;
+                case GET_LOCAL_FIELDK: {
+                    c.aload(localBase + ARG1(i));
+                    loadString(cf, c, ARG2(i));
+                    c.op(CodeBuffer.INVOKESTATIC, cf.methodRef(JIT_RUNTIME, "getField", "(" + J + S + ")" + J));
+                    c.astore(top);
+                    break;
+                }
+                case GET_LOCAL_PATH: {
+                    c.aload(localBase + ARG1(i));
+                    loadPath(cf, c, ARG2(i));
+                    c.op(CodeBuffer.INVOKESTATIC, cf.methodRef(JIT_RUNTIME, "getPath", "(" + J + SA + ")" + J));
+                    c.astore(top);
+                    break;
+                }
+                case COPY_INPUT_FIELDK: {
+                    c.aload(obj);
+                    loadString(cf, c, ARG2(i));
+                    c.aload(INPUT);
+                    loadString(cf, c, ARG1(i));
+                    c.op(CodeBuffer.INVOKESTATIC, cf.methodRef(JIT_RUNTIME, "getField", "(" + J + S + ")" + J));
+                    c.op(CodeBuffer.INVOKESTATIC, cf.methodRef(JIT_RUNTIME, "addField", "(" + O + S + J + ")V"));
+                    break;
+                }
+                case COPY_INPUT_VALUE_FIELDK: {
+                    c.aload(obj);
+                    loadString(cf, c, ARG2(i));
+                    c.aload(INPUT);
+                    loadString(cf, c, ARG1(i));
+                    c.op(CodeBuffer.INVOKESTATIC, cf.methodRef(JIT_RUNTIME, "getField", "(" + J + S + ")" + J));
+                    c.op(CodeBuffer.INVOKESTATIC, cf.methodRef(JIT_RUNTIME, "stripNulls", UNARY));
+                    c.op(CodeBuffer.INVOKESTATIC, cf.methodRef(JIT_RUNTIME, "addValueField", "(" + O + S + J + ")V"));
+                    break;
+                }
+                default: {
+                    throw new IllegalStateException("Unsupported opcode: " + op2str(opcode));
+                }
+            }
+
+            pc = next;
+        }
+
+        /* epilogue: the result is the top of the stack, a for object body also leaves its key */
+        c.mark(labels[len]);
+
+        int resultDepth = frame.stackDepth[len];
+        if(resultDepth > 1) {
+            c.aload(RUNTIME);
+            c.aload(stackBase + resultDepth - 2);
+            c.op(CodeBuffer.PUTFIELD, cf.fieldRef(JIT_RUNTIME, "key", J));
+        }
+        c.aload(stackBase + resultDepth - 1);
+        c.op(CodeBuffer.ARETURN);
+
+        c.mark(end);
+
+        /* any failure is reported the same as the interpreter */
+        c.mark(handler);
+        c.astore(ERROR);
+        c.aload(THIS);
+        c.op(CodeBuffer.GETFIELD, cf.fieldRef(JIT_CODE, "bytecode", BC));
+        c.load(CodeBuffer.ILOAD, LINE_NUMBER);
+        c.aload(ERROR);
+        c.op(CodeBuffer.INVOKESTATIC, cf.methodRef(JIT_RUNTIME, "error", "(" + BC + "ILjava/lang/Exception;)Ljslt2/Jslt2Exception;"));
+        c.op(CodeBuffer.ATHROW);
+
+        c.tryCatch(start, end, handler, cf.classRef("java/lang/Exception"));
+
+        cf.addMethod(ClassFile.ACC_PUBLIC, "execute", EXECUTE, c);
+        return cf.toByteArray();
+    }
+
+    private static void binary(ClassFile cf, CodeBuffer c, String name, int top) {
+        c.aload(top - 2);
+        c.aload(top - 1);
+        c.op(CodeBuffer.INVOKESTATIC, cf.methodRef(JIT_RUNTIME, name, BINARY));
+        c.astore(top - 2);
+    }
+
+    private static void binaryRK(ClassFile cf, CodeBuffer c, String name, int i, int localBase, int top) {
+        loadRK(cf, c, ARG1(i), localBase);
+        loadRK(cf, c, ARG2(i), localBase);
+        c.op(CodeBuffer.INVOKESTATIC, cf.methodRef(JIT_RUNTIME, name, BINARY));
+        c.astore(top);
+    }
+
+    private static void loadRK(ClassFile cf, CodeBuffer c, int rk, int localBase) {
+        if(ISK(rk)) {
+            c.aload(THIS);
+            c.op(CodeBuffer.GETFIELD, cf.fieldRef(JIT_CODE, "constants", JA));
+            c.iconst(cf, INDEXK(rk));
+            c.op(CodeBuffer.AALOAD);
+        }
+        else {
+            c.aload(localBase + rk);
+        }
+    }
+
+    private static void unary(ClassFile cf, CodeBuffer c, String name, int top) {
+        c.aload(top - 1);
+        c.op(CodeBuffer.INVOKESTATIC, cf.methodRef(JIT_RUNTIME, name, UNARY));
+        c.astore(top - 1);
+    }
+
+    private static void loadFunction(ClassFile cf, CodeBuffer c, int bytecodeIndex) {
+        if((bytecodeIndex & GLOBAL_FLAG) > 0) {
+            c.aload(THIS);
+            c.op(CodeBuffer.GETFIELD, cf.fieldRef(JIT_CODE, "global", JC));
+            c.op(CodeBuffer.GETFIELD, cf.fieldRef(JIT_CODE, "inner", JCA));
+            c.iconst(cf, bytecodeIndex & ~GLOBAL_FLAG);
+            c.op(CodeBuffer.AALOAD);
+        }
+        else {
+            loadInner(cf, c, bytecodeIndex);
+        }
+    }
+
+    private static void loadString(ClassFile cf, CodeBuffer c, int constIndex) {
+        c.aload(THIS);
+        c.op(CodeBuffer.GETFIELD, cf.fieldRef(JIT_CODE, "strings", SA));
+        c.iconst(cf, constIndex);
+        c.op(CodeBuffer.AALOAD);
+    }
+
+    private static void loadPath(ClassFile cf, CodeBuffer c, int pathIndex) {
+        c.aload(THIS);
+        c.op(CodeBuffer.GETFIELD, cf.fieldRef(JIT_CODE, "paths", SAA));
+        c.iconst(cf, pathIndex);
+        c.op(CodeBuffer.AALOAD);
+    }
+
+    private static void loadInner(ClassFile cf, CodeBuffer c, int innerIndex) {
+        c.aload(THIS);
+        c.op(CodeBuffer.GETFIELD, cf.fieldRef(JIT_CODE, "inner", JCA));
+        c.iconst(cf, innerIndex);
+        c.op(CodeBuffer.AALOAD);
+    }
+
+    /**
+     * Creates an array out of the n stack slots starting at the supplied local, or null if n is 0
+     */
+    private static void newArray(ClassFile cf, CodeBuffer c, int firstLocal, int n) {
+        if(n <= 0) {
+            c.op(CodeBuffer.ACONST_NULL);
+            return;
+        }
+
+        c.iconst(cf, n);
+        c.op(CodeBuffer.ANEWARRAY, cf.classRef(JSON_NODE));
+        for(int j = 0; j < n; j++) {
+            c.op(CodeBuffer.DUP);
+            c.iconst(cf, j);
+            c.aload(firstLocal + j);
+            c.op(CodeBuffer.AASTORE);
+        }
+    }
+
+    /**
+     * Creates the outers array from the xLOAD_LOCAL/xLOAD_OUTER pseudo instructions that follow
+     * the instruction at pc
+     */
+    private static void newOuters(ClassFile cf, CodeBuffer c, Bytecode code, int pc, int localBase) {
+        int n = numPseudo(code, code.instr[pc]);
+        if(n <= 0) {
+            c.op(CodeBuffer.ACONST_NULL);
+            return;
+        }
+
+        c.iconst(cf, n);
+        c.op(CodeBuffer.ANEWARRAY, cf.classRef(JSON_NODE));
+        for(int j = 0; j < n; j++) {
+            int i = code.instr[pc + 1 + j];
+
+            c.op(CodeBuffer.DUP);
+            c.iconst(cf, j);
+            if(OPCODE(i) == xLOAD_OUTER) {
+                c.aload(OUTERS);
+                c.iconst(cf, ARGx(i));
+                c.op(CodeBuffer.AALOAD);
+            }
+            else {
+                c.aload(localBase + ARGx(i));
+            }
+            c.op(CodeBuffer.AASTORE);
+        }
+    }
+}
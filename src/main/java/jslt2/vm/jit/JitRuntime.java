@@ -0,0 +1,670 @@
+/*
+ * see license.txt
+ */
+package jslt2.vm.jit;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.BooleanNode;
+import com.fasterxml.jackson.databind.node.DoubleNode;
+import com.fasterxml.jackson.databind.node.LongNode;
+import com.fasterxml.jackson.databind.node.NullNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+
+import jslt2.Jslt2;
+import jslt2.Jslt2Exception;
+import jslt2.Jslt2Function;
+import jslt2.Jslt2MacroFunction;
+import jslt2.util.Jslt2Util;
+import jslt2.vm.Bytecode;
+import jslt2.vm.FieldMatcher;
+import jslt2.vm.MemoCache;
+import jslt2.vm.VM;
+
+/**
+ * The runtime support for {@link JitCode}.  The generated code keeps the values in JVM locals and calls out to
+ * these methods for anything beyond a simple load or store.  The semantics match the opcodes of the {@link VM}.
+ *
+ * @author Tony
+ *
+ */
+public final class JitRuntime {
+
+    /**
+     * The result of a TAIL_INVOKE, the {@link #tailCode} is executed in place of the returning function
+     */
+    private static final JsonNode TAIL_CALL = new TextNode("<tail call>");
+
+    /**
+     * The number of nested function calls the compiled code makes, each nests a Java call, before the {@link VM}
+     * continues the recursion on the heap
+     */
+    private static final int MAX_CALL_DEPTH = 256;
+
+    private VM vm;
+    private Jslt2 runtime;
+
+    private JitCode tailCode;
+    private JsonNode[] tailArgs;
+
+    /**
+     * The number of function calls being executed by the compiled code
+     */
+    private int callDepth;
+
+    /**
+     * The key of a for object body, which leaves both the key and the value on its stack
+     */
+    public JsonNode key;
+
+    /**
+     * @param vm the {@link VM} used for the state shared with the interpreter
+     */
+    public JitRuntime(VM vm) {
+        this.vm = vm;
+        this.runtime = vm.getRuntime();
+    }
+
+    public ObjectNode newObjectNode(int expectedSize) {
+        return this.runtime.newObjectNode(expectedSize);
+    }
+
+    public ArrayNode newArrayNode(int capacity) {
+        return this.runtime.newArrayNode(capacity);
+    }
+
+    public static void addField(ObjectNode obj, String fieldName, JsonNode value) {
+        obj.set(fieldName, value);
+    }
+
+    public static void addField(ObjectNode obj, JsonNode index, JsonNode value) {
+        obj.set(index.asText(), value);
+    }
+
+    public static void addElement(ArrayNode array, JsonNode value) {
+        array.add(value);
+    }
+
+    public static void addValueField(ObjectNode obj, String fieldName, JsonNode value) {
+        if(Jslt2Util.isValue(value)) {
+            obj.set(fieldName, value);
+        }
+    }
+
+    public static void addValueField(ObjectNode obj, JsonNode index, JsonNode value) {
+        if(Jslt2Util.isValue(value)) {
+            obj.set(index.asText(), value);
+        }
+    }
+
+    public static void addValueElement(ArrayNode array, JsonNode value) {
+        if(Jslt2Util.isValue(value)) {
+            array.add(value);
+        }
+    }
+
+    public static ObjectNode removeEmptyFields(ObjectNode obj) {
+        return Jslt2Util.removeEmptyFields(obj);
+    }
+
+    public static JsonNode stripNulls(JsonNode value) {
+        return Jslt2Util.stripNullNodes(value);
+    }
+
+    public static JsonNode getField(JsonNode obj, String fieldName) {
+        return Jslt2Util.getField(obj, fieldName);
+    }
+
+    public static JsonNode getField(JsonNode obj, JsonNode index) {
+        return getField(obj, index.asText());
+    }
+
+    public static JsonNode getPath(JsonNode obj, String[] path) {
+        return Jslt2Util.getPath(obj, path);
+    }
+
+    public static JsonNode getArrayElement(JsonNode obj, JsonNode index) {
+        if(obj.isTextual()) {
+            return new TextNode("" + obj.asText().charAt(index.intValue()));
+        }
+
+        JsonNode value = obj.get(index.asInt());
+        if(value == null) {
+            value = NullNode.instance;
+        }
+
+        return value;
+    }
+
+    public JsonNode arraySlice(JsonNode array, JsonNode start, JsonNode end) {
+        int startIndex = start.intValue();
+
+        if(array.isArray()) {
+            ArrayNode a = (ArrayNode)array;
+            int size = a.size();
+
+            int endIndex = sliceEnd(end, size, startIndex);
+
+            ArrayNode slice = this.runtime.newArrayNode(endIndex - startIndex);
+            for(int j = startIndex; j < endIndex; j++) {
+                slice.add(a.get(j));
+            }
+
+            return slice;
+        }
+        else if(array.isTextual()) {
+            String text = array.asText();
+            int size = text.length();
+
+            int endIndex = sliceEnd(end, size, startIndex);
+            return new TextNode(text.substring(startIndex, endIndex));
+        }
+
+        return NullNode.instance;
+    }
+
+    private static int sliceEnd(JsonNode end, int size, int startIndex) {
+        int endIndex = end.isNull() ? size : end.intValue();
+        if(endIndex < 0) {
+            endIndex = size + endIndex;
+        }
+        else if(endIndex > size) {
+            endIndex = size;
+        }
+
+        if(endIndex < startIndex) {
+            throw error("The end range (" + endIndex + ") is smaller than the start range (" + startIndex + ")");
+        }
+
+        return endIndex;
+    }
+
+    public void matcher(ObjectNode outputObj, FieldMatcher matcher, JsonNode input, JitCode code, JsonNode[] outers) {
+        JsonNode context = matcher.resolveContext(input);
+        if(!context.isObject()) {
+            return;
+        }
+
+        Iterator<Map.Entry<String, JsonNode>> it = context.fields();
+        while(it.hasNext()) {
+            Map.Entry<String, JsonNode> next = it.next();
+            String key = next.getKey();
+            if(!outputObj.has(key)) {
+                if(matcher.isOmittedField(key)) {
+                    continue;
+                }
+
+                JsonNode value = code.execute(this, next.getValue(), outers, null);
+                outputObj.set(key, value);
+            }
+        }
+    }
+
+    public JsonNode forArray(JitCode code, JsonNode object, JsonNode[] outers) {
+        if(object.isNull()) {
+            return NullNode.instance;
+        }
+
+        ArrayNode array = this.runtime.newArrayNode(object.size());
+
+        // the automatic index variable is the first local of the body, followed by the entry key and value
+        boolean entryLocals = code.bytecode.hasEntryLocals();
+        boolean indexLocal = code.bytecode.hasIndexLocal();
+        JsonNode[] args = new JsonNode[entryLocals ? 3 : 1];
+
+        if(object.isObject()) {
+            Iterator<Map.Entry<String, JsonNode>> it = object.fields();
+            int index = 0;
+
+            while(it.hasNext()) {
+                Map.Entry<String, JsonNode> entry = it.next();
+
+                JsonNode current = NullNode.instance;
+                if(entryLocals) {
+                    args[1] = new TextNode(entry.getKey());
+                    args[2] = entry.getValue();
+                }
+                else {
+                    current = newEntry(entry);
+                }
+
+                if(indexLocal) {
+                    args[0] = this.runtime.indexNode(index);
+                }
+
+                JsonNode n = code.execute(this, current, outers, args);
+                if(n != null && (this.runtime.includeNulls() || Jslt2Util.isValue(n))) {
+                    array.add(n);
+                }
+
+                index++;
+            }
+        }
+        else if(object.isArray()) {
+            int size = object.size();
+            for(int ix = 0; ix < size; ix++) {
+                JsonNode current = object.get(ix);
+                if(entryLocals) {
+                    args[1] = Jslt2Util.getField(current, "key");
+                    args[2] = Jslt2Util.getField(current, "value");
+                }
+
+                if(indexLocal) {
+                    args[0] = this.runtime.indexNode(ix);
+                }
+
+                JsonNode n = code.execute(this, current, outers, args);
+                if(n != null && (this.runtime.includeNulls() || Jslt2Util.isValue(n))) {
+                    array.add(n);
+                }
+            }
+        }
+        else {
+            throw new Jslt2Exception("ForIterationError: For loop can't iterate over '" + object + "'");
+        }
+
+        return array;
+    }
+
+    private ObjectNode newEntry(Map.Entry<String, JsonNode> entry) {
+        ObjectNode current = this.runtime.newObjectNode();
+        current.set("key", new TextNode(entry.getKey()));
+        current.set("value", entry.getValue());
+        return current;
+    }
+
+    public JsonNode forObject(JitCode code, JsonNode object, JsonNode[] outers) {
+        if(object.isNull()) {
+            return NullNode.instance;
+        }
+
+        ObjectNode obj = this.runtime.newObjectNode();
+
+        // the automatic index variable is the first local of the body, followed by the entry key and value
+        boolean entryLocals = code.bytecode.hasEntryLocals();
+        boolean indexLocal = code.bytecode.hasIndexLocal();
+        JsonNode[] args = new JsonNode[entryLocals ? 3 : 1];
+
+        if(object.isObject()) {
+            Iterator<Map.Entry<String, JsonNode>> it = object.fields();
+            int index = 0;
+
+            while(it.hasNext()) {
+                Map.Entry<String, JsonNode> entry = it.next();
+
+                JsonNode current = NullNode.instance;
+                if(entryLocals) {
+                    args[1] = new TextNode(entry.getKey());
+                    args[2] = entry.getValue();
+                }
+                else {
+                    current = newEntry(entry);
+                }
+
+                if(indexLocal) {
+                    args[0] = this.runtime.indexNode(index);
+                }
+
+                JsonNode v = code.execute(this, current, outers, args);
+                JsonNode k = this.key;
+                if(k != null && (this.runtime.includeNulls() || Jslt2Util.isValue(v))) {
+                    obj.set(k.asText(), v);
+                }
+
+                index++;
+            }
+        }
+        else if(object.isArray()) {
+            int size = object.size();
+            for(int ix = 0; ix < size; ix++) {
+                JsonNode current = object.get(ix);
+                if(entryLocals) {
+                    args[1] = Jslt2Util.getField(current, "key");
+                    args[2] = Jslt2Util.getField(current, "value");
+                }
+
+                if(indexLocal) {
+                    args[0] = this.runtime.indexNode(ix);
+                }
+
+                JsonNode v = code.execute(this, current, outers, args);
+                JsonNode k = this.key;
+                if(k != null && (this.runtime.includeNulls() || Jslt2Util.isValue(v))) {
+                    obj.set(k.asText(), v);
+                }
+            }
+        }
+        else {
+            throw new Jslt2Exception("ForIterationError: For loop can't iterate over '" + object + "'");
+        }
+
+        return obj;
+    }
+
+    public JsonNode pipe(JitCode code, JsonNode newInput, JsonNode[] outers) {
+        return code.execute(this, newInput, outers, null);
+    }
+
+    public void defineFunction(JitCode code, JsonNode[] outers) {
+        this.vm.defineFunction(code.bytecode, outers);
+    }
+
+    public JsonNode invoke(JitCode code, JsonNode input, JsonNode[] args) {
+        MemoCache memoCache = this.vm.getMemoCache();
+        Bytecode memoCode = null;
+        JsonNode[] memoKey = null;
+
+        JsonNode result;
+        for(;;) {
+            // the result is cached by the first memoized function called
+            if(memoCache != null && code.bytecode.isMemoized()) {
+                JsonNode[] key = MemoCache.key(args, 0, args != null ? args.length : 0);
+                if(key != null) {
+                    JsonNode cached = memoCache.get(code.bytecode, key);
+                    if(cached != null) {
+                        result = cached;
+                        break;
+                    }
+
+                    if(memoKey == null) {
+                        memoCode = code.bytecode;
+                        memoKey = key;
+                    }
+                }
+            }
+
+            if(this.callDepth >= MAX_CALL_DEPTH) {
+                result = this.vm.invoke(code.bytecode, input, args);
+                break;
+            }
+
+            this.callDepth++;
+            result = code.execute(this, input, outers(code), args);
+            this.callDepth--;
+
+            if(result != TAIL_CALL) {
+                break;
+            }
+
+            code = this.tailCode;
+            args = this.tailArgs;
+
+            this.tailCode = null;
+            this.tailArgs = null;
+        }
+
+        if(memoKey != null) {
+            memoCache.put(memoCode, memoKey, result);
+        }
+
+        return result;
+    }
+
+    public JsonNode tailInvoke(JitCode code, JsonNode[] args) {
+        this.tailCode = code;
+        this.tailArgs = args;
+        return TAIL_CALL;
+    }
+
+    private JsonNode[] outers(JitCode code) {
+        return code.bytecode.numOuters > 0 ? this.vm.getFunctionOuters(code.bytecode) : null;
+    }
+
+    public JsonNode userInvoke(Jslt2Function function, String name, JsonNode[] args, JsonNode input) {
+        if(function == null) {
+            function = lookupFunction(name, args.length);
+        }
+
+        return function.execute(input, args);
+    }
+
+    public JsonNode userInvoke(Jslt2Function function, String name, int nargs, JsonNode arg0, JsonNode arg1, JsonNode arg2, JsonNode input) {
+        if(function == null) {
+            function = lookupFunction(name, nargs);
+        }
+
+        return Jslt2Util.invoke(function, input, nargs, arg0, arg1, arg2);
+    }
+
+    private Jslt2Function lookupFunction(String name, int nargs) {
+        // not bound at compile time
+        Jslt2Function function = this.runtime.getFunction(name);
+        if(function == null) {
+            throw error("No function defined with the name '" + name + "'");
+        }
+
+        String argumentError = this.runtime.checkFunctionArguments(name, nargs);
+        if(argumentError != null) {
+            throw error(argumentError);
+        }
+
+        return function;
+    }
+
+    public JsonNode macroInvoke(String name, Bytecode code, JsonNode end, int nargs, JsonNode input) {
+        int endIndex = end.asInt();
+        int startIndex = endIndex - nargs;
+
+        List<Bytecode> args = new ArrayList<>(nargs);
+        for(int ix = startIndex; ix < endIndex; ix++) {
+            args.add(code.inner[ix]);
+        }
+
+        Jslt2MacroFunction macro = this.runtime.getMacro(name);
+        if(macro == null) {
+            throw error("No macro defined with the name '" + name + "'");
+        }
+
+        return macro.execute(this.vm, input, args);
+    }
+
+    /* arithmetic operators */
+
+    public JsonNode add(JsonNode l, JsonNode r) {
+        if(l.isTextual() || r.isTextual()) {
+            return new TextNode(Jslt2Util.toString(l, false) +
+                                Jslt2Util.toString(r, false));
+        }
+        else if(l.isArray() && r.isArray()) {
+            ArrayNode a = (ArrayNode)l;
+            ArrayNode b = (ArrayNode)r;
+            ArrayNode union = this.runtime.newArrayNode(a.size() + b.size());
+            union.addAll(a);
+            union.addAll(b);
+
+            return union;
+        }
+        else if(l.isObject() && r.isObject()) {
+            ObjectNode a = (ObjectNode)l;
+            ObjectNode b = (ObjectNode)r;
+            ObjectNode union = this.runtime.newObjectNode();
+            union.setAll(b);
+            union.setAll(a);
+
+            return union;
+        }
+
+        l = Jslt2Util.number(l, true, null);
+        r = Jslt2Util.number(r, true, null);
+
+        if(l.isNull() || r.isNull()) {
+            return NullNode.instance;
+        }
+        else if(l.isIntegralNumber() && r.isIntegralNumber()) {
+            return new LongNode(l.asLong() + r.asLong());
+        }
+
+        return new DoubleNode(l.asDouble() + r.asDouble());
+    }
+
+    public static JsonNode sub(JsonNode l, JsonNode r) {
+        l = Jslt2Util.number(l, true, null);
+        r = Jslt2Util.number(r, true, null);
+
+        if(l.isNull() || r.isNull()) {
+            return NullNode.instance;
+        }
+        else if(l.isIntegralNumber() && r.isIntegralNumber()) {
+            return new LongNode(l.asLong() - r.asLong());
+        }
+
+        return new DoubleNode(l.asDouble() - r.asDouble());
+    }
+
+    public static JsonNode mul(JsonNode l, JsonNode r) {
+        if(l.isNull() || r.isNull()) {
+            return NullNode.instance;
+        }
+        else if(l.isTextual() || r.isTextual()) {
+            String str = null;
+            int num = 0;
+
+            if(l.isTextual() && r.isTextual()) {
+                throw error("Can't multiply two strings!");
+            }
+            else if(l.isTextual()) {
+                str = l.asText();
+                num = r.intValue();
+            }
+            else {
+                str = r.asText();
+                num = l.intValue();
+            }
+
+            StringBuilder buf = new StringBuilder();
+            for(; num > 0; num--) {
+                buf.append(str);
+            }
+
+            return new TextNode(buf.toString());
+        }
+        else if(l.isIntegralNumber() && r.isIntegralNumber()) {
+            return new LongNode(l.asLong() * r.asLong());
+        }
+
+        return new DoubleNode(l.asDouble() * r.asDouble());
+    }
+
+    public static JsonNode div(JsonNode l, JsonNode r) {
+        l = Jslt2Util.number(l, true, null);
+        r = Jslt2Util.number(r, true, null);
+
+        if(l.isNull() || r.isNull()) {
+            return NullNode.instance;
+        }
+        else if(l.isIntegralNumber() && r.isIntegralNumber()) {
+            long ld = l.longValue();
+            long rd = r.longValue();
+            if((ld % rd) == 0) {
+                return new LongNode(ld / rd);
+            }
+
+            return new DoubleNode((double)ld / (double)rd);
+        }
+
+        return new DoubleNode(l.doubleValue() / r.doubleValue());
+    }
+
+    public static JsonNode mod(JsonNode l, JsonNode r) {
+        l = Jslt2Util.number(l, true, null);
+        r = Jslt2Util.number(r, true, null);
+
+        if(l.isNull() || r.isNull()) {
+            return NullNode.instance;
+        }
+        else if(l.isIntegralNumber() && r.isIntegralNumber()) {
+            return new LongNode(l.asLong() % r.asLong());
+        }
+
+        return new DoubleNode(l.asDouble() % r.asDouble());
+    }
+
+    public static JsonNode neg(JsonNode l) {
+        if(l.isNull()) {
+            return NullNode.instance;
+        }
+        else if(l.isIntegralNumber()) {
+            return new LongNode(-l.asLong());
+        }
+
+        return new DoubleNode(-l.asDouble());
+    }
+
+    public static boolean isTrue(JsonNode l) {
+        return Jslt2Util.isTrue(l);
+    }
+
+    public static JsonNode concat(JsonNode[] values) {
+        return Jslt2Util.concat(values, 0, values.length);
+    }
+
+    public static boolean isNull(JsonNode l) {
+        return l.isNull();
+    }
+
+    public static boolean hasElements(JsonNode l) {
+        return l.isContainerNode() && l.size() > 0;
+    }
+
+    public static boolean equals(JsonNode l, JsonNode r) {
+        return Jslt2Util.equals(l, r);
+    }
+
+    public static int compare(JsonNode l, JsonNode r) {
+        return Jslt2Util.compare(l, r);
+    }
+
+    public static JsonNode not(JsonNode l) {
+        return BooleanNode.valueOf(!Jslt2Util.isTrue(l));
+    }
+
+    public static JsonNode istrue(JsonNode l) {
+        return BooleanNode.valueOf(Jslt2Util.isTrue(l));
+    }
+
+    public static JsonNode eq(JsonNode l, JsonNode r) {
+        return BooleanNode.valueOf(Jslt2Util.equals(l, r));
+    }
+
+    public static JsonNode neq(JsonNode l, JsonNode r) {
+        return BooleanNode.valueOf(!Jslt2Util.equals(l, r));
+    }
+
+    public static JsonNode gt(JsonNode l, JsonNode r) {
+        return BooleanNode.valueOf(Jslt2Util.compare(l, r) > 0);
+    }
+
+    public static JsonNode gte(JsonNode l, JsonNode r) {
+        return BooleanNode.valueOf(Jslt2Util.compare(l, r) >= 0);
+    }
+
+    public static JsonNode lt(JsonNode l, JsonNode r) {
+        return BooleanNode.valueOf(Jslt2Util.compare(l, r) < 0);
+    }
+
+    public static JsonNode lte(JsonNode l, JsonNode r) {
+        return BooleanNode.valueOf(Jslt2Util.compare(l, r) <= 0);
+    }
+
+    /**
+     * Wraps an exception raised by the compiled code, in the same format as the {@link VM}
+     *
+     * @param code
+     * @param lineNumber
+     * @param e
+     * @return the exception to throw
+     */
+    public static Jslt2Exception error(Bytecode code, int lineNumber, Exception e) {
+        return VM.runtimeError(code.getSourceFileName(), lineNumber, e);
+    }
+
+    private static Jslt2Exception error(String errorMsg) {
+        return new Jslt2Exception("ExecutionError: " + errorMsg);
+    }
+}
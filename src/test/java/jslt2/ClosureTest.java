@@ -0,0 +1,195 @@
+/*
+ * see license.txt
+ */
+package jslt2;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * @author Tony
+ *
+ */
+public class ClosureTest {
+
+    private static ObjectMapper mapper = new ObjectMapper();
+
+    private Jslt2 interpreter = Jslt2.builder()
+            .resourceResolver(ResourceResolvers.newFilePathResolver(new File("./examples")))
+            .build();
+
+    private Jslt2 closures = Jslt2.builder()
+            .resourceResolver(ResourceResolvers.newFilePathResolver(new File("./examples")))
+            .closureCompilation(true)
+            .build();
+
+    private void testAgainstInterpreter(String input, String query) throws Exception {
+        JsonNode in = mapper.readTree(input);
+
+        JsonNode expected = interpreter.compile(query).eval(in);
+
+        Template template = closures.compile(query);
+        JsonNode actual = template.eval(in);
+
+        assertTrue("template was not compiled", isCompiled(template));
+        assertEquals(expected, actual);
+        assertEquals(expected, template.eval(in));
+    }
+
+    private boolean isCompiled(Template template) throws Exception {
+        Field field = Template.class.getDeclaredField("closure");
+        field.setAccessible(true);
+        return field.get(template) != null;
+    }
+
+    @Test
+    public void testObject() throws Exception {
+        testAgainstInterpreter("{\"name\":\"tony\", \"team\":\"packers\", \"x\": {\"y\": [1,2,3]}}",
+                "{ \"a\": .name, \"b\": .x.y[1], \"c\": .x.y[1:], \"d\": .name + \" \" + .team, \"e\": if (.x) 1 else 2, " +
+                "  \"f\": .missing, \"g\": [1, null, {}], \"h\": {\"i\": null, \"j\": [.missing]}, .name : 1 }");
+    }
+
+    @Test
+    public void testFor() throws Exception {
+        testAgainstInterpreter("{\"values\":[1,2,3,4,5], \"obj\": {\"a\":1, \"b\":2}}",
+                "{ \"a\": [for (.values) . * 2 if (. > 2)], \"b\": {for (.obj) .key + \"x\" : .value}, \"c\": [for (.obj) .key], " +
+                "  \"d\": [for (.values) let i = $index__ $i], \"e\": {for (.obj) .key : .value if (.value != 1 and not(.key == \"c\"))}, " +
+                "  \"f\": [for (.missing) .] }");
+    }
+
+    @Test
+    public void testFunctionsAndVariables() throws Exception {
+        testAgainstInterpreter("{\"n\": 10, \"base\": 3}",
+                "let base = .base " +
+                "def fact(x, acc) if ($x > 1) fact($x - 1, $acc * $x) else $acc " +
+                "def scale(x) let factor = $base * $x $factor " +
+                "def even(x) if ($x == 0) true else odd($x - 1) " +
+                "def odd(x) if ($x == 0) false else even($x - 1) " +
+                "{ \"fact\": fact(.n, 1), \"scaled\": [for ([1,2,3]) scale(.)], \"size\": size([1,2,3]), " +
+                "  \"even\": even(.n), \"pipe\": .n | . - $base, \"neg\": -.n, \"div\": .n / 4, \"mod\": .n % 3, " +
+                "  \"else\": if (.n < 5) \"small\" else if (.n < 20) let b = \"medium\" $b else \"large\" }");
+    }
+
+    @Test
+    public void testMatchers() throws Exception {
+        String input = "{\"a\": 1, \"b\": 2, \"c\": null, \"d\": {\"e\": 3, \"f\": [], \"g\": \"h\"}}";
+        testAgainstInterpreter(input, "{ \"a\": 10, * : . }");
+        testAgainstInterpreter(input, "{ \"b\": null, * - a, \"d\" : [.] }");
+        testAgainstInterpreter(input, "{ \"d\": { \"e\": .d.e + 1, * : if (. == []) null else . }, * - c : . }");
+        testAgainstInterpreter(input, "let x = .b { \"x\": $x, * : $x }");
+    }
+
+    @Test
+    public void testConstantIf() throws Exception {
+        testAgainstInterpreter("{\"a\": 1}",
+                "{ \"a\": if (false) 1 else let b = .a + 1 $b, \"b\": if (true) .a else 2, " +
+                "  \"c\": if (null) 1 else if (0) 2 else [3, null, {}], \"d\": if (\"\") 1 }");
+    }
+
+    @Test
+    public void testIncludeNulls() throws Exception {
+        String query = "{ \"a\": .missing, \"b\": [null, {}], \"c\": [for (.values) if (. > 1) .] }";
+        JsonNode in = mapper.readTree("{\"values\":[1,2,3]}");
+
+        JsonNode expected = Jslt2.builder().includeNulls(true).build().compile(query).eval(in);
+
+        Template template = Jslt2.builder().includeNulls(true).closureCompilation(true).build().compile(query);
+        assertTrue(isCompiled(template));
+        assertEquals(expected, template.eval(in));
+    }
+
+    @Test
+    public void testTailCalls() throws Exception {
+        testAgainstInterpreter("{\"n\": 20000}",
+                "def count(n, acc) if ($n == 0) $acc else count($n - 1, $acc + 1) " +
+                "def even(n) if ($n == 0) true else odd($n - 1) " +
+                "def odd(n) if ($n == 0) false else even($n - 1) " +
+                "{ \"count\": count(.n, 0), \"even\": even(.n), \"odd\": odd(.n + 1) }");
+    }
+
+    @Test
+    public void testPerformanceTemplate() throws Exception {
+        String query = new String(Files.readAllBytes(new File("./examples/performance-test.json").toPath()));
+        testAgainstInterpreter("[1, 2.5, 3]", query);
+    }
+
+    @Test
+    public void testArguments() throws Exception {
+        // the extra arguments are dropped, as by the VM
+        testAgainstInterpreter("{\"a\": 1}",
+                "def f(a, b) $a + $b " +
+                "def g(a) let c = 5 [$a, $c] " +
+                "{ \"f\": f(1, 2, 3), \"g\": g(.a, 2) }");
+    }
+
+    @Test
+    public void testErrorMessage() throws Exception {
+        String query = "def f(x)\n  error(\"boom\" + $x)\n{\n  \"a\": f(2)\n}";
+        JsonNode in = mapper.readTree("{}");
+
+        // the line is only reported in debug mode
+        for(boolean debug : new boolean[] { false, true }) {
+            String expected = errorMessage(Jslt2.builder().enableDebugMode(debug).build().compile(query), in);
+            assertTrue(expected, expected.contains(debug ? "at line 2" : "at line -1"));
+
+            Template template = Jslt2.builder().enableDebugMode(debug).closureCompilation(true).build().compile(query);
+            assertTrue(isCompiled(template));
+            assertEquals(expected, errorMessage(template, in));
+        }
+    }
+
+    private static String errorMessage(Template template, JsonNode in) {
+        try {
+            template.eval(in);
+        }
+        catch(Jslt2Exception e) {
+            return e.getMessage();
+        }
+
+        fail("the template should fail");
+        return null;
+    }
+
+    @Test(expected=Jslt2Exception.class)
+    public void testError() throws Exception {
+        Template template = closures.compile("{ \"a\": .x * .y }");
+        template.eval(mapper.readTree("{\"x\": \"a\", \"y\": \"b\"}"));
+    }
+
+    @Test
+    public void testUnsupportedNotCompiled() throws Exception {
+        Template template = closures.compile("async { let a = 1 } { \"a\": $a }");
+        assertEquals("{\"a\":1}", template.eval(mapper.readTree("{}")).toString());
+        assertFalse(isCompiled(template));
+
+        template = closures.compile("{ \"a\": fallback(.x, .b) }");
+        assertEquals("{\"a\":2}", template.eval(mapper.readTree("{\"a\": 1, \"b\": 2}")).toString());
+        assertFalse(isCompiled(template));
+    }
+
+    @Test
+    public void testNestedRecursionNotCompiled() throws Exception {
+        // each call nests a Java call, so the recursion is left to the VM which keeps its frames on the heap
+        Template template = closures.compile(
+                "def fact(x) if ($x > 1) $x * fact($x - 1) else 1 " +
+                "def f(x) [for ([$x]) g(.)] " +
+                "def g(x) if ($x > 0) f($x - 1) else 0 " +
+                "{ \"fact\": fact(.n), \"f\": f(.n) }");
+        assertEquals("{\"fact\":6,\"f\":[[[[0]]]]}", template.eval(mapper.readTree("{\"n\": 3}")).toString());
+        assertFalse(isCompiled(template));
+
+        // a nested call which doesn't lead back to the caller is compiled
+        testAgainstInterpreter("{\"n\": 5}",
+                "def double(x) $x * 2 " +
+                "def count(x, acc) if ($x > 0) count($x - 1, $acc + double($x)) else $acc " +
+                "{ \"count\": count(.n, 0) }");
+    }
+}
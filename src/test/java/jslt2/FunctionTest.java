@@ -3,7 +3,6 @@
  */
 package jslt2;
 
-import org.junit.Ignore;
 import org.junit.Test;
 
 import com.fasterxml.jackson.databind.JsonNode;
@@ -57,7 +56,7 @@ public class FunctionTest extends TestBase {
     /*
      * TODO: argument checks
      */
-    @Test @Ignore
+    @Test
     public void testNoArguments() {
       error("number()", "argument");
     }
@@ -0,0 +1,117 @@
+/*
+ * see license.txt
+ */
+package jslt2;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * @author Tony
+ *
+ */
+public class JitTest {
+
+    private static ObjectMapper mapper = new ObjectMapper();
+
+    private Jslt2 interpreter = Jslt2.builder()
+            .resourceResolver(ResourceResolvers.newFilePathResolver(new File("./examples")))
+            .build();
+
+    private Jslt2 jit = Jslt2.builder()
+            .resourceResolver(ResourceResolvers.newFilePathResolver(new File("./examples")))
+            .jitThreshold(0)
+            .build();
+
+    private void testAgainstInterpreter(String input, String query) throws Exception {
+        JsonNode in = mapper.readTree(input);
+
+        JsonNode expected = interpreter.compile(query).eval(in);
+
+        Template template = jit.compile(query);
+        JsonNode actual = template.eval(in);
+
+        assertTrue("template was not compiled", isCompiled(template));
+        assertEquals(expected, actual);
+        assertEquals(expected, template.eval(in));
+    }
+
+    private boolean isCompiled(Template template) throws Exception {
+        Field field = Template.class.getDeclaredField("compiled");
+        field.setAccessible(true);
+        return field.get(template) != null;
+    }
+
+    @Test
+    public void testObject() throws Exception {
+        testAgainstInterpreter("{\"name\":\"tony\", \"team\":\"packers\", \"x\": {\"y\": [1,2,3]}}",
+                "{ \"a\": .name, \"b\": .x.y[1], \"c\": .x.y[1:], \"d\": .name + \" \" + .team, \"e\": if (.x) 1 else 2, \"f\": .missing }");
+    }
+
+    @Test
+    public void testFor() throws Exception {
+        testAgainstInterpreter("{\"values\":[1,2,3,4,5], \"obj\": {\"a\":1, \"b\":2}}",
+                "{ \"a\": [for (.values) . * 2 if (. > 2)], \"b\": {for (.obj) .key + \"x\" : .value}, \"c\": [for (.obj) .key], " +
+                "  \"d\": [for (.values) let i = $index__ $i] }");
+    }
+
+    @Test
+    public void testFunctionsAndClosures() throws Exception {
+        testAgainstInterpreter("{\"n\": 10, \"base\": 3}",
+                "let base = .base " +
+                "def fact(x) if ($x > 1) $x * fact($x - 1) else 1 " +
+                "def scale(x) $base * $x " +
+                "{ \"fact\": fact(.n), \"scaled\": [for ([1,2,3]) scale(.)], \"size\": size([1,2,3]), \"fb\": fallback(.missing, .n) }");
+    }
+
+    @Test
+    public void testMatcherAndPipe() throws Exception {
+        testAgainstInterpreter("{\"a\": 1, \"b\": {\"c\": 2, \"d\": 3}, \"e\": 4}",
+                "{ \"a\": 10, \"b\": { \"c\": 20, * : . }, * - e : ., \"p\": .b | .d }");
+    }
+
+    @Test
+    public void testTailCalls() throws Exception {
+        testAgainstInterpreter("{\"n\": 20000}",
+                "def count(n, acc) if ($n == 0) $acc else count($n - 1, $acc + 1) " +
+                "def even(n) if ($n == 0) true else odd($n - 1) " +
+                "def odd(n) if ($n == 0) false else even($n - 1) " +
+                "{ \"count\": count(.n, 0), \"even\": even(.n), \"odd\": odd(.n + 1) }");
+    }
+
+    @Test
+    public void testDeepRecursion() throws Exception {
+        // the VM continues the recursion once it is nested too deep for the Java stack
+        testAgainstInterpreter("{\"n\": 20000}",
+                "def depth(n) if ($n > 0) 1 + depth($n - 1) else 0 " +
+                "def count(n) if ($n > 0) let c = [for ([$n - 1]) count(.)] $c[0] + 1 else 0 " +
+                "{ \"depth\": depth(.n), \"count\": count(.n) }");
+    }
+
+    @Test
+    public void testPerformanceTemplate() throws Exception {
+        String query = new String(Files.readAllBytes(new File("./examples/performance-test.json").toPath()));
+        testAgainstInterpreter("{}", query);
+    }
+
+    @Test(expected=Jslt2Exception.class)
+    public void testError() throws Exception {
+        Template template = jit.compile("{ \"a\": .x * .y }");
+        template.eval(mapper.readTree("{\"x\": \"a\", \"y\": \"b\"}"));
+    }
+
+    @Test
+    public void testAsyncNotCompiled() throws Exception {
+        Template template = jit.compile("async { let a = 1 } { \"a\": $a }");
+        assertEquals("{\"a\":1}", template.eval(mapper.readTree("{}")).toString());
+        assertFalse(isCompiled(template));
+    }
+}
@@ -4,6 +4,10 @@
 package jslt2;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileReader;
 import java.io.Reader;
@@ -12,6 +16,10 @@ import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.After;
 import org.junit.Before;
@@ -33,7 +41,15 @@ import com.schibsted.spt.data.jslt.ResourceResolver;
 
 import static org.junit.Assert.*;
 
+import jslt2.ast.Expr.ProgramExpr;
 import jslt2.parser.ParseException;
+import jslt2.parser.Scanner;
+import jslt2.parser.Source;
+import jslt2.util.Jslt2Util;
+import jslt2.vm.Bytecode;
+import jslt2.vm.VM;
+import jslt2.vm.Opcodes;
+import jslt2.vm.compiler.Compiler;
 
 /**
  * @author Tony
@@ -45,6 +61,8 @@ public class Jslt2Test {
             .resourceResolver(ResourceResolvers.newFilePathResolver(new File("./examples")))
             .build();
     
+    private Jslt2 jit = Jslt2.builder().jitThreshold(0).build();
+    
     {
         runtime.addFunction("sleep", (in, args) -> {
             try {
@@ -150,6 +168,637 @@ public class Jslt2Test {
         testAgainstSpec(input, query);        
     }
     
+    @Test
+    public void testSharedTemplate() throws Exception {
+        Template template = runtime.compile(
+                "let base = .base " +
+                "def scale(x) $base * $x " +
+                "{ \"id\": .id, \"values\": [for (.values) scale(.)], \"last\": scale(.values[2]) }");
+        
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for(int i = 0; i < 200; i++) {
+                final int id = i;
+                results.add(executor.submit(() -> {
+                    ObjectNode input = runtime.newObjectNode();
+                    input.set("id", IntNode.valueOf(id));
+                    input.set("base", IntNode.valueOf(id));
+                    input.set("values", runtime.newArrayNode(3).add(1).add(2).add(3));
+                    
+                    JsonNode result = template.eval(input);
+                    return result.get("id").asInt() == id && 
+                           result.get("values").get(2).asInt() == id * 3 &&
+                           result.get("last").asInt() == id * 3;
+                }));
+            }
+            
+            for(Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+    
+    @Test
+    public void testFailedEvaluationReleasesVM() throws Exception {
+        Jslt2 rt = Jslt2.builder().vmPoolSize(1).build();
+        
+        VM vm = rt.getVMPool().acquire();
+        rt.getVMPool().release(vm);
+        
+        // fails within a function called from a for body, in the middle of building an object
+        Template failing = rt.compile("def f(x) $x * \"b\"  { \"a\": 1, \"b\": [for (.list) { \"c\": f(.) }] }");
+        try {
+            failing.eval(rt.getObjectMapper().readTree("{\"list\": [\"a\", \"c\"]}"));
+            fail("expected the evaluation to fail");
+        }
+        catch(Jslt2Exception e) {
+        }
+        
+        // the VM of the failed evaluation is back in the pool, in a usable state
+        assertSame(vm, rt.getVMPool().acquire());
+        Bytecode code = compile(rt, "{ \"a\": 3, \"b\": [for (.list) . * 2] }");
+        assertEquals("{\"a\":3,\"b\":[2,4]}", vm.execute(code, rt.getObjectMapper().readTree("{\"list\": [1, 2]}")).toString());
+    }
+    
+    @Test
+    public void testFieldPath() throws Exception {
+        Jslt2 rt = Jslt2.builder().includeNulls(true).build();
+        JsonNode input = rt.getObjectMapper().readTree(
+                "{\"a\": {\"b\": {\"c\": 1, \"list\": [{\"d\": {\"e\": 2}}]}}, \"x y\": {\"z\": 3}, \"s\": \"text\"}");
+        
+        Template template = rt.compile(
+                "let v = .a " +
+                "{ \"deep\": .a.b.c, \"missing\": .a.missing.c, \"quoted\": .\"x y\".z, \"index\": .a.b.list[0].d.e, " +
+                "  \"var\": $v.b.c, \"text\": .s.t.u, \"pipe\": .a | .b.c }");
+        
+        JsonNode result = template.eval(input);
+        assertEquals(1, result.get("deep").asInt());
+        assertTrue(result.get("missing").isNull());
+        assertEquals(3, result.get("quoted").asInt());
+        assertEquals(2, result.get("index").asInt());
+        assertEquals(1, result.get("var").asInt());
+        assertTrue(result.get("text").isNull());
+        assertEquals(1, result.get("pipe").asInt());
+        
+        Bytecode code = compile(rt, ".a.b.c");
+        assertEquals(1, code.paths.length);
+        assertArrayEquals(new String[] {"a", "b", "c"}, code.paths[0]);
+    }
+    
+    @Test
+    public void testBytecodeSerialization() throws Exception {
+        Bytecode code = compile(runtime, "{ \"name\": .name, \"int\": 1, \"long\": 3000000000, \"double\": 1.5, \"path\": .a.b, " +
+                                         "  \"tags\": [\"a\", \"b\"], \"meta\": {\"tags\": [\"c\"], \"x\": .name, \"on\": true} }");
+        
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        code.write(new DataOutputStream(bytes));
+        
+        Bytecode read = Bytecode.read(null, new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertArrayEquals(code.stringConstants, read.stringConstants);
+        
+        // the constant literals are written as JSON
+        assertEquals(2, Arrays.stream(read.constants).filter(c -> c != null && c.isContainerNode()).count());
+        
+        JsonNode input = runtime.getObjectMapper().readTree("{\"name\": \"tony\", \"a\": {\"b\": 2}}");
+        assertEquals(runtime.eval(code, input), runtime.eval(read, input));
+        assertEquals("{\"name\":\"tony\",\"int\":1,\"long\":3000000000,\"double\":1.5,\"path\":2," +
+                     "\"tags\":[\"a\",\"b\"],\"meta\":{\"tags\":[\"c\"],\"x\":\"tony\",\"on\":true}}", runtime.eval(read, input).toString());
+    }
+    
+    @Test
+    public void testCompiledMatcher() throws Exception {
+        String query = "{ \"a\": 10, \"b\": { \"c\": 20, * - \"e f\", g : . }, * - \"c d\" : . }";
+        Bytecode code = compile(runtime, query);
+        
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        code.write(new DataOutputStream(bytes));
+        Bytecode read = Bytecode.read(null, new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        
+        JsonNode input = runtime.getObjectMapper().readTree("{\"a\": 1, \"b\": {\"c\": 2, \"e f\": 3, \"g\": 4, \"h\": 5}, \"c d\": 6, \"i\": 7}");
+        String expected = "{\"a\":10,\"b\":{\"c\":20,\"h\":5},\"i\":7}";
+        
+        assertEquals(expected, runtime.eval(code, input).toString());
+        assertEquals(expected, runtime.eval(read, input).toString());
+        assertEquals(expected, runtime.compile(query).eval(input).toString());
+    }
+    
+    @Test
+    public void testCopyMatcher() throws Exception {
+        String query = "{ \"a\": 10, \"b\": { \"c\": 20, * : (.) }, * - e : . }";
+        Bytecode code = compile(runtime, query);
+        assertTrue(code.dump().contains("COPY_MATCHER"));
+        assertFalse(code.dump().matches("(?s).*\\bMATCHER\\b.*"));
+        
+        JsonNode input = runtime.getObjectMapper().readTree("{\"a\": 1, \"b\": {\"c\": 2, \"d\": {\"x\": null}}, \"e\": 4, \"f\": null, \"g\": [null]}");
+        assertEquals("{\"a\":10,\"b\":{\"c\":20}}", runtime.eval(code, input).toString());
+        
+        Jslt2 withNulls = Jslt2.builder().includeNulls(true).build();
+        assertEquals("{\"a\":10,\"b\":{\"c\":20,\"d\":{\"x\":null}},\"f\":null,\"g\":[null]}", 
+                withNulls.compile(query).eval(input).toString());
+    }
+    
+    @Test
+    public void testForEntryLocals() throws Exception {
+        String query = "{ \"a\": {for (.obj) .key : .value.x}, \"b\": [for (.obj) .key + \"=\" + .value.x if (.value.x > 1)], " +
+                       "  \"c\": [for (.list) .key], \"d\": [for (.obj) [for (.value.y) .]], \"e\": [for (.obj) .value | .x], " +
+                       "  \"f\": [for (.obj) .], \"g\": [for (.obj) size(.value)] }";
+        
+        Bytecode code = compile(runtime, query);
+        boolean[] entryLocals = new boolean[code.numInners];
+        for(int i = 0; i < code.numInners; i++) {
+            entryLocals[i] = code.inner[i].hasEntryLocals();
+        }
+        assertEquals("[true, true, true, true, true, false, false]", Arrays.toString(entryLocals));
+        
+        JsonNode input = runtime.getObjectMapper().readTree(
+                "{\"obj\": {\"p\": {\"x\": 1, \"y\": [1]}, \"q\": {\"x\": 2, \"y\": [2, 3]}}, \"list\": [{\"key\": \"k\"}, {}]}");
+        String expected = "{\"a\":{\"p\":1,\"q\":2},\"b\":[\"q=2\"],\"c\":[\"k\"],\"d\":[[1],[2,3]],\"e\":[1,2]," +
+                          "\"f\":[{\"key\":\"p\",\"value\":{\"x\":1,\"y\":[1]}},{\"key\":\"q\",\"value\":{\"x\":2,\"y\":[2,3]}}],\"g\":[2,2]}";
+        
+        assertEquals(expected, runtime.eval(code, input).toString());
+        assertEval(expected, query, input, jit);
+    }
+    
+    @Test
+    public void testForIndexLocal() throws Exception {
+        String query = "{ \"a\": [for (.list) .], \"b\": [for (.list) $index__ * 10], \"c\": [for (.list) [for (.) $index__]], " +
+                       "  \"d\": [for (.list) . | $index__], \"e\": {for (.list) \"k\" + $index__ : .[0]} }";
+        
+        Bytecode code = compile(runtime, query);
+        boolean[] indexLocals = new boolean[code.numInners];
+        for(int i = 0; i < code.numInners; i++) {
+            indexLocals[i] = code.inner[i].hasIndexLocal();
+        }
+        assertEquals("[false, true, false, true, true]", Arrays.toString(indexLocals));
+        assertTrue(code.inner[2].inner[0].hasIndexLocal());
+        
+        JsonNode input = runtime.getObjectMapper().readTree("{\"list\": [[5, 6], [7]]}");
+        String expected = "{\"a\":[[5,6],[7]],\"b\":[0,10],\"c\":[[0,1],[0]],\"d\":[0,1],\"e\":{\"k0\":5,\"k1\":7}}";
+        
+        assertEquals(expected, runtime.eval(code, input).toString());
+        assertEval(expected, query, input, jit);
+        
+        assertSame(runtime.indexNode(1000), runtime.indexNode(1000));
+        assertEquals(70000, runtime.indexNode(70000).intValue());
+    }
+    
+    @Test
+    public void testLiteralSizeHints() throws Exception {
+        String query = "{ \"a\": 1, \"b\": [1, 2, .x], \"c\": 3, * : . }";
+        
+        Bytecode code = compile(runtime, query);
+        List<String> hints = new ArrayList<>();
+        for(int i = 0; i < code.len; i++) {
+            int opcode = Opcodes.OPCODE(code.instr[i]);
+            if(opcode == Opcodes.NEW_OBJ || opcode == Opcodes.NEW_ARRAY) {
+                hints.add(Opcodes.op2str(opcode) + " " + Opcodes.ARGx(code.instr[i]));
+            }
+        }
+        assertEquals("[NEW_OBJ 3, NEW_ARRAY 3]", hints.toString());
+        
+        StringBuilder wide = new StringBuilder("{");
+        for(int i = 0; i < 40; i++) {
+            wide.append(i > 0 ? ", " : "").append("\"f").append(i).append("\": ").append(i);
+        }
+        wide.append("}");
+        
+        JsonNode input = runtime.getObjectMapper().readTree("{\"x\": 4, \"d\": 5}");
+        assertEquals("{\"a\":1,\"b\":[1,2,4],\"c\":3,\"x\":4,\"d\":5}", runtime.eval(code, input).toString());
+        assertEquals(40, runtime.compile(wide.toString()).eval(input).size());
+        assertEquals(40, jit.compile(wide.toString()).eval(input).size());
+        assertEquals("{}", runtime.compile("{}").eval(input).toString());
+        assertEquals("[]", runtime.compile("[]").eval(input).toString());
+    }
+    
+    @Test
+    public void testConstantLiterals() throws Exception {
+        String query = "{ \"envelope\": {\"type\": \"event\", \"version\": 2, \"tags\": [\"a\", \"b\"], \"empty\": null}, \"id\": .id }";
+        Bytecode code = compile(runtime, query);
+        
+        // only the outer object is built, the envelope is a single constant which is copied
+        assertEquals(1, countOpcodes(code, Opcodes.NEW_OBJ));
+        assertEquals(0, countOpcodes(code, Opcodes.NEW_ARRAY));
+        assertEquals(1, countOpcodes(code, Opcodes.COPY_CONST));
+        
+        // each result gets its own copy of the constant, which may be modified
+        String expected = "{\"envelope\":{\"type\":\"event\",\"version\":2,\"tags\":[\"a\",\"b\"]},\"id\":7}";
+        JsonNode input = runtime.getObjectMapper().readTree("{\"id\": 7}");
+        for(Jslt2 rt : Arrays.asList(runtime, jit, Jslt2.builder().closureCompilation(true).build())) {
+            Template template = rt.compile(query);
+            JsonNode first = template.eval(input);
+            assertEquals(expected, first.toString());
+            
+            ObjectNode envelope = (ObjectNode)first.get("envelope");
+            envelope.put("type", "changed");
+            ((ArrayNode)envelope.get("tags")).add("c");
+            
+            JsonNode second = template.eval(input);
+            assertNotSame(first.get("envelope"), second.get("envelope"));
+            assertEquals(expected, second.toString());
+        }
+        
+        Jslt2 withNulls = Jslt2.builder().includeNulls(true).build();
+        JsonNode result = withNulls.compile(query).eval(input);
+        assertEquals("{\"envelope\":{\"type\":\"event\",\"version\":2,\"tags\":[\"a\",\"b\"],\"empty\":null},\"id\":7}", result.toString());
+        
+        // removing the null values copies the constant rather than modifying it
+        assertEquals("{\"envelope\":{\"type\":\"event\",\"version\":2,\"tags\":[\"a\",\"b\"]},\"id\":7}", Jslt2Util.removeNullNodes(result).toString());
+        assertEquals(4, withNulls.compile(query).eval(input).get("envelope").size());
+        
+        assertEquals("{\"list\":[1]}", runtime.compile("{\"list\": [null, 1, {}], \"none\": [null, []]}").eval(input).toString());
+        assertEquals("[{\"a\":[1]},[]]", withNulls.compile("[({\"a\": [1]}), []]").eval(input).toString());
+    }
+    
+    @Test
+    public void testOmitNulls() throws Exception {
+        String in = "{\"a\": 1, \"b\": null, \"c\": {\"d\": null, \"e\": []}, \"list\": [1, null, {}, 2]}";
+        JsonNode input = runtime.getObjectMapper().readTree(in);
+        
+        Template template = runtime.compile(
+                "{ \"a\": .a, \"b\": .b, \"c\": .c, \"list\": .list, \"built\": [1, null, {\"x\": null}, .a], " +
+                "  \"for\": [for (.list) .], \"forObj\": {for (.c) .key : .value}, \"nested\": {\"x\": {\"y\": null}}, " +
+                "  \"match\": { * : . } }");
+        
+        assertEquals("{\"a\":1,\"list\":[1,2],\"built\":[1,1],\"for\":[1,2]}",
+                template.eval(input).toString());
+        
+        // the input is left untouched
+        assertEquals(runtime.getObjectMapper().readTree(in), input);
+        
+        assertEquals("{\"b\":2}", runtime.compile("{ \"a\": null, \"b\": 2 }").eval(input).toString());
+        assertEquals("{}", runtime.compile(".c").eval(input).toString());
+        assertEquals("{\"list\":[1,2]}", runtime.compile("{ \"a\": null, * : . }").eval(input).toString());
+    }
+    
+    @Test
+    public void testBoundFunctions() throws Exception {
+        Jslt2 rt = Jslt2.builder().build();
+        rt.addFunction("twice", (input, args) -> IntNode.valueOf(args[0].asInt() * 2));
+        
+        Template template = rt.compile("{ \"a\": twice(.x), \"b\": [for (.list) twice(.)], \"c\": size(.list) }");
+        
+        // bound when compiled, so replacing the function doesn't change the template
+        rt.addFunction("twice", (input, args) -> IntNode.valueOf(0));
+        rt.freezeFunctions();
+        
+        JsonNode input = rt.getObjectMapper().readTree("{\"x\": 2, \"list\": [1, 2]}");
+        assertEquals("{\"a\":4,\"b\":[2,4],\"c\":2}", template.eval(input).toString());
+        assertEquals("{\"a\":0}", rt.compile("{ \"a\": twice(.x) }").eval(input).toString());
+        
+        assertTrue(rt.isFunctionsFrozen());
+        try {
+            rt.addFunction("other", (input2, args) -> NullNode.instance);
+            fail("the functions are frozen");
+        }
+        catch(Jslt2Exception e) {
+            assertFalse(rt.hasFunction("other"));
+        }
+    }
+    
+    @Test
+    public void testUnboundFunctions() throws Exception {
+        Jslt2 rt = Jslt2.builder().build();
+        rt.addFunction("twice", (input, args) -> IntNode.valueOf(args[0].asInt() * 2));
+        
+        Bytecode code = compile(rt, "{ \"a\": twice(.x), \"b\": [for (.list) twice(.)] }");
+        
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        code.write(new DataOutputStream(bytes));
+        Bytecode read = Bytecode.read(null, new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        
+        // a read bytecode isn't bound, its functions are looked up on each call without modifying it
+        JsonNode input = rt.getObjectMapper().readTree("{\"x\": 2, \"list\": [1, 2]}");
+        assertEquals("{\"a\":4,\"b\":[2,4]}", rt.eval(read, input).toString());
+        assertEquals("{\"a\":4,\"b\":[2,4]}", rt.eval(read, input).toString());
+        assertTrue(Arrays.stream(read.functions).allMatch(f -> f == null));
+        assertTrue(Arrays.stream(read.inner[0].functions).allMatch(f -> f == null));
+        
+        try {
+            runtime.eval(read, input);
+            fail("the function isn't defined");
+        }
+        catch(Jslt2Exception e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("twice"));
+        }
+    }
+    
+    @Test
+    public void testFunctionArity() throws Exception {
+        Jslt2 rt = Jslt2.builder().build();
+        rt.addFunction("pair", (Jslt2Function2)(input, a, b) -> rt.newArrayNode(2).add(a).add(b));
+        rt.addFunction("tag", 1, (Jslt2Function2)(input, a, b) -> TextNode.valueOf(a.asText() + (b != null ? b.asText() : "")));
+        
+        JsonNode input = rt.getObjectMapper().readTree("{\"x\": 1, \"y\": \"a\"}");
+        assertEquals("{\"p\":[1,\"a\"],\"t\":\"a\",\"u\":\"ab\"}", 
+                rt.compile("{ \"p\": pair(.x, .y), \"t\": tag(.y), \"u\": tag(.y, \"b\") }").eval(input).toString());
+        
+        String[] invalid = { "pair(1)", "pair(1, 2, 3)", "tag()", "tag(1, 2, 3)", "size()", "contains(1)", "random(1)" };
+        for(String query : invalid) {
+            try {
+                rt.compile(query);
+                fail(query + " should not compile");
+            }
+            catch(Jslt2Exception e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("argument"));
+            }
+        }
+    }
+    
+    @Test
+    public void testLoopInvariants() throws Exception {
+        AtomicInteger pureCalls = new AtomicInteger();
+        AtomicInteger impureCalls = new AtomicInteger();
+        
+        for(int jitThreshold : new int[] { -1, 0 }) {
+            Jslt2 rt = Jslt2.builder().jitThreshold(jitThreshold).build();
+            rt.addFunction("lookup", (Jslt2Function1)(input, arg0) -> {
+                pureCalls.incrementAndGet();
+                return TextNode.valueOf(arg0.asText().toLowerCase());
+            });
+            rt.addFunction("tick", (Jslt2Function1)(input, arg0) -> {
+                impureCalls.incrementAndGet();
+                return arg0;
+            });
+            rt.markPureFunctions("lookup");
+            assertTrue(rt.isPureFunction("lookup"));
+            assertFalse(rt.isPureFunction("tick"));
+            assertFalse(rt.isPureFunction("random"));
+            
+            JsonNode input = rt.getObjectMapper().readTree("{\"list\": [1, 2, 3], \"cfg\": {\"prefix\": \"AB\"}}");
+            
+            pureCalls.set(0);
+            impureCalls.set(0);
+            assertEquals("{\"x\":[\"ab-1\",\"ab-2\",\"ab-3\"],\"a\":1}", rt.compile(
+                    "let cfg = .cfg let a = 1 " +
+                    "{ \"x\": [for (.list) let p = lookup($cfg.prefix) let q = $p + \"-\" let a = string(.) $q + $a], \"a\": $a }")
+                    .eval(input).toString());
+            assertEquals(1, pureCalls.get());
+            
+            pureCalls.set(0);
+            assertEquals("{\"y\":[\"n\",\"z\",\"z\"],\"z\":{\"k0\":\"ab\",\"k1\":\"ab\",\"k2\":\"ab\"}}", rt.compile(
+                    "let cfg = .cfg { \"y\": [for (.list) if (. > 1) lookup(\"Z\") else \"n\"], " +
+                    "  \"z\": {for (.list) \"k\" + $index__ : tick(lookup($cfg.prefix)) } }")
+                    .eval(input).toString());
+            assertEquals(3, pureCalls.get());
+            assertEquals(3, impureCalls.get());
+            
+            // a template function with the same name is not hoisted 
+            pureCalls.set(0);
+            assertEquals("[2,3,4]", rt.compile("def lookup(x) $x + 1  [for (.list) lookup(.)]").eval(input).toString());
+            assertEquals(0, pureCalls.get());
+            
+            // the invariants are not evaluated if the loop has no elements
+            JsonNode empty = rt.getObjectMapper().readTree("{\"arr\": [], \"obj\": {}}");
+            assertEquals("[]", rt.compile("[for (.arr) number(\"abc\")]").eval(empty).toString());
+            assertEquals("[]", rt.compile("[for (.arr) let x = number(\"abc\") $x]").eval(empty).toString());
+            assertEquals("{}", rt.compile("{for (.obj) \"k\" : number(\"abc\")}").eval(empty).toString());
+            assertEquals("null", rt.compile("[for (.missing) number(\"abc\")]").eval(empty).toString());
+            try {
+                rt.compile("[for (.list) number(\"abc\")]").eval(input);
+                fail("the invariant should be evaluated");
+            }
+            catch(Jslt2Exception e) {
+            }
+        }
+        
+        // the program is left as is, so it compiles the same way again
+        Jslt2 rt = Jslt2.builder().build();
+        ProgramExpr program = new jslt2.parser.Parser(rt, new Scanner(new Source(new StringReader(
+                "let cfg = .cfg {\"l\": [for (.list) let p = lowercase($cfg.prefix) {\"v\": $p + string(.), \"i\": size($cfg) + .}]}"))))
+                .parseProgram();
+        Bytecode first = new Compiler(rt).compile(program);
+        Bytecode second = new Compiler(rt).compile(program);
+        assertArrayEquals(first.instr, second.instr);
+        assertArrayEquals(first.inner[0].instr, second.inner[0].instr);
+        
+        JsonNode input = rt.getObjectMapper().readTree("{\"list\": [1, 2], \"cfg\": {\"prefix\": \"AB\"}}");
+        assertEquals("{\"l\":[{\"v\":\"ab1\",\"i\":2},{\"v\":\"ab2\",\"i\":3}]}", rt.eval(second, input).toString());
+    }
+    
+    @Test
+    public void testUnusedDeclarations() throws Exception {
+        String helpers = "def used(x) $x + 1  def unused(x) helper($x)  def helper(x) $x * 2  let cache = {\"size\": [.size]}  \"body\"";
+        Jslt2 rt = Jslt2.builder().resourceResolver(file -> new StringReader(helpers)).build();
+        
+        String query = "import \"helpers.jstl\" as h  let a = .a[0].x  let b = .b  let c = $b  h:used($c)";
+        Bytecode code = compile(rt, query);
+        
+        // only the used function is compiled, and the let chain leading to it is kept
+        assertEquals(1, code.numInners);
+        assertEquals(2, countOpcodes(code, Opcodes.STORE_LOCAL));
+        
+        JsonNode input = rt.getObjectMapper().readTree("{\"a\": \"A\", \"b\": 2, \"fail\": true}");
+        assertEquals("3", rt.eval(code, input).toString());
+        assertEquals("\"body\"", rt.compile("import \"helpers.jstl\" as h  h(.)").eval(input).toString());
+        
+        // lets with side effects are evaluated even if unused
+        try {
+            rt.compile("let b = .b  let check = if (.fail) error(\"failed\") else null  $b").eval(input);
+            fail("the unused let should be evaluated");
+        }
+        catch(Jslt2Exception e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("failed"));
+        }
+        
+        // as are lets which may fail
+        assertEquals(1, countOpcodes(compile(rt, "let x = number(.a)  1"), Opcodes.STORE_LOCAL));
+        try {
+            rt.compile("let x = number(\"abc\")  1").eval(input);
+            fail("the unused let should be evaluated");
+        }
+        catch(Jslt2Exception e) {
+        }
+    }
+    
+    @Test
+    public void testConstantLets() throws Exception {
+        String query = "let a = 1  let b = $a  let s = \"x\"  let t = true  let n = null  " +
+                       "def f(a) $a + $b  " +
+                       "{ \"a\": $a, \"b\": $b, \"s\": $s, \"t\": $t, \"n\": $n, \"f\": f(5), \"l\": [for (.list) $s + .] }";
+        
+        Jslt2 rt = Jslt2.builder().includeNulls(true).build();
+        Bytecode code = compile(rt, query);
+        assertEquals(0, countOpcodes(code, Opcodes.STORE_LOCAL));
+        assertEquals(0, countOpcodes(code, Opcodes.LOAD_OUTER));
+        
+        JsonNode input = rt.getObjectMapper().readTree("{\"list\": [\"y\", \"z\"], \"v\": 7}");
+        assertEquals("{\"a\":1,\"b\":1,\"s\":\"x\",\"t\":true,\"n\":null,\"f\":6,\"l\":[\"xy\",\"xz\"]}", 
+                rt.eval(code, input).toString());
+        
+        // a let redefined with a value that isn't constant
+        assertEquals("{\"a\":7,\"b\":1}", rt.compile("let a = 1  let b = $a  let a = .v  {\"a\": $a, \"b\": $b}").eval(input).toString());
+    }
+    
+    @Test
+    public void testRegisterInstructions() throws Exception {
+        String query = "def scale(x, y) $x * $y - 1 " +
+                       "let obj = .obj " +
+                       "{ \"sum\": .a + 1, \"scaled\": scale(.a, 3) % 4, \"div\": 10 / .a, " +
+                       "  \"x\": $obj.x, \"y\": $obj.y.z, \"name\": .name, \"missing\": .missing, " +
+                       "  \"items\": [for (.items) let i = . $i + $i], \"indexes\": [for (.items) $index__ + 1] }";
+        
+        Jslt2 rt = Jslt2.builder().registerInstructions(true).build();
+        Bytecode code = compile(rt, query);
+        
+        assertEquals(2, countOpcodes(code, Opcodes.ADD_RK));
+        assertEquals(1, countOpcodes(code, Opcodes.MUL_RK));
+        assertEquals(1, countOpcodes(code, Opcodes.GET_LOCAL_FIELDK));
+        assertEquals(1, countOpcodes(code, Opcodes.GET_LOCAL_PATH));
+        assertEquals(2, countOpcodes(code, Opcodes.COPY_INPUT_VALUE_FIELDK));
+        
+        JsonNode input = new ObjectMapper().readTree("{\"a\": 5, \"obj\": {\"x\": 1, \"y\": {\"z\": 2}}, \"name\": \"tony\", \"items\": [1, 2]}");
+        JsonNode expected = runtime.compile(query).eval(input);
+        
+        assertEquals(expected, rt.compile(query).eval(input));
+        assertEquals(expected, Jslt2.builder().registerInstructions(true).jitThreshold(0).build().compile(query).eval(input));
+    }
+    
+    @Test
+    public void testTailCalls() throws Exception {
+        String query = "def count(n, acc) if ($n == 0) $acc else count($n - 1, $acc + 1) " +
+                       "def even(n) if ($n == 0) true else odd($n - 1) " +
+                       "def odd(n) if ($n == 0) false else (even($n - 1)) " +
+                       "def depth(node, d) if ($node.next) depth($node.next, $d + 1) else $d " +
+                       "def sum(n) if ($n == 0) 0 else $n + sum($n - 1) " +
+                       "{ \"count\": count(.n, 0), \"even\": even(.n), \"depth\": depth(.list, 0), \"sum\": sum(10) }";
+        
+        Bytecode code = compile(runtime, query);
+        
+        // the call of sum isn't in tail position, its result is added to
+        assertEquals(4, countOpcodes(code, Opcodes.TAIL_INVOKE));
+        assertEquals(5, countOpcodes(code, Opcodes.INVOKE));
+        
+        // a linked list, ending with an empty object, deeper than the recursion the JVM stack allows
+        int n = 100_000;
+        ObjectNode list = runtime.newObjectNode();
+        for(int i = 0; i < n; i++) {
+            ObjectNode node = runtime.newObjectNode();
+            node.set("next", list);
+            list = node;
+        }
+        
+        ObjectNode input = runtime.newObjectNode();
+        input.set("n", IntNode.valueOf(n));
+        input.set("list", list);
+        
+        String expected = "{\"count\":" + n + ",\"even\":true,\"depth\":" + (n - 1) + ",\"sum\":55}";
+        for(Jslt2 rt : Arrays.asList(Jslt2.builder().maxStackSize(1024).build(), 
+                                     jit, 
+                                     Jslt2.builder().closureCompilation(true).build())) {
+            assertEquals(expected, rt.compile(query).eval(input).toString());
+        }
+    }
+    
+    @Test
+    public void testDeepRecursion() throws Exception {
+        // neither call is in tail position; each level nests a pipe, a for body and a matcher
+        String query = "def depth(n) if ($n > 0) 1 + ($n - 1 | depth(.)) else 0 " +
+                       "def count(n) if ($n > 0) let c = [for ([$n - 1]) count(.)] $c[0] + size({\"a\": 1} | {* : .}) else 0 " +
+                       "{ \"depth\": depth(.n), \"count\": count(.n) }";
+        
+        int n = 20_000;
+        ObjectNode input = runtime.newObjectNode();
+        input.set("n", IntNode.valueOf(n));
+        
+        // the jit hands the recursion over to the VM, and the closures leave the template to the VM
+        assertEval("{\"depth\":" + n + ",\"count\":" + n + "}", query, input, 
+                runtime, jit, Jslt2.builder().closureCompilation(true).build());
+    }
+    
+    @Test
+    public void testMemoizedFunctions() throws Exception {
+        AtomicInteger lookups = new AtomicInteger();
+        
+        // label tail calls name, field reads its input and wrap is called with objects, so neither of those are cached
+        String query = "let suffix = .suffix " +
+                       "def name(code) lookup($code) + $suffix " +
+                       "def label(code) name($code) " +
+                       "def field(code) . + $code " +
+                       "def wrap(x) lookup($x.v) " +
+                       "def fib(n) if ($n < 2) $n else fib($n - 1) + fib($n - 2) " +
+                       "{ \"names\": [for (.codes) name(.)], \"labels\": [for (.codes) label(.)], " +
+                       "  \"fields\": [for (.codes) field(\"k\")], \"wraps\": [for (.codes) wrap({\"v\": .})], \"fib\": fib(25) }";
+        
+        String expected = "{\"names\":[\"a!\",\"b!\",\"a!\",\"a!\",\"b!\"],\"labels\":[\"a!\",\"b!\",\"a!\",\"a!\",\"b!\"]," +
+                          "\"fields\":[\"Ak\",\"Bk\",\"Ak\",\"Ak\",\"Bk\"],\"wraps\":[\"a\",\"b\",\"a\",\"a\",\"b\"],\"fib\":75025}";
+        
+        for(Jslt2.Builder builder : Arrays.asList(Jslt2.builder(), 
+                                                  Jslt2.builder().jitThreshold(0), 
+                                                  Jslt2.builder().closureCompilation(true))) {
+            for(int memoCacheSize : new int[] { 0, 16 }) {
+                Jslt2 rt = builder.memoCacheSize(memoCacheSize).build();
+                rt.addFunction("lookup", (Jslt2Function1)(input, arg0) -> {
+                    lookups.incrementAndGet();
+                    return TextNode.valueOf(arg0.asText().toLowerCase());
+                });
+                rt.markPureFunctions("lookup");
+                
+                JsonNode input = rt.getObjectMapper().readTree("{\"codes\": [\"A\", \"B\", \"A\", \"A\", \"B\"], \"suffix\": \"!\"}");
+                Template template = rt.compile(query);
+                
+                // the results are only cached for the duration of an evaluation
+                for(int i = 0; i < 2; i++) {
+                    lookups.set(0);
+                    assertEquals(expected, template.eval(input).toString());
+                    assertEquals(memoCacheSize > 0 ? 2 + 5 : 15, lookups.get());
+                }
+            }
+        }
+        
+        // the least recently used results are evicted
+        Jslt2 rt = Jslt2.builder().memoCacheSize(2).build();
+        rt.addFunction("lookup", (Jslt2Function1)(input, arg0) -> {
+            lookups.incrementAndGet();
+            return arg0;
+        });
+        rt.markPureFunctions("lookup");
+        
+        lookups.set(0);
+        assertEquals("{\"a\":[1,2,1,3,1,2]}", rt.compile("def f(x) lookup($x) {\"a\": [for (.) f(.)]}").eval(rt.getObjectMapper().readTree("[1, 2, 1, 3, 1, 2]")).toString());
+        assertEquals(4, lookups.get());
+    }
+    
+    /**
+     * @return the bytecode the runtime compiles the query into
+     */
+    private static Bytecode compile(Jslt2 rt, String query) {
+        return new Compiler(rt).compile(new jslt2.parser.Parser(rt, new Scanner(new Source(new StringReader(query)))).parseProgram());
+    }
+    
+    /**
+     * Asserts the query evaluates to the expected value with each of the runtimes.  The template is evaluated twice, 
+     * so a template compiled by the {@link jslt2.vm.jit.JitCompiler} on its first evaluation is checked as well
+     */
+    private static void assertEval(String expected, String query, JsonNode input, Jslt2... runtimes) {
+        for(Jslt2 rt : runtimes) {
+            Template template = rt.compile(query);
+            assertEquals(expected, template.eval(input).toString());
+            assertEquals(expected, template.eval(input).toString());
+        }
+    }
+    
+    /**
+     * @return the number of instructions with the opcode, including the inner {@link Bytecode}
+     */
+    private static int countOpcodes(Bytecode code, int opcode) {
+        int count = 0;
+        for(int i = 0; i < code.len; i++) {
+            if(Opcodes.OPCODE(code.instr[i]) == opcode) {
+                count++;
+            }
+        }
+        
+        for(int i = 0; i < code.numInners; i++) {
+            count += countOpcodes(code.inner[i], opcode);
+        }
+        
+        return count;
+    }
+    
     @Test
     public void testMacro() throws Exception {
         ObjectNode input = runtime.newObjectNode();
@@ -225,6 +874,105 @@ public class Jslt2Test {
         testAgainstSpec(input, "{ \"x\": (. or false) }");
     }
     
+    @Test
+    public void testFusedConditions() throws Exception {
+        Jslt2 rt = Jslt2.builder().includeNulls(true).build();
+        String filter = "[for (.list) . if ((. > 2 and . != 4) or . == null or not(. < 10))]";
+        
+        // the conditions are compiled into jumps, without creating boolean values
+        Bytecode code = compile(rt, filter);
+        for(int opcode : new int[] { Opcodes.EQ, Opcodes.NEQ, Opcodes.GT, Opcodes.GTE, Opcodes.LT, Opcodes.LTE, 
+                                     Opcodes.NOT, Opcodes.IS_TRUE, Opcodes.LOAD_TRUE, Opcodes.LOAD_FALSE }) {
+            assertEquals(Opcodes.op2str(opcode), 0, countOpcodes(code, opcode));
+        }
+        assertEquals(1, countOpcodes(code, Opcodes.IFNULL));
+        
+        String values = "{ \"and\": .x > 1 and .y, \"or\": .x < 1 or .y == null, \"not\": not(.x >= 2), " +
+                        "  \"if\": if (.x == 2) let v = .y $v else \"no\", \"else\": if (.x != 2) \"yes\" else \"no\", " +
+                        "  \"truthy\": if (.y and not(.z)) \"yes\" else \"no\" }";
+        
+        JsonNode input = rt.getObjectMapper().readTree("{\"list\": [1, 2, 3, 4, 5, null, 12], \"x\": 2, \"y\": \"s\"}");
+        Jslt2 jitWithNulls = Jslt2.builder().includeNulls(true).jitThreshold(0).build();
+        assertEval("[3,5,null,12]", filter, input, rt, jitWithNulls);
+        assertEval("{\"and\":true,\"or\":false,\"not\":false,\"if\":\"s\",\"else\":\"no\",\"truthy\":\"yes\"}", 
+                values, input, rt, jitWithNulls);
+    }
+    
+    @Test
+    public void testConcat() throws Exception {
+        String key = "\"a\" + .x + \"-\" + .y + \":\" + .z";
+        String sum = ".n + .m + \"/\" + .x + .n";
+        String mixed = "\"k\" + .missing + .list + .obj + .n";
+        
+        Bytecode code = compile(runtime, key);
+        assertEquals(0, countOpcodes(code, Opcodes.ADD));
+        assertEquals(1, countOpcodes(code, Opcodes.CONCAT));
+        
+        // the numbers are added before the first string is
+        code = compile(runtime, sum);
+        assertEquals(1, countOpcodes(code, Opcodes.ADD));
+        assertEquals(1, countOpcodes(code, Opcodes.CONCAT));
+        
+        JsonNode input = runtime.getObjectMapper().readTree("{\"x\": \"b\", \"y\": 2, \"z\": true, \"n\": 1, \"m\": 2, \"list\": [1], \"obj\": {\"a\": 1}}");
+        assertEval("\"ab-2:true\"", key, input, runtime, jit);
+        assertEval("\"3/b1\"", sum, input, runtime, jit);
+        assertEval("\"knull[1]{\\\"a\\\":1}1\"", mixed, input, runtime, jit);
+        assertEval("\"ab\"", "\"a\" + .x", input, runtime, jit);
+    }
+    
+    @Test
+    public void testQuickening() throws Exception {
+        Jslt2 quick = Jslt2.builder().quickening(true).vmPoolSize(1).build();
+        String query = "{\"sum\": [for (.list) .a + .b], \"filter\": [for (.list) .a if (.a > 1)], \"cmp\": .x < .y, \"str\": .s + .t}";
+        Bytecode code = compile(quick, query);
+        
+        JsonNode ints = quick.getObjectMapper().readTree("{\"list\": [{\"a\": 1, \"b\": 2}, {\"a\": 2, \"b\": 3}], \"x\": 1, \"y\": 2, \"s\": \"a\", \"t\": \"b\"}");
+        assertEquals(runtime.compile(query).eval(ints), quick.eval(code, ints));
+        assertEquals(runtime.compile(query).eval(ints), quick.eval(code, ints));
+        
+        // the pooled VM, which executed the bytecode
+        VM vm = quick.getVMPool().acquire();
+        quick.getVMPool().release(vm);
+        
+        assertEquals(1, countQuickOpcodes(vm, code, Opcodes.ADD_LONG));
+        assertEquals(1, countQuickOpcodes(vm, code, Opcodes.ADD_STR));
+        assertEquals(1, countQuickOpcodes(vm, code, Opcodes.LT_NUM));
+        assertEquals(1, countQuickOpcodes(vm, code, Opcodes.IF_CMPLE_NUM));
+        assertEquals(0, countQuickOpcodes(vm, code, Opcodes.ADD));
+        
+        // the types change, so the instructions fall back to the generic ones
+        JsonNode mixed = quick.getObjectMapper().readTree("{\"list\": [{\"a\": 1.5, \"b\": 2}, {\"a\": 3, \"b\": \"x\"}], \"x\": \"a\", \"y\": \"b\", \"s\": 1, \"t\": \"b\"}");
+        assertEquals(runtime.compile(query).eval(mixed), quick.eval(code, mixed));
+        assertEquals(runtime.compile(query).eval(ints), quick.eval(code, ints));
+        
+        assertEquals(0, countQuickOpcodes(vm, code, Opcodes.ADD_LONG) + countQuickOpcodes(vm, code, Opcodes.ADD_DOUBLE));
+        assertEquals(2, countQuickOpcodes(vm, code, Opcodes.ADD));
+        assertEquals(1, countQuickOpcodes(vm, code, Opcodes.LT));
+        
+        // the bytecode itself is left untouched, each VM specializes its own copy
+        assertEquals(0, countOpcodes(code, Opcodes.ADD_LONG) + countOpcodes(code, Opcodes.LT_NUM));
+        assertEquals(0, countQuickOpcodes(new VM(quick), code, Opcodes.LT_NUM));
+    }
+    
+    /**
+     * @return the number of the instructions with the opcode the {@link VM} executes, including the inner {@link Bytecode}
+     */
+    private static int countQuickOpcodes(VM vm, Bytecode code, int opcode) {
+        int count = 0;
+        int[] instr = vm.getInstructions(code);
+        for(int i = 0; i < code.len; i++) {
+            if(Opcodes.OPCODE(instr[i]) == opcode) {
+                count++;
+            }
+        }
+        
+        for(int i = 0; i < code.numInners; i++) {
+            count += countQuickOpcodes(vm, code.inner[i], opcode);
+        }
+        
+        return count;
+    }
+    
     @Test
     public void testDef() {
         ObjectNode input = runtime.newObjectNode();
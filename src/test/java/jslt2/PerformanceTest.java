@@ -232,6 +232,55 @@ public class PerformanceTest {
         System.out.printf("Total JSLT-VM (x) total time: %10d nsec.  Avg. %10d nsec. \n", jslt2Sum, (jslt2Sum  / numberOfIterations));
     }
     
+    @Test
+    public void testClosuresAgainstVm() throws Exception {
+        String query = query();
+        
+        Jslt2 runtime = Jslt2.builder()
+                .enableDebugMode(false)
+                .build();
+        
+        Jslt2 closureRuntime = Jslt2.builder()
+                .enableDebugMode(false)
+                .closureCompilation(true)
+                .build();
+        
+        Template template = runtime.compile(query);
+        Template closureTemplate = closureRuntime.compile(query);
+     
+        int capacity = 1000;//1024 * 1024;
+        ArrayNode array = runtime.newArrayNode(capacity);
+        for(int i = 0; i < capacity; i++) {
+            array.add((double)i);
+        }
+        
+        long vmSum = 0L;
+        long closureSum = 0L;
+        
+        Random rand = new Random();
+        
+        final int numberOfIterations = 1000;
+        
+        int iterations = numberOfIterations;
+        while(iterations --> 0) {
+            
+            Tuple<Long, JsonNode> vmResult = runJslt2(array, template);
+            vmSum += vmResult.getFirst();
+            
+            Tuple<Long, JsonNode> closureResult = runJslt2(array, closureTemplate);
+            closureSum += closureResult.getFirst();
+            
+            assertEquals(vmResult.getSecond(), closureResult.getSecond());
+                        
+            for(int i = 0; i < capacity; i++) {    
+                array.set(rand.nextInt(capacity), DoubleNode.valueOf(rand.nextInt(Integer.MAX_VALUE)));
+            }
+        }
+        
+        System.out.printf("Total JSLT-VM (4)      total time: %10d nsec.  Avg. %10d nsec. \n", vmSum, (vmSum  / numberOfIterations));
+        System.out.printf("Total JSLT-CLOSURE (4) total time: %10d nsec.  Avg. %10d nsec. \n", closureSum, (closureSum  / numberOfIterations));
+    }
+    
     @Test
     public void testFunctionCallsAstWalkerNoValidation() throws Exception {
         String query = query();
@@ -0,0 +1,106 @@
+/*
+ * see license.txt
+ */
+package jslt2;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Checks that HotSpot compiles the {@link jslt2.vm.VM} dispatch loop, by running a workload in a
+ * separate JVM with <code>-XX:+PrintCompilation</code>.  The output of the flag differs between JVMs, so the
+ * test only runs if enabled with <code>-Djslt2.compilationTest=true</code>.
+ *
+ * @author Tony
+ *
+ */
+public class VMCompilationTest {
+
+    /**
+     * The size of the dispatch loop in bytes of bytecode.  HotSpot doesn't compile a method over 8000 bytes
+     * (-XX:HugeMethodLimit), the loop is kept well under it and the cold handlers are left to helper methods
+     */
+    private static final int DISPATCH_LOOP_LIMIT = 4500;
+
+    /**
+     * A compilation of the dispatch loop at any tier, or with the tiered compilation disabled
+     */
+    private static final Pattern COMPILED = Pattern.compile("jslt2\\.vm\\.VM::executeBytecode.*\\((\\d+) bytes\\)");
+
+    /**
+     * The workload that is run in the forked JVM
+     */
+    public static void main(String[] args) throws Exception {
+        Jslt2 runtime = Jslt2.builder().build();
+        Template template = runtime.compile(
+                "def scale(x) $x * 2 " +
+                "{ \"name\": .name, \"values\": [for (.values) scale(.) + 1 if (. > 1)], " +
+                "  \"size\": size(.values), \"first\": .values[0], * : . }");
+
+        JsonNode input = new ObjectMapper().readTree("{\"name\": \"tony\", \"values\": [1,2,3,4,5,6,7,8], \"team\": \"packers\"}");
+
+        long sink = 0;
+        for(int i = 0; i < 200_000; i++) {
+            sink += template.eval(input).size();
+        }
+
+        System.out.println("done " + sink);
+    }
+
+    @Test
+    public void testDispatchLoopIsCompiled() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("jslt2.compilationTest"));
+
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+
+        ProcessBuilder builder = new ProcessBuilder(java, "-XX:+PrintCompilation",
+                "-cp", System.getProperty("java.class.path"),
+                VMCompilationTest.class.getName());
+        builder.redirectErrorStream(true);
+
+        Process process = builder.start();
+
+        boolean compiled = false;
+        boolean skipped = false;
+        int size = -1;
+
+        try(BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String line = null;
+            while((line = reader.readLine()) != null) {
+                if(!line.contains("jslt2.vm.VM::executeBytecode")) {
+                    continue;
+                }
+
+                if(line.contains("COMPILE SKIPPED")) {
+                    skipped = true;
+                    continue;
+                }
+
+                Matcher m = COMPILED.matcher(line);
+                if(m.find()) {
+                    compiled = true;
+                    size = Integer.parseInt(m.group(1));
+                }
+            }
+        }
+
+        assertTrue(process.waitFor(2, TimeUnit.MINUTES));
+        assertEquals("the workload failed", 0, process.exitValue());
+
+        assertFalse("HotSpot skipped compiling the dispatch loop", skipped);
+        assertTrue("the dispatch loop was not compiled", compiled);
+        assertTrue("the dispatch loop is " + size + " bytes", size < DISPATCH_LOOP_LIMIT);
+    }
+}